@@ -0,0 +1,144 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.benchmark;
+
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.SimpleDocument;
+import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.spi.Value;
+import com.google.enterprise.connector.util.InputStreamFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Builds synthetic {@link Document Documents} and content for the
+ * benchmarks.  The documents are reusable: each call to
+ * {@code findProperty} returns a fresh {@code Property}, and document
+ * content is supplied by an {@link InputStreamFactory}.
+ */
+public class BenchmarkDocuments {
+  private static final String PHRASE = "Given the enormous volume of web"
+      + " site information added, deleted, and changed on a frequent basis,"
+      + " <crawling> & \"indexing\" can't keep up. ";
+
+  private BenchmarkDocuments() {
+    // Prevents instantiation.
+  }
+
+  /**
+   * Returns text content of the given length, which compresses well.
+   */
+  public static byte[] textContent(int length) {
+    byte[] phrase = PHRASE.getBytes();
+    byte[] content = new byte[length];
+    for (int i = 0; i < length; i++) {
+      content[i] = phrase[i % phrase.length];
+    }
+    return content;
+  }
+
+  /**
+   * Returns random content of the given length, which does not compress.
+   */
+  public static byte[] randomContent(int length) {
+    byte[] content = new byte[length];
+    new Random(42).nextBytes(content);
+    return content;
+  }
+
+  /**
+   * Returns a metadata string of roughly the given length, with
+   * characters that must be escaped in XML.
+   */
+  public static String text(int length) {
+    StringBuilder builder = new StringBuilder(length);
+    while (builder.length() < length) {
+      builder.append(PHRASE);
+    }
+    builder.setLength(length);
+    return builder.toString();
+  }
+
+  /**
+   * Returns a document with the given number of metadata properties,
+   * and no content.
+   *
+   * @param docid the document ID
+   * @param propertyCount the number of custom metadata properties
+   */
+  public static Document newDocument(String docid, int propertyCount) {
+    return new SimpleDocument(newProperties(docid, propertyCount));
+  }
+
+  /**
+   * Returns a document with the given number of metadata properties,
+   * and the given content.
+   *
+   * @param docid the document ID
+   * @param propertyCount the number of custom metadata properties
+   * @param content the document content
+   */
+  public static Document newDocument(String docid, int propertyCount,
+      final byte[] content) {
+    Map<String, List<Value>> properties = newProperties(docid, propertyCount);
+    properties.put(SpiConstants.PROPNAME_CONTENT, Collections.singletonList(
+        Value.getBinaryValue(new InputStreamFactory() {
+            public InputStream getInputStream() {
+              return new ByteArrayInputStream(content);
+            }
+          })));
+    return new SimpleDocument(properties);
+  }
+
+  private static Map<String, List<Value>> newProperties(String docid,
+      int propertyCount) {
+    Map<String, List<Value>> properties = new HashMap<String, List<Value>>();
+    put(properties, SpiConstants.PROPNAME_DOCID, Value.getStringValue(docid));
+    put(properties, SpiConstants.PROPNAME_MIMETYPE,
+        Value.getStringValue("text/html"));
+    put(properties, SpiConstants.PROPNAME_DISPLAYURL,
+        Value.getStringValue("http://www.example.com/docs?id=" + docid));
+    Calendar lastModified = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+    lastModified.setTimeInMillis(1000000000000L);
+    put(properties, SpiConstants.PROPNAME_LASTMODIFIED,
+        Value.getDateValue(lastModified));
+    put(properties, SpiConstants.PROPNAME_ISPUBLIC,
+        Value.getBooleanValue(false));
+    put(properties, SpiConstants.PROPNAME_ACLUSERS,
+        Value.getStringValue("joe"), Value.getStringValue("mary"));
+    put(properties, SpiConstants.PROPNAME_ACLGROUPS,
+        Value.getStringValue("eng"));
+    for (int i = 0; i < propertyCount; i++) {
+      put(properties, "property" + i, Value.getStringValue(text(20 + i * 10)));
+    }
+    return properties;
+  }
+
+  private static void put(Map<String, List<Value>> properties, String name,
+      Value... values) {
+    List<Value> list = new ArrayList<Value>(values.length);
+    Collections.addAll(list, values);
+    properties.put(name, list);
+  }
+}
@@ -0,0 +1,78 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.benchmark;
+
+import com.google.enterprise.connector.spi.Value;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.ParseException;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the {@link Value} date formatting and parsing methods, which
+ * are called for every date property in every feed, and for every
+ * retriever request. Run with more than one thread, for example with
+ * {@code -t 8}, to see how the methods scale when the traversal threads
+ * and retriever requests format dates at the same time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DateValueBenchmark {
+  private Calendar calendar;
+  private String iso8601;
+
+  @Setup
+  public void setUp() {
+    Value.setFeedTimeZone("America/Los_Angeles");
+    calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(1357000000000L);
+    iso8601 = Value.calendarToIso8601(calendar);
+  }
+
+  @Benchmark
+  public String calendarToFeedXml() {
+    return Value.calendarToFeedXml(calendar);
+  }
+
+  @Benchmark
+  public String calendarToIso8601() {
+    return Value.calendarToIso8601(calendar);
+  }
+
+  @Benchmark
+  public String calendarToRfc822() {
+    return Value.calendarToRfc822(calendar);
+  }
+
+  @Benchmark
+  public Calendar iso8601ToCalendar() throws ParseException {
+    return Value.iso8601ToCalendar(iso8601);
+  }
+}
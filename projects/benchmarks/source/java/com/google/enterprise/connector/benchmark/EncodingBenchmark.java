@@ -0,0 +1,106 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.benchmark;
+
+import com.google.enterprise.connector.common.CompressedFilterInputStream;
+import com.google.enterprise.connector.common.ParallelCompressedFilterInputStream;
+import com.google.enterprise.connector.util.Base64FilterInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of the content encoding streams used to
+ * build content feeds.  Divide the content size by the average time
+ * to get the throughput in bytes per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class EncodingBenchmark {
+  @Param({"1024", "65536", "1048576"})
+  public int contentSize;
+
+  /** Either "text", which compresses well, or "random", which does not. */
+  @Param({"text", "random"})
+  public String contentType;
+
+  private byte[] content;
+  private byte[] buffer;
+
+  @Setup
+  public void setUp() {
+    content = contentType.equals("random")
+        ? BenchmarkDocuments.randomContent(contentSize)
+        : BenchmarkDocuments.textContent(contentSize);
+    buffer = new byte[32 * 1024];
+  }
+
+  /** Reads the stream to the end, returning the number of bytes read. */
+  private long drain(InputStream in) throws IOException {
+    long total = 0;
+    try {
+      int bytes;
+      while ((bytes = in.read(buffer)) != -1) {
+        total += bytes;
+      }
+    } finally {
+      in.close();
+    }
+    return total;
+  }
+
+  @Benchmark
+  public long base64() throws IOException {
+    return drain(new Base64FilterInputStream(
+        new ByteArrayInputStream(content)));
+  }
+
+  @Benchmark
+  public long compressed() throws IOException {
+    return drain(new CompressedFilterInputStream(
+        new ByteArrayInputStream(content), 1024 * 1024));
+  }
+
+  @Benchmark
+  public long parallelCompressed() throws IOException {
+    return drain(new ParallelCompressedFilterInputStream(
+        new ByteArrayInputStream(content)));
+  }
+
+  /** The encoding used for document content in base64compressed feeds. */
+  @Benchmark
+  public long base64Compressed() throws IOException {
+    return drain(new Base64FilterInputStream(new CompressedFilterInputStream(
+        new ByteArrayInputStream(content), 1024 * 1024)));
+  }
+}
@@ -0,0 +1,250 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.benchmark;
+
+import com.google.common.base.Charsets;
+import com.google.enterprise.connector.pusher.GsaFeedConnection;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A fake GSA feed endpoint, serving {@code /xmlfeed}, {@code /getdtd},
+ * and {@code /getbacklogcount} on the loopback interface.  The fake GSA
+ * discards the feeds it receives, after counting them.  It can simulate
+ * a slow GSA, a GSA that fails some feeds, and a GSA with a feed backlog.
+ */
+public class FakeGsa {
+  private static final Logger LOGGER =
+      Logger.getLogger(FakeGsa.class.getName());
+
+  /** Enough of the GSA feed DTD to advertise compression and ACLs. */
+  private static final String FEED_DTD =
+      "<!ELEMENT gsafeed (header, group+)>\n"
+      + "<!ELEMENT header (datasource, feedtype)>\n"
+      + "<!ELEMENT group ((acl|record)+)>\n"
+      + "<!ELEMENT record (acl?, metadata*, content*)>\n"
+      + "<!ELEMENT acl (principal*)>\n"
+      + "<!ELEMENT content (#PCDATA)>\n"
+      + "<!ATTLIST content encoding (base64binary | base64compressed)"
+      + " #IMPLIED>\n";
+
+  private static final byte[] RECORD_TAG = "<record".getBytes(Charsets.UTF_8);
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final Random random = new Random();
+
+  private volatile long latencyMillis = 0L;
+  private volatile double errorRate = 0.0;
+  private volatile int backlog = 0;
+  private volatile int drainRate = 0;
+
+  private final AtomicLong feeds = new AtomicLong();
+  private final AtomicLong failedFeeds = new AtomicLong();
+  private final AtomicLong records = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+
+  /** Records received, but not yet drained from the simulated backlog. */
+  private long pendingRecords = 0L;
+  private long lastDrainTime = System.currentTimeMillis();
+
+  /**
+   * Creates a fake GSA listening on the given port of the loopback
+   * interface.
+   *
+   * @param port the port number, or 0 to use any free port
+   * @throws IOException if the server could not be created
+   */
+  public FakeGsa(int port) throws IOException {
+    server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.createContext("/xmlfeed", new FeedHandler());
+    server.createContext("/getdtd", new HttpHandler() {
+        public void handle(HttpExchange exchange) throws IOException {
+          respond(exchange, FEED_DTD);
+        }
+      });
+    server.createContext("/getbacklogcount", new HttpHandler() {
+        public void handle(HttpExchange exchange) throws IOException {
+          respond(exchange, Integer.toString(getBacklogCount()));
+        }
+      });
+  }
+
+  /** Sets the time the GSA takes to respond to each feed. */
+  public void setLatencyMillis(long latencyMillis) {
+    this.latencyMillis = latencyMillis;
+  }
+
+  /** Sets the fraction of feeds that the GSA fails with an error. */
+  public void setErrorRate(double errorRate) {
+    this.errorRate = errorRate;
+  }
+
+  /**
+   * Sets the simulated feed backlog.  If {@code drainRate} is zero, the
+   * backlog count is always {@code backlog}.  Otherwise, received records
+   * are added to the backlog, which drains at {@code drainRate} records
+   * per second.
+   *
+   * @param backlog the initial backlog count
+   * @param drainRate the number of records processed per second
+   */
+  public synchronized void setBacklog(int backlog, int drainRate) {
+    this.backlog = backlog;
+    this.drainRate = drainRate;
+    this.pendingRecords = backlog;
+    this.lastDrainTime = System.currentTimeMillis();
+  }
+
+  public void start() {
+    server.start();
+    LOGGER.info("Fake GSA listening on port " + getPort());
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /** Returns the number of feeds received. */
+  public long getFeeds() {
+    return feeds.get();
+  }
+
+  /** Returns the number of feeds that were failed with an error. */
+  public long getFailedFeeds() {
+    return failedFeeds.get();
+  }
+
+  /** Returns the number of records received. */
+  public long getRecords() {
+    return records.get();
+  }
+
+  /** Returns the number of feed bytes received. */
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  private synchronized int getBacklogCount() {
+    if (drainRate <= 0) {
+      return backlog;
+    }
+    long now = System.currentTimeMillis();
+    long drained = (now - lastDrainTime) * drainRate / 1000L;
+    if (drained > 0) {
+      pendingRecords = Math.max(0L, pendingRecords - drained);
+      lastDrainTime = now;
+    }
+    return (int) Math.min(pendingRecords, Integer.MAX_VALUE);
+  }
+
+  private synchronized void addPendingRecords(long count) {
+    if (drainRate > 0) {
+      getBacklogCount();
+      pendingRecords += count;
+    }
+  }
+
+  private static void respond(HttpExchange exchange, String response)
+      throws IOException {
+    byte[] body = response.getBytes(Charsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain");
+    exchange.sendResponseHeaders(200, body.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(body);
+    } finally {
+      out.close();
+    }
+  }
+
+  /** Receives a feed, counting its bytes and records. */
+  private class FeedHandler implements HttpHandler {
+    public void handle(HttpExchange exchange) throws IOException {
+      long feedBytes = 0L;
+      long feedRecords = 0L;
+      int matched = 0;
+      byte[] buffer = new byte[32 * 1024];
+      InputStream in = exchange.getRequestBody();
+      try {
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+          feedBytes += count;
+          for (int i = 0; i < count; i++) {
+            if (buffer[i] == RECORD_TAG[matched]) {
+              if (++matched == RECORD_TAG.length) {
+                feedRecords++;
+                matched = 0;
+              }
+            } else {
+              matched = (buffer[i] == RECORD_TAG[0]) ? 1 : 0;
+            }
+          }
+        }
+      } finally {
+        in.close();
+      }
+
+      if (latencyMillis > 0) {
+        try {
+          Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      feeds.incrementAndGet();
+      bytes.addAndGet(feedBytes);
+      boolean fail;
+      synchronized (random) {
+        fail = random.nextDouble() < errorRate;
+      }
+      if (fail) {
+        failedFeeds.incrementAndGet();
+        respond(exchange, GsaFeedConnection.INTERNAL_ERROR_RESPONSE);
+      } else {
+        records.addAndGet(feedRecords);
+        addPendingRecords(feedRecords);
+        if (LOGGER.isLoggable(Level.FINEST)) {
+          LOGGER.finest("Received feed of " + feedRecords + " records, "
+              + feedBytes + " bytes");
+        }
+        respond(exchange, GsaFeedConnection.SUCCESS_RESPONSE);
+      }
+    }
+  }
+}
@@ -0,0 +1,368 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.benchmark;
+
+import com.google.common.base.Charsets;
+import com.google.enterprise.connector.instantiator.DocumentFilterFactoryFactoryImpl;
+import com.google.enterprise.connector.jcr.JcrTraversalManager;
+import com.google.enterprise.connector.manager.Context;
+import com.google.enterprise.connector.mock.MockRepository;
+import com.google.enterprise.connector.mock.MockRepositoryEventList;
+import com.google.enterprise.connector.mock.jcr.MockJcrQueryManager;
+import com.google.enterprise.connector.pusher.DocPusherFactory;
+import com.google.enterprise.connector.pusher.FeedSenderPool;
+import com.google.enterprise.connector.pusher.GsaFeedConnection;
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.DocumentList;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.TraversalManager;
+import com.google.enterprise.connector.traversal.BatchResult;
+import com.google.enterprise.connector.traversal.BatchSize;
+import com.google.enterprise.connector.traversal.FileSizeLimitInfo;
+import com.google.enterprise.connector.traversal.ProductionTraversalContext;
+import com.google.enterprise.connector.traversal.QueryTraverser;
+import com.google.enterprise.connector.traversal.TraversalDelayPolicy;
+import com.google.enterprise.connector.traversal.TraversalStateStore;
+import com.google.enterprise.connector.util.SystemClock;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures end-to-end traversal throughput, from a {@link MockRepository}
+ * through {@link QueryTraverser}, {@code DocPusher}, and
+ * {@link GsaFeedConnection}, to a {@link FakeGsa} running in the same JVM.
+ * It runs entirely offline.
+ * <p>
+ * Options are given as {@code name=value} arguments:
+ * <dl>
+ * <dt>documents</dt><dd>the number of documents to traverse (10000)</dd>
+ * <dt>contentSize</dt><dd>the size of each document's content (8192)</dd>
+ * <dt>properties</dt><dd>the number of metadata properties (10)</dd>
+ * <dt>batchSize</dt><dd>the traversal batch size hint (500)</dd>
+ * <dt>prefetchSize</dt><dd>the number of documents to fetch ahead of
+ *     feed construction (0)</dd>
+ * <dt>compression</dt><dd>if true, the GSA supports compressed content
+ *     (true)</dd>
+ * <dt>senderThreads</dt><dd>the number of feed sender threads (4)</dd>
+ * <dt>maxFeedSize</dt><dd>the maximum feed size in bytes (10485760)</dd>
+ * <dt>gsaLatency</dt><dd>milliseconds the GSA takes per feed (0)</dd>
+ * <dt>gsaErrorRate</dt><dd>fraction of feeds the GSA fails (0.0)</dd>
+ * <dt>gsaBacklog</dt><dd>the GSA feed backlog count (0)</dd>
+ * <dt>gsaDrainRate</dt><dd>records per second the GSA removes from
+ *     its backlog, or 0 for a constant backlog (0)</dd>
+ * </dl>
+ * The results are docs/sec, bytes/sec, p50 and p99 per-document latency
+ * in the traversal thread, and garbage collection counts and times.
+ */
+public class TraversalThroughput {
+  private static final String CONNECTOR_NAME = "throughput";
+
+  private final Map<String, String> options;
+
+  public TraversalThroughput(Map<String, String> options) {
+    this.options = options;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<String, String>();
+    for (String arg : args) {
+      int index = arg.indexOf('=');
+      if (index <= 0) {
+        System.err.println("Usage: TraversalThroughput [name=value]...");
+        System.exit(1);
+      }
+      options.put(arg.substring(0, index), arg.substring(index + 1));
+    }
+    // Keep the report readable.
+    Logger.getLogger("").setLevel(Level.WARNING);
+    new TraversalThroughput(options).run();
+  }
+
+  private String getOption(String name, String defaultValue) {
+    String value = options.get(name);
+    return (value == null) ? defaultValue : value;
+  }
+
+  private int getIntOption(String name, int defaultValue) {
+    return Integer.parseInt(getOption(name, Integer.toString(defaultValue)));
+  }
+
+  public void run() throws Exception {
+    int documents = getIntOption("documents", 10000);
+    int contentSize = getIntOption("contentSize", 8192);
+    int properties = getIntOption("properties", 10);
+    int batchSize = getIntOption("batchSize", 500);
+    boolean compression =
+        Boolean.parseBoolean(getOption("compression", "true"));
+    int senderThreads = getIntOption("senderThreads", 4);
+    int maxFeedSize = getIntOption("maxFeedSize", 10 * 1024 * 1024);
+
+    FakeGsa gsa = new FakeGsa(0);
+    gsa.setLatencyMillis(getIntOption("gsaLatency", 0));
+    gsa.setErrorRate(Double.parseDouble(getOption("gsaErrorRate", "0.0")));
+    gsa.setBacklog(getIntOption("gsaBacklog", 0),
+                   getIntOption("gsaDrainRate", 0));
+    gsa.start();
+
+    File eventLog = File.createTempFile("throughput", ".txt");
+    eventLog.deleteOnExit();
+    writeEventLog(eventLog, documents, contentSize, properties);
+
+    FeedSenderPool feedSenderPool = new FeedSenderPool(senderThreads,
+        FeedSenderPool.DEFAULT_MAX_FEEDS_IN_FLIGHT,
+        FeedSenderPool.DEFAULT_MAX_FEEDS_IN_FLIGHT_PER_CONNECTOR);
+    try {
+      Context.getInstance().setContentUrlPrefix(
+          "http://localhost:8080/connector-manager/getDocumentContent");
+      GsaFeedConnection feedConnection =
+          new GsaFeedConnection("http", "127.0.0.1", gsa.getPort(), -1);
+      if (!compression) {
+        feedConnection.setContentEncodings("base64binary");
+      }
+      FileSizeLimitInfo fileSizeLimit = new FileSizeLimitInfo();
+      fileSizeLimit.setMaxFeedSize(maxFeedSize);
+      DocPusherFactory pusherFactory = new DocPusherFactory(feedConnection,
+          fileSizeLimit, new DocumentFilterFactoryFactoryImpl(null, null),
+          feedSenderPool);
+
+      MockRepositoryEventList eventList = new MockRepositoryEventList();
+      eventList.setRepositoryFileName(eventLog.getAbsolutePath());
+      MockRepository repository = new MockRepository(eventList);
+      TimingTraversalManager traversalManager = new TimingTraversalManager(
+          new JcrTraversalManager(new MockJcrQueryManager(
+              repository.getStore())), documents);
+      QueryTraverser traverser = new QueryTraverser(pusherFactory,
+          traversalManager, new MemoryTraversalStateStore(), CONNECTOR_NAME,
+          new ProductionTraversalContext(), new SystemClock());
+      traverser.setPrefetchSize(getIntOption("prefetchSize", 0));
+
+      // Check the backlog every second, pausing the traversal once the
+      // GSA backlog grows past its initial level, until it drains to half.
+      int backlog = getIntOption("gsaBacklog", 0);
+      if (backlog > 0) {
+        feedConnection.setBacklogCheck(backlog / 2, backlog, 1);
+      }
+
+      long gcCount = getGcCount();
+      long gcTime = getGcTime();
+      long startTime = System.nanoTime();
+      int batches = 0;
+      int failedBatches = 0;
+      while (true) {
+        BatchResult result = traverser.runBatch(new BatchSize(batchSize));
+        batches++;
+        if (result.getDelayPolicy() == TraversalDelayPolicy.ERROR) {
+          failedBatches++;
+        } else if (result.getDelayPolicy() == TraversalDelayPolicy.POLL
+            || result.getCountProcessed() == 0) {
+          break;
+        } else if (result.getCountProcessed() < batchSize) {
+          // The batch ended early, probably because of a feed backlog.
+          Thread.sleep(100);
+        }
+      }
+      long elapsedNanos = System.nanoTime() - startTime;
+      gcCount = getGcCount() - gcCount;
+      gcTime = getGcTime() - gcTime;
+
+      double seconds = elapsedNanos / 1e9;
+      long[] latencies = traversalManager.getLatencies();
+      Arrays.sort(latencies);
+      System.out.println("Documents traversed:    "
+          + traversalManager.getDocumentCount());
+      System.out.println("Batches (failed):       " + batches
+          + " (" + failedBatches + ")");
+      System.out.println("Feeds (failed):         " + gsa.getFeeds()
+          + " (" + gsa.getFailedFeeds() + ")");
+      System.out.println("Records accepted:       " + gsa.getRecords());
+      System.out.println("Elapsed seconds:        "
+          + String.format("%.3f", seconds));
+      // Retried batches resend records, so count each document once.
+      System.out.println("Docs/sec:               "
+          + String.format("%.1f", documents / seconds));
+      System.out.println("Feed bytes/sec:         "
+          + String.format("%.0f", gsa.getBytes() / seconds));
+      System.out.println("p50 doc latency (us):   "
+          + percentile(latencies, 0.50) / 1000);
+      System.out.println("p99 doc latency (us):   "
+          + percentile(latencies, 0.99) / 1000);
+      System.out.println("GC count:               " + gcCount);
+      System.out.println("GC time (ms):           " + gcTime + " ("
+          + String.format("%.1f", gcTime / (seconds * 10)) + "% of elapsed)");
+    } finally {
+      feedSenderPool.stop(true);
+      gsa.stop();
+      eventLog.delete();
+    }
+  }
+
+  /**
+   * Writes a mock repository event log of documents with text content.
+   */
+  private static void writeEventLog(File file, int documents,
+      int contentSize, int properties) throws IOException {
+    // Random words, so that the content compresses like text.
+    String[] words = { "the", "enormous", "volume", "of", "web", "site",
+        "information", "added", "deleted", "changed", "frequent", "basis" };
+    Random random = new Random(42);
+    Writer writer = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(file), Charsets.UTF_8));
+    try {
+      StringBuilder content = new StringBuilder(contentSize + 16);
+      for (int i = 1; i <= documents; i++) {
+        content.setLength(0);
+        while (content.length() < contentSize) {
+          content.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        content.setLength(contentSize);
+        writer.write("{\"timestamp\":\"" + i + "\",\"type\":\"save\","
+            + "\"docid\":\"doc" + i + "\",\"content\":\"" + content + "\"");
+        for (int p = 0; p < properties; p++) {
+          writer.write(",\"property" + p + "\":\"value " + p + " of doc "
+              + i + "\"");
+        }
+        writer.write("}\n");
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static long percentile(long[] sorted, double fraction) {
+    if (sorted.length == 0) {
+      return 0L;
+    }
+    int index = (int) Math.ceil(fraction * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+  }
+
+  private static long getGcCount() {
+    long count = 0L;
+    for (GarbageCollectorMXBean gc :
+         ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0L, gc.getCollectionCount());
+    }
+    return count;
+  }
+
+  private static long getGcTime() {
+    long time = 0L;
+    for (GarbageCollectorMXBean gc :
+         ManagementFactory.getGarbageCollectorMXBeans()) {
+      time += Math.max(0L, gc.getCollectionTime());
+    }
+    return time;
+  }
+
+  /** Keeps the traversal state in memory. */
+  private static class MemoryTraversalStateStore
+      implements TraversalStateStore {
+    private String state;
+
+    public void storeTraversalState(String state) {
+      this.state = state;
+    }
+
+    public String getTraversalState() {
+      return state;
+    }
+  }
+
+  /**
+   * A {@link TraversalManager} that records the time the traverser spends
+   * on each document, from the return of {@code nextDocument} to the next
+   * call to {@code nextDocument}.
+   */
+  private static class TimingTraversalManager implements TraversalManager {
+    private final TraversalManager delegate;
+    private long[] latencies;
+    private int documentCount = 0;
+
+    TimingTraversalManager(TraversalManager delegate, int expectedDocuments) {
+      this.delegate = delegate;
+      this.latencies = new long[expectedDocuments];
+    }
+
+    public void setBatchHint(int batchHint) throws RepositoryException {
+      delegate.setBatchHint(batchHint);
+    }
+
+    public DocumentList startTraversal() throws RepositoryException {
+      return wrap(delegate.startTraversal());
+    }
+
+    public DocumentList resumeTraversal(String checkpoint)
+        throws RepositoryException {
+      return wrap(delegate.resumeTraversal(checkpoint));
+    }
+
+    synchronized long[] getLatencies() {
+      return Arrays.copyOf(latencies, documentCount);
+    }
+
+    synchronized int getDocumentCount() {
+      return documentCount;
+    }
+
+    private synchronized void record(long nanos) {
+      if (documentCount == latencies.length) {
+        latencies = Arrays.copyOf(latencies, 2 * latencies.length + 1);
+      }
+      latencies[documentCount++] = nanos;
+    }
+
+    private DocumentList wrap(final DocumentList documentList) {
+      if (documentList == null) {
+        return null;
+      }
+      return new DocumentList() {
+        private long returnTime = -1L;
+
+        public Document nextDocument() throws RepositoryException {
+          if (returnTime >= 0) {
+            record(System.nanoTime() - returnTime);
+            returnTime = -1L;
+          }
+          Document document = documentList.nextDocument();
+          if (document != null) {
+            returnTime = System.nanoTime();
+          }
+          return document;
+        }
+
+        public String checkpoint() throws RepositoryException {
+          if (returnTime >= 0) {
+            record(System.nanoTime() - returnTime);
+            returnTime = -1L;
+          }
+          return documentList.checkpoint();
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,109 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.benchmark;
+
+import com.google.enterprise.connector.manager.Context;
+import com.google.enterprise.connector.pusher.MockFeedConnection;
+import com.google.enterprise.connector.pusher.XmlFeed;
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.SpiConstants.FeedType;
+import com.google.enterprise.connector.traversal.FileSizeLimitInfo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link XmlFeed#addRecord}, the hot path of feed construction,
+ * for metadata-and-URL, content URL, and content feeds.  Each invocation
+ * builds a feed of {@link #RECORDS} records.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class XmlFeedBenchmark {
+  /** The number of records added to each feed. */
+  private static final int RECORDS = 100;
+
+  @Param({"WEB", "CONTENTURL", "CONTENT"})
+  public String feedType;
+
+  /** The number of custom metadata properties per document. */
+  @Param({"10"})
+  public int propertyCount;
+
+  /** The size of the document content, for CONTENT feeds. */
+  @Param({"1024", "65536"})
+  public int contentSize;
+
+  @Param({"base64binary", "base64compressed"})
+  public String contentEncodings;
+
+  private FeedType type;
+  private FileSizeLimitInfo fileSizeLimit;
+  private MockFeedConnection feedConnection;
+  private Document[] documents;
+
+  @Setup
+  public void setUp() {
+    type = FeedType.valueOf(feedType);
+    Context.getInstance().setContentUrlPrefix(
+        "http://localhost:8080/connector-manager/getDocumentContent");
+    fileSizeLimit = new FileSizeLimitInfo();
+    feedConnection = new MockFeedConnection() {
+        @Override
+        public String getContentEncodings() {
+          return contentEncodings;
+        }
+      };
+    byte[] content = BenchmarkDocuments.textContent(contentSize);
+    documents = new Document[RECORDS];
+    for (int i = 0; i < RECORDS; i++) {
+      documents[i] = (type == FeedType.CONTENT)
+          ? BenchmarkDocuments.newDocument("doc" + i, propertyCount, content)
+          : BenchmarkDocuments.newDocument("doc" + i, propertyCount);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public int addRecord() throws Exception {
+    XmlFeed feed = new XmlFeed("benchmark", type, fileSizeLimit, null,
+                               feedConnection);
+    try {
+      for (Document document : documents) {
+        feed.addRecord(document);
+      }
+      feed.close();
+      return feed.size();
+    } finally {
+      feed.discard();
+    }
+  }
+}
@@ -0,0 +1,70 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.benchmark;
+
+import com.google.enterprise.connector.spi.XmlUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link XmlUtils#xmlAppendAttr}, which escapes every metadata
+ * value written to a feed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class XmlUtilsBenchmark {
+  @Param({"16", "256", "4096"})
+  public int valueLength;
+
+  /** If {@code false}, the value contains no characters to escape. */
+  @Param({"false", "true"})
+  public boolean escaped;
+
+  private String value;
+  private StringBuilder buffer;
+
+  @Setup
+  public void setUp() {
+    value = BenchmarkDocuments.text(valueLength);
+    if (!escaped) {
+      value = value.replaceAll("[<>&\"']", "x");
+    }
+    buffer = new StringBuilder(2 * valueLength + 64);
+  }
+
+  @Benchmark
+  public int xmlAppendAttr() throws IOException {
+    buffer.setLength(0);
+    XmlUtils.xmlAppendAttr("content", value, buffer);
+    return buffer.length();
+  }
+}
@@ -17,6 +17,8 @@ package com.google.enterprise.connector.common;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.zip.Deflater;
 
 /**
@@ -26,6 +28,7 @@ public class CompressedFilterInputStream extends FilterInputStream {
   private final Deflater deflater;
   private final byte[] inputBuff;
   private final byte[] oneByte = new byte[1];
+  private long compressionTimeNanos = 0L;
 
   /**
    * Given some InputStream, create an InputStream that compresses the
@@ -75,11 +78,35 @@ public class CompressedFilterInputStream extends FilterInputStream {
         }
       }
       // Write compressed data to the output.
+      long start = currentThreadCpuTime();
       rtn = deflater.deflate(b, off, len);
+      compressionTimeNanos += currentThreadCpuTime() - start;
     } while ((rtn == 0) && !deflater.finished());
     return (rtn > 0) ? rtn : -1;
   }
 
+  /**
+   * Returns the CPU time, in nanoseconds, spent compressing the data
+   * read so far.
+   */
+  public long getCompressionTimeNanos() {
+    return compressionTimeNanos;
+  }
+
+  /**
+   * Returns the CPU time used by the current thread, in nanoseconds,
+   * or the elapsed time if CPU time measurement is not available.
+   */
+  public static long currentThreadCpuTime() {
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    if (threadBean.isCurrentThreadCpuTimeSupported()
+        && threadBean.isThreadCpuTimeEnabled()) {
+      return threadBean.getCurrentThreadCpuTime();
+    } else {
+      return System.nanoTime();
+    }
+  }
+
   /**
    * Try to fill up the buffer with data read from the input stream.
    * This is tolerant of short reads - returning less than the requested
@@ -0,0 +1,100 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.common;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of values counted into buckets with fixed upper bounds.
+ * A value is counted in the first bucket whose upper bound is greater than
+ * or equal to the value.  Values greater than the last bound are counted in
+ * a final, unbounded bucket.
+ * <p>
+ * This class is thread safe.
+ */
+public class Histogram {
+  private final long[] bounds;
+  private final AtomicLongArray counts;
+  private final AtomicLong sum = new AtomicLong();
+
+  /**
+   * Constructs a {@code Histogram}.
+   *
+   * @param bounds the upper bounds of the buckets, in increasing order
+   */
+  public Histogram(long... bounds) {
+    for (int i = 1; i < bounds.length; i++) {
+      if (bounds[i] <= bounds[i - 1]) {
+        throw new IllegalArgumentException(
+            "Bucket bounds must be in increasing order.");
+      }
+    }
+    this.bounds = bounds.clone();
+    this.counts = new AtomicLongArray(bounds.length + 1);
+  }
+
+  /**
+   * Counts a value.
+   *
+   * @param value the value to count
+   */
+  public void record(long value) {
+    int index = Arrays.binarySearch(bounds, value);
+    if (index < 0) {
+      index = -index - 1;
+    }
+    counts.incrementAndGet(index);
+    sum.addAndGet(value);
+  }
+
+  /** Returns a copy of the upper bounds of the buckets. */
+  public long[] getBounds() {
+    return bounds.clone();
+  }
+
+  /**
+   * Returns the number of values counted in each bucket.  The returned
+   * array has one more element than the bounds, for the unbounded bucket.
+   */
+  public long[] getCounts() {
+    long[] result = new long[counts.length()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = counts.get(i);
+    }
+    return result;
+  }
+
+  /** Returns the number of values counted. */
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  /** Returns the sum of the values counted. */
+  public long getSum() {
+    return sum.get();
+  }
+
+  @Override
+  public String toString() {
+    return "Histogram: bounds = " + Arrays.toString(bounds) + ", counts = "
+        + Arrays.toString(getCounts()) + ", sum = " + sum;
+  }
+}
@@ -0,0 +1,454 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.common;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses an input stream using java.util.zip.Deflater, compressing
+ * blocks of the input concurrently on a pool of worker threads.
+ * <p>
+ * Like pigz, the input is split into fixed size blocks.  Each block is
+ * compressed independently as raw deflate data, ending on a byte boundary
+ * with a sync flush, and primed with the last 32KB of the previous block
+ * as a dictionary so that the compression ratio is nearly that of a single
+ * {@code Deflater}.  The compressed blocks are concatenated, in order,
+ * between a zlib header and trailer.  The output is therefore a standard
+ * zlib stream, as produced by {@link CompressedFilterInputStream}.  It is
+ * byte-for-byte identical to it for content that fits in a single block.
+ * <p>
+ * The input is read, and the output is assembled, on the calling thread.
+ * Only the compression itself is done by the workers.  The shared pool of
+ * workers is shut down by the {@link ParallelCompressionService}.
+ * <p>
+ * Sync flushing requires Java 7.  Use {@link #isSupported()} to determine
+ * whether this class may be used, and fall back to the serial
+ * {@code CompressedFilterInputStream} if not.
+ */
+public class ParallelCompressedFilterInputStream extends FilterInputStream {
+  private static final Logger LOGGER =
+      Logger.getLogger(ParallelCompressedFilterInputStream.class.getName());
+
+  /** The default size of the uncompressed blocks. */
+  public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+  /** The size of the deflate sliding window, used for the dictionary. */
+  private static final int DICTIONARY_SIZE = 32 * 1024;
+
+  /** zlib header for deflate with a 32KB window and default compression. */
+  private static final byte[] ZLIB_HEADER = { (byte) 0x78, (byte) 0x9c };
+
+  /** {@code Deflater.deflate(byte[], int, int, int)}, new in Java 7. */
+  private static final Method DEFLATE_WITH_FLUSH;
+
+  /** {@code Deflater.SYNC_FLUSH}, new in Java 7. */
+  private static final int SYNC_FLUSH;
+
+  static {
+    Method method = null;
+    int syncFlush = 0;
+    try {
+      method = Deflater.class.getMethod("deflate",
+          byte[].class, int.class, int.class, int.class);
+      syncFlush = Deflater.class.getField("SYNC_FLUSH").getInt(null);
+    } catch (Exception e) {
+      LOGGER.config("Parallel compression is not supported by this JVM.");
+      method = null;
+    }
+    DEFLATE_WITH_FLUSH = method;
+    SYNC_FLUSH = syncFlush;
+  }
+
+  /** The lazily constructed default worker pool. */
+  private static ExecutorService defaultExecutor;
+
+  private final ExecutorService executor;
+  private final int blockSize;
+  private final int maxBlocksInFlight;
+
+  /** The compressed blocks, in order, that have not yet been read. */
+  private final LinkedList<Future<byte[]>> pending =
+      new LinkedList<Future<byte[]>>();
+
+  /** Checksum of the uncompressed data, for the zlib trailer. */
+  private final Adler32 adler = new Adler32();
+
+  /** The previous uncompressed block, used as the dictionary. */
+  private byte[] previousBlock;
+  private int previousBlockLength;
+
+  /** The compressed data currently being read. */
+  private byte[] current = ZLIB_HEADER;
+  private int currentPos = 0;
+
+  private boolean inputExhausted = false;
+  private boolean finalBlockSubmitted = false;
+  private boolean finished = false;
+
+  private final byte[] oneByte = new byte[1];
+
+  /** CPU time spent compressing, summed over all the workers. */
+  private final AtomicLong compressionTimeNanos = new AtomicLong();
+
+  /**
+   * Returns {@code true} if parallel compression is supported by this JVM.
+   */
+  public static boolean isSupported() {
+    return DEFLATE_WITH_FLUSH != null;
+  }
+
+  /**
+   * Given some InputStream, create an InputStream that compresses the
+   * input stream using a shared pool of worker threads.
+   *
+   * @param in an InputStream providing source data for compressing.
+   */
+  public ParallelCompressedFilterInputStream(InputStream in) {
+    this(in, getDefaultExecutor(), DEFAULT_BLOCK_SIZE,
+         2 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Given some InputStream, create an InputStream that compresses the
+   * input stream using the supplied worker threads.
+   *
+   * @param in an InputStream providing source data for compressing.
+   * @param executor an {@link ExecutorService} used to compress the blocks.
+   * @param blockSize size in bytes of the uncompressed blocks.
+   * @param maxBlocksInFlight the maximum number of blocks that may be read
+   *        ahead of the compressed output.
+   */
+  public ParallelCompressedFilterInputStream(InputStream in,
+      ExecutorService executor, int blockSize, int maxBlocksInFlight) {
+    super(in);
+    if (!isSupported()) {
+      throw new UnsupportedOperationException(
+          "Parallel compression requires Java 7 or later.");
+    }
+    if (blockSize < DICTIONARY_SIZE || maxBlocksInFlight <= 0) {
+      throw new IllegalArgumentException("Invalid blockSize "
+          + blockSize + " or maxBlocksInFlight " + maxBlocksInFlight);
+    }
+    this.executor = executor;
+    this.blockSize = blockSize;
+    this.maxBlocksInFlight = maxBlocksInFlight;
+  }
+
+  /**
+   * Returns the shared pool of compression threads, constructing it if
+   * necessary.  The threads are daemon threads, and are allowed to die
+   * when idle.
+   */
+  private static synchronized ExecutorService getDefaultExecutor() {
+    if (defaultExecutor == null) {
+      int threads = Runtime.getRuntime().availableProcessors();
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+          60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactory() {
+            private final ThreadFactory delegate =
+                Executors.defaultThreadFactory();
+            public Thread newThread(Runnable r) {
+              Thread t = delegate.newThread(r);
+              t.setName("Compressor-" + t.getName());
+              t.setDaemon(true);
+              return t;
+            }
+          });
+      executor.allowCoreThreadTimeOut(true);
+      defaultExecutor = executor;
+    }
+    return defaultExecutor;
+  }
+
+  /**
+   * Shuts down the shared pool of compression threads, if it has been
+   * constructed.  A new pool is constructed if it is needed again.
+   *
+   * @param force if {@code true}, interrupt the threads that are
+   *        compressing blocks, and abandon the queued blocks
+   */
+  static synchronized void shutdownDefaultExecutor(boolean force) {
+    if (defaultExecutor != null) {
+      if (force) {
+        defaultExecutor.shutdownNow();
+      } else {
+        defaultExecutor.shutdown();
+      }
+      defaultExecutor = null;
+    }
+  }
+
+  /** Returns the shared pool of compression threads, if it exists. */
+  @VisibleForTesting
+  static synchronized ExecutorService peekDefaultExecutor() {
+    return defaultExecutor;
+  }
+
+  // Supported, but shouldn't really happen in our environment.
+  @Override
+  public int read() throws IOException {
+    int rtn = read(oneByte, 0, 1);
+    return (rtn < 0) ? rtn : (oneByte[0] & 0xFF);
+  }
+
+  @Override
+  public int read(byte b[], int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (currentPos >= current.length) {
+      if (!nextChunk()) {
+        return -1;
+      }
+    }
+    int bytes = Math.min(len, current.length - currentPos);
+    System.arraycopy(current, currentPos, b, off, bytes);
+    currentPos += bytes;
+    return bytes;
+  }
+
+  /**
+   * Makes the next chunk of compressed output current, reading and
+   * submitting more blocks for compression as needed.
+   *
+   * @return {@code false} if there is no more output
+   */
+  private boolean nextChunk() throws IOException {
+    if (finished) {
+      return false;
+    }
+    while (!inputExhausted && pending.size() < maxBlocksInFlight) {
+      submitBlock();
+    }
+    Future<byte[]> future = pending.poll();
+    if (future != null) {
+      current = getCompressedBlock(future);
+    } else {
+      // All the blocks have been read. Finish the stream.
+      current = getTrailer();
+      finished = true;
+    }
+    currentPos = 0;
+    return true;
+  }
+
+  /** Reads the next block of input and submits it for compression. */
+  private void submitBlock() throws IOException {
+    final byte[] block = new byte[blockSize];
+    final int length = fillbuff(block);
+    if (length <= 0) {
+      inputExhausted = true;
+      return;
+    }
+    if (length < blockSize) {
+      // fillbuff only returns a short block at the end of the input.
+      inputExhausted = true;
+      finalBlockSubmitted = true;
+    }
+    final boolean isFinal = finalBlockSubmitted;
+    adler.update(block, 0, length);
+
+    final byte[] dictionary = previousBlock;
+    final int dictionaryLength = previousBlockLength;
+    previousBlock = block;
+    previousBlockLength = length;
+
+    FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+        public byte[] call() throws Exception {
+          long start = CompressedFilterInputStream.currentThreadCpuTime();
+          try {
+            return compressBlock(block, length, dictionary, dictionaryLength,
+                                 isFinal);
+          } finally {
+            compressionTimeNanos.addAndGet(
+                CompressedFilterInputStream.currentThreadCpuTime() - start);
+          }
+        }
+      });
+    if (inputExhausted && pending.isEmpty()) {
+      // Small content fits in a single block. Don't bother handing it off.
+      task.run();
+    } else {
+      executor.execute(task);
+    }
+    pending.add(task);
+  }
+
+  /**
+   * Compresses a block of data as raw deflate data.  The final block is
+   * finished normally, so content that fits in a single block compresses
+   * exactly as it would with a single {@code Deflater}.  Other blocks end
+   * with a sync flush so that they may be followed by the next block.
+   */
+  private static byte[] compressBlock(byte[] block, int length,
+      byte[] dictionary, int dictionaryLength, boolean isFinal)
+      throws Exception {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      if (dictionary != null) {
+        int dictLength = Math.min(dictionaryLength, DICTIONARY_SIZE);
+        deflater.setDictionary(dictionary, dictionaryLength - dictLength,
+                               dictLength);
+      }
+      deflater.setInput(block, 0, length);
+      byte[] output = new byte[length + (length >> 3) + 64];
+      int count = 0;
+      if (isFinal) {
+        deflater.finish();
+        while (!deflater.finished()) {
+          if (count == output.length) {
+            output = Arrays.copyOf(output, output.length * 2);
+          }
+          count += deflater.deflate(output, count, output.length - count);
+        }
+        return Arrays.copyOf(output, count);
+      }
+      while (true) {
+        int space = output.length - count;
+        int bytes;
+        try {
+          bytes = (Integer) DEFLATE_WITH_FLUSH.invoke(deflater,
+              output, count, space, SYNC_FLUSH);
+        } catch (InvocationTargetException e) {
+          throw (Exception) e.getCause();
+        }
+        count += bytes;
+        // A full output buffer means there may be more to flush.
+        if (bytes < space) {
+          break;
+        }
+        output = Arrays.copyOf(output, output.length * 2);
+      }
+      return Arrays.copyOf(output, count);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /** Waits for a compressed block. */
+  private byte[] getCompressedBlock(Future<byte[]> future)
+      throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while compressing data", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Error compressing data", e.getCause());
+    }
+  }
+
+  /**
+   * Returns the zlib trailer, preceded by an empty final deflate block
+   * if the last block of input was not the final block.  This happens if
+   * the input is empty, or an exact multiple of the block size.
+   */
+  private byte[] getTrailer() {
+    byte[] trailer = new byte[32];
+    int count = 0;
+    if (!finalBlockSubmitted) {
+      Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      try {
+        deflater.finish();
+        count = deflater.deflate(trailer);
+      } finally {
+        deflater.end();
+      }
+    }
+    long checksum = adler.getValue();
+    trailer[count++] = (byte) (checksum >>> 24);
+    trailer[count++] = (byte) (checksum >>> 16);
+    trailer[count++] = (byte) (checksum >>> 8);
+    trailer[count++] = (byte) checksum;
+    return Arrays.copyOf(trailer, count);
+  }
+
+  /**
+   * Returns the CPU time, in nanoseconds, spent by all the workers
+   * compressing the data read so far.
+   */
+  public long getCompressionTimeNanos() {
+    return compressionTimeNanos.get();
+  }
+
+  /**
+   * Try to fill up the buffer with data read from the input stream.
+   * This is tolerant of short reads - returning less than the requested
+   * amount of data, even if there is more available.
+   *
+   * @param b byte buffer to fill
+   * @return number of bytes written to buffer b, or -1 if at EOF
+   */
+  private int fillbuff(byte b[]) throws IOException {
+    int bytesRead = 0;
+    while (bytesRead < b.length) {
+      int val = in.read(b, bytesRead, b.length - bytesRead);
+      if (val == -1) {
+        return (bytesRead > 0) ? bytesRead : val;
+      }
+      bytesRead += val;
+    }
+    return bytesRead;
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (Future<byte[]> future : pending) {
+      future.cancel(true);
+    }
+    pending.clear();
+    finished = true;
+    super.close();
+  }
+
+  @Override
+  public int available() throws IOException {
+    return current.length - currentPos;
+  }
+
+  // No support for mark() or reset().
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  // No support for skip().
+  @Override
+  public long skip(long n) {
+    return 0L;
+  }
+}
@@ -0,0 +1,57 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.common;
+
+import com.google.enterprise.connector.manager.ContextService;
+
+/**
+ * Ties the lifetime of the shared pool of compression threads used by
+ * {@link ParallelCompressedFilterInputStream} to the {@code Context}.
+ * The pool is constructed when it is first needed, and is shut down when
+ * the {@code Context} is shut down, so that its threads do not outlive
+ * the web application.
+ */
+public class ParallelCompressionService implements ContextService {
+  private volatile boolean isRunning = false;
+
+  @Override
+  public void start() {
+    // The pool is started lazily.
+    isRunning = true;
+  }
+
+  /**
+   * Shuts down the shared pool of compression threads.
+   *
+   * @param force if {@code true}, blocks that are being compressed are
+   *        interrupted and queued blocks are abandoned; otherwise,
+   *        outstanding blocks are allowed to complete.
+   */
+  @Override
+  public void stop(boolean force) {
+    isRunning = false;
+    ParallelCompressedFilterInputStream.shutdownDefaultExecutor(force);
+  }
+
+  @Override
+  public boolean isRunning() {
+    return isRunning;
+  }
+
+  @Override
+  public String getName() {
+    return getClass().getSimpleName();
+  }
+}
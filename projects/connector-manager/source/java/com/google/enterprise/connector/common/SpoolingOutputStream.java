@@ -0,0 +1,369 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An {@code OutputStream} that behaves much like a
+ * {@code ByteArrayOutputStream}, but only holds a bounded amount of data
+ * in memory.  The first {@code memoryLimit} bytes written are kept in an
+ * in-memory buffer.  Any data written beyond that is spooled to a
+ * temporary file.  The amount of heap consumed by an instance is therefore
+ * roughly constant, regardless of the total amount of data written.
+ * <p>
+ * Like {@code ByteArrayOutputStream}, closing this stream has no effect
+ * on the data already written, which may still be retrieved using
+ * {@link #writeTo(OutputStream)}.  Call {@link #discard()} to release
+ * the buffers and delete any spool file once the data is no longer needed.
+ */
+public class SpoolingOutputStream extends OutputStream {
+  private static final Logger LOGGER =
+      Logger.getLogger(SpoolingOutputStream.class.getName());
+
+  /** Initial size of the in-memory buffer. */
+  private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+  /** Size of the buffer used to batch writes to the spool file. */
+  private static final int SPOOL_BUFFER_SIZE = 64 * 1024;
+
+  /** The maximum number of bytes held in the in-memory buffer. */
+  private final int memoryLimit;
+
+  /** Directory in which to create the spool file. */
+  private final File spoolDirectory;
+
+  /** The in-memory buffer holding the head of the data. */
+  private byte[] buf;
+
+  /** The number of valid bytes in the in-memory buffer. */
+  private int count;
+
+  /** The spool file, created when the in-memory buffer fills. */
+  private File spoolFile;
+  private RandomAccessFile spool;
+
+  /** The number of valid bytes written to the spool file. */
+  private long spoolCount;
+
+  /** Buffer used to batch writes to the spool file. */
+  private byte[] spoolBuf;
+
+  /** The number of bytes in spoolBuf not yet written to the spool file. */
+  private int spoolBufCount;
+
+  /**
+   * Creates a new {@code SpoolingOutputStream} that keeps up to
+   * {@code memoryLimit} bytes in memory, spooling the remainder to a
+   * temporary file in the default temporary-file directory.
+   *
+   * @param memoryLimit the maximum number of bytes to hold in memory
+   */
+  public SpoolingOutputStream(int memoryLimit) {
+    this(memoryLimit, null);
+  }
+
+  /**
+   * Creates a new {@code SpoolingOutputStream} that keeps up to
+   * {@code memoryLimit} bytes in memory, spooling the remainder to a
+   * temporary file in the specified directory.
+   *
+   * @param memoryLimit the maximum number of bytes to hold in memory
+   * @param spoolDirectory the directory in which the spool file is to be
+   *        created, or {@code null} if the default temporary-file directory
+   *        is to be used
+   */
+  public SpoolingOutputStream(int memoryLimit, File spoolDirectory) {
+    if (memoryLimit < 0) {
+      throw new IllegalArgumentException("memoryLimit must not be negative.");
+    }
+    this.memoryLimit = memoryLimit;
+    this.spoolDirectory = spoolDirectory;
+    this.buf = new byte[Math.min(memoryLimit, INITIAL_BUFFER_SIZE)];
+    this.count = 0;
+  }
+
+  /**
+   * Returns the current size of the data written to this stream.
+   */
+  public synchronized int size() {
+    return (int) (count + spoolCount + spoolBufCount);
+  }
+
+  /**
+   * Returns {@code true} if some of the data has been spooled to disk.
+   */
+  public synchronized boolean isSpooled() {
+    return (spoolCount + spoolBufCount) > 0;
+  }
+
+  @Override
+  public synchronized void write(int b) throws IOException {
+    if (count < buf.length || growBuffer(1)) {
+      buf[count++] = (byte) b;
+    } else {
+      if (spoolBufCount == spoolBuf.length) {
+        flushSpoolBuffer();
+      }
+      spoolBuf[spoolBufCount++] = (byte) b;
+    }
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len)
+      throws IOException {
+    if ((off < 0) || (off > b.length) || (len < 0)
+        || ((off + len) > b.length) || ((off + len) < 0)) {
+      throw new IndexOutOfBoundsException();
+    }
+    while (len > 0) {
+      int bytes;
+      if (count < buf.length || growBuffer(len)) {
+        bytes = Math.min(len, buf.length - count);
+        System.arraycopy(b, off, buf, count, bytes);
+        count += bytes;
+      } else {
+        if (spoolBufCount == spoolBuf.length) {
+          flushSpoolBuffer();
+        }
+        bytes = Math.min(len, spoolBuf.length - spoolBufCount);
+        System.arraycopy(b, off, spoolBuf, spoolBufCount, bytes);
+        spoolBufCount += bytes;
+      }
+      off += bytes;
+      len -= bytes;
+    }
+  }
+
+  /**
+   * Reads the complete contents of the supplied InputStream
+   * directly into the buffers of this SpoolingOutputStream.
+   * This avoids the data copy that would occur if using
+   * {@code InputStream.read(byte[], int, int)}, followed by
+   * {@code OutputStream.write(byte[], int, int)}.
+   *
+   * @param in the InputStream from which to read the data.
+   * @throws IOException if an I/O error occurs.
+   */
+  public synchronized void readFrom(InputStream in) throws IOException {
+    int bytes;
+    do {
+      if (count < buf.length || growBuffer(INITIAL_BUFFER_SIZE)) {
+        bytes = in.read(buf, count, buf.length - count);
+        if (bytes > 0) {
+          count += bytes;
+        }
+      } else {
+        if (spoolBufCount == spoolBuf.length) {
+          flushSpoolBuffer();
+        }
+        bytes = in.read(spoolBuf, spoolBufCount,
+                        spoolBuf.length - spoolBufCount);
+        if (bytes > 0) {
+          spoolBufCount += bytes;
+        }
+      }
+    } while (bytes != -1);
+  }
+
+  /**
+   * Resets the size of this stream to zero, effectively discarding all
+   * data written so far.  Like {@code ByteArrayOutputStream.reset()},
+   * this method retains the previously allocated buffer and spool file.
+   */
+  public synchronized void reset() {
+    reset(0);
+  }
+
+  /**
+   * Resets the size of this stream to the specified {@code size},
+   * effectively discarding any data that may have been written passed
+   * that point.  Like {@code reset()}, this method retains the previously
+   * allocated buffer and spool file.
+   * <p>
+   * This method may be used to reduce the size of the data stored,
+   * but not to increase it.  In other words, the specified {@code size}
+   * cannot be greater than the current size.
+   *
+   * @param size new data size.
+   */
+  public synchronized void reset(int size) {
+    if (size < 0 || size > size()) {
+      throw new IllegalArgumentException(
+          "New size must not be negative or greater than the current size.");
+    }
+    if (size >= count + spoolCount) {
+      // Discard part of the pending spool buffer.
+      spoolBufCount = (int) (size - count - spoolCount);
+    } else if (size >= count) {
+      // Truncate the spooled data.  Subsequent writes will overwrite
+      // the discarded data in the spool file.
+      spoolBufCount = 0;
+      spoolCount = size - count;
+    } else {
+      // Discard all spooled data and truncate the in-memory data.
+      spoolBufCount = 0;
+      spoolCount = 0;
+      count = size;
+    }
+  }
+
+  /**
+   * Writes the complete contents of this stream to the specified
+   * output stream.
+   *
+   * @param out the output stream to which to write the data.
+   * @throws IOException if an I/O error occurs.
+   */
+  public synchronized void writeTo(OutputStream out) throws IOException {
+    out.write(buf, 0, count);
+    if (spool != null) {
+      flushSpoolBuffer();
+      // The spool buffer is now empty, so use it as the transfer buffer.
+      spool.seek(0L);
+      long remaining = spoolCount;
+      while (remaining > 0) {
+        int bytes = spool.read(spoolBuf, 0,
+            (int) Math.min(remaining, spoolBuf.length));
+        if (bytes < 0) {
+          throw new IOException("Unexpected end of spool file " + spoolFile);
+        }
+        out.write(spoolBuf, 0, bytes);
+        remaining -= bytes;
+      }
+    }
+  }
+
+  /**
+   * Converts the contents of this stream into a String, decoding the
+   * bytes using the platform's default character set.
+   */
+  @Override
+  public synchronized String toString() {
+    return new String(toByteArray());
+  }
+
+  /**
+   * Converts the contents of this stream into a String, decoding the
+   * bytes using the named character set.
+   *
+   * @param charsetName the name of a supported character set
+   */
+  public synchronized String toString(String charsetName)
+      throws UnsupportedEncodingException {
+    return new String(toByteArray(), charsetName);
+  }
+
+  /**
+   * Returns a copy of the contents of this stream as a byte array.
+   * Note that this will read any spooled data into memory.
+   */
+  public synchronized byte[] toByteArray() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(size());
+    try {
+      writeTo(out);
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to read spool file", e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Closing a {@code SpoolingOutputStream} has no effect.  The data
+   * written may still be retrieved after the stream has been closed.
+   *
+   * @see #discard()
+   */
+  @Override
+  public void close() throws IOException {
+  }
+
+  /**
+   * Discards all data written to this stream, releases the in-memory
+   * buffers, and deletes the spool file, if any.  The stream should not
+   * be used after it has been discarded.
+   */
+  public synchronized void discard() {
+    buf = new byte[0];
+    count = 0;
+    spoolBuf = null;
+    spoolBufCount = 0;
+    spoolCount = 0;
+    if (spool != null) {
+      try {
+        spool.close();
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Failed to close spool file " + spoolFile, e);
+      }
+      spool = null;
+    }
+    if (spoolFile != null) {
+      if (!spoolFile.delete()) {
+        LOGGER.warning("Failed to delete spool file " + spoolFile);
+      }
+      spoolFile = null;
+    }
+  }
+
+  /**
+   * Tries to grow the in-memory buffer, which is full, so that it can
+   * accommodate at least some more data.  If the in-memory buffer has
+   * reached its limit, then prepares the spool buffer to receive data
+   * instead.
+   *
+   * @param needed the number of bytes that need to be accommodated
+   * @return {@code true} if the in-memory buffer was grown; {@code false}
+   *         if subsequent data should be written to the spool buffer
+   * @throws IOException if the spool file could not be created
+   */
+  private boolean growBuffer(int needed) throws IOException {
+    if (buf.length < memoryLimit && spoolCount + spoolBufCount == 0) {
+      int newLength = (int) Math.min((long) memoryLimit,
+          Math.max(2L * buf.length, (long) count + needed));
+      byte[] newbuf = new byte[newLength];
+      System.arraycopy(buf, 0, newbuf, 0, count);
+      buf = newbuf;
+      return true;
+    }
+    if (spool == null) {
+      spoolFile = File.createTempFile("spool", ".tmp", spoolDirectory);
+      spool = new RandomAccessFile(spoolFile, "rw");
+      spoolBuf = new byte[SPOOL_BUFFER_SIZE];
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("Spooling data in excess of " + memoryLimit
+                    + " bytes to " + spoolFile);
+      }
+    }
+    return false;
+  }
+
+  /** Writes the contents of the spool buffer to the spool file. */
+  private void flushSpoolBuffer() throws IOException {
+    if (spoolBufCount > 0) {
+      spool.seek(spoolCount);
+      spool.write(spoolBuf, 0, spoolBufCount);
+      spoolCount += spoolBufCount;
+      spoolBufCount = 0;
+    }
+  }
+}
@@ -0,0 +1,164 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.instantiator;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.AuthenticationManager;
+import com.google.enterprise.connector.spi.AuthenticationResponse;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.util.Clock;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cache of the authentication responses of one connector instance,
+ * including the groups the user belongs to.  Resolving groups is often an
+ * expensive directory lookup, and the GSA may authenticate the same user
+ * several times in quick succession.
+ * <p>
+ * The responses are keyed by a salted SHA-256 hash of the username,
+ * domain, and password, so the cache does not hold the credentials, and a
+ * response is only returned for the same password.  The responses are
+ * kept for a short time, and the cache holds a bounded number of them.
+ * <p>
+ * This class is thread safe.
+ */
+class AuthenticationCache {
+  private static final Logger LOGGER =
+      Logger.getLogger(AuthenticationCache.class.getName());
+
+  private final String connectorName;
+  private final long ttlMillis;
+  private final Clock clock;
+  private final byte[] salt;
+  private final Cache<HashCode, Entry> cache;
+
+  /**
+   * Constructs an {@code AuthenticationCache}.
+   *
+   * @param connectorName the name of the connector instance
+   * @param maximumSize the maximum number of responses to keep
+   * @param ttlMillis the time to keep responses, in milliseconds
+   * @param clock the {@link Clock} used to expire responses
+   */
+  AuthenticationCache(String connectorName, int maximumSize, long ttlMillis,
+      Clock clock) {
+    this.connectorName = connectorName;
+    this.ttlMillis = ttlMillis;
+    this.clock = clock;
+    this.salt = new byte[16];
+    new SecureRandom().nextBytes(salt);
+    this.cache = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(Math.max(1L, ttlMillis), TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * Returns an {@link AuthenticationManager} that answers from this cache
+   * when it can, and otherwise asks the given {@code AuthenticationManager}
+   * and caches its answer.
+   *
+   * @param delegate the connector's {@link AuthenticationManager}
+   */
+  AuthenticationManager getAuthenticationManager(
+      final AuthenticationManager delegate) {
+    return new AuthenticationManager() {
+      @Override
+      public AuthenticationResponse authenticate(
+          AuthenticationIdentity identity) throws RepositoryException {
+        return AuthenticationCache.this.authenticate(identity, delegate);
+      }
+
+      @Override
+      public String toString() {
+        return delegate.toString();
+      }
+    };
+  }
+
+  /** Discards all of the cached responses. */
+  void invalidateAll() {
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("Invalidating authentication cache for connector "
+          + connectorName);
+    }
+    cache.invalidateAll();
+  }
+
+  /** Returns the number of cached responses, some of which may be expired. */
+  long size() {
+    return cache.size();
+  }
+
+  private AuthenticationResponse authenticate(AuthenticationIdentity identity,
+      AuthenticationManager delegate) throws RepositoryException {
+    HashCode key = getKey(identity);
+    Entry entry = cache.getIfPresent(key);
+    if (entry != null && entry.expiration > clock.getTimeMillis()) {
+      if (LOGGER.isLoggable(Level.FINER)) {
+        LOGGER.finer("AUTHENTICATION CACHE: found response for "
+            + identity.getUsername());
+      }
+      return entry.response;
+    }
+    AuthenticationResponse response = delegate.authenticate(identity);
+    if (response != null) {
+      cache.put(key, new Entry(response, clock.getTimeMillis() + ttlMillis));
+    }
+    return response;
+  }
+
+  /**
+   * Returns a salted hash of the credentials.  Each field is preceded by
+   * its length, or -1 if it is null, so that different credentials cannot
+   * produce the same input to the hash.
+   */
+  private HashCode getKey(AuthenticationIdentity identity) {
+    Hasher hasher = Hashing.sha256().newHasher().putBytes(salt);
+    putField(hasher, identity.getUsername());
+    putField(hasher, identity.getDomain());
+    putField(hasher, identity.getPassword());
+    return hasher.hash();
+  }
+
+  private static void putField(Hasher hasher, String field) {
+    if (field == null) {
+      hasher.putInt(-1);
+    } else {
+      hasher.putInt(field.length()).putString(field, Charsets.UTF_8);
+    }
+  }
+
+  /** A cached response and the time it expires. */
+  private static class Entry {
+    final AuthenticationResponse response;
+    final long expiration;
+
+    Entry(AuthenticationResponse response, long expiration) {
+      this.response = response;
+      this.expiration = expiration;
+    }
+  }
+}
@@ -0,0 +1,240 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.instantiator;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.AuthorizationManager;
+import com.google.enterprise.connector.spi.AuthorizationResponse;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.util.Clock;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cache of the authorization decisions made by one connector instance,
+ * keyed by identity and docid.  Paging through search results asks the
+ * connector to authorize the same documents for the same user again and
+ * again; the cache answers those repeated queries without going to the
+ * repository.
+ * <p>
+ * {@code PERMIT} and {@code DENY} decisions are kept for separate times,
+ * since a stale {@code PERMIT} exposes a document, while a stale
+ * {@code DENY} only hides it.  {@code INDETERMINATE} decisions are never
+ * cached.  The cache holds a bounded number of decisions, and evicts the
+ * least recently used ones first.
+ * <p>
+ * The identity is kept as a salted SHA-256 hash of the username, domain,
+ * and password, as in {@link AuthenticationCache}, so the cache does not
+ * hold the credentials.
+ * <p>
+ * This class is thread safe.
+ */
+class AuthorizationCache {
+  private static final Logger LOGGER =
+      Logger.getLogger(AuthorizationCache.class.getName());
+
+  private final String connectorName;
+  private final long permitTtlMillis;
+  private final long denyTtlMillis;
+  private final Clock clock;
+  private final byte[] salt;
+  private final Cache<Key, Decision> cache;
+
+  /**
+   * Constructs an {@code AuthorizationCache}.
+   *
+   * @param connectorName the name of the connector instance
+   * @param maximumSize the maximum number of decisions to keep
+   * @param permitTtlMillis the time to keep {@code PERMIT} decisions, in
+   *        milliseconds, or zero to not cache them
+   * @param denyTtlMillis the time to keep {@code DENY} decisions, in
+   *        milliseconds, or zero to not cache them
+   * @param clock the {@link Clock} used to expire decisions
+   */
+  AuthorizationCache(String connectorName, int maximumSize,
+      long permitTtlMillis, long denyTtlMillis, Clock clock) {
+    this.connectorName = connectorName;
+    this.permitTtlMillis = permitTtlMillis;
+    this.denyTtlMillis = denyTtlMillis;
+    this.clock = clock;
+    this.salt = new byte[16];
+    new SecureRandom().nextBytes(salt);
+    // Expired decisions are ignored when they are read, but this lets the
+    // cache reclaim them before they are evicted for their size.
+    long maximumTtl = Math.max(1L, Math.max(permitTtlMillis, denyTtlMillis));
+    this.cache = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(maximumTtl, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * Returns an {@link AuthorizationManager} that answers from this cache
+   * when it can, and otherwise asks the given {@code AuthorizationManager}
+   * and caches its answers.
+   *
+   * @param delegate the connector's {@link AuthorizationManager}
+   */
+  AuthorizationManager getAuthorizationManager(
+      final AuthorizationManager delegate) {
+    return new AuthorizationManager() {
+      @Override
+      public Collection<AuthorizationResponse> authorizeDocids(
+          Collection<String> docids, AuthenticationIdentity identity)
+          throws RepositoryException {
+        return AuthorizationCache.this.authorizeDocids(docids, identity,
+                                                       delegate);
+      }
+
+      @Override
+      public String toString() {
+        return delegate.toString();
+      }
+    };
+  }
+
+  /** Discards all of the cached decisions. */
+  void invalidateAll() {
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("Invalidating authorization cache for connector "
+          + connectorName);
+    }
+    cache.invalidateAll();
+  }
+
+  /** Returns the number of cached decisions, some of which may be expired. */
+  long size() {
+    return cache.size();
+  }
+
+  private Collection<AuthorizationResponse> authorizeDocids(
+      Collection<String> docids, AuthenticationIdentity identity,
+      AuthorizationManager delegate) throws RepositoryException {
+    HashCode identityHash = getIdentityHash(identity);
+    long now = clock.getTimeMillis();
+    List<AuthorizationResponse> responses =
+        new ArrayList<AuthorizationResponse>(docids.size());
+    List<String> misses = new ArrayList<String>();
+    for (String docid : docids) {
+      Decision decision = cache.getIfPresent(new Key(identityHash, docid));
+      if (decision != null && decision.expiration > now) {
+        responses.add(new AuthorizationResponse(decision.status, docid));
+      } else {
+        misses.add(docid);
+      }
+    }
+    if (LOGGER.isLoggable(Level.FINER)) {
+      LOGGER.finer("AUTHORIZATION CACHE: " + identity.getUsername()
+          + ": found " + responses.size() + " of " + docids.size()
+          + " documents.");
+    }
+    if (misses.isEmpty()) {
+      return responses;
+    }
+
+    Collection<AuthorizationResponse> answers =
+        delegate.authorizeDocids(misses, identity);
+    if (answers == null) {
+      // Don't cache anything, and let the caller see the null.
+      return (responses.isEmpty()) ? null : responses;
+    }
+    now = clock.getTimeMillis();
+    for (AuthorizationResponse answer : answers) {
+      long ttl;
+      switch (answer.getStatus()) {
+        case PERMIT: ttl = permitTtlMillis; break;
+        case DENY: ttl = denyTtlMillis; break;
+        default: ttl = 0L; break;
+      }
+      if (ttl > 0) {
+        cache.put(new Key(identityHash, answer.getDocid()),
+                  new Decision(answer.getStatus(), now + ttl));
+      }
+      responses.add(answer);
+    }
+    return responses;
+  }
+
+  /**
+   * Returns a salted hash of the identity.  Each field is preceded by its
+   * length, or -1 if it is null, so that different identities cannot
+   * produce the same input to the hash.
+   */
+  private HashCode getIdentityHash(AuthenticationIdentity identity) {
+    Hasher hasher = Hashing.sha256().newHasher().putBytes(salt);
+    putField(hasher, identity.getUsername());
+    putField(hasher, identity.getDomain());
+    putField(hasher, identity.getPassword());
+    return hasher.hash();
+  }
+
+  private static void putField(Hasher hasher, String field) {
+    if (field == null) {
+      hasher.putInt(-1);
+    } else {
+      hasher.putInt(field.length()).putString(field, Charsets.UTF_8);
+    }
+  }
+
+  /** A hashed identity and docid. */
+  private static class Key {
+    private final HashCode identityHash;
+    private final String docid;
+
+    Key(HashCode identityHash, String docid) {
+      this.identityHash = identityHash;
+      this.docid = docid;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(identityHash, docid);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return identityHash.equals(other.identityHash)
+          && Objects.equal(docid, other.docid);
+    }
+  }
+
+  /** A cached decision and the time it expires. */
+  private static class Decision {
+    final AuthorizationResponse.Status status;
+    final long expiration;
+
+    Decision(AuthorizationResponse.Status status, long expiration) {
+      this.status = status;
+      this.expiration = expiration;
+    }
+  }
+}
@@ -121,6 +121,7 @@ class BatchCoordinator implements TraversalStateStore,
     synchronized (connectorCoordinator) {
       if (connectorCoordinator.currentBatchKey == requiredBatchKey) {
         connectorCoordinator.resetBatch();
+        connectorCoordinator.scheduleNextBatch(false);
       } else {
         LOGGER.warning("Ignoring Timeout for previously prevously canceled"
             + " or completed traversal batch.  Connector = "
@@ -23,6 +23,7 @@ import com.google.enterprise.connector.common.SecurityUtils;
 import com.google.enterprise.connector.common.StringUtils;
 import com.google.enterprise.connector.database.ConnectorPersistentStoreFactory;
 import com.google.enterprise.connector.manager.Context;
+import com.google.enterprise.connector.metrics.MetricsRegistry;
 import com.google.enterprise.connector.persist.ConnectorExistsException;
 import com.google.enterprise.connector.persist.ConnectorNotFoundException;
 import com.google.enterprise.connector.pusher.DocumentAcceptorImpl;
@@ -31,6 +32,7 @@ import com.google.enterprise.connector.scheduler.HostLoadManager;
 import com.google.enterprise.connector.scheduler.LoadManager;
 import com.google.enterprise.connector.scheduler.LoadManagerFactory;
 import com.google.enterprise.connector.scheduler.Schedule;
+import com.google.enterprise.connector.scheduler.TraversalQueue;
 import com.google.enterprise.connector.spi.AuthenticationManager;
 import com.google.enterprise.connector.spi.AuthorizationManager;
 import com.google.enterprise.connector.spi.ConfigureResponse;
@@ -58,6 +60,7 @@ import com.google.enterprise.connector.util.filter.DocumentFilterFactory;
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.Calendar;
 import java.util.Locale;
 import java.util.Map;
 import java.util.logging.Level;
@@ -78,6 +81,13 @@ class ConnectorCoordinatorImpl implements
   private static final Logger LOGGER =
       Logger.getLogger(ConnectorCoordinatorImpl.class.getName());
 
+  /**
+   * The minimum time to wait before trying again to start a batch that
+   * could not be started, unless the state of the coordinator changes.
+   * Batches delayed by the {@link LoadManager} wait until the delay ends.
+   */
+  private static final long RETRY_DELAY_MILLIS = 1000L;
+
   /** A default, disabled Schedule. */
   private static final Schedule DEFAULT_SCHEDULE = new Schedule();
 
@@ -135,6 +145,17 @@ class ConnectorCoordinatorImpl implements
   private TraversalManager traversalManager;
   private boolean traversalEnabled;
 
+  /**
+   * The number of documents to fetch ahead of feed construction.
+   */
+  private int prefetchSize = 0;
+
+  /**
+   * The queue to which this coordinator adds itself when it might next
+   * be able to start a traversal batch.
+   */
+  private TraversalQueue traversalQueue;
+
   /**
    * The cached Lister.
    */
@@ -150,6 +171,16 @@ class ConnectorCoordinatorImpl implements
    */
   private Retriever retriever;
 
+  /**
+   * The cache of authentication responses, or null if not caching.
+   */
+  private AuthenticationCache authenticationCache;
+
+  /**
+   * The cache of authorization decisions, or null if not caching.
+   */
+  private AuthorizationCache authorizationCache;
+
   /**
    * Constructs a ConnectorCoordinator for the named {@link Connector}.
    * The {@code Connector} may not yet have a concrete instance.
@@ -181,6 +212,53 @@ class ConnectorCoordinatorImpl implements
     this.traversalEnabled = true;
   }
 
+  /**
+   * Sets the number of documents each traversal batch fetches from the
+   * repository ahead of building the feed.
+   *
+   * @param prefetchSize the number of documents to fetch ahead, or zero
+   *        to disable prefetch
+   * @see QueryTraverser#setPrefetchSize(int)
+   */
+  void setPrefetchSize(int prefetchSize) {
+    this.prefetchSize = prefetchSize;
+  }
+
+  /**
+   * Sets the {@link TraversalQueue} to which this coordinator adds itself
+   * whenever it might next be able to start a traversal batch.
+   *
+   * @param traversalQueue a {@link TraversalQueue}, or {@code null}
+   *        if the scheduler polls all connectors
+   */
+  void setTraversalQueue(TraversalQueue traversalQueue) {
+    this.traversalQueue = traversalQueue;
+  }
+
+  /**
+   * Sets the {@link AuthenticationCache} used to cache the authentication
+   * responses of this connector.  The cache is invalidated whenever the
+   * connector is reconfigured or its traversal is restarted.
+   *
+   * @param authenticationCache an {@link AuthenticationCache}, or
+   *        {@code null} to not cache authentication responses
+   */
+  void setAuthenticationCache(AuthenticationCache authenticationCache) {
+    this.authenticationCache = authenticationCache;
+  }
+
+  /**
+   * Sets the {@link AuthorizationCache} used to cache the authorization
+   * decisions of this connector.  The cache is invalidated whenever the
+   * connector is reconfigured or its traversal is restarted.
+   *
+   * @param authorizationCache an {@link AuthorizationCache}, or {@code null}
+   *        to not cache authorization decisions
+   */
+  void setAuthorizationCache(AuthorizationCache authorizationCache) {
+    this.authorizationCache = authorizationCache;
+  }
+
   /**
    * Returns the name of this {@link Connector}.
    *
@@ -236,6 +314,7 @@ class ConnectorCoordinatorImpl implements
       typeInfo = null;
       traversalSchedule = null;
       traversalDelayEnd = 0;
+      MetricsRegistry.getInstance().removeConnector(name);
     }
   }
 
@@ -249,7 +328,12 @@ class ConnectorCoordinatorImpl implements
   @Override
   public synchronized AuthenticationManager getAuthenticationManager()
       throws ConnectorNotFoundException, InstantiatorException {
-    return getConnectorInterfaces().getAuthenticationManager();
+    AuthenticationManager authenticationManager =
+        getConnectorInterfaces().getAuthenticationManager();
+    if (authenticationCache == null || authenticationManager == null) {
+      return authenticationManager;
+    }
+    return authenticationCache.getAuthenticationManager(authenticationManager);
   }
 
   /**
@@ -262,7 +346,12 @@ class ConnectorCoordinatorImpl implements
   @Override
   public synchronized AuthorizationManager getAuthorizationManager()
       throws ConnectorNotFoundException, InstantiatorException {
-    return getConnectorInterfaces().getAuthorizationManager();
+    AuthorizationManager authorizationManager =
+        getConnectorInterfaces().getAuthorizationManager();
+    if (authorizationCache == null || authorizationManager == null) {
+      return authorizationManager;
+    }
+    return authorizationCache.getAuthorizationManager(authorizationManager);
   }
 
   /**
@@ -443,6 +532,7 @@ class ConnectorCoordinatorImpl implements
     synchronized(this) {
       resetBatch();                               // Halt any traversal.
       getInstanceInfo().setConnectorState(null);  // Discard the checkpoint.
+      invalidateSecurityCaches();
 
       // If Schedule was 'run-once', re-enable it to run again.  But watch out -
       // empty disabled Schedules could look a bit like a run-once Schedule.
@@ -743,6 +833,86 @@ class ConnectorCoordinatorImpl implements
                     + " minutes after encountering an error.");
         break;
     }
+    scheduleNextBatch(false);
+  }
+
+  /**
+   * Adds this connector to the {@link TraversalQueue} at the earliest time
+   * a traversal batch might be started.  If no batch can start until the
+   * state of this coordinator changes, for instance because a batch is
+   * running or the schedule is disabled, this connector is not queued.
+   * The change will queue it.
+   *
+   * @param isRetry {@code true} if a batch could not be started just now,
+   *        in which case the connector is queued no sooner than
+   *        {@link #RETRY_DELAY_MILLIS} from now
+   */
+  synchronized void scheduleNextBatch(boolean isRetry) {
+    scheduleNextBatch(
+        (isRetry) ? clock.getTimeMillis() + RETRY_DELAY_MILLIS : 0L);
+  }
+
+  /**
+   * Adds this connector to the {@link TraversalQueue} at the earliest time
+   * a traversal batch might be started, but no sooner than the given time.
+   *
+   * @param notBefore the earliest time, in milliseconds, to queue the
+   *        connector for
+   */
+  private synchronized void scheduleNextBatch(long notBefore) {
+    if (traversalQueue == null) {
+      return;
+    }
+    long nextBatchTime = getNextBatchTime();
+    if (nextBatchTime != Long.MAX_VALUE) {
+      traversalQueue.schedule(name, Math.max(nextBatchTime, notBefore));
+    }
+  }
+
+  /**
+   * Returns the earliest time, in milliseconds, at which a traversal batch
+   * might be started, or {@code Long.MAX_VALUE} if no batch can start until
+   * the state of this coordinator changes.
+   */
+  @VisibleForTesting
+  synchronized long getNextBatchTime() {
+    if (instanceInfo == null || !traversalEnabled || isBatchRunning()
+        || getSchedule().isDisabled()) {
+      return Long.MAX_VALUE;
+    }
+    long now = clock.getTimeMillis();
+    long nextBatchTime = Math.max(now, traversalDelayEnd);
+
+    int nextInterval = getSchedule().nextScheduledInterval(now);
+    if (nextInterval > 0) {
+      nextBatchTime = Math.max(nextBatchTime, now + nextInterval * 1000L);
+    } else if (nextInterval < 0) {
+      // No more intervals today.  Check again at midnight.
+      Calendar midnight = Calendar.getInstance();
+      midnight.setTimeInMillis(now);
+      midnight.add(Calendar.DAY_OF_MONTH, 1);
+      midnight.set(Calendar.HOUR_OF_DAY, 0);
+      midnight.set(Calendar.MINUTE, 0);
+      midnight.set(Calendar.SECOND, 0);
+      midnight.set(Calendar.MILLISECOND, 0);
+      nextBatchTime = Math.max(nextBatchTime, midnight.getTimeInMillis());
+    }
+
+    // The host load may delay the batch, for instance if the GSA has a
+    // feed backlog or memory is low.  The LoadManager knows when the delay
+    // ends, or when conditions that are not timed are worth checking again.
+    if (nextBatchTime == now && loadManager.shouldDelay()) {
+      nextBatchTime = Math.max(loadManager.getDelayEndTime(),
+          now + RETRY_DELAY_MILLIS);
+    }
+    return nextBatchTime;
+  }
+
+  /**
+   * Returns {@code true} if a traversal batch is running.
+   */
+  private synchronized boolean isBatchRunning() {
+    return taskHandle != null && !taskHandle.isDone();
   }
 
   /**
@@ -762,7 +932,7 @@ class ConnectorCoordinatorImpl implements
     }
 
     // Are we already running? If so, we shouldn't run again.
-    if (taskHandle != null && !taskHandle.isDone()) {
+    if (isBatchRunning()) {
       return false;
     }
 
@@ -782,7 +952,7 @@ class ConnectorCoordinatorImpl implements
     }
 
     // Run if we are within scheduled traversal interval.
-    return getSchedule().inScheduledInterval();
+    return getSchedule().nextScheduledInterval(clock.getTimeMillis()) == 0;
   }
 
   /**
@@ -794,11 +964,14 @@ class ConnectorCoordinatorImpl implements
   @Override
   public synchronized boolean startBatch() {
     if (!shouldRun()) {
+      scheduleNextBatch(true);
       return false;
     }
 
     BatchSize batchSize = loadManager.determineBatchSize();
     if (batchSize.getHint() == 0) {
+      scheduleNextBatch(Math.max(loadManager.getDelayEndTime(),
+          clock.getTimeMillis() + RETRY_DELAY_MILLIS));
       return false;
     }
 
@@ -809,9 +982,10 @@ class ConnectorCoordinatorImpl implements
       }
       currentBatchKey = new Object();
       BatchCoordinator batchCoordinator = new BatchCoordinator(this);
-      Traverser traverser = new QueryTraverser(pusherFactory,
+      QueryTraverser traverser = new QueryTraverser(pusherFactory,
           traversalManager, batchCoordinator, name,
           Context.getInstance().getTraversalContext(), clock);
+      traverser.setPrefetchSize(prefetchSize);
       TimedCancelable batch =  new CancelableBatch(traverser, name,
           batchCoordinator, batchCoordinator, batchSize);
       taskHandle = threadPool.submit(batch);
@@ -836,6 +1010,9 @@ class ConnectorCoordinatorImpl implements
    */
   @Override
   public synchronized void recordResult(BatchResult result) {
+    // Recording the result is the last thing a batch does, so the batch
+    // is over, even though its thread may not have finished yet.
+    taskHandle = null;
     loadManager.recordResult(result);
     delayTraversal(result.getDelayPolicy());
   }
@@ -883,6 +1060,7 @@ class ConnectorCoordinatorImpl implements
     traversalManager = null;
     retriever = null;
     traversalSchedule = null;
+    invalidateSecurityCaches();
 
     // Shut down the Lister, if running.
     stopLister();
@@ -911,6 +1089,19 @@ class ConnectorCoordinatorImpl implements
     }
   }
 
+  /**
+   * Discards the cached authentication responses and authorization
+   * decisions, if any.
+   */
+  private void invalidateSecurityCaches() {
+    if (authenticationCache != null) {
+      authenticationCache.invalidateAll();
+    }
+    if (authorizationCache != null) {
+      authorizationCache.invalidateAll();
+    }
+  }
+
   /**
    * Returns the {@link InstanceInfo} representing the associated
    * {@link Connector} instance.
@@ -17,6 +17,7 @@ package com.google.enterprise.connector.instantiator;
 import com.google.enterprise.connector.database.ConnectorPersistentStoreFactory;
 import com.google.enterprise.connector.pusher.PusherFactory;
 import com.google.enterprise.connector.scheduler.LoadManagerFactory;
+import com.google.enterprise.connector.scheduler.TraversalQueue;
 import com.google.enterprise.connector.spi.Connector;
 import com.google.enterprise.connector.util.Clock;
 
@@ -33,6 +34,13 @@ public class ConnectorCoordinatorImplFactory
   private ThreadPool threadPool;
   private ChangeDetector changeDetector;
   private Clock clock;
+  private int prefetchSize = 0;
+  private TraversalQueue traversalQueue;
+  private int authenticationCacheSize = 0;
+  private long authenticationCacheTtl = 0L;
+  private int authorizationCacheSize = 0;
+  private long authorizationCachePermitTtl = 0L;
+  private long authorizationCacheDenyTtl = 0L;
 
   /**
    * Sets the {@link PusherFactory} used to create instances of
@@ -87,6 +95,102 @@ public class ConnectorCoordinatorImplFactory
     this.clock = clock;
   }
 
+  /**
+   * Sets the number of documents each traversal batch fetches from the
+   * repository ahead of building the feed.  Zero, the default, disables
+   * prefetch.
+   *
+   * @param prefetchSize a non-negative number of documents
+   */
+  public void setPrefetchSize(int prefetchSize) {
+    if (prefetchSize < 0) {
+      throw new IllegalArgumentException("prefetchSize must not be negative.");
+    }
+    this.prefetchSize = prefetchSize;
+  }
+
+  /**
+   * Sets the {@link TraversalQueue} that connector coordinators add
+   * themselves to when they might next be able to start a traversal batch.
+   * It should be shared with the
+   * {@link com.google.enterprise.connector.scheduler.TraversalScheduler}.
+   *
+   * @param traversalQueue a {@link TraversalQueue}
+   */
+  public void setTraversalQueue(TraversalQueue traversalQueue) {
+    this.traversalQueue = traversalQueue;
+  }
+
+  /**
+   * Sets the maximum number of authentication responses cached for each
+   * connector instance.  Zero, the default, disables the cache.
+   *
+   * @param authenticationCacheSize a non-negative number of responses
+   */
+  public void setAuthenticationCacheSize(int authenticationCacheSize) {
+    if (authenticationCacheSize < 0) {
+      throw new IllegalArgumentException(
+          "authenticationCacheSize must not be negative.");
+    }
+    this.authenticationCacheSize = authenticationCacheSize;
+  }
+
+  /**
+   * Sets the number of seconds authentication responses are cached.
+   * Zero, the default, means they are not cached.
+   *
+   * @param seconds a non-negative number of seconds
+   */
+  public void setAuthenticationCacheTtl(long seconds) {
+    if (seconds < 0) {
+      throw new IllegalArgumentException(
+          "authenticationCacheTtl must not be negative.");
+    }
+    this.authenticationCacheTtl = seconds;
+  }
+
+  /**
+   * Sets the maximum number of authorization decisions cached for each
+   * connector instance.  Zero, the default, disables the cache.
+   *
+   * @param authorizationCacheSize a non-negative number of decisions
+   */
+  public void setAuthorizationCacheSize(int authorizationCacheSize) {
+    if (authorizationCacheSize < 0) {
+      throw new IllegalArgumentException(
+          "authorizationCacheSize must not be negative.");
+    }
+    this.authorizationCacheSize = authorizationCacheSize;
+  }
+
+  /**
+   * Sets the number of seconds {@code PERMIT} authorization decisions are
+   * cached.  Zero, the default, means they are not cached.
+   *
+   * @param seconds a non-negative number of seconds
+   */
+  public void setAuthorizationCachePermitTtl(long seconds) {
+    if (seconds < 0) {
+      throw new IllegalArgumentException(
+          "authorizationCachePermitTtl must not be negative.");
+    }
+    this.authorizationCachePermitTtl = seconds;
+  }
+
+  /**
+   * Sets the number of seconds {@code DENY} authorization decisions are
+   * cached.  Zero, the default, means they are not cached.
+   *
+   * @param seconds a non-negative number of seconds
+   */
+  public void setAuthorizationCacheDenyTtl(long seconds) {
+    if (seconds < 0) {
+      throw new IllegalArgumentException(
+          "authorizationCacheDenyTtl must not be negative.");
+    }
+    this.authorizationCacheDenyTtl = seconds;
+  }
+
   /**
    * Sets the {@link ChangeDetector} used for invoking the local
    * {@link ChangeHandler} for connector configuration, schedule, and
@@ -116,8 +220,21 @@ public class ConnectorCoordinatorImplFactory
    */
   @Override
   public ConnectorCoordinator newConnectorCoordinator(String connectorName) {
-    return new ConnectorCoordinatorImpl(connectorName,
-        pusherFactory, loadManagerFactory, connectorPersistentStoreFactory,
-        threadPool, changeDetector, clock);
+    ConnectorCoordinatorImpl coordinator = new ConnectorCoordinatorImpl(
+        connectorName, pusherFactory, loadManagerFactory,
+        connectorPersistentStoreFactory, threadPool, changeDetector, clock);
+    coordinator.setPrefetchSize(prefetchSize);
+    coordinator.setTraversalQueue(traversalQueue);
+    if (authenticationCacheSize > 0 && authenticationCacheTtl > 0) {
+      coordinator.setAuthenticationCache(new AuthenticationCache(connectorName,
+          authenticationCacheSize, authenticationCacheTtl * 1000L, clock));
+    }
+    if (authorizationCacheSize > 0 && (authorizationCachePermitTtl > 0
+        || authorizationCacheDenyTtl > 0)) {
+      coordinator.setAuthorizationCache(new AuthorizationCache(connectorName,
+          authorizationCacheSize, authorizationCachePermitTtl * 1000L,
+          authorizationCacheDenyTtl * 1000L, clock));
+    }
+    return coordinator;
   }
 }
@@ -14,8 +14,13 @@
 
 package com.google.enterprise.connector.instantiator;
 
+import com.google.enterprise.connector.common.Histogram;
+import com.google.enterprise.connector.metrics.Gauge;
+import com.google.enterprise.connector.metrics.Metric;
+import com.google.enterprise.connector.metrics.MetricsRegistry;
 import com.google.enterprise.connector.util.Clock;
 
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
@@ -23,10 +28,13 @@ import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -45,6 +53,13 @@ import java.util.logging.Logger;
  * If the configured maximum time interval is zero, tasks are allowed to run
  * until explicitly cancelled, or shutdown.
  * <p/>
+ * The number of {@link TimedCancelable} tasks that run at once may be
+ * limited by {@link #setMaximumThreads}.  Tasks beyond the limit wait in a
+ * first-in, first-out queue, and their time interval starts when they start
+ * running.  Since a connector runs at most one traversal batch at a time,
+ * the queue is shared fairly among the connectors.  Other tasks, such as
+ * connector listers, which may run indefinitely, are not limited.
+ * <p/>
  * Task cancellation includes two actions that are visible for the task task's
  * {@link TimedCancelable}
  * <ol>
@@ -88,6 +103,23 @@ public class ThreadPool {
    */
   private final Clock clock;
 
+  /**
+   * The maximum number of {@link TimedCancelable} tasks to run at once,
+   * or zero for no limit.
+   */
+  private int maximumThreads = 0;
+
+  /** The number of {@link TimedCancelable} tasks currently running. */
+  private final AtomicInteger activeTaskCount = new AtomicInteger();
+
+  /** The number of tasks canceled by their time out task. */
+  private final AtomicLong timeoutCount = new AtomicLong();
+
+  /** The run times of completed {@link TimedCancelable} tasks. */
+  private final Histogram taskDurations = new Histogram(
+      1000L, 10 * 1000L, 60 * 1000L, 5 * 60 * 1000L, 30 * 60 * 1000L,
+      2 * 60 * 60 * 1000L);
+
   /**
    * Flag indicating shutdown was called.  Don't spawn new tasks even if asked.
    */
@@ -116,6 +148,59 @@ public class ThreadPool {
     this.clock = clock;
   }
 
+  /**
+   * Sets the maximum number of {@link TimedCancelable} tasks, such as
+   * traversal batches, that run at once.  This must be called before the
+   * first task is submitted.
+   *
+   * @param maximumThreads the maximum number of threads, or zero for no limit
+   */
+  public synchronized void setMaximumThreads(int maximumThreads) {
+    if (maximumThreads < 0) {
+      throw new IllegalArgumentException(
+          "maximumThreads must not be negative.");
+    }
+    if (lazyThreadPool != null) {
+      throw new IllegalStateException(
+          "maximumThreads must be set before tasks are submitted.");
+    }
+    this.maximumThreads = maximumThreads;
+  }
+
+  /**
+   * Returns the maximum number of {@link TimedCancelable} tasks that run
+   * at once, or zero if there is no limit.
+   */
+  public synchronized int getMaximumThreads() {
+    return maximumThreads;
+  }
+
+  /**
+   * Returns the number of {@link TimedCancelable} tasks waiting for a
+   * thread to run in.
+   */
+  public synchronized int getQueuedTaskCount() {
+    return (lazyThreadPool == null) ? 0 : lazyThreadPool.getQueuedTaskCount();
+  }
+
+  /** Returns the number of {@link TimedCancelable} tasks currently running. */
+  public int getActiveTaskCount() {
+    return activeTaskCount.get();
+  }
+
+  /** Returns the number of tasks that have been canceled by time outs. */
+  public long getTimeoutCount() {
+    return timeoutCount.get();
+  }
+
+  /**
+   * Returns a {@link Histogram} of the run times, in milliseconds, of
+   * completed {@link TimedCancelable} tasks.
+   */
+  public Histogram getTaskDurations() {
+    return taskDurations;
+  }
+
   /**
    * Shut down the {@link ThreadPool}. After this returns
    * {@link ThreadPool#submit(TimedCancelable)} will return null.
@@ -144,10 +229,33 @@ public class ThreadPool {
   private synchronized LazyThreadPool getInstance() {
     if (lazyThreadPool == null) {
       lazyThreadPool = new LazyThreadPool();
+      registerMetrics(MetricsRegistry.getInstance());
     }
     return lazyThreadPool;
   }
 
+  /**
+   * Registers the metrics of this {@code ThreadPool}.
+   */
+  private void registerMetrics(MetricsRegistry metrics) {
+    metrics.register(Metric.THREAD_POOL_QUEUED, new Gauge() {
+        public long getValue() {
+          return getQueuedTaskCount();
+        }
+      });
+    metrics.register(Metric.THREAD_POOL_ACTIVE, new Gauge() {
+        public long getValue() {
+          return getActiveTaskCount();
+        }
+      });
+    metrics.register(Metric.THREAD_POOL_TIMEOUTS, new Gauge() {
+        public long getValue() {
+          return getTimeoutCount();
+        }
+      });
+    metrics.register(Metric.THREAD_POOL_TASK_DURATION, taskDurations);
+  }
+
   /**
    * Submit a {@link Cancelable} for execution and return a
    * {@link TaskHandle} for the running task or null if the task has not been
@@ -158,7 +266,7 @@ public class ThreadPool {
     if (isShutdown) {
       return null;
     }
-    if (cancelable instanceof TimedCancelable && maximumTaskLifeMillis != 0L) {
+    if (cancelable instanceof TimedCancelable) {
       return getInstance().submit((TimedCancelable) cancelable);
     } else {
       return getInstance().submit(cancelable);
@@ -170,17 +278,36 @@ public class ThreadPool {
    */
   private class LazyThreadPool {
     /**
-     * ExecutorService for running submitted tasks. Tasks are only submitted
-     * through completionService.
+     * ExecutorService for running submitted tasks other than
+     * {@link TimedCancelable} tasks. Tasks are only submitted through
+     * completionService.
      */
     private final ExecutorService executor;
 
     /**
-     * CompletionService for running submitted tasks. All tasks are submitted
-     * through this CompletionService to provide blocking, queued access to
-     * completion information.
+     * ExecutorService for running {@link TimedCancelable} tasks. If the
+     * number of threads is limited, this is a separate, bounded executor;
+     * otherwise it is the same as {@link #executor}. Tasks are only
+     * submitted through timedCompletionService.
+     */
+    private final ExecutorService timedExecutor;
+
+    /** The queue of tasks waiting to run in the bounded timedExecutor. */
+    private final BlockingQueue<Runnable> timedQueue;
+
+    /**
+     * The queue of completed tasks, shared by both completion services.
      */
-    private final CompletionService<?> completionService;
+    private final BlockingQueue<Future<Object>> completionQueue =
+        new LinkedBlockingQueue<Future<Object>>();
+
+    /**
+     * CompletionServices for running submitted tasks. All tasks are submitted
+     * through one of these CompletionServices to provide blocking, queued
+     * access to completion information.
+     */
+    private final CompletionService<Object> completionService;
+    private final CompletionService<Object> timedCompletionService;
 
     /**
      * Dedicated ExecutorService for running the CompletionTask. The completion
@@ -191,28 +318,45 @@ public class ThreadPool {
     private final ExecutorService completionExecutor;
 
     /**
-     * Dedicated ScheduledThreadPoolExecutor for running time out tasks. Each
-     * primary task is guarded by a time out task that is scheduled to run when
-     * the primary tasks maximum life time expires. When the time out task runs
-     * it cancels the primary task.
+     * Dedicated TimeoutWheel for running time out tasks. Each primary task is
+     * guarded by a time out task that is scheduled to run when the primary
+     * tasks maximum life time expires. When the time out task runs it cancels
+     * the primary task.
      */
-    private final ScheduledThreadPoolExecutor timeoutService;
+    private final TimeoutWheel timeoutService;
 
     LazyThreadPool() {
       executor = Executors.newCachedThreadPool(
           new ThreadNamingThreadFactory("ThreadPoolExecutor"));
-      completionService = new ExecutorCompletionService<Object>(executor);
+      completionService =
+          new ExecutorCompletionService<Object>(executor, completionQueue);
+      if (maximumThreads > 0) {
+        timedQueue = new LinkedBlockingQueue<Runnable>();
+        ThreadPoolExecutor boundedExecutor = new ThreadPoolExecutor(
+            maximumThreads, maximumThreads, 60L, TimeUnit.SECONDS, timedQueue,
+            new ThreadNamingThreadFactory("ThreadPoolTraversal"));
+        boundedExecutor.allowCoreThreadTimeOut(true);
+        timedExecutor = boundedExecutor;
+      } else {
+        timedQueue = null;
+        timedExecutor = executor;
+      }
+      timedCompletionService =
+          new ExecutorCompletionService<Object>(timedExecutor, completionQueue);
       completionExecutor = Executors.newSingleThreadExecutor(
           new ThreadNamingThreadFactory("ThreadPoolCompletion"));
       if (maximumTaskLifeMillis != 0L) {
-        timeoutService = new ScheduledThreadPoolExecutor(1,
-            new ThreadNamingThreadFactory("ThreadPoolTimeout"));
+        timeoutService = new TimeoutWheel("ThreadPoolTimeout", 10L, 1024);
       } else {
         timeoutService = null;
       }
       completionExecutor.execute(new CompletionTask());
     }
 
+    int getQueuedTaskCount() {
+      return (timedQueue == null) ? 0 : timedQueue.size();
+    }
+
     /**
      * Shut down the LazyThreadPool.
      * @param interrupt {@code true} if the threads executing tasks task should
@@ -227,19 +371,23 @@ public class ThreadPool {
       throws InterruptedException {
       if (interrupt) {
         executor.shutdownNow();
+        timedExecutor.shutdownNow();
       } else {
         executor.shutdown();
+        timedExecutor.shutdown();
       }
       if (timeoutService != null) {
         timeoutService.shutdown();
       }
       try {
-        return executor.awaitTermination(waitMillis, TimeUnit.MILLISECONDS);
+        long deadline = System.currentTimeMillis() + waitMillis;
+        boolean isTerminated =
+            executor.awaitTermination(waitMillis, TimeUnit.MILLISECONDS);
+        return timedExecutor.awaitTermination(
+            Math.max(0L, deadline - System.currentTimeMillis()),
+            TimeUnit.MILLISECONDS) && isTerminated;
       } finally {
         completionExecutor.shutdownNow();
-        if (timeoutService != null) {
-          timeoutService.shutdownNow();
-        }
       }
     }
 
@@ -252,35 +400,33 @@ public class ThreadPool {
     TaskHandle submit(TimedCancelable cancelable) {
       try {
         // When timeoutTask is run it will cancel 'cancelable'.
-        TimeoutTask timeoutTask = new TimeoutTask(cancelable);
-
-        // Schedule timeoutTask to run when 'cancelable's maximum run interval
-        // has expired.
-        // timeoutFuture will be used to cancel timeoutTask when 'cancelable'
-        // completes.
-        Future<?> timeoutFuture = timeoutService.schedule(timeoutTask,
-            maximumTaskLifeMillis, TimeUnit.MILLISECONDS);
-
-        // cancelTimeoutRunnable runs 'cancelable'. When 'cancelable' completes
-        // cancelTimeoutRunnable cancels 'timeoutTask'. This saves system
-        // resources. In addition it prevents timeout task from running and
-        // calling cancel after 'cancelable' completes successfully.
+        TimeoutTask timeoutTask =
+            (timeoutService == null) ? null : new TimeoutTask(cancelable);
+
+        // cancelTimeoutRunnable runs 'cancelable'. When 'cancelable' starts
+        // cancelTimeoutRunnable schedules 'timeoutTask' to run when
+        // 'cancelable's maximum run interval has expired. When 'cancelable'
+        // completes cancelTimeoutRunnable cancels 'timeoutTask'. This saves
+        // system resources. In addition it prevents timeout task from running
+        // and calling cancel after 'cancelable' completes successfully.
         CancelTimeoutRunnable cancelTimeoutRunnable =
-            new CancelTimeoutRunnable(cancelable, timeoutFuture);
+            new CancelTimeoutRunnable(cancelable, timeoutTask);
 
         // taskFuture is used to cancel 'cancelable' and to determine if
         // 'cancelable' is done.
         Future<?> taskFuture =
-            completionService.submit(cancelTimeoutRunnable, null);
+            timedCompletionService.submit(cancelTimeoutRunnable, null);
         TaskHandle handle =
             new TaskHandle(cancelable, taskFuture, clock.getTimeMillis());
 
         // TODO(strellis): test/handle timer pop/cancel before submit. In
         // production with a 30 minute timeout this should never happen.
-        timeoutTask.setTaskHandle(handle);
+        if (timeoutTask != null) {
+          timeoutTask.setTaskHandle(handle);
+        }
         return handle;
       } catch (RejectedExecutionException re) {
-        if (!executor.isShutdown()) {
+        if (!timedExecutor.isShutdown()) {
           LOGGER.log(Level.SEVERE, "Unable to execute task", re);
         }
         return null;
@@ -308,32 +454,43 @@ public class ThreadPool {
     }
 
    /**
-    * A {@link Runnable} for running {@link TimedCancelable} that has been
-    * guarded by a timeout task. This will cancel the timeout task when the
+    * A {@link Runnable} for running {@link TimedCancelable} that is guarded
+    * by a timeout task. This will schedule the timeout task when the
+    * {@link TimedCancelable} starts, and cancel it when the
     * {@link TimedCancelable} completes. If the timeout task has already run,
-    * then canceling it has no effect.
+    * then canceling it has no effect. The run time of the
+    * {@link TimedCancelable} is recorded.
     */
    private class CancelTimeoutRunnable implements Runnable {
-     private final Future<?> timeoutFuture;
+     private final TimeoutTask timeoutTask;
      private final TimedCancelable cancelable;
 
      /**
       * Constructs a {@link CancelTimeoutRunnable}.
       *
       * @param cancelable the {@link TimedCancelable} this runs.
-      * @param timeoutFuture the {@link Future} for canceling the timeout task.
+      * @param timeoutTask the timeout task, or {@code null} if
+      *        {@code cancelable} should not time out.
       */
-     CancelTimeoutRunnable(TimedCancelable cancelable, Future<?> timeoutFuture) {
-       this.timeoutFuture = timeoutFuture;
+     CancelTimeoutRunnable(TimedCancelable cancelable,
+         TimeoutTask timeoutTask) {
+       this.timeoutTask = timeoutTask;
        this.cancelable = cancelable;
      }
 
      public void run() {
+       TimeoutWheel.Timeout timeout = (timeoutTask == null) ? null
+           : timeoutService.schedule(timeoutTask, maximumTaskLifeMillis);
+       activeTaskCount.incrementAndGet();
+       long startTime = clock.getTimeMillis();
        try {
          cancelable.run();
        } finally {
-         timeoutFuture.cancel(true);
-         timeoutService.purge();
+         taskDurations.record(clock.getTimeMillis() - startTime);
+         activeTaskCount.decrementAndGet();
+         if (timeout != null) {
+           timeout.cancel();
+         }
        }
      }
    }
@@ -345,7 +502,7 @@ public class ThreadPool {
     */
    private class CompletionTask implements Runnable {
      private void completeTask() throws InterruptedException {
-       Future<?> future = completionService.take();
+       Future<?> future = completionQueue.take();
        try {
          future.get();
        } catch (CancellationException e) {
@@ -382,7 +539,7 @@ public class ThreadPool {
    * The {@link TimeoutTask} should be scheduled to run when the interval for
    * the {@link TimedCancelable} to run expires.
    */
-  private static class TimeoutTask implements Runnable {
+  private class TimeoutTask implements Runnable {
     final TimedCancelable timedCancelable;
     private volatile TaskHandle taskHandle;
 
@@ -392,6 +549,7 @@ public class ThreadPool {
 
     public void run() {
       if (taskHandle != null) {
+        timeoutCount.incrementAndGet();
         timedCancelable.timeout(taskHandle);
       }
     }
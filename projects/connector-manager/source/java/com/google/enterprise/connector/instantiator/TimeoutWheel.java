@@ -0,0 +1,239 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.instantiator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timing wheel for running time out tasks.  Time is divided into
+ * ticks, and each time out is placed in the wheel bucket for the tick in
+ * which it expires.  A single thread runs the expired time outs.  Time
+ * outs run up to one tick late.  The thread sleeps until the tick of the
+ * earliest scheduled time out, rather than waking for every tick, and
+ * waits without a time limit while there are no time outs scheduled.
+ * <p>
+ * The ticks that have time outs are also counted in a sorted map, so that
+ * the earliest one is known without scanning the wheel.  Scheduling and
+ * canceling a time out take time logarithmic in the number of distinct
+ * ticks, and the thread is woken only when a time out is scheduled
+ * earlier than the one it is waiting for.
+ */
+class TimeoutWheel {
+  private static final Logger LOGGER =
+      Logger.getLogger(TimeoutWheel.class.getName());
+
+  private final long tickNanos;
+  private final long startNanos;
+
+  /** The wheel buckets.  Guarded by this. */
+  private final Set<Timeout>[] buckets;
+
+  /** The last tick whose bucket has been processed.  Guarded by this. */
+  private long processedTick = 0;
+
+  /** The number of scheduled time outs.  Guarded by this. */
+  private int size = 0;
+
+  /**
+   * The number of scheduled time outs in each tick that has any.
+   * Guarded by this.
+   */
+  private final SortedMap<Long, Integer> tickCounts =
+      new TreeMap<Long, Integer>();
+
+  private final Thread worker;
+
+  /**
+   * Constructs and starts a {@code TimeoutWheel}.
+   *
+   * @param name the name of the worker thread
+   * @param tickMillis the length of a tick, in milliseconds
+   * @param wheelSize the number of buckets in the wheel
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  TimeoutWheel(String name, long tickMillis, int wheelSize) {
+    if (tickMillis <= 0 || wheelSize <= 0) {
+      throw new IllegalArgumentException(
+          "tickMillis and wheelSize must be positive.");
+    }
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    this.buckets = new Set[wheelSize];
+    for (int i = 0; i < wheelSize; i++) {
+      buckets[i] = new HashSet<Timeout>();
+    }
+    this.startNanos = System.nanoTime();
+    this.worker = new Thread(new Runnable() {
+        public void run() {
+          try {
+            while (true) {
+              expire(waitForTick());
+            }
+          } catch (InterruptedException e) {
+            // Shut down.
+          }
+        }
+      }, name);
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Schedules a task to run after the given delay.
+   *
+   * @param task the task to run
+   * @param delayMillis the delay, in milliseconds
+   * @return a {@link Timeout} that may be used to cancel the task
+   */
+  Timeout schedule(Runnable task, long delayMillis) {
+    long elapsedNanos = System.nanoTime() - startNanos;
+    long tick = (elapsedNanos + TimeUnit.MILLISECONDS.toNanos(delayMillis)
+                 + tickNanos - 1) / tickNanos;
+    synchronized (this) {
+      Timeout timeout = new Timeout(task, Math.max(tick, processedTick + 1));
+      timeout.bucket().add(timeout);
+      if (timeout.tick < earliestTick()) {
+        // The new time out is earlier than the one being awaited.
+        notifyAll();
+      }
+      addTick(timeout.tick);
+      return timeout;
+    }
+  }
+
+  /**
+   * Returns the number of scheduled time outs that have not yet run or
+   * been canceled.
+   */
+  synchronized int size() {
+    return size;
+  }
+
+  /** Stops the worker thread.  Pending time outs are not run. */
+  void shutdown() {
+    worker.interrupt();
+  }
+
+  /**
+   * Waits until the end of the tick of the earliest scheduled time out,
+   * and returns that tick.  Scheduling or canceling time outs while
+   * waiting may change the tick awaited.
+   */
+  private synchronized long waitForTick() throws InterruptedException {
+    while (true) {
+      long tick = earliestTick();
+      if (tick == Long.MAX_VALUE) {
+        wait();
+      } else {
+        long sleepNanos = startNanos + tick * tickNanos - System.nanoTime();
+        if (sleepNanos <= 0) {
+          return tick;
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, sleepNanos);
+      }
+    }
+  }
+
+  /**
+   * Returns the tick of the earliest scheduled time out, or
+   * {@code Long.MAX_VALUE} if there are none.  Must be called while
+   * holding the lock on this.
+   */
+  private long earliestTick() {
+    return tickCounts.isEmpty() ? Long.MAX_VALUE : tickCounts.firstKey();
+  }
+
+  /**
+   * Counts a time out scheduled in the given tick.  Must be called while
+   * holding the lock on this.
+   */
+  private void addTick(long tick) {
+    Integer count = tickCounts.get(tick);
+    tickCounts.put(tick, (count == null) ? 1 : count + 1);
+    size++;
+  }
+
+  /**
+   * Stops counting a time out scheduled in the given tick.  Must be
+   * called while holding the lock on this.
+   */
+  private void removeTick(long tick) {
+    int count = tickCounts.get(tick);
+    if (count == 1) {
+      tickCounts.remove(tick);
+    } else {
+      tickCounts.put(tick, count - 1);
+    }
+    size--;
+  }
+
+  /** Runs the time outs that expire in the given tick. */
+  private void expire(long tick) {
+    List<Timeout> expired = new ArrayList<Timeout>();
+    synchronized (this) {
+      Iterator<Timeout> it = buckets[(int) (tick % buckets.length)].iterator();
+      while (it.hasNext()) {
+        Timeout timeout = it.next();
+        // Later rounds of the wheel share the bucket.
+        if (timeout.tick <= tick) {
+          it.remove();
+          removeTick(timeout.tick);
+          expired.add(timeout);
+        }
+      }
+      // The ticks may have been skipped while this tick was awaited.
+      processedTick = Math.max(processedTick, tick);
+    }
+    for (Timeout timeout : expired) {
+      try {
+        timeout.task.run();
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Time out task failed.", e);
+      }
+    }
+  }
+
+  /** A scheduled time out. */
+  class Timeout {
+    private final Runnable task;
+    private final long tick;
+
+    private Timeout(Runnable task, long tick) {
+      this.task = task;
+      this.tick = tick;
+    }
+
+    private Set<Timeout> bucket() {
+      return buckets[(int) (tick % buckets.length)];
+    }
+
+    /** Cancels the time out.  Has no effect if it has already run. */
+    void cancel() {
+      synchronized (TimeoutWheel.this) {
+        if (bucket().remove(this)) {
+          removeTick(tick);
+        }
+      }
+    }
+  }
+}
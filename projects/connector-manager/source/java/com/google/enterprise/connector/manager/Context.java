@@ -375,8 +375,9 @@ public class Context {
   private String standaloneContextLocation;
   private String standaloneContextBaseDir;
 
-  private boolean isTeedFeedFileInitialized = false;
-  private String teedFeedFile = null;
+  // Read without locking once initialized, since every feed reads it.
+  private volatile boolean isTeedFeedFileInitialized = false;
+  private volatile String teedFeedFile = null;
 
   private boolean isGsaFeedHostInitialized = false;
   private String gsaFeedHost = null;
@@ -387,8 +388,9 @@ public class Context {
    * and servlet to point back at this Connector Manager instance.
    * For example:
    * {@code http://localhost:8080/connector-manager/getDocumentContent}
+   * Read without locking once initialized, since every feed reads it.
    */
-  private String contentUrlPrefix = null;
+  private volatile String contentUrlPrefix = null;
 
   private int propertiesVersion = 0;
 
@@ -1147,7 +1149,14 @@ public class Context {
    * See google-enterprise-connector-manager/projects/connector-manager/etc/applicationContext.properties
    * for additional documentation.
    */
-  public synchronized String getTeedFeedFile() {
+  public String getTeedFeedFile() {
+    if (isTeedFeedFileInitialized) {
+      return teedFeedFile;
+    }
+    return initTeedFeedFile();
+  }
+
+  private synchronized String initTeedFeedFile() {
     initApplicationContext();
     if (!isTeedFeedFileInitialized) {
       teedFeedFile = getProperty(TEED_FEED_FILE_PROPERTY_KEY, null);
@@ -1176,7 +1185,12 @@ public class Context {
    * See google-enterprise-connector-manager/projects/connector-manager/etc/applicationContext.properties
    * for additional documentation.
    */
-  public synchronized String getContentUrlPrefix() {
+  public String getContentUrlPrefix() {
+    String prefix = contentUrlPrefix;
+    return (prefix == null) ? initContentUrlPrefix() : prefix;
+  }
+
+  private synchronized String initContentUrlPrefix() {
     initApplicationContext();
     if (contentUrlPrefix == null) {
       contentUrlPrefix = getProperty(FEED_CONTENTURL_PREFIX_PROPERTY_KEY, null);
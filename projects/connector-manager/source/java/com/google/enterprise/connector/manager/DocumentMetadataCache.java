@@ -0,0 +1,191 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.manager;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.Property;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SimpleDocument;
+import com.google.enterprise.connector.spi.Value;
+import com.google.enterprise.connector.spiimpl.BinaryValue;
+import com.google.enterprise.connector.util.Clock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cache of the filtered metadata of documents served by the retriever,
+ * keyed by connector instance and docid.  The GSA often checks whether a
+ * document has changed, with an {@code If-Modified-Since} request, and
+ * then fetches it; the cache lets those requests share a single trip to
+ * the repository.
+ * <p>
+ * The documents are cached as read-only snapshots, so that they can be
+ * read by several requests at once.  Documents with binary values are not
+ * cached, since their streams can only be read once.  The documents are
+ * kept for a short time, and the cache holds a bounded number of them.
+ * <p>
+ * This class is thread safe.
+ */
+class DocumentMetadataCache {
+  private static final Logger LOGGER =
+      Logger.getLogger(DocumentMetadataCache.class.getName());
+
+  private final long ttlMillis;
+  private final Clock clock;
+  private final Cache<Key, Entry> cache;
+
+  /**
+   * Constructs a {@code DocumentMetadataCache}.
+   *
+   * @param maximumSize the maximum number of documents to keep
+   * @param ttlMillis the time to keep documents, in milliseconds
+   * @param clock the {@link Clock} used to expire documents
+   */
+  DocumentMetadataCache(int maximumSize, long ttlMillis, Clock clock) {
+    this.ttlMillis = ttlMillis;
+    this.clock = clock;
+    this.cache = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(Math.max(1L, ttlMillis), TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * Returns the cached metadata of a document, or {@code null} if it is
+   * not cached or has expired.
+   *
+   * @param connectorName the name of the connector instance
+   * @param docid the document ID
+   */
+  Document get(String connectorName, String docid) {
+    Entry entry = cache.getIfPresent(new Key(connectorName, docid));
+    if (entry != null && entry.expiration > clock.getTimeMillis()) {
+      if (LOGGER.isLoggable(Level.FINER)) {
+        LOGGER.finer("METADATA CACHE: found metadata from connector "
+            + connectorName + " for document " + docid);
+      }
+      return entry.document;
+    }
+    return null;
+  }
+
+  /**
+   * Reads all of the properties of a document into a snapshot, and caches
+   * the snapshot unless it has binary values.
+   *
+   * @param connectorName the name of the connector instance
+   * @param docid the document ID
+   * @param document the filtered metadata of the document
+   * @return the snapshot, which should be used in place of the document
+   * @throws RepositoryException if the document cannot be read
+   */
+  Document put(String connectorName, String docid, Document document)
+      throws RepositoryException {
+    Map<String, List<Value>> properties =
+        new LinkedHashMap<String, List<Value>>();
+    boolean isCacheable = true;
+    for (String name : document.getPropertyNames()) {
+      Property property = document.findProperty(name);
+      if (property == null) {
+        continue;
+      }
+      List<Value> values = new ArrayList<Value>();
+      Value value;
+      while ((value = property.nextValue()) != null) {
+        isCacheable &= !(value instanceof BinaryValue);
+        values.add(value);
+      }
+      properties.put(name, Collections.unmodifiableList(values));
+    }
+    Document snapshot =
+        new SimpleDocument(Collections.unmodifiableMap(properties));
+    if (isCacheable) {
+      cache.put(new Key(connectorName, docid),
+                new Entry(snapshot, clock.getTimeMillis() + ttlMillis));
+    }
+    return snapshot;
+  }
+
+  /**
+   * Discards all of the cached documents of a connector instance.
+   *
+   * @param connectorName the name of the connector instance
+   */
+  void invalidate(String connectorName) {
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("Invalidating metadata cache for connector "
+          + connectorName);
+    }
+    Iterator<Key> it = cache.asMap().keySet().iterator();
+    while (it.hasNext()) {
+      if (Objects.equal(it.next().connectorName, connectorName)) {
+        it.remove();
+      }
+    }
+  }
+
+  /** Returns the number of cached documents, some of which may be expired. */
+  long size() {
+    return cache.size();
+  }
+
+  /** A connector instance name and docid. */
+  private static class Key {
+    private final String connectorName;
+    private final String docid;
+
+    Key(String connectorName, String docid) {
+      this.connectorName = connectorName;
+      this.docid = docid;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(connectorName, docid);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return Objects.equal(connectorName, other.connectorName)
+          && Objects.equal(docid, other.docid);
+    }
+  }
+
+  /** A cached document and the time it expires. */
+  private static class Entry {
+    final Document document;
+    final long expiration;
+
+    Entry(Document document, long expiration) {
+      this.document = document;
+      this.expiration = expiration;
+    }
+  }
+}
@@ -29,6 +29,7 @@ import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.RepositoryException;
 
 import java.io.InputStream;
+import java.util.Calendar;
 import java.util.Collection;
 import java.util.List;
 import java.util.Properties;
@@ -227,6 +228,20 @@ public interface Manager {
       throws ConnectorNotFoundException, InstantiatorException,
              RepositoryException;
 
+  /**
+   * Return the time the document identified by {@code docid} was last
+   * modified, if the connector can supply it without retrieving the
+   * document's meta-data.
+   *
+   * @param connectorName
+   * @param docid the document identifier
+   * @return the last modified time of the document, or {@code null} if
+   *         it is only available from the document's meta-data
+   */
+  public Calendar getLastModified(String connectorName, String docid)
+      throws ConnectorNotFoundException, InstantiatorException,
+             RepositoryException;
+
   /**
    * Set schedule for a given Connector.
    *
@@ -40,15 +40,19 @@ import com.google.enterprise.connector.spi.AuthorizationResponse;
 import com.google.enterprise.connector.spi.ConfigureResponse;
 import com.google.enterprise.connector.spi.ConnectorType;
 import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.LastModifiedRetriever;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.RepositoryLoginException;
 import com.google.enterprise.connector.spi.Retriever;
 import com.google.enterprise.connector.spi.SpiConstants.FeedType;
+import com.google.enterprise.connector.util.Clock;
 import com.google.enterprise.connector.util.EofFilterInputStream;
+import com.google.enterprise.connector.util.SystemClock;
 import com.google.enterprise.connector.util.filter.DocumentFilterFactory;
 
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
@@ -68,6 +72,12 @@ public class ProductionManager implements Manager {
   Instantiator instantiator;
   private DocumentFilterFactoryFactory documentFilterFactoryFactory = null;
   private FeedConnection feedConnection;
+  private Clock clock = new SystemClock();
+  private int metadataCacheSize = 0;
+  private long metadataCacheTtlMillis = 0L;
+
+  /** The metadata cache, or {@code null} if it is disabled. */
+  private volatile DocumentMetadataCache metadataCache = null;
 
   public ProductionManager() {
   }
@@ -97,6 +107,68 @@ public class ProductionManager implements Manager {
     this.feedConnection = feedConnection;
   }
 
+  /**
+   * Sets the {@link Clock} used to expire cached metadata.
+   */
+  public void setClock(Clock clock) {
+    this.clock = clock;
+    updateMetadataCache();
+  }
+
+  /**
+   * Sets the maximum number of documents whose metadata is cached, across
+   * all connector instances.
+   *
+   * @param size the maximum number of documents; zero disables the cache
+   * @throws IllegalArgumentException if {@code size} is negative
+   */
+  public void setMetadataCacheSize(int size) {
+    if (size < 0) {
+      throw new IllegalArgumentException(
+          "The metadata cache size must not be negative.");
+    }
+    this.metadataCacheSize = size;
+    updateMetadataCache();
+  }
+
+  /**
+   * Sets the time to cache the metadata of documents.
+   *
+   * @param ttl the time to cache metadata, in seconds; zero disables the
+   *        cache
+   * @throws IllegalArgumentException if {@code ttl} is negative
+   */
+  public void setMetadataCacheTtl(long ttl) {
+    if (ttl < 0) {
+      throw new IllegalArgumentException(
+          "The metadata cache time to live must not be negative.");
+    }
+    this.metadataCacheTtlMillis = ttl * 1000L;
+    updateMetadataCache();
+  }
+
+  /** Replaces the metadata cache to reflect the current configuration. */
+  private synchronized void updateMetadataCache() {
+    if (metadataCacheSize > 0 && metadataCacheTtlMillis > 0) {
+      metadataCache = new DocumentMetadataCache(metadataCacheSize,
+          metadataCacheTtlMillis, clock);
+    } else {
+      metadataCache = null;
+    }
+  }
+
+  /**
+   * Discards the cached metadata of a connector instance.
+   *
+   * @param connectorName the name of the connector instance
+   */
+  private void invalidateMetadataCache(String connectorName) {
+    DocumentMetadataCache cache = metadataCache;
+    if (cache != null) {
+      cache.invalidate(connectorName);
+    }
+  }
+
   @Override
   public AuthenticationResponse authenticate(String connectorName,
       AuthenticationIdentity identity) {
@@ -215,6 +287,13 @@ public class ProductionManager implements Manager {
       LOGGER.finer("RETRIEVER: Retrieving metadata from connector "
                    + connectorName + " for document " + docid);
     }
+    DocumentMetadataCache cache = metadataCache;
+    if (cache != null) {
+      Document metaDoc = cache.get(connectorName, docid);
+      if (metaDoc != null) {
+        return metaDoc;
+      }
+    }
     Retriever retriever = instantiator.getRetriever(connectorName);
     if (retriever == null) {
       // We are borked here.  This should not happen.
@@ -223,6 +302,61 @@ public class ProductionManager implements Manager {
                      + " that does not support the Retriever interface.");
       return null;
     }
+    Document metaDoc = getFilteredMetaData(retriever, connectorName, docid);
+    if (cache != null && metaDoc != null) {
+      try {
+        metaDoc = cache.put(connectorName, docid, metaDoc);
+      } catch (RepositoryException e) {
+        metaDoc = getUncachedMetaData(retriever, connectorName, docid, e);
+      } catch (RuntimeException e) {
+        metaDoc = getUncachedMetaData(retriever, connectorName, docid, e);
+      }
+    }
+    return metaDoc;
+  }
+
+  @Override
+  public Calendar getLastModified(String connectorName, String docid)
+      throws ConnectorNotFoundException, InstantiatorException,
+             RepositoryException {
+    // Cached metadata is as cheap, and has been through the filters.
+    DocumentMetadataCache cache = metadataCache;
+    if (cache != null && cache.get(connectorName, docid) != null) {
+      return null;
+    }
+    Retriever retriever = instantiator.getRetriever(connectorName);
+    if (!(retriever instanceof LastModifiedRetriever)) {
+      return null;
+    }
+    Calendar lastModified =
+        ((LastModifiedRetriever) retriever).getLastModified(docid);
+    if (LOGGER.isLoggable(Level.FINER)) {
+      LOGGER.finer("RETRIEVER: Connector " + connectorName + " document "
+          + docid + " last modified "
+          + ((lastModified == null) ? null : lastModified.getTime()));
+    }
+    return lastModified;
+  }
+
+  /**
+   * Returns the metadata of a document that could not be cached.  Reading
+   * the whole document failed, but the caller may only need some of it,
+   * so the caller is given a fresh copy to read as it will.
+   */
+  private Document getUncachedMetaData(Retriever retriever,
+      String connectorName, String docid, Exception cause)
+      throws RepositoryException {
+    LOGGER.log(Level.FINE, "Failed to cache metadata from connector "
+        + connectorName + " for document " + docid, cause);
+    return getFilteredMetaData(retriever, connectorName, docid);
+  }
+
+  /**
+   * Returns the metadata of a document from the {@link Retriever}, with the
+   * document filters applied.
+   */
+  private Document getFilteredMetaData(Retriever retriever,
+      String connectorName, String docid) throws RepositoryException {
     Document metaDoc = retriever.getMetaData(docid);
     if (metaDoc == null) {
       LOGGER.finer("RETRIEVER: Document has no metadata.");
@@ -347,8 +481,13 @@ public class ProductionManager implements Manager {
       Configuration configuration, String language, boolean update)
       throws ConnectorNotFoundException, PersistentStoreException,
       InstantiatorException {
-    return instantiator.setConnectorConfiguration(connectorName, configuration,
-        I18NUtil.getLocaleFromStandardLocaleString(language), update);
+    try {
+      return instantiator.setConnectorConfiguration(connectorName,
+          configuration, I18NUtil.getLocaleFromStandardLocaleString(language),
+          update);
+    } finally {
+      invalidateMetadataCache(connectorName);
+    }
   }
 
   @Override
@@ -378,13 +517,21 @@ public class ProductionManager implements Manager {
   @Override
   public void removeConnector(String connectorName)
       throws InstantiatorException {
-    instantiator.removeConnector(connectorName);
+    try {
+      instantiator.removeConnector(connectorName);
+    } finally {
+      invalidateMetadataCache(connectorName);
+    }
   }
 
   @Override
   public void restartConnectorTraversal(String connectorName)
       throws ConnectorNotFoundException, InstantiatorException {
-    instantiator.restartConnectorTraversal(connectorName);
+    try {
+      instantiator.restartConnectorTraversal(connectorName);
+    } finally {
+      invalidateMetadataCache(connectorName);
+    }
   }
 
   @Override
@@ -0,0 +1,72 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that may be incremented by many threads with little
+ * contention.  The count is striped across several cells, each on its own
+ * cache line, and a thread updates the cell selected by its thread ID.
+ * Reading the count sums the cells.
+ * <p>
+ * This class is thread safe.
+ */
+public class Counter {
+  /** The number of longs in a 64-byte cache line. */
+  private static final int PADDING = 8;
+
+  private static final int STRIPES = stripes();
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  /** Returns a power of two at least twice the number of processors. */
+  private static int stripes() {
+    int stripes = 1;
+    while (stripes < 2 * Runtime.getRuntime().availableProcessors()) {
+      stripes <<= 1;
+    }
+    return stripes;
+  }
+
+  /** Adds one to the count. */
+  public void increment() {
+    add(1L);
+  }
+
+  /**
+   * Adds to the count.
+   *
+   * @param delta the amount to add
+   */
+  public void add(long delta) {
+    int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+    cells.addAndGet(stripe * PADDING, delta);
+  }
+
+  /** Returns the count. */
+  public long get() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  @Override
+  public String toString() {
+    return Long.toString(get());
+  }
+}
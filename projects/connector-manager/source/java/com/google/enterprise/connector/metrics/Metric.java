@@ -0,0 +1,194 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes a metric kept in the {@link MetricsRegistry}: its name, type,
+ * description, and the names of the labels that distinguish its series.
+ * The metric names follow the Prometheus naming conventions.
+ */
+public class Metric implements Comparable<Metric> {
+  /** The types of metrics. */
+  public enum Type {
+    COUNTER, GAUGE, HISTOGRAM;
+
+    /** Returns the lower-case name used in the exported formats. */
+    @Override
+    public String toString() {
+      return name().toLowerCase();
+    }
+  }
+
+  public static final String LABEL_CONNECTOR = "connector";
+
+  private static final String PREFIX = "connector_manager_";
+
+  /**
+   * Histogram bounds for latencies, in milliseconds: a 1-2-5 series from
+   * one millisecond to over two hours, so the relative error of a bucket
+   * is bounded, as in HDR histograms.
+   */
+  public static final long[] LATENCY_BOUNDS_MILLIS = logBounds(10000000L);
+
+  public static final Metric DOCUMENTS_TRAVERSED = new Metric(
+      PREFIX + "documents_traversed_total", Type.COUNTER,
+      "Documents returned by connector traversals.", LABEL_CONNECTOR);
+
+  public static final Metric DOCUMENTS_SKIPPED = new Metric(
+      PREFIX + "documents_skipped_total", Type.COUNTER,
+      "Documents skipped by connector traversals.", LABEL_CONNECTOR);
+
+  public static final Metric FEED_BYTES = new Metric(
+      PREFIX + "feed_bytes_total", Type.COUNTER,
+      "Bytes of feed XML built.", LABEL_CONNECTOR);
+
+  public static final Metric FEED_POST_LATENCY = new Metric(
+      PREFIX + "feed_post_latency_milliseconds", Type.HISTOGRAM,
+      "Time taken to post a feed to the GSA.", LABEL_CONNECTOR);
+
+  public static final Metric FEED_RESPONSES = new Metric(
+      PREFIX + "feed_responses_total", Type.COUNTER,
+      "GSA responses to feed posts.", LABEL_CONNECTOR, "response");
+
+  public static final Metric FEED_RECORDS_COMPRESSED = new Metric(
+      PREFIX + "feed_records_compressed_total", Type.COUNTER,
+      "Feed records whose content was compressed.");
+
+  public static final Metric FEED_RECORDS_UNCOMPRESSED = new Metric(
+      PREFIX + "feed_records_uncompressed_total", Type.COUNTER,
+      "Feed records whose content was sent uncompressed.");
+
+  public static final Metric FEED_COMPRESSION_BYTES_SAVED = new Metric(
+      PREFIX + "feed_compression_bytes_saved_total", Type.COUNTER,
+      "Bytes of feed content saved by compression.");
+
+  public static final Metric FEED_COMPRESSION_TIME = new Metric(
+      PREFIX + "feed_compression_cpu_milliseconds_total", Type.COUNTER,
+      "CPU time spent compressing feed content.");
+
+  public static final Metric AUTHORIZATION_LATENCY = new Metric(
+      PREFIX + "authorization_latency_milliseconds", Type.HISTOGRAM,
+      "Time taken by connectors to authorize documents.", LABEL_CONNECTOR);
+
+  public static final Metric AUTHORIZATION_TIMEOUTS = new Metric(
+      PREFIX + "authorization_timeouts_total", Type.COUNTER,
+      "Connector authorization queries that did not complete in time.",
+      LABEL_CONNECTOR);
+
+  public static final Metric AUTHENTICATION_TIMEOUTS = new Metric(
+      PREFIX + "authentication_timeouts_total", Type.COUNTER,
+      "Connector authentication queries that did not complete in time.",
+      LABEL_CONNECTOR);
+
+  public static final Metric RETRIEVER_BYTES = new Metric(
+      PREFIX + "retriever_bytes_total", Type.COUNTER,
+      "Bytes of document content served to the GSA.", LABEL_CONNECTOR);
+
+  public static final Metric TRAVERSAL_DELAYS = new Metric(
+      PREFIX + "traversal_delays_total", Type.COUNTER,
+      "Traversals delayed by the host load manager.", LABEL_CONNECTOR,
+      "reason");
+
+  public static final Metric THREAD_POOL_QUEUED = new Metric(
+      PREFIX + "thread_pool_queued_tasks", Type.GAUGE,
+      "Traversal batches waiting for a thread.");
+
+  public static final Metric THREAD_POOL_ACTIVE = new Metric(
+      PREFIX + "thread_pool_active_tasks", Type.GAUGE,
+      "Traversal batches running.");
+
+  public static final Metric THREAD_POOL_TIMEOUTS = new Metric(
+      PREFIX + "thread_pool_timeouts_total", Type.COUNTER,
+      "Traversal batches canceled by time outs.");
+
+  public static final Metric THREAD_POOL_TASK_DURATION = new Metric(
+      PREFIX + "thread_pool_task_duration_milliseconds", Type.HISTOGRAM,
+      "Run time of traversal batches.");
+
+  private final String name;
+  private final Type type;
+  private final String help;
+  private final String[] labelNames;
+
+  /**
+   * Constructs a {@code Metric}.
+   *
+   * @param name the metric name
+   * @param type the metric {@link Type}
+   * @param help a description of the metric
+   * @param labelNames the names of the labels of the metric
+   */
+  public Metric(String name, Type type, String help, String... labelNames) {
+    this.name = name;
+    this.type = type;
+    this.help = help;
+    this.labelNames = labelNames.clone();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public String getHelp() {
+    return help;
+  }
+
+  /** Returns a copy of the names of the labels of the metric. */
+  public String[] getLabelNames() {
+    return labelNames.clone();
+  }
+
+  int getLabelCount() {
+    return labelNames.length;
+  }
+
+  /**
+   * Returns a 1-2-5 series of bounds from one up to the given maximum.
+   *
+   * @param max the largest bound
+   */
+  static long[] logBounds(long max) {
+    List<Long> bounds = new ArrayList<Long>();
+    for (long decade = 1; decade <= max; decade *= 10) {
+      for (long step : new long[] { 1, 2, 5 }) {
+        if (decade * step <= max) {
+          bounds.add(decade * step);
+        }
+      }
+    }
+    long[] result = new long[bounds.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = bounds.get(i);
+    }
+    return result;
+  }
+
+  @Override
+  public int compareTo(Metric other) {
+    return name.compareTo(other.name);
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,215 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.metrics;
+
+import com.google.enterprise.connector.common.Histogram;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A registry of the metrics kept by the Connector Manager.  Each
+ * {@link Metric} has one series for each combination of label values,
+ * typically one per connector instance.  A series is a {@link Counter},
+ * a {@link Histogram}, or a {@link Gauge}.
+ * <p>
+ * Looking up an existing series does not lock, so callers on hot paths
+ * may look up a series for each update, although they may also keep a
+ * reference to it.
+ * <p>
+ * This class is thread safe.
+ */
+public class MetricsRegistry {
+  private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+  /** The series of each metric, keyed by their label values. */
+  private final ConcurrentMap<Metric, ConcurrentMap<List<String>, Object>>
+      metrics = new ConcurrentHashMap<Metric,
+                                      ConcurrentMap<List<String>, Object>>();
+
+  /** Returns the shared {@code MetricsRegistry}. */
+  public static MetricsRegistry getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the {@link Counter} for the given metric and label values,
+   * creating it if necessary.
+   *
+   * @param metric a {@link Metric} of type {@link Metric.Type#COUNTER}
+   * @param labelValues the values of the labels of the metric
+   */
+  public Counter getCounter(Metric metric, String... labelValues) {
+    checkType(metric, Metric.Type.COUNTER);
+    List<String> key = getKey(metric, labelValues);
+    Map<List<String>, Object> series = getSeries(metric);
+    Object counter = series.get(key);
+    if (counter == null) {
+      counter = putIfAbsent(metric, key, new Counter());
+    }
+    return (Counter) counter;
+  }
+
+  /**
+   * Returns the {@link Histogram} for the given metric and label values,
+   * creating it with the {@link Metric#LATENCY_BOUNDS_MILLIS latency bounds}
+   * if necessary.
+   *
+   * @param metric a {@link Metric} of type {@link Metric.Type#HISTOGRAM}
+   * @param labelValues the values of the labels of the metric
+   */
+  public Histogram getHistogram(Metric metric, String... labelValues) {
+    checkType(metric, Metric.Type.HISTOGRAM);
+    List<String> key = getKey(metric, labelValues);
+    Map<List<String>, Object> series = getSeries(metric);
+    Object histogram = series.get(key);
+    if (histogram == null) {
+      histogram = putIfAbsent(metric, key,
+          new Histogram(Metric.LATENCY_BOUNDS_MILLIS));
+    }
+    return (Histogram) histogram;
+  }
+
+  /**
+   * Registers an existing {@link Histogram} for the given metric and label
+   * values, replacing any previously registered.
+   *
+   * @param metric a {@link Metric} of type {@link Metric.Type#HISTOGRAM}
+   * @param histogram a {@link Histogram}
+   * @param labelValues the values of the labels of the metric
+   */
+  public void register(Metric metric, Histogram histogram,
+      String... labelValues) {
+    checkType(metric, Metric.Type.HISTOGRAM);
+    getSeries(metric).put(getKey(metric, labelValues), histogram);
+  }
+
+  /**
+   * Registers a {@link Gauge} for the given metric and label values,
+   * replacing any previously registered.  The metric may be of type
+   * {@link Metric.Type#GAUGE}, or {@link Metric.Type#COUNTER} if the
+   * gauge reads a count kept elsewhere.
+   *
+   * @param metric a {@link Metric}
+   * @param gauge a {@link Gauge}
+   * @param labelValues the values of the labels of the metric
+   */
+  public void register(Metric metric, Gauge gauge, String... labelValues) {
+    if (metric.getType() == Metric.Type.HISTOGRAM) {
+      throw new IllegalArgumentException(
+          metric + " is a " + metric.getType() + " metric.");
+    }
+    getSeries(metric).put(getKey(metric, labelValues), gauge);
+  }
+
+  /**
+   * Removes the series with the given value of the
+   * {@link Metric#LABEL_CONNECTOR connector} label, typically when the
+   * connector instance is removed.
+   *
+   * @param connectorName a connector name
+   */
+  public void removeConnector(String connectorName) {
+    for (Map.Entry<Metric, ConcurrentMap<List<String>, Object>> entry
+             : metrics.entrySet()) {
+      int index = Arrays.asList(entry.getKey().getLabelNames())
+          .indexOf(Metric.LABEL_CONNECTOR);
+      if (index >= 0) {
+        for (List<String> key : entry.getValue().keySet()) {
+          if (key.get(index).equals(connectorName)) {
+            entry.getValue().remove(key);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns a snapshot of the registered metrics, sorted by name, and
+   * their series, sorted by label values.  The values of the series map
+   * are {@link Counter}, {@link Histogram}, or {@link Gauge} instances.
+   */
+  public SortedMap<Metric, SortedMap<List<String>, Object>> getMetrics() {
+    SortedMap<Metric, SortedMap<List<String>, Object>> snapshot =
+        new TreeMap<Metric, SortedMap<List<String>, Object>>();
+    for (Map.Entry<Metric, ConcurrentMap<List<String>, Object>> entry
+             : metrics.entrySet()) {
+      if (!entry.getValue().isEmpty()) {
+        SortedMap<List<String>, Object> series =
+            new TreeMap<List<String>, Object>(LABEL_VALUES_ORDER);
+        series.putAll(entry.getValue());
+        snapshot.put(entry.getKey(), Collections.unmodifiableSortedMap(series));
+      }
+    }
+    return Collections.unmodifiableSortedMap(snapshot);
+  }
+
+  private static final Comparator<List<String>> LABEL_VALUES_ORDER =
+      new Comparator<List<String>>() {
+        public int compare(List<String> a, List<String> b) {
+          for (int i = 0; i < a.size() && i < b.size(); i++) {
+            int result = a.get(i).compareTo(b.get(i));
+            if (result != 0) {
+              return result;
+            }
+          }
+          return a.size() - b.size();
+        }
+      };
+
+  private static void checkType(Metric metric, Metric.Type type) {
+    if (metric.getType() != type) {
+      throw new IllegalArgumentException(
+          metric + " is a " + metric.getType() + " metric.");
+    }
+  }
+
+  private static List<String> getKey(Metric metric, String[] labelValues) {
+    if (labelValues.length != metric.getLabelCount()) {
+      throw new IllegalArgumentException(metric + " requires "
+          + metric.getLabelCount() + " label values.");
+    }
+    String[] key = new String[labelValues.length];
+    for (int i = 0; i < key.length; i++) {
+      key[i] = (labelValues[i] == null) ? "" : labelValues[i];
+    }
+    return Collections.unmodifiableList(Arrays.asList(key));
+  }
+
+  private ConcurrentMap<List<String>, Object> getSeries(Metric metric) {
+    ConcurrentMap<List<String>, Object> series = metrics.get(metric);
+    if (series == null) {
+      ConcurrentMap<List<String>, Object> newSeries =
+          new ConcurrentHashMap<List<String>, Object>();
+      series = metrics.putIfAbsent(metric, newSeries);
+      if (series == null) {
+        series = newSeries;
+      }
+    }
+    return series;
+  }
+
+  private Object putIfAbsent(Metric metric, List<String> key, Object value) {
+    Object current = getSeries(metric).putIfAbsent(key, value);
+    return (current == null) ? value : current;
+  }
+}
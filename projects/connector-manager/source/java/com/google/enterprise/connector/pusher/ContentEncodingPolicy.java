@@ -0,0 +1,256 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.enterprise.connector.common.CompressedFilterInputStream;
+import com.google.enterprise.connector.metrics.Gauge;
+import com.google.enterprise.connector.metrics.Metric;
+import com.google.enterprise.connector.metrics.MetricsRegistry;
+import com.google.enterprise.connector.traversal.MimeTypeMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Decides, record by record, whether document content sent to a GSA that
+ * supports {@code base64compressed} content should be compressed, or
+ * simply sent as {@code base64binary}.  Compression is skipped for
+ * <ul>
+ * <li>content of a type that is already compressed, such as JPEG, ZIP,
+ * or Office Open XML, as configured in the {@link MimeTypeMap};</li>
+ * <li>content smaller than the {@link #setMinCompressSize minimum size};
+ * and</li>
+ * <li>content whose first block does not compress well, as determined by
+ * compressing a {@link #setProbeSize probe} of the content.</li>
+ * </ul>
+ * The policy also keeps counters of the compression work done, which
+ * are exported by {@link #registerMetrics}.
+ * <p>
+ * If not configured, all content is compressed.
+ */
+public class ContentEncodingPolicy {
+  private MimeTypeMap mimeTypeMap = null;
+  private int minCompressSize = 0;
+  private int probeSize = 0;
+  private double maxCompressionRatio = 0.9;
+
+  private final AtomicLong compressedRecords = new AtomicLong();
+  private final AtomicLong uncompressedRecords = new AtomicLong();
+  private final AtomicLong uncompressedBytes = new AtomicLong();
+  private final AtomicLong compressedBytes = new AtomicLong();
+  private final AtomicLong compressionTimeNanos = new AtomicLong();
+
+  /**
+   * Sets the {@link MimeTypeMap} used to identify content types that
+   * are already compressed.
+   *
+   * @param mimeTypeMap a {@link MimeTypeMap}, or {@code null} to
+   *        consider all content types compressible
+   */
+  public void setMimeTypeMap(MimeTypeMap mimeTypeMap) {
+    this.mimeTypeMap = mimeTypeMap;
+  }
+
+  /**
+   * Sets the minimum size of content, in bytes, that will be compressed.
+   * Smaller content is sent uncompressed.
+   *
+   * @param minCompressSize a non-negative number of bytes
+   */
+  public void setMinCompressSize(int minCompressSize) {
+    if (minCompressSize < 0) {
+      throw new IllegalArgumentException(
+          "minCompressSize must not be negative.");
+    }
+    this.minCompressSize = minCompressSize;
+  }
+
+  /**
+   * Sets the number of bytes at the start of the content that are
+   * compressed as a probe, to estimate how well the content compresses.
+   * If zero, no probe is done.
+   *
+   * @param probeSize a non-negative number of bytes
+   */
+  public void setProbeSize(int probeSize) {
+    if (probeSize < 0) {
+      throw new IllegalArgumentException("probeSize must not be negative.");
+    }
+    this.probeSize = probeSize;
+  }
+
+  /**
+   * Sets the ratio of compressed size to original size of the probe,
+   * above which the content is sent uncompressed.
+   *
+   * @param maxCompressionRatio a ratio between 0 and 1
+   */
+  public void setMaxCompressionRatio(double maxCompressionRatio) {
+    if (maxCompressionRatio < 0.0 || maxCompressionRatio > 1.0) {
+      throw new IllegalArgumentException(
+          "maxCompressionRatio must be between 0 and 1.");
+    }
+    this.maxCompressionRatio = maxCompressionRatio;
+  }
+
+  /**
+   * Returns the number of bytes of content that should be read ahead
+   * and passed to {@link #shouldCompress}, or zero if the decision does
+   * not depend on the content.
+   */
+  public int getLookAheadSize() {
+    return Math.max(minCompressSize, probeSize);
+  }
+
+  /**
+   * Returns {@code true} if content of the given type may be compressed.
+   * If not, there is no need to read ahead the content before calling
+   * {@link #shouldCompress}.
+   *
+   * @param mimeType the content type, may be {@code null}
+   */
+  public boolean isCompressible(String mimeType) {
+    return mimeTypeMap == null || !mimeTypeMap.isCompressedMimeType(mimeType);
+  }
+
+  /**
+   * Decides whether to compress a record's content.
+   *
+   * @param mimeType the content type, may be {@code null}
+   * @param head a buffer holding the start of the content
+   * @param length the number of bytes of content in {@code head}
+   * @param isComplete {@code true} if {@code head} holds all the content
+   * @return {@code true} if the content should be compressed
+   */
+  public boolean shouldCompress(String mimeType, byte[] head, int length,
+      boolean isComplete) {
+    boolean compress = isCompressible(mimeType)
+        && !(isComplete && length < minCompressSize)
+        && (probeSize == 0 || probe(head, Math.min(length, probeSize)));
+    if (!compress) {
+      uncompressedRecords.incrementAndGet();
+    }
+    return compress;
+  }
+
+  /**
+   * Compresses the start of the content, returning {@code true} if it
+   * compressed well.  The probe uses the fastest compression level, so
+   * it slightly underestimates the actual compression.
+   */
+  private boolean probe(byte[] head, int length) {
+    if (length == 0) {
+      return true;
+    }
+    long start = CompressedFilterInputStream.currentThreadCpuTime();
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    try {
+      deflater.setInput(head, 0, length);
+      deflater.finish();
+      // Stop once the output reaches the limit; the content is incompressible.
+      long limit = (long) (length * maxCompressionRatio);
+      byte[] output = new byte[8192];
+      long count = 0;
+      while (!deflater.finished() && count <= limit) {
+        count += deflater.deflate(output);
+      }
+      return count <= limit;
+    } finally {
+      deflater.end();
+      compressionTimeNanos.addAndGet(
+          CompressedFilterInputStream.currentThreadCpuTime() - start);
+    }
+  }
+
+  /**
+   * Records the compression of a record's content.
+   *
+   * @param originalBytes the size of the original content
+   * @param encodedBytes the size of the compressed content
+   * @param nanos the CPU time spent compressing, in nanoseconds
+   */
+  public void recordCompression(long originalBytes, long encodedBytes,
+      long nanos) {
+    compressedRecords.incrementAndGet();
+    uncompressedBytes.addAndGet(originalBytes);
+    compressedBytes.addAndGet(encodedBytes);
+    compressionTimeNanos.addAndGet(nanos);
+  }
+
+  /** Returns the number of records whose content was compressed. */
+  public long getCompressedRecords() {
+    return compressedRecords.get();
+  }
+
+  /** Returns the number of records whose content was not compressed. */
+  public long getUncompressedRecords() {
+    return uncompressedRecords.get();
+  }
+
+  /**
+   * Returns the number of bytes saved by compression: the original size of
+   * the compressed content, less its compressed size.
+   */
+  public long getBytesSaved() {
+    return uncompressedBytes.get() - compressedBytes.get();
+  }
+
+  /**
+   * Returns the CPU time, in nanoseconds, spent compressing content and
+   * probing content to decide whether to compress it.
+   */
+  public long getCompressionTimeNanos() {
+    return compressionTimeNanos.get();
+  }
+
+  /**
+   * Registers the counters of this policy as metrics, replacing those of
+   * any policy previously registered.
+   *
+   * @param metrics a {@link MetricsRegistry}
+   */
+  public void registerMetrics(MetricsRegistry metrics) {
+    metrics.register(Metric.FEED_RECORDS_COMPRESSED, new Gauge() {
+        public long getValue() {
+          return getCompressedRecords();
+        }
+      });
+    metrics.register(Metric.FEED_RECORDS_UNCOMPRESSED, new Gauge() {
+        public long getValue() {
+          return getUncompressedRecords();
+        }
+      });
+    metrics.register(Metric.FEED_COMPRESSION_BYTES_SAVED, new Gauge() {
+        public long getValue() {
+          return getBytesSaved();
+        }
+      });
+    metrics.register(Metric.FEED_COMPRESSION_TIME, new Gauge() {
+        public long getValue() {
+          return getCompressionTimeNanos() / 1000000L;
+        }
+      });
+  }
+
+  @Override
+  public String toString() {
+    return "ContentEncodingPolicy: minCompressSize = " + minCompressSize
+        + ", probeSize = " + probeSize + ", maxCompressionRatio = "
+        + maxCompressionRatio + ", compressedRecords = " + compressedRecords
+        + ", uncompressedRecords = " + uncompressedRecords
+        + ", bytesSaved = " + getBytesSaved() + ", compressionTimeMillis = "
+        + (compressionTimeNanos.get() / 1000000L);
+  }
+}
@@ -17,6 +17,8 @@ package com.google.enterprise.connector.pusher;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.manager.Context;
+import com.google.enterprise.connector.metrics.Metric;
+import com.google.enterprise.connector.metrics.MetricsRegistry;
 import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.RepositoryDocumentException;
 import com.google.enterprise.connector.spi.RepositoryException;
@@ -28,15 +30,18 @@ import com.google.enterprise.connector.util.filter.DocumentFilterFactory;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -84,17 +89,50 @@ public class DocPusher implements Pusher {
   private final String connectorName;
 
   /**
-   * ExcecutorService that submits a Feed to the GSA in a separate thread.
-   * This allows us to overlap I/O reading content from the Repository
-   * in the traversal thread, and submitting content to the GSA in
-   * a submitFeed thread.
+   * Pool of threads that submit Feeds to the GSA.  This allows us to overlap
+   * I/O reading content from the Repository in the traversal thread, and
+   * submitting content to the GSA in the feed sender threads.
    */
-  private final ExecutorService feedSender;
+  private final FeedSenderPool feedSender;
 
   /**
-   * This is the list of outstanding asynchronous feed submissions.
+   * If {@code true}, the {@link #feedSender} pool was created by, and is
+   * used exclusively by, this {@code DocPusher}.
    */
-  private final LinkedList<FutureTask<String>> submissions;
+  private final boolean ownsFeedSender;
+
+  /**
+   * Decides whether to compress the content of each feed record.
+   */
+  private ContentEncodingPolicy contentEncodingPolicy =
+      new ContentEncodingPolicy();
+
+  /**
+   * If enabled, completed feeds are written to this outbox, which sends
+   * them to the GSA, rather than being sent by the {@link #feedSender}.
+   */
+  private FeedOutbox feedOutbox = null;
+
+  /**
+   * The outstanding asynchronous feed submissions, and their feeds.
+   */
+  private final ConcurrentMap<Future<String>, XmlFeed> submissions;
+
+  /**
+   * Asynchronous feed submissions that have completed, but have not
+   * yet been checked for success or failure.
+   */
+  private final BlockingQueue<Future<String>> completions;
+
+  /**
+   * The number of submitted feeds whose completion has not yet been checked.
+   */
+  private final AtomicInteger outstanding = new AtomicInteger();
+
+  /**
+   * Flag indicating that this {@code DocPusher} has been flushed or canceled.
+   */
+  private volatile boolean isShutdown = false;
 
   /**
    * This is used to build up a multi-record feed.  Documents are added to the
@@ -132,14 +170,78 @@ public class DocPusher implements Pusher {
   public DocPusher(FeedConnection feedConnection, String connectorName,
                    FileSizeLimitInfo fileSizeLimitInfo,
                    DocumentFilterFactory documentFilterFactory) {
+    this(feedConnection, connectorName, fileSizeLimitInfo,
+         documentFilterFactory, new FeedSenderPool(1,
+             FeedSenderPool.DEFAULT_MAX_FEEDS_IN_FLIGHT_PER_CONNECTOR,
+             FeedSenderPool.DEFAULT_MAX_FEEDS_IN_FLIGHT_PER_CONNECTOR),
+         true);
+  }
+
+  /**
+   * Creates a {@code DocPusher} object from the specified
+   * {@code feedConnection} and {@code connectorName}, that sends its
+   * feeds using the supplied shared {@link FeedSenderPool}.
+   *
+   * @param feedConnection a FeedConnection
+   * @param connectorName The connector name that is the source of the feed
+   * @param fileSizeLimitInfo FileSizeLimitInfo constraints on document content
+   *        and feed size.
+   * @param documentFilterFactory a {@link DocumentFilterFactory} that creates
+   *        document processing filters.
+   * @param feedSender a {@link FeedSenderPool} used to send feeds to the GSA
+   */
+  public DocPusher(FeedConnection feedConnection, String connectorName,
+                   FileSizeLimitInfo fileSizeLimitInfo,
+                   DocumentFilterFactory documentFilterFactory,
+                   FeedSenderPool feedSender) {
+    this(feedConnection, connectorName, fileSizeLimitInfo,
+         documentFilterFactory, feedSender, false);
+  }
+
+  private DocPusher(FeedConnection feedConnection, String connectorName,
+                    FileSizeLimitInfo fileSizeLimitInfo,
+                    DocumentFilterFactory documentFilterFactory,
+                    FeedSenderPool feedSender, boolean ownsFeedSender) {
     this.feedConnection = feedConnection;
     this.connectorName = connectorName;
     this.fileSizeLimit = fileSizeLimitInfo;
     this.documentFilterFactory = documentFilterFactory;
 
     // Initialize background feed submission.
-    this.submissions = new LinkedList<FutureTask<String>>();
-    this.feedSender = Executors.newSingleThreadExecutor();
+    this.feedSender = feedSender;
+    this.ownsFeedSender = ownsFeedSender;
+    this.submissions = new ConcurrentHashMap<Future<String>, XmlFeed>();
+    this.completions = new LinkedBlockingQueue<Future<String>>();
+  }
+
+  /**
+   * Sets the {@link ContentEncodingPolicy} used to decide whether to
+   * compress the content of each feed record.  By default, all content
+   * is compressed if the GSA supports it.
+   *
+   * @param contentEncodingPolicy a {@link ContentEncodingPolicy}
+   */
+  public void setContentEncodingPolicy(
+      ContentEncodingPolicy contentEncodingPolicy) {
+    this.contentEncodingPolicy = contentEncodingPolicy;
+  }
+
+  /**
+   * Sets the {@link FeedOutbox} used to send completed feeds.  If the
+   * outbox is enabled, each feed is written to the outbox before this
+   * {@code DocPusher} continues, and {@link #flush} does not wait for
+   * the GSA.
+   *
+   * @param feedOutbox a {@link FeedOutbox}, or {@code null} to send
+   *        feeds directly
+   */
+  public void setFeedOutbox(FeedOutbox feedOutbox) {
+    this.feedOutbox = feedOutbox;
+  }
+
+  /** Returns {@code true} if feeds are sent through the outbox. */
+  private boolean useFeedOutbox() {
+    return feedOutbox != null && feedOutbox.isEnabled();
   }
 
   /**
@@ -187,7 +289,7 @@ public class DocPusher implements Pusher {
   @Override
   public PusherStatus take(Document document)
       throws PushException, FeedException, RepositoryException {
-    if (feedSender.isShutdown()) {
+    if (isShutdown) {
       return PusherStatus.DISABLED;
     }
     checkSubmissions();
@@ -300,23 +402,28 @@ public class DocPusher implements Pusher {
   @Override
   public void flush() throws PushException, FeedException, RepositoryException {
     checkSubmissions();
-    if (!feedSender.isShutdown()) {
+    if (!isShutdown) {
       if (xmlFeed != null) {
         LOGGER.fine("Flushing accumulated feed to GSA");
         submitFeed();
       }
-      feedSender.shutdown();
+      isShutdown = true;
+      if (ownsFeedSender) {
+        feedSender.stop(false);
+      }
     }
-    while (!feedSender.isTerminated()) {
+    while (checkSubmissions() > 0) {
       try {
-        feedSender.awaitTermination(10, TimeUnit.SECONDS);
+        Future<String> future = completions.poll(10, TimeUnit.SECONDS);
+        if (future != null) {
+          checkSubmission(future);
+        }
       } catch (InterruptedException ie) {
         if (checkSubmissions() > 0) {
           throw new FeedException("Interrupted while waiting for feeds.");
         }
       }
     }
-    checkSubmissions();
   }
 
   /**
@@ -327,20 +434,30 @@ public class DocPusher implements Pusher {
     // Discard any feed under construction.
     if (xmlFeed != null) {
       LOGGER.fine("Discarding accumulated feed for " + connectorName);
+      xmlFeed.discard();
       xmlFeed = null;
     }
     if (feedLog != null) {
       feedLog = null;
     }
     // Cancel any feeds under asynchronous submission.
-    feedSender.shutdownNow();
+    isShutdown = true;
+    // A canceled feed that never started would otherwise not be discarded.
+    for (Map.Entry<Future<String>, XmlFeed> entry : submissions.entrySet()) {
+      if (entry.getKey().cancel(true)) {
+        entry.getValue().discard();
+      }
+    }
+    if (ownsFeedSender) {
+      feedSender.stop(true);
+    }
   }
 
   @Override
   public PusherStatus getPusherStatus()
       throws PushException, FeedException, RepositoryException {
     // Is Pusher shutdown?
-    if (feedSender.isShutdown()) {
+    if (isShutdown) {
       return PusherStatus.DISABLED;
     }
 
@@ -351,8 +468,11 @@ public class DocPusher implements Pusher {
     }
 
     // If the number of feeds waiting to be sent has backed up,
+    // either for this connector or for all connectors combined,
     // tell the Traverser to finish this batch.
-    if (checkSubmissions() > 10) {
+    if (checkSubmissions() > feedSender.getMaxFeedsInFlightPerConnector()
+        || feedSender.isBacklogged()
+        || (useFeedOutbox() && feedOutbox.isBacklogged())) {
       return PusherStatus.LOCAL_FEED_BACKLOG;
     } else if (feedConnection.isBacklogged()) {
       return PusherStatus.GSA_FEED_BACKLOG;
@@ -365,44 +485,51 @@ public class DocPusher implements Pusher {
   /**
    * Checks on asynchronously submitted feeds to see if they completed
    * or failed.  If any of the submissions failed, throw an Exception.
+   * This does not wait for outstanding submissions to complete.
    *
-   * @return number if items remaining in the submissions list
+   * @return number of submissions that have not yet completed
    */
   @VisibleForTesting
   int checkSubmissions()
       throws PushException, FeedException, RepositoryException {
-    int count = 0;  // Count of outstanding items in the list.
-    synchronized(submissions) {
-      ListIterator<FutureTask<String>> iter = submissions.listIterator();
-      while (iter.hasNext()) {
-        FutureTask<String> future = iter.next();
-        if (future.isDone()) {
-          iter.remove();
-          try {
-            gsaResponse = future.get();
-          } catch (InterruptedException ie) {
-            // Shouldn't happen if isDone.
-          } catch (ExecutionException ee) {
-            Throwable cause = ee.getCause();
-            if (cause == null) {
-              cause = ee;
-            }
-            if (cause instanceof PushException) {
-              throw (PushException) cause;
-            } else if (cause instanceof FeedException) {
-              throw (FeedException) cause;
-            } else if (cause instanceof RepositoryException) {
-              throw (RepositoryException) cause;
-            } else {
-              throw new FeedException("Error submitting feed", cause);
-            }
-          }
-        } else {
-          count++;
-        }
+    Future<String> future;
+    while ((future = completions.poll()) != null) {
+      checkSubmission(future);
+    }
+    return outstanding.get();
+  }
+
+  /**
+   * Checks a completed feed submission.  If the submission failed,
+   * throw an Exception.
+   *
+   * @param future the {@link Future} of a completed submission
+   */
+  private void checkSubmission(Future<String> future)
+      throws PushException, FeedException, RepositoryException {
+    submissions.remove(future);
+    outstanding.decrementAndGet();
+    try {
+      gsaResponse = future.get();
+    } catch (CancellationException ce) {
+      // The feed was abandoned by cancel().
+    } catch (InterruptedException ie) {
+      // Shouldn't happen if isDone.
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause == null) {
+        cause = ee;
+      }
+      if (cause instanceof PushException) {
+        throw (PushException) cause;
+      } else if (cause instanceof FeedException) {
+        throw (FeedException) cause;
+      } else if (cause instanceof RepositoryException) {
+        throw (RepositoryException) cause;
+      } else {
+        throw new FeedException("Error submitting feed", cause);
       }
     }
-    return count;
   }
 
   /**
@@ -411,7 +538,11 @@ public class DocPusher implements Pusher {
    * @return true if free memory is running low.
    */
   private boolean lowMemory() {
-    long threshold = ((fileSizeLimit.maxFeedSize() + fileSizeLimit.maxDocumentSize()) * 4) / 3;
+    // Only the head of a feed is held in memory, the rest is spooled to disk.
+    long feedMemorySize = Math.min(fileSizeLimit.maxFeedSize(),
+                                   fileSizeLimit.maxFeedMemorySize());
+    long threshold =
+        ((feedMemorySize + fileSizeLimit.maxDocumentSize()) * 4) / 3;
     Runtime rt = Runtime.getRuntime();
     if ((rt.maxMemory() - (rt.totalMemory() - rt.freeMemory())) < threshold) {
       rt.gc();
@@ -445,7 +576,7 @@ public class DocPusher implements Pusher {
       try {
         // Allocate XmlFeed of the target size.
         xmlFeed = new XmlFeed(connectorName, feedType, fileSizeLimit, feedLog,
-            feedConnection);
+            feedConnection, contentEncodingPolicy);
       } catch (OutOfMemoryError me) {
         // We shouldn't even have gotten this far under a low memory condition.
         // However, try to allocate a tiny feed buffer.  It should fill up on
@@ -459,7 +590,7 @@ public class DocPusher implements Pusher {
         newLimit.setMaxDocumentSize(fileSizeLimit.maxDocumentSize());
         try {
           xmlFeed = new XmlFeed(connectorName, feedType, newLimit, feedLog,
-              feedConnection);
+              feedConnection, contentEncodingPolicy);
         } catch (OutOfMemoryError oome) {
           throw new OutOfMemoryError(
                "Unable to allocate feed buffer for connector " + connectorName);
@@ -499,12 +630,32 @@ public class DocPusher implements Pusher {
     try {
       feed.close();
     } catch (IOException ioe) {
+      feed.discard();
       throw new PushException("Error closing feed", ioe);
     }
+    MetricsRegistry.getInstance().getCounter(Metric.FEED_BYTES, connectorName)
+        .add(feed.size());
+
+    if (useFeedOutbox()) {
+      // Save the feed in the outbox, which sends it in the background.
+      try {
+        logFeed(feed, logMessage);
+        feedOutbox.add(feed);
+      } catch (IOException ioe) {
+        throw new FeedException("Unable to add feed to the outbox", ioe);
+      } catch (IllegalStateException ise) {
+        // The outbox was stopped, as the Connector Manager shuts down.
+        throw new FeedException("Unable to add feed to the outbox", ise);
+      } finally {
+        feed.discard();
+      }
+      return;
+    }
 
     try {
-      // Send the feed to the GSA in a separate thread.
-      FutureTask<String> future = new FutureTask<String> (
+      // Send the feed to the GSA in a separate thread, after any earlier
+      // feeds for this data source.
+      Future<String> future = feedSender.submit(feed.getDataSource(),
           new Callable<String>() {
             public String call()
                 throws PushException, FeedException, RepositoryException {
@@ -512,17 +663,16 @@ public class DocPusher implements Pusher {
                 NDC.push("Feed " + feed.getDataSource());
                 return submitFeed(feed, logMessage);
               } finally {
+                feed.discard();
                 NDC.remove();
               }
             }
-          }
-        );
-      feedSender.execute(future);
-      // Add the future to list of outstanding submissions.
-      synchronized(submissions) {
-        submissions.add(future);
-      }
+          }, completions);
+      // Add the future to the outstanding submissions.
+      outstanding.incrementAndGet();
+      submissions.put(future, feed);
     } catch (RejectedExecutionException ree) {
+      feed.discard();
       throw new FeedException("Asynchronous feed was rejected. ", ree);
     }
   }
@@ -539,7 +689,42 @@ public class DocPusher implements Pusher {
    */
   private String submitFeed(XmlFeed feed, String logMessage)
       throws PushException, FeedException, RepositoryException {
+    logFeed(feed, logMessage);
 
+    String gsaResponse = feedConnection.sendData(feed);
+    if (!gsaResponse.equals(GsaFeedConnection.SUCCESS_RESPONSE)) {
+      throw new PushException(getResponseMessage(gsaResponse));
+    }
+    return gsaResponse;
+  }
+
+  /**
+   * Returns a message for an unsuccessful GSA response, with advice for
+   * the responses that need it.
+   *
+   * @param gsaResponse the response from the GSA
+   */
+  static String getResponseMessage(String gsaResponse) {
+    String eMessage = gsaResponse;
+    if (GsaFeedConnection.UNAUTHORIZED_RESPONSE.equals(gsaResponse)) {
+      eMessage += ": Client is not authorized to send feeds. Make "
+          + "sure the GSA is configured to trust feeds from your host.";
+    }
+    if (GsaFeedConnection.INTERNAL_ERROR_RESPONSE.equals(gsaResponse)) {
+      eMessage += ": Check GSA status or feed format.";
+    }
+    return eMessage;
+  }
+
+  /**
+   * Writes the feed log message to the feed logger, and the feed to the
+   * teed feed file, if one was specified.
+   *
+   * @param feed an XmlFeed
+   * @param logMessage a Feed Log message
+   * @throws FeedException if the teed feed file cannot be written
+   */
+  private void logFeed(XmlFeed feed, String logMessage) throws FeedException {
     if (LOGGER.isLoggable(Level.FINE)) {
       LOGGER.fine("Submitting " + feed.getFeedType() + " feed for "
           + feed.getDataSource() + " to the GSA. " + feed.getRecordCount()
@@ -575,19 +760,5 @@ public class DocPusher implements Pusher {
         }
       }
     }
-
-    String gsaResponse = feedConnection.sendData(feed);
-    if (!gsaResponse.equals(GsaFeedConnection.SUCCESS_RESPONSE)) {
-      String eMessage = gsaResponse;
-      if (GsaFeedConnection.UNAUTHORIZED_RESPONSE.equals(gsaResponse)) {
-        eMessage += ": Client is not authorized to send feeds. Make "
-            + "sure the GSA is configured to trust feeds from your host.";
-      }
-      if (GsaFeedConnection.INTERNAL_ERROR_RESPONSE.equals(gsaResponse)) {
-        eMessage += ": Check GSA status or feed format.";
-      }
-      throw new PushException(eMessage);
-    }
-    return gsaResponse;
   }
 }
@@ -16,6 +16,7 @@ package com.google.enterprise.connector.pusher;
 
 import com.google.enterprise.connector.instantiator.DocumentFilterFactoryFactory;
 import com.google.enterprise.connector.instantiator.DocumentFilterFactoryFactoryImpl;
+import com.google.enterprise.connector.metrics.MetricsRegistry;
 import com.google.enterprise.connector.traversal.FileSizeLimitInfo;
 
 import java.util.logging.Logger;
@@ -52,6 +53,25 @@ public class DocPusherFactory implements PusherFactory {
    */
   private final DocumentFilterFactoryFactory documentFilterFactoryFactory;
 
+  /**
+   * The {@link FeedSenderPool} shared by all the {@link DocPusher} instances
+   * created by this factory.
+   */
+  private final FeedSenderPool feedSenderPool;
+
+  /**
+   * The {@link ContentEncodingPolicy} shared by all the {@link DocPusher}
+   * instances created by this factory.
+   */
+  private ContentEncodingPolicy contentEncodingPolicy =
+      new ContentEncodingPolicy();
+
+  /**
+   * The {@link FeedOutbox} shared by all the {@link DocPusher} instances
+   * created by this factory, or {@code null} to send feeds directly.
+   */
+  private FeedOutbox feedOutbox = null;
+
   /**
    * Creates a {@code DocPusherFactory} object from the specified
    * {@code feedConnection}.  This constructor is Used by the tests.
@@ -78,18 +98,71 @@ public class DocPusherFactory implements PusherFactory {
   public DocPusherFactory(FeedConnection feedConnection,
       FileSizeLimitInfo fileSizeLimit,
       DocumentFilterFactoryFactory documentFilterFactoryFactory) {
+    this(feedConnection, fileSizeLimit, documentFilterFactoryFactory,
+         new FeedSenderPool());
+  }
+
+  /**
+   * Creates a {@code DocPusherFactory} object from the specified
+   * {@code feedConnection}.  The supplied {@link FileSizeLimitInfo} specifies
+   * constraints as to the size of a Document's content and the size of
+   * generated Feed files.  The created {@link DocPusher DocPushers} send
+   * their feeds using the supplied {@link FeedSenderPool}.
+   *
+   * @param feedConnection a {@link FeedConnection} sink for documents.
+   * @param fileSizeLimit {@link FileSizeLimitInfo} constraints on document
+   *        content and feed size.
+   * @param documentFilterFactoryFactory a {@link DocumentFilterFactoryFactory}
+   *        that will be used to create document processing filters.
+   * @param feedSenderPool a {@link FeedSenderPool} shared by all the
+   *        {@code DocPushers} for sending feeds.
+   */
+  public DocPusherFactory(FeedConnection feedConnection,
+      FileSizeLimitInfo fileSizeLimit,
+      DocumentFilterFactoryFactory documentFilterFactoryFactory,
+      FeedSenderPool feedSenderPool) {
     this.feedConnection = feedConnection;
     this.fileSizeLimit = fileSizeLimit;
     this.documentFilterFactoryFactory = documentFilterFactoryFactory;
+    this.feedSenderPool = feedSenderPool;
+    contentEncodingPolicy.registerMetrics(MetricsRegistry.getInstance());
 
     LOGGER.config(feedConnection.toString());
     LOGGER.config(fileSizeLimit.toString());
     LOGGER.config(documentFilterFactoryFactory.toString());
+    LOGGER.config(feedSenderPool.toString());
+  }
+
+  /**
+   * Sets the {@link ContentEncodingPolicy} used to decide whether to
+   * compress the content of each feed record.
+   *
+   * @param contentEncodingPolicy a {@link ContentEncodingPolicy}
+   */
+  public void setContentEncodingPolicy(
+      ContentEncodingPolicy contentEncodingPolicy) {
+    this.contentEncodingPolicy = contentEncodingPolicy;
+    contentEncodingPolicy.registerMetrics(MetricsRegistry.getInstance());
+    LOGGER.config(contentEncodingPolicy.toString());
+  }
+
+  /**
+   * Sets the {@link FeedOutbox} used to send completed feeds.
+   *
+   * @param feedOutbox a {@link FeedOutbox}
+   */
+  public void setFeedOutbox(FeedOutbox feedOutbox) {
+    this.feedOutbox = feedOutbox;
+    LOGGER.config(feedOutbox.toString());
   }
 
   @Override
   public Pusher newPusher(String dataSource) {
-    return new DocPusher(feedConnection, dataSource, fileSizeLimit,
-        documentFilterFactoryFactory.getDocumentFilterFactory(dataSource));
+    DocPusher pusher = new DocPusher(feedConnection, dataSource, fileSizeLimit,
+        documentFilterFactoryFactory.getDocumentFilterFactory(dataSource),
+        feedSenderPool);
+    pusher.setContentEncodingPolicy(contentEncodingPolicy);
+    pusher.setFeedOutbox(feedOutbox);
+    return pusher;
   }
 }
@@ -49,6 +49,17 @@ public interface FeedConnection {
    */
   public boolean isBacklogged();
 
+  /**
+   * Returns the number of milliseconds until the Feed host is next checked
+   * for a backlog, and the result of {@link #isBacklogged} may change.
+   * A Feed client throttled back by a backlog may wait this long before
+   * calling {@code isBacklogged} again.
+   *
+   * @return the number of milliseconds until the next backlog check, or
+   *         zero if that is not known
+   */
+  public long getBacklogCheckDelay();
+
   /**
    * Return a String consisting of a comma-separated list supported content
    * encodings.  For instance: "base64binary, base64compressed".
@@ -0,0 +1,539 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.enterprise.connector.manager.ContextService;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SpiConstants.FeedType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A durable outbox for completed feeds.  Each feed is written to a file
+ * in the outbox directory, and its contents are forced to disk, before
+ * {@link #add} returns.  The file is then renamed into place, but the
+ * rename is not forced to disk, so a feed added just before a system
+ * crash may be lost; feeds are not lost if only the Connector Manager
+ * stops.  A background thread sends the feeds to the GSA in the order
+ * they were added, and deletes each one once the GSA accepts it.  If a
+ * feed cannot be sent, it is tried again after a delay that doubles with
+ * each failure.  A feed that the GSA rejects as unauthorized or as bad is
+ * tried a few times, in case the GSA configuration is being fixed, and a
+ * feed that fails for any other reason is tried for a few hours.  Either
+ * way, the feed is then set aside, so that it does not hold up the feeds
+ * behind it.  Feeds left in the outbox when the Connector Manager stops
+ * are sent once it starts again.
+ * <p>
+ * Since a traversal batch is complete once its feeds are in the outbox,
+ * the checkpoint may be saved without waiting for the GSA, and the
+ * documents are not traversed again if the GSA is briefly unavailable.
+ * A feed might be sent more than once, if the Connector Manager stops
+ * after the feed was sent, but before it was deleted.
+ * <p>
+ * The outbox is disabled if it is not given a directory.
+ */
+public class FeedOutbox implements ContextService {
+  private static final Logger LOGGER =
+      Logger.getLogger(FeedOutbox.class.getName());
+
+  /** Default maximum number of feeds in the outbox. */
+  public static final int DEFAULT_MAX_FEEDS = 100;
+
+  /** Suffix of complete feed files, waiting to be sent. */
+  @VisibleForTesting
+  static final String FEED_SUFFIX = ".feed";
+
+  /** Suffix of feed files being written. */
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /** Suffix of feed files that could not be read. */
+  @VisibleForTesting
+  static final String BAD_SUFFIX = ".bad";
+
+  /** The first line of a feed file, identifying its format. */
+  private static final String FILE_HEADER = "google-connector-feed 1";
+
+  private static final long DEFAULT_RETRY_DELAY = 10 * 1000L;
+  private static final long DEFAULT_MAX_RETRY_DELAY = 10 * 60 * 1000L;
+
+  /** The number of times a feed may be rejected before it is set aside. */
+  @VisibleForTesting
+  static final int MAX_REJECTIONS = 3;
+
+  /**
+   * The number of times a feed may fail to be sent, for any reason, before
+   * it is set aside.  With the default retry delays, this is about three
+   * hours.
+   */
+  @VisibleForTesting
+  static final int MAX_FAILURES = 20;
+
+  private final FeedConnection feedConnection;
+  private final File directory;
+  private final int maxFeeds;
+
+  private long retryDelay = DEFAULT_RETRY_DELAY;
+  private long maxRetryDelay = DEFAULT_MAX_RETRY_DELAY;
+
+  /** The feed files waiting to be sent, in the order they were added. */
+  private final BlockingQueue<File> queue = new PriorityBlockingQueue<File>();
+
+  /** The number of feeds added, but not yet sent. */
+  private final AtomicInteger feedCount = new AtomicInteger();
+
+  /** The sequence number of the next feed file. */
+  private long sequence = -1L;
+
+  /** The thread that sends the feeds. */
+  private Thread sender = null;
+
+  /**
+   * The number of times the feed being sent has been rejected, and the
+   * number of times it has failed for any reason.  Used only by the
+   * sender thread.
+   */
+  private int rejections = 0;
+  private int failures = 0;
+
+  /** Flag indicating stop was called.  Don't accept any more feeds. */
+  private boolean isShutdown = false;
+
+  /**
+   * Creates a {@code FeedOutbox}.
+   *
+   * @param feedConnection the {@link FeedConnection} used to send feeds
+   * @param directory the path of the outbox directory, or {@code null}
+   *        or empty to disable the outbox
+   * @param maxFeeds the number of feeds in the outbox beyond which the
+   *        outbox is considered backlogged
+   */
+  public FeedOutbox(FeedConnection feedConnection, String directory,
+      int maxFeeds) {
+    if (maxFeeds <= 0) {
+      throw new IllegalArgumentException("maxFeeds must be positive.");
+    }
+    this.feedConnection = feedConnection;
+    this.directory =
+        Strings.isNullOrEmpty(directory) ? null : new File(directory);
+    this.maxFeeds = maxFeeds;
+  }
+
+  /**
+   * Sets the delays between attempts to send a feed.
+   *
+   * @param retryDelay the delay after the first failure, in milliseconds
+   * @param maxRetryDelay the longest delay, in milliseconds
+   */
+  @VisibleForTesting
+  void setRetryDelays(long retryDelay, long maxRetryDelay) {
+    this.retryDelay = retryDelay;
+    this.maxRetryDelay = maxRetryDelay;
+  }
+
+  /** Returns {@code true} if the outbox has a directory. */
+  public boolean isEnabled() {
+    return directory != null;
+  }
+
+  /** Returns the number of feeds added, but not yet sent. */
+  public int getFeedCount() {
+    return feedCount.get();
+  }
+
+  /**
+   * Returns {@code true} if the number of feeds waiting to be sent
+   * exceeds the configured maximum.
+   */
+  public boolean isBacklogged() {
+    return feedCount.get() > maxFeeds;
+  }
+
+  /**
+   * Writes a complete feed to the outbox, to be sent in the background.
+   * The contents of the feed are on disk when this method returns, but
+   * its file name might not be, until the file system next commits its
+   * metadata.
+   *
+   * @param feed a closed {@link SerializedFeed}
+   * @throws IOException if the feed could not be written
+   * @throws IllegalStateException if the outbox is disabled or stopped
+   */
+  public void add(SerializedFeed feed) throws IOException {
+    File temp;
+    File file;
+    synchronized (this) {
+      if (!isEnabled() || isShutdown) {
+        throw new IllegalStateException("The feed outbox is not running.");
+      }
+      init();
+      String name = String.format("%020d", sequence++);
+      temp = new File(directory, name + TEMP_SUFFIX);
+      file = new File(directory, name + FEED_SUFFIX);
+    }
+
+    boolean isThrowing = true;
+    FileOutputStream fos = new FileOutputStream(temp);
+    try {
+      OutputStream out = new BufferedOutputStream(fos);
+      writeHeader(out, feed);
+      feed.writeTo(out);
+      out.flush();
+      fos.getFD().sync();
+      isThrowing = false;
+    } finally {
+      try {
+        fos.close();
+      } catch (IOException e) {
+        if (!isThrowing) {
+          isThrowing = true;
+          throw e;
+        }
+      } finally {
+        if (isThrowing) {
+          temp.delete();
+        }
+      }
+    }
+    // The rename makes the complete feed visible as a single step.
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Unable to rename " + temp + " to " + file);
+    }
+
+    feedCount.incrementAndGet();
+    queue.add(file);
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("Added " + feed.getFeedType() + " feed for "
+          + feed.getDataSource() + " to the outbox as " + file.getName());
+    }
+  }
+
+  /**
+   * Creates the directory, finds the feeds left from a previous run, and
+   * picks the next sequence number.  Must be called while synchronized.
+   */
+  private void init() throws IOException {
+    if (sequence >= 0) {
+      return;
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create feed outbox directory "
+          + directory);
+    }
+    File[] files = directory.listFiles(new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+          return name.endsWith(FEED_SUFFIX) || name.endsWith(TEMP_SUFFIX);
+        }
+      });
+    if (files == null) {
+      throw new IOException("Unable to list feed outbox directory "
+          + directory);
+    }
+    long next = 0L;
+    for (File file : files) {
+      String name = file.getName();
+      try {
+        long number = Long.parseLong(name.substring(0, name.indexOf('.')));
+        next = Math.max(next, number + 1);
+      } catch (NumberFormatException e) {
+        LOGGER.warning("Ignoring unexpected file in feed outbox: " + file);
+        continue;
+      }
+      if (name.endsWith(TEMP_SUFFIX)) {
+        // An incomplete feed, whose batch was never checkpointed.
+        file.delete();
+      } else {
+        feedCount.incrementAndGet();
+        queue.add(file);
+      }
+    }
+    sequence = next;
+    if (!queue.isEmpty()) {
+      LOGGER.info("Found " + queue.size() + " unsent feeds in the outbox "
+          + directory);
+    }
+  }
+
+  /**
+   * Starts sending feeds, including any left in the outbox by a previous
+   * run.  A stopped outbox is not started again.
+   */
+  @Override
+  public synchronized void start() {
+    if (!isEnabled() || isShutdown || sender != null) {
+      return;
+    }
+    try {
+      init();
+    } catch (IOException e) {
+      // Feeds added later will fail with the same problem.
+      LOGGER.log(Level.SEVERE, "Unable to open the feed outbox.", e);
+    }
+    sender = new Thread(new Sender(), "FeedOutbox");
+    sender.setDaemon(true);
+    sender.start();
+    LOGGER.config("Started feed outbox in " + directory);
+  }
+
+  /**
+   * Stops sending feeds, and rejects subsequent additions.  Feeds
+   * remaining in the outbox directory are sent by the next outbox
+   * started on the directory, when the Connector Manager starts again.
+   *
+   * @param force ignored; a feed being sent is abandoned in either case
+   */
+  @Override
+  public synchronized void stop(boolean force) {
+    isShutdown = true;
+    if (sender != null) {
+      sender.interrupt();
+    }
+  }
+
+  @Override
+  public synchronized boolean isRunning() {
+    return sender != null && !isShutdown;
+  }
+
+  @Override
+  public String getName() {
+    return getClass().getSimpleName();
+  }
+
+  @Override
+  public String toString() {
+    return "FeedOutbox: directory = " + directory + ", maxFeeds = " + maxFeeds;
+  }
+
+  /** Sends the feeds in the outbox, in order, until interrupted. */
+  private class Sender implements Runnable {
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          File file = queue.take();
+          long delay = retryDelay;
+          while (!send(file)) {
+            Thread.sleep(delay);
+            delay = Math.min(delay * 2, maxRetryDelay);
+          }
+          feedCount.decrementAndGet();
+        }
+      } catch (InterruptedException e) {
+        LOGGER.fine("Stopped sending feeds from the outbox.");
+      }
+    }
+  }
+
+  /**
+   * Sends a feed file to the GSA, and deletes it if the GSA accepts it.
+   * A feed that cannot be read, that the GSA has rejected
+   * {@link #MAX_REJECTIONS} times, or that has failed to be sent
+   * {@link #MAX_FAILURES} times, is set aside.
+   *
+   * @return {@code true} if the file is finished with, or {@code false}
+   *         if it should be sent again later
+   */
+  @VisibleForTesting
+  boolean send(File file) {
+    SpooledFeed feed;
+    try {
+      feed = new SpooledFeed(file);
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "Unable to read feed " + file
+          + " from the outbox; setting it aside.", e);
+      setAside(file);
+      return true;
+    }
+    try {
+      String response = feedConnection.sendData(feed);
+      if (GsaFeedConnection.SUCCESS_RESPONSE.equals(response)) {
+        if (!file.delete()) {
+          LOGGER.warning("Unable to delete sent feed " + file);
+        }
+        rejections = 0;
+        failures = 0;
+        return true;
+      }
+      String message = "The GSA did not accept feed " + file.getName()
+          + " for " + feed.getDataSource() + ": "
+          + DocPusher.getResponseMessage(response);
+      if (isRejection(response)) {
+        rejections++;
+      }
+      return failed(file, message, null);
+    } catch (FeedException e) {
+      return failed(file, "Unable to send feed " + file.getName() + ".", e);
+    } catch (RepositoryException e) {
+      return failed(file, "Unable to send feed " + file.getName() + ".", e);
+    } catch (RuntimeException e) {
+      return failed(file, "Unable to send feed " + file.getName() + ".", e);
+    }
+  }
+
+  /**
+   * Counts a failed attempt to send a feed, and sets the feed aside if it
+   * has failed too often.
+   *
+   * @return {@code true} if the feed was set aside, or {@code false} if
+   *         it should be sent again later
+   */
+  private boolean failed(File file, String message, Throwable cause) {
+    if (++failures >= MAX_FAILURES || rejections >= MAX_REJECTIONS) {
+      LOGGER.log(Level.SEVERE, message + " Setting it aside.", cause);
+      setAside(file);
+      return true;
+    }
+    LOGGER.log(Level.WARNING, message + " Will retry.", cause);
+    return false;
+  }
+
+  /**
+   * Returns {@code true} if the GSA response means that sending the feed
+   * again will fail the same way, unless the GSA configuration changes.
+   */
+  private static boolean isRejection(String response) {
+    return GsaFeedConnection.UNAUTHORIZED_RESPONSE.equals(response)
+        || GsaFeedConnection.INTERNAL_ERROR_RESPONSE.equals(response);
+  }
+
+  /** Keeps a feed file for diagnosis, but does not try it again. */
+  private void setAside(File file) {
+    rejections = 0;
+    failures = 0;
+    if (!file.renameTo(new File(directory, file.getName() + BAD_SUFFIX))) {
+      LOGGER.warning("Unable to rename feed " + file);
+      file.delete();
+    }
+  }
+
+  /** Writes the header lines: the format, data source, and feed type. */
+  private static void writeHeader(OutputStream out, FeedData feed)
+      throws IOException {
+    String header = FILE_HEADER + "\n" + feed.getDataSource() + "\n"
+        + feed.getFeedType().name() + "\n";
+    out.write(header.getBytes(Charsets.UTF_8));
+  }
+
+  /** Reads a header line, without the line terminator. */
+  private static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b == -1) {
+        throw new IOException("Truncated feed header.");
+      }
+      line.write(b);
+    }
+    return new String(line.toByteArray(), Charsets.UTF_8);
+  }
+
+  /** A feed read back from a file in the outbox. */
+  @VisibleForTesting
+  static class SpooledFeed implements SerializedFeed {
+    private final File file;
+    private final String dataSource;
+    private final FeedType feedType;
+    private final int headerLength;
+    private final int size;
+
+    SpooledFeed(File file) throws IOException {
+      this.file = file;
+      InputStream in = new BufferedInputStream(new FileInputStream(file));
+      try {
+        String header = readLine(in);
+        if (!FILE_HEADER.equals(header)) {
+          throw new IOException("Unknown feed file format: " + header);
+        }
+        dataSource = readLine(in);
+        String type = readLine(in);
+        try {
+          feedType = FeedType.valueOf(type);
+        } catch (IllegalArgumentException e) {
+          throw new IOException("Unknown feed type: " + type);
+        }
+        headerLength = (FILE_HEADER + dataSource + type).getBytes(
+            Charsets.UTF_8).length + 3;
+      } finally {
+        in.close();
+      }
+      long length = file.length() - headerLength;
+      if (length < 0 || length > Integer.MAX_VALUE) {
+        throw new IOException("Invalid feed file length: " + file.length());
+      }
+      size = (int) length;
+    }
+
+    @Override
+    public FeedType getFeedType() {
+      return feedType;
+    }
+
+    @Override
+    public String getDataSource() {
+      return dataSource;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      InputStream in = new FileInputStream(file);
+      try {
+        long skipped = 0L;
+        while (skipped < headerLength) {
+          long n = in.skip(headerLength - skipped);
+          if (n <= 0) {
+            throw new IOException("Truncated feed file: " + file);
+          }
+          skipped += n;
+        }
+        byte[] buffer = new byte[64 * 1024];
+        int remaining = size;
+        while (remaining > 0) {
+          int count = in.read(buffer, 0, Math.min(buffer.length, remaining));
+          if (count == -1) {
+            throw new IOException("Truncated feed file: " + file);
+          }
+          out.write(buffer, 0, count);
+          remaining -= count;
+        }
+      } finally {
+        in.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,292 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.enterprise.connector.manager.ContextService;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A pool of threads, shared by all {@link DocPusher DocPushers}, that
+ * sends feeds to the GSA.  This allows a single connector instance to have
+ * several feeds queued at once when the GSA is slow to accept them,
+ * while bounding the total number of threads and outstanding feeds across
+ * all connector instances.
+ * <p>
+ * Feeds for different data sources are sent concurrently, but the feeds
+ * for a single data source are sent one at a time, in the order they were
+ * submitted, so that the GSA sees the changes to a document in order.
+ * <p>
+ * The number of feeds that a single {@code DocPusher} may have outstanding
+ * is limited by {@link #getMaxFeedsInFlightPerConnector()}.  The total
+ * number of feeds queued or being sent by all {@code DocPushers} is limited
+ * by {@link #isBacklogged()}.  Both limits are soft: a {@code DocPusher}
+ * that exceeds them reports a {@link Pusher.PusherStatus#LOCAL_FEED_BACKLOG},
+ * which causes the traversal batch to end.
+ * <p>
+ * The threads are created lazily and are allowed to die when idle.
+ */
+public class FeedSenderPool implements ContextService {
+  private static final Logger LOGGER =
+      Logger.getLogger(FeedSenderPool.class.getName());
+
+  /** Default number of feed sender threads. */
+  public static final int DEFAULT_THREADS = 4;
+
+  /** Default maximum number of outstanding feeds, across all connectors. */
+  public static final int DEFAULT_MAX_FEEDS_IN_FLIGHT = 50;
+
+  /** Default maximum number of outstanding feeds for one connector. */
+  public static final int DEFAULT_MAX_FEEDS_IN_FLIGHT_PER_CONNECTOR = 10;
+
+  /** Time idle threads are kept alive before exiting. */
+  private static final long KEEP_ALIVE_SECONDS = 60L;
+
+  private final int threads;
+  private final int maxFeedsInFlight;
+  private final int maxFeedsInFlightPerConnector;
+
+  /** The number of feeds submitted, but not yet completed. */
+  private final AtomicInteger feedsInFlight = new AtomicInteger();
+
+  /**
+   * The feeds waiting for an earlier feed for the same data source to be
+   * sent, by data source.  A data source has an entry only while one of
+   * its feeds is being sent or is queued in the executor.
+   */
+  private final Map<String, Queue<FutureTask<String>>> waitingFeeds =
+      new HashMap<String, Queue<FutureTask<String>>>();
+
+  /** The lazily constructed executor. */
+  private ThreadPoolExecutor executor;
+
+  /** Flag indicating stop was called.  Don't accept any more feeds. */
+  private boolean isShutdown = false;
+
+  /**
+   * Creates a {@code FeedSenderPool} with the default configuration.
+   */
+  public FeedSenderPool() {
+    this(DEFAULT_THREADS, DEFAULT_MAX_FEEDS_IN_FLIGHT,
+         DEFAULT_MAX_FEEDS_IN_FLIGHT_PER_CONNECTOR);
+  }
+
+  /**
+   * Creates a {@code FeedSenderPool}.
+   *
+   * @param threads the maximum number of feeds that may be sent concurrently
+   * @param maxFeedsInFlight the number of outstanding feeds, across all
+   *        connectors, beyond which the pool is considered backlogged
+   * @param maxFeedsInFlightPerConnector the number of outstanding feeds,
+   *        for a single connector, beyond which its {@link DocPusher}
+   *        is considered backlogged
+   */
+  public FeedSenderPool(int threads, int maxFeedsInFlight,
+      int maxFeedsInFlightPerConnector) {
+    if (threads <= 0) {
+      throw new IllegalArgumentException("threads must be positive.");
+    }
+    if (maxFeedsInFlight <= 0 || maxFeedsInFlightPerConnector <= 0) {
+      throw new IllegalArgumentException(
+          "The maximum number of feeds in flight must be positive.");
+    }
+    this.threads = threads;
+    this.maxFeedsInFlight = maxFeedsInFlight;
+    this.maxFeedsInFlightPerConnector = maxFeedsInFlightPerConnector;
+  }
+
+  /**
+   * Returns the number of outstanding feeds a single connector may have
+   * before its {@link DocPusher} is considered backlogged.
+   */
+  public int getMaxFeedsInFlightPerConnector() {
+    return maxFeedsInFlightPerConnector;
+  }
+
+  /**
+   * Returns the number of feeds, across all connectors, that have been
+   * submitted but not yet completed.
+   */
+  public int getFeedsInFlight() {
+    return feedsInFlight.get();
+  }
+
+  /**
+   * Returns {@code true} if the number of outstanding feeds across all
+   * connectors exceeds the configured maximum.
+   */
+  public boolean isBacklogged() {
+    return feedsInFlight.get() > maxFeedsInFlight;
+  }
+
+  /**
+   * Submits a feed sending task for execution.  The task is not started
+   * until the tasks previously submitted for the same data source are
+   * done.  When the task completes, whether normally, exceptionally, or
+   * by cancellation, its {@code Future} is added to the supplied
+   * {@code completionQueue}.
+   *
+   * @param dataSource the data source of the feed
+   * @param task a {@link Callable} that sends a feed
+   * @param completionQueue a {@link Queue} to which the {@code Future}
+   *        of the task is added once it is done
+   * @return the {@link Future} for the submitted task
+   * @throws RejectedExecutionException if the pool has been stopped
+   */
+  public Future<String> submit(final String dataSource, Callable<String> task,
+      final Queue<Future<String>> completionQueue) {
+    final FutureTask<String> future = new FutureTask<String>(task) {
+        @Override
+        protected void done() {
+          feedsInFlight.decrementAndGet();
+          completionQueue.add(this);
+        }
+      };
+    ThreadPoolExecutor executor;
+    synchronized (this) {
+      executor = getExecutor();
+      Queue<FutureTask<String>> waiting = waitingFeeds.get(dataSource);
+      if (waiting != null) {
+        // Wait for the earlier feeds for this data source.
+        waiting.add(future);
+        feedsInFlight.incrementAndGet();
+        return future;
+      }
+      waitingFeeds.put(dataSource, new LinkedList<FutureTask<String>>());
+      feedsInFlight.incrementAndGet();
+    }
+    try {
+      executor.execute(new Runnable() {
+          public void run() {
+            // Send this feed, then any that arrived for the same data
+            // source while it was being sent.
+            for (FutureTask<String> task = future; task != null;
+                 task = nextFeed(dataSource)) {
+              task.run();
+            }
+          }
+        });
+    } catch (RejectedExecutionException e) {
+      synchronized (this) {
+        waitingFeeds.remove(dataSource);
+      }
+      feedsInFlight.decrementAndGet();
+      throw e;
+    }
+    return future;
+  }
+
+  /**
+   * Returns the next feed waiting to be sent for the given data source,
+   * or {@code null} if there are none, in which case the data source is
+   * idle and the next feed submitted for it is executed directly.
+   */
+  private synchronized FutureTask<String> nextFeed(String dataSource) {
+    Queue<FutureTask<String>> waiting = waitingFeeds.get(dataSource);
+    FutureTask<String> next = waiting.poll();
+    if (next == null) {
+      waitingFeeds.remove(dataSource);
+    }
+    return next;
+  }
+
+  /**
+   * Returns the executor, constructing it if necessary.
+   *
+   * @throws RejectedExecutionException if the pool has been stopped
+   */
+  private synchronized ThreadPoolExecutor getExecutor() {
+    if (isShutdown) {
+      throw new RejectedExecutionException("FeedSenderPool has been stopped.");
+    }
+    if (executor == null) {
+      executor = new ThreadPoolExecutor(threads, threads,
+          KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new FeedSenderThreadFactory());
+      executor.allowCoreThreadTimeOut(true);
+      LOGGER.config("Started feed sender pool with " + threads + " threads.");
+    }
+    return executor;
+  }
+
+  @Override
+  public void start() {
+    // The executor is started lazily.
+  }
+
+  /**
+   * Stops the pool.  Subsequent submissions are rejected.
+   *
+   * @param force if {@code true}, feeds that are currently being sent
+   *        are interrupted and queued feeds are abandoned; otherwise,
+   *        outstanding feeds are allowed to complete.
+   */
+  @Override
+  public synchronized void stop(boolean force) {
+    isShutdown = true;
+    if (executor != null) {
+      if (force) {
+        executor.shutdownNow();
+      } else {
+        executor.shutdown();
+      }
+    }
+  }
+
+  @Override
+  public synchronized boolean isRunning() {
+    return !isShutdown;
+  }
+
+  @Override
+  public String getName() {
+    return getClass().getSimpleName();
+  }
+
+  @Override
+  public String toString() {
+    return "FeedSenderPool: threads = " + threads + ", maxFeedsInFlight = "
+        + maxFeedsInFlight + ", maxFeedsInFlightPerConnector = "
+        + maxFeedsInFlightPerConnector;
+  }
+
+  /**
+   * A {@link ThreadFactory} that names the feed sender threads to provide
+   * diagnostic context in stack traces.
+   */
+  private static class FeedSenderThreadFactory implements ThreadFactory {
+    private final ThreadFactory delegate = Executors.defaultThreadFactory();
+
+    public Thread newThread(Runnable r) {
+      Thread t = delegate.newThread(r);
+      t.setName("FeedSender-" + t.getName());
+      return t;
+    }
+  }
+}
@@ -14,8 +14,12 @@
 
 package com.google.enterprise.connector.pusher;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
+import com.google.enterprise.connector.manager.ContextService;
+import com.google.enterprise.connector.metrics.Metric;
+import com.google.enterprise.connector.metrics.MetricsRegistry;
 import com.google.enterprise.connector.servlet.ServletUtil;
 import com.google.enterprise.connector.util.Clock;
 import com.google.enterprise.connector.util.SslUtil;
@@ -30,6 +34,8 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.GeneralSecurityException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,8 +43,11 @@ import javax.net.ssl.HttpsURLConnection;
 
 /**
  * Opens a connection to a url and sends data to it.
+ * <p>
+ * As a {@link ContextService}, stopping the connection stops the
+ * background thread that checks the GSA feed backlog.
  */
-public class GsaFeedConnection implements FeedConnection {
+public class GsaFeedConnection implements FeedConnection, ContextService {
   private static final Logger LOGGER =
       Logger.getLogger(GsaFeedConnection.class.getName());
 
@@ -71,45 +80,111 @@ public class GsaFeedConnection implements FeedConnection {
 
   private static final String CRLF = "\r\n";
 
-  // Content encodings supported by GSA.
-  private String contentEncodings = null;
+  // How long to wait before asking for the Feed DTD again after failing
+  // to get it (in milliseconds).
+  private static final long DTD_RETRY_INTERVAL = 60 * 1000L;
+
+  // The wait between failed backlog checks doubles up to this many times,
+  // to at most 16 times the backlog check interval.
+  private static final int MAX_BACKLOG_BACKOFF_SHIFT = 4;
+
+  // The backlog monitor stops after this many checks in a row without a
+  // call to isBacklogged, and is started again by the next call.
+  private static final int MAX_IDLE_BACKLOG_CHECKS = 2;
+
+  /**
+   * Starts a new daemon thread for each background task: the backlog
+   * monitor, and each capabilities probe.
+   */
+  private static final Executor THREAD_EXECUTOR = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        Thread thread = new Thread(command, "GsaFeedConnection");
+        thread.setDaemon(true);
+        thread.start();
+      }
+    };
+
+  // Content encodings supported by GSA, if explicitly configured.
+  private volatile String contentEncodings = null;
+
+  // Capabilities assumed until the GSA's own are known: base64 encoded
+  // content only, and no inherited ACLs.
+  private static final FeedCapabilities DEFAULT_CAPABILITIES =
+      new FeedCapabilities(null, "base64binary", false, 0L);
+
+  // Capabilities of the GSA, as read from its Feed DTD.
+  private volatile FeedCapabilities capabilities = null;
+
+  // Held while the capabilities are being read from the GSA.
+  private final Object probeLock = new Object();
+
+  // True while a background capabilities probe is pending.
+  private final AtomicBoolean isProbing = new AtomicBoolean(false);
+
+  // Runs the background tasks.
+  private Executor executor = THREAD_EXECUTOR;
 
   // True if we recently got a feed error of some sort.
-  private boolean gotFeedError = false;
+  private volatile boolean gotFeedError = false;
 
   // XmlFeed URL
   private URL feedUrl = null;
 
   // XmlFeed DTD URL
-  private URL dtdUrl = null;
-
-  // XmlFeed DTD
-  private String feedDtd = null;
+  private volatile URL dtdUrl = null;
 
   // BacklogCount URL
-  private URL backlogUrl = null;
+  private volatile URL backlogUrl = null;
 
   // BacklogCount Ceiling. Throttle back feed if backlog exceeds the ceiling.
-  private int backlogCeiling = 4000;
+  private volatile int backlogCeiling = 4000;
 
   // BacklogCount Floor. Stop throttling feed if backlog drops below floor.
-  private int backlogFloor = 1000;
+  private volatile int backlogFloor = 1000;
 
   // True if the feed is throttled back due to excessive backlog.
-  private boolean isBacklogged = false;
+  private volatile boolean isBacklogged = false;
 
-  // Clock used for backlog checks.
+  // Clock used for capabilities probes and backlog checks.
   private Clock clock = new SystemClock();
 
-  // Time of last backlog check.
-  private long lastBacklogCheck;
-
   // How often to check for backlog (in milliseconds).
-  private long backlogCheckInterval = 2 * 60 * 1000L;
+  private volatile long backlogCheckInterval = 2 * 60 * 1000L;
+
+  // Number of backlog checks that have failed in a row.
+  private int backlogCheckFailures = 0;
+
+  // True while the backlog monitor is running.
+  private final AtomicBoolean isMonitorStarted = new AtomicBoolean(false);
+
+  // The thread running the backlog monitor, or null.
+  private volatile Thread monitorThread = null;
+
+  // True if isBacklogged has been called since the last backlog check.
+  private volatile boolean isBacklogQueried = false;
+
+  // True once this service has been stopped.
+  private volatile boolean isShutdown = false;
+
+  // Guards the backlog monitor's wait for its next check.
+  private final Object monitorLock = new Object();
+
+  // Time of the next backlog check, or 0 if not known.
+  private volatile long nextBacklogCheck = 0L;
+
+  // True if the backlog should be checked right away, without waiting.
+  private boolean isBacklogCheckRequested = false;
 
   /** Whether HTTPS connections validate the server certificate. */
   private boolean validateCertificate = true;
 
+  /** Milliseconds to wait to connect to the GSA, or zero for no limit. */
+  private int connectTimeout = 60 * 1000;
+
+  /** Milliseconds to wait for data from the GSA, or zero for no limit. */
+  private int readTimeout = 5 * 60 * 1000;
+
   public GsaFeedConnection(String protocol, String host, int port,
       int securePort) throws MalformedURLException {
     if (Strings.isNullOrEmpty(protocol)) {
@@ -138,10 +213,25 @@ public class GsaFeedConnection implements FeedConnection {
     feedUrl = new URL(protocol, host, port, "/xmlfeed");
     gotFeedError = false;
     dtdUrl = new URL(protocol, host, port, "/getdtd");
-    feedDtd = null;
     contentEncodings = null;
     backlogUrl = new URL(protocol, host, port, "/getbacklogcount");
-    lastBacklogCheck = 0L;
+
+    // Forget the backlog of the old GSA, and check the new one now.
+    isBacklogged = false;
+    nextBacklogCheck = 0L;
+    if (isMonitorStarted.get()) {
+      synchronized (monitorLock) {
+        isBacklogCheckRequested = true;
+        monitorLock.notifyAll();
+      }
+    }
+
+    // If the old GSA has been asked for its capabilities, ask the new
+    // one now, rather than when the next feed is built.
+    if (capabilities != null) {
+      capabilities = null;
+      probeCapabilitiesInBackground();
+    }
   }
 
   /** For the unit tests to verify the correct URLs. */
@@ -153,6 +243,12 @@ public class GsaFeedConnection implements FeedConnection {
     this.clock = clock;
   }
 
+  /** For the unit tests to control the background tasks. */
+  @VisibleForTesting
+  void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
   /**
    * Set the backlog check parameters. The Feed connection can check to see
    * if the GSA is falling behind processing feeds by calling the GSA's
@@ -166,6 +262,7 @@ public class GsaFeedConnection implements FeedConnection {
    * @param ceiling backlog count ceiling value, above which the GSA is
    *        considered backlogged.
    * @param interval number of seconds to wait between backlog count checks.
+   *        After failed checks, the wait doubles with each further failure.
    */
   public void setBacklogCheck(int floor, int ceiling, int interval) {
     backlogFloor = floor;
@@ -189,6 +286,45 @@ public class GsaFeedConnection implements FeedConnection {
     return validateCertificate;
   }
 
+  /**
+   * Sets the connect timeout for requests to the GSA.
+   *
+   * @param connectTimeout the connect timeout in milliseconds, or zero
+   *        for no limit
+   * @see java.net.URLConnection#setConnectTimeout
+   */
+  public void setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  /**
+   * Sets the read timeout for requests to the GSA.
+   *
+   * @param readTimeout the read timeout in milliseconds, or zero for
+   *        no limit
+   * @see java.net.URLConnection#setReadTimeout
+   */
+  public void setReadTimeout(int readTimeout) {
+    this.readTimeout = readTimeout;
+  }
+
+  /**
+   * Opens a connection to the GSA. The connection is not disconnected
+   * after a successful request, so that its socket, and its SSL
+   * session, may be kept alive and reused by later requests.
+   */
+  @VisibleForTesting
+  HttpURLConnection openConnection(URL url)
+      throws IOException, GeneralSecurityException {
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    if (conn instanceof HttpsURLConnection && !validateCertificate) {
+      SslUtil.setTrustingHttpsOptions((HttpsURLConnection) conn);
+    }
+    conn.setConnectTimeout(connectTimeout);
+    conn.setReadTimeout(readTimeout);
+    return conn;
+  }
+
   private static final void controlHeader(StringBuilder builder,
         String name, String mimetype) {
     builder.append("--").append(BOUNDARY).append(CRLF);
@@ -201,21 +337,59 @@ public class GsaFeedConnection implements FeedConnection {
   @Override
   public String sendData(FeedData feedData)
       throws FeedException {
+    String dataSource = feedData.getDataSource();
+    MetricsRegistry metrics = MetricsRegistry.getInstance();
+    long start = System.nanoTime();
+    String response = null;
     try {
-      String response = sendFeedData((XmlFeed)feedData);
+      response = sendFeedData((SerializedFeed) feedData);
       gotFeedError = !response.equalsIgnoreCase(SUCCESS_RESPONSE);
       return response;
     } catch (FeedException fe) {
       gotFeedError = true;
       throw fe;
+    } finally {
+      metrics.getHistogram(Metric.FEED_POST_LATENCY, dataSource)
+          .record((System.nanoTime() - start) / 1000000L);
+      metrics.getCounter(Metric.FEED_RESPONSES, dataSource,
+          getResponseLabel(response)).increment();
     }
   }
 
-  private String sendFeedData(XmlFeed feed)
+  /**
+   * Returns the label of a feed response for the feed response metrics.
+   * The labels are limited to a fixed set, since an unexpected response
+   * may be an arbitrary error page, for example from a proxy.
+   *
+   * @param response the response from the GSA, or {@code null} if the
+   *        feed could not be sent
+   */
+  @VisibleForTesting
+  static String getResponseLabel(String response) {
+    if (response == null) {
+      return "Exception";
+    } else if (response.equalsIgnoreCase(SUCCESS_RESPONSE)) {
+      return SUCCESS_RESPONSE;
+    } else if (response.equals(UNAUTHORIZED_RESPONSE)) {
+      return "Unauthorized";
+    } else if (response.equals(DISKFULL_RESPONSE)) {
+      return "Disk Full";
+    } else if (response.equals(INTERNAL_ERROR_RESPONSE)) {
+      return INTERNAL_ERROR_RESPONSE;
+    } else {
+      return "Other";
+    }
+  }
+
+  private String sendFeedData(SerializedFeed feed)
       throws FeedException {
     String feedType = feed.getFeedType().toLegacyString();
     String dataSource = feed.getDataSource();
     OutputStream outputStream;
+    URL url;
+    synchronized (this) {
+      url = feedUrl;
+    }
     HttpURLConnection uc;
     StringBuilder buf = new StringBuilder();
     byte[] prefix;
@@ -234,13 +408,8 @@ public class GsaFeedConnection implements FeedConnection {
       buf.append(CRLF).append("--").append(BOUNDARY).append("--").append(CRLF);
       suffix = buf.toString().getBytes(Charsets.UTF_8);
 
-      LOGGER.finest("Opening feed connection to " + feedUrl);
-      synchronized (this) {
-        uc = (HttpURLConnection) feedUrl.openConnection();
-      }
-      if (uc instanceof HttpsURLConnection && !validateCertificate) {
-        SslUtil.setTrustingHttpsOptions((HttpsURLConnection) uc);
-      }
+      LOGGER.finest("Opening feed connection to " + url);
+      uc = openConnection(url);
       uc.setDoInput(true);
       uc.setDoOutput(true);
       uc.setFixedLengthStreamingMode(prefix.length + feed.size()
@@ -249,12 +418,13 @@ public class GsaFeedConnection implements FeedConnection {
           + BOUNDARY);
       outputStream = uc.getOutputStream();
     } catch (IOException ioe) {
-      throw new FeedException(feedUrl.toString(), ioe);
+      throw new FeedException(url.toString(), ioe);
     } catch (GeneralSecurityException e) {
-      throw new FeedException(feedUrl.toString(), e);
+      throw new FeedException(url.toString(), e);
     }
 
     boolean isThrowing = false;
+    boolean isComplete = false;
     buf.setLength(0);
     try {
       LOGGER.finest("Writing feed data to feed connection.");
@@ -298,6 +468,7 @@ public class GsaFeedConnection implements FeedConnection {
         while ((line = br.readLine()) != null) {
           buf.append(line);
         }
+        isComplete = !isThrowing;
       } catch (IOException ioe) {
         if (!isThrowing) {
           throw new FeedException(ioe);
@@ -311,7 +482,8 @@ public class GsaFeedConnection implements FeedConnection {
           LOGGER.log(Level.SEVERE,
                      "IOException while closing after post: continuing", e);
         }
-        if (uc != null) {
+        // Keep the connection alive only if the whole response was read.
+        if (!isComplete) {
           uc.disconnect();
         }
         if (LOGGER.isLoggable(Level.FINEST)) {
@@ -323,80 +495,284 @@ public class GsaFeedConnection implements FeedConnection {
     return buf.toString();
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * This method never waits for the GSA.  Until the GSA's capabilities
+   * have been read, only base64 encoded content is supported.
+   */
   @Override
-  public synchronized String getContentEncodings() {
-    if (contentEncodings == null) {
-      String dtd = getFeedDtd();
-      if (dtd == null) {
-        // Failed to get a DTD. Assume the GSA only supports base64 encoded.
-        contentEncodings = "base64binary";
-      } else {
-        // TODO: Extract the supported content encodings from the DTD.
-        // As of GSA 6.2, returning a DTD at all also means compression
-        // is supported.
-        contentEncodings = "base64binary,base64compressed";
-      }
-      if (LOGGER.isLoggable(Level.FINE)) {
-        LOGGER.fine("GSA supports Content Encodings: " + contentEncodings);
+  public String getContentEncodings() {
+    String encodings = contentEncodings;
+    return (encodings == null) ? getCapabilities().contentEncodings : encodings;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * This method never waits for the GSA.  Until the GSA's capabilities
+   * have been read, inherited ACLs are not supported.
+   */
+  @Override
+  public boolean supportsInheritedAcls() {
+    return getCapabilities().supportsInheritedAcls;
+  }
+
+  /**
+   * Returns the current capabilities of the GSA, without waiting for it.
+   * The GSA is asked for its capabilities in the background when none are
+   * known for the current feed host, and {@link #DEFAULT_CAPABILITIES}
+   * are returned until it answers.  If the last attempt failed, the last
+   * capabilities are returned, and the GSA is asked again.
+   */
+  private FeedCapabilities getCapabilities() {
+    FeedCapabilities caps = capabilities;
+    if (!isCurrent(caps)) {
+      probeCapabilitiesInBackground();
+      // The probe may have already finished.
+      caps = capabilities;
+      if (!isCurrent(caps)) {
+        caps = DEFAULT_CAPABILITIES;
       }
+    } else if (isExpired(caps)) {
+      probeCapabilitiesInBackground();
     }
-    return contentEncodings;
+    return caps;
+  }
+
+  /** Returns true if the capabilities were read from the current GSA. */
+  private boolean isCurrent(FeedCapabilities caps) {
+    // The URL is replaced whenever the feed host changes.
+    return caps != null && caps.dtdUrl == dtdUrl;
+  }
+
+  private boolean isExpired(FeedCapabilities caps) {
+    return clock.getTimeMillis() >= caps.expiration;
   }
 
+  /** Asks the GSA for its capabilities, unless another probe is pending. */
+  private void probeCapabilitiesInBackground() {
+    if (isProbing.compareAndSet(false, true)) {
+      executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              synchronized (probeLock) {
+                FeedCapabilities caps = capabilities;
+                if (!isCurrent(caps) || isExpired(caps)) {
+                  probeCapabilities();
+                }
+              }
+            } finally {
+              isProbing.set(false);
+            }
+          }
+        });
+    }
+  }
+
+  /**
+   * Reads the capabilities from the GSA's Feed DTD, and publishes them.
+   * Must be called while holding the {@code probeLock}.
+   */
+  private void probeCapabilities() {
+    URL url = dtdUrl;
+    String dtd = getFeedDtd(url);
+    FeedCapabilities caps;
+    if (dtd == null) {
+      // Failed to get a DTD. Assume the GSA only supports base64 encoded.
+      caps = new FeedCapabilities(url, "base64binary", false,
+          clock.getTimeMillis() + DTD_RETRY_INTERVAL);
+    } else {
+      // TODO: Extract the supported content encodings from the DTD.
+      // As of GSA 6.2, returning a DTD at all also means compression
+      // is supported.
+      caps = new FeedCapabilities(url, "base64binary,base64compressed",
+          dtd.contains("<!ELEMENT acl "), Long.MAX_VALUE);
+    }
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("GSA supports Content Encodings: " + caps.contentEncodings);
+    }
+    capabilities = caps;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The backlog is checked periodically by a background thread, which is
+   * started by the first call to this method, so this method never
+   * waits for the GSA.  The thread stops when this method is no longer
+   * called, for example while no connectors are traversing, and when
+   * this service is stopped.
+   */
   @Override
-  public synchronized boolean supportsInheritedAcls() {
-    String dtd = getFeedDtd();
-    return (dtd == null) ? false : dtd.contains("<!ELEMENT acl ");
+  public boolean isBacklogged() {
+    if (!isBacklogQueried) {
+      isBacklogQueried = true;
+    }
+    if (!isMonitorStarted.get() && !isShutdown
+        && isMonitorStarted.compareAndSet(false, true)) {
+      executor.execute(new BacklogMonitor());
+    }
+    return isBacklogged || gotFeedError;
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The GSA is asked for its capabilities in the background.  The backlog
+   * monitor is started lazily, by {@link #isBacklogged}.
+   */
   @Override
-  public synchronized boolean isBacklogged() {
-    if (lastBacklogCheck != Long.MAX_VALUE) {
-      long now = clock.getTimeMillis();
-      if ((now - lastBacklogCheck) > backlogCheckInterval) {
-        lastBacklogCheck = now;
+  public void start() {
+    isShutdown = false;
+    probeCapabilitiesInBackground();
+  }
+
+  /**
+   * Stops the backlog monitor, once any backlog check in progress is
+   * done.
+   *
+   * @param force ignored
+   */
+  @Override
+  public void stop(boolean force) {
+    isShutdown = true;
+    Thread thread = monitorThread;
+    if (thread != null) {
+      thread.interrupt();
+    }
+  }
+
+  @Override
+  public boolean isRunning() {
+    return !isShutdown;
+  }
+
+  @Override
+  public String getName() {
+    return getClass().getSimpleName();
+  }
+
+  @Override
+  public long getBacklogCheckDelay() {
+    long next = nextBacklogCheck;
+    return (next == 0L) ? 0L : Math.max(next - clock.getTimeMillis(), 0L);
+  }
+
+  /**
+   * Checks the GSA feed backlog until this service is stopped, or
+   * {@link #isBacklogged} is no longer being called.
+   */
+  private class BacklogMonitor implements Runnable {
+    @Override
+    public void run() {
+      LOGGER.fine("Starting the feed backlog monitor.");
+      monitorThread = Thread.currentThread();
+      try {
+        monitor();
+      } finally {
+        monitorThread = null;
+        nextBacklogCheck = 0L;
+        isMonitorStarted.set(false);
+      }
+      // Restart if isBacklogged was called while the monitor was stopping.
+      if (isBacklogQueried && !isShutdown) {
+        isBacklogged();
+      }
+    }
+
+    private void monitor() {
+      int idleChecks = 0;
+      while (!isShutdown) {
+        if (isBacklogQueried) {
+          isBacklogQueried = false;
+          idleChecks = 0;
+        } else if (++idleChecks > MAX_IDLE_BACKLOG_CHECKS) {
+          LOGGER.fine("Stopping the idle feed backlog monitor.");
+          return;
+        }
+        long delay;
         try {
-          int backlogCount = getBacklogCount();
-          if (backlogCount >= 0) {
-            if (gotFeedError) {
-              gotFeedError = false;
-              LOGGER.info("Feed connection seems to be accepting new feeds.");
+          delay = checkBacklog();
+        } catch (RuntimeException e) {
+          LOGGER.log(Level.WARNING, "Feed backlog check failed.", e);
+          delay = Math.max(backlogCheckInterval, 1000L);
+        }
+        nextBacklogCheck = (delay == 0L) ? 0L : clock.getTimeMillis() + delay;
+        try {
+          synchronized (monitorLock) {
+            // A delay of zero waits until the feed host is changed.
+            if (!isBacklogCheckRequested) {
+              monitorLock.wait(delay);
             }
-            if (isBacklogged) {
-              // If we were backlogged, but have dropped below the
-              // floor value, then we are no longer backlogged.
-              if (backlogCount < backlogFloor) {
-                isBacklogged = false;
-                LOGGER.info("Resuming traversal after feed backlog clears.");
-              }
-            } else if (backlogCount > backlogCeiling) {
-              // If the backlogcount exceeds the ceiling value,
-              // then we are definitely backlogged.
-              isBacklogged = true;
-              LOGGER.info("Pausing traversal due to excessive feed backlog.");
+            if (isBacklogCheckRequested) {
+              isBacklogCheckRequested = false;
+              backlogCheckFailures = 0;
             }
           }
-        } catch (FeedException e) {
-          if (gotFeedError) {
-            LOGGER.finest(
-                "Feed connection still does not seem to be accepting feeds. "
-                + e.getMessage());
-          } else {
-            LOGGER.log(Level.WARNING,
-                "Feed connection does not seem to be accepting feeds.", e);
-            gotFeedError = true;
+        } catch (InterruptedException e) {
+          LOGGER.fine("Stopping the feed backlog monitor.");
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks the GSA feed backlog once, and publishes the result to
+   * {@link #isBacklogged}.
+   *
+   * @return the number of milliseconds to wait before the next check,
+   *         or 0 if the GSA does not support backlog checks
+   */
+  @VisibleForTesting
+  long checkBacklog() {
+    long interval = Math.max(backlogCheckInterval, 1000L);
+    try {
+      int backlogCount = getBacklogCount(backlogUrl);
+      backlogCheckFailures = 0;
+      if (backlogCount >= 0) {
+        if (gotFeedError) {
+          gotFeedError = false;
+          LOGGER.info("Feed connection seems to be accepting new feeds.");
+        }
+        if (isBacklogged) {
+          // If we were backlogged, but have dropped below the
+          // floor value, then we are no longer backlogged.
+          if (backlogCount < backlogFloor) {
+            isBacklogged = false;
+            LOGGER.info("Resuming traversal after feed backlog clears.");
           }
-        } catch (UnsupportedOperationException e) {
-          // This older GSA does not support getbacklogcount.
-          // Assume never backlogged and don't check again.
-          isBacklogged = false;
-          lastBacklogCheck = Long.MAX_VALUE;
-          LOGGER.warning("Unsupported GSA version, unable to check for feed"
-                         + " backlog or errors.");
+        } else if (backlogCount > backlogCeiling) {
+          // If the backlogcount exceeds the ceiling value,
+          // then we are definitely backlogged.
+          isBacklogged = true;
+          LOGGER.info("Pausing traversal due to excessive feed backlog.");
         }
       }
+      return interval;
+    } catch (FeedException e) {
+      if (gotFeedError) {
+        LOGGER.finest(
+            "Feed connection still does not seem to be accepting feeds. "
+            + e.getMessage());
+      } else {
+        LOGGER.log(Level.WARNING,
+            "Feed connection does not seem to be accepting feeds.", e);
+        gotFeedError = true;
+      }
+      // Back off exponentially while the GSA is failing.
+      return interval
+          << Math.min(backlogCheckFailures++, MAX_BACKLOG_BACKOFF_SHIFT);
+    } catch (UnsupportedOperationException e) {
+      // This older GSA does not support getbacklogcount.
+      // Assume never backlogged and don't check again.
+      isBacklogged = false;
+      LOGGER.warning("Unsupported GSA version, unable to check for feed"
+                     + " backlog or errors.");
+      return 0L;
     }
-    return isBacklogged || gotFeedError;
   }
 
   /**
@@ -406,7 +782,8 @@ public class GsaFeedConnection implements FeedConnection {
    *         not support getbacklogcount.
    * @throws FeedException if there was any other error retrieving the count
    */
-  private int getBacklogCount() throws FeedException {
+  @VisibleForTesting
+  int getBacklogCount(URL backlogUrl) throws FeedException {
     String response = doGet(backlogUrl, "backlogcount");
     try {
       return Strings.isNullOrEmpty(response) ? -1 : Integer.parseInt(response);
@@ -419,23 +796,22 @@ public class GsaFeedConnection implements FeedConnection {
   /**
    * @return the GSA's Feed DTD, or null if unavailable.
    */
-  private String getFeedDtd() {
-    if (feedDtd == null) {
-      try {
-        feedDtd = Strings.emptyToNull(doGet(dtdUrl, "Feed DTD"));
-      } catch (FeedException e) {
-        if (gotFeedError) {
-          LOGGER.finest("Failed to read Feed DTD: " + e.getMessage());
-        } else {
-          LOGGER.log(Level.WARNING, "Failed to read Feed DTD. ", e);
-        }
-      } catch (UnsupportedOperationException e) {
-        // This older GSA does not support getdtd, so assume the GSA only
-        // supports base64 encoded.
-        LOGGER.fine("Unsupported GSA version lacks get Feed DTD support.");
+  @VisibleForTesting
+  String getFeedDtd(URL url) {
+    try {
+      return Strings.emptyToNull(doGet(url, "Feed DTD"));
+    } catch (FeedException e) {
+      if (gotFeedError) {
+        LOGGER.finest("Failed to read Feed DTD: " + e.getMessage());
+      } else {
+        LOGGER.log(Level.WARNING, "Failed to read Feed DTD. ", e);
       }
+    } catch (UnsupportedOperationException e) {
+      // This older GSA does not support getdtd, so assume the GSA only
+      // supports base64 encoded.
+      LOGGER.fine("Unsupported GSA version lacks get Feed DTD support.");
     }
-    return feedDtd;
+    return null;
   }
 
   /**
@@ -457,14 +833,12 @@ public class GsaFeedConnection implements FeedConnection {
     BufferedReader br = null;
     String str = null;
     StringBuilder buf = new StringBuilder();
+    boolean isComplete = false;
     try {
       if (LOGGER.isLoggable(Level.FINEST)) {
         LOGGER.finest("Opening " + name + " connection to " + url);
       }
-      conn = (HttpURLConnection)url.openConnection();
-      if (conn instanceof HttpsURLConnection && !validateCertificate) {
-        SslUtil.setTrustingHttpsOptions((HttpsURLConnection) conn);
-      }
+      conn = openConnection(url);
       conn.connect();
       int responseCode = conn.getResponseCode();
       if (responseCode == HttpURLConnection.HTTP_OK) {
@@ -474,6 +848,7 @@ public class GsaFeedConnection implements FeedConnection {
           buf.append(str);
         }
         str = buf.toString().trim();
+        isComplete = true;
         if (LOGGER.isLoggable(Level.FINEST)) {
           LOGGER.finest("Received " + name + ": " + str);
         }
@@ -498,10 +873,35 @@ public class GsaFeedConnection implements FeedConnection {
         LOGGER.warning("Error after reading response for " + name + ": "
                        + e.getMessage());
       } finally {
-        if (conn != null) {
+        // Keep the connection alive only if the whole response was read.
+        if (conn != null && !isComplete) {
           conn.disconnect();
         }
       }
     }
   }
+
+  /**
+   * The capabilities of a GSA, as read from its Feed DTD. Instances
+   * are immutable, and are replaced as a whole, so they may be read
+   * without locking.
+   */
+  private static class FeedCapabilities {
+    /** The URL of the Feed DTD the capabilities were read from. */
+    final URL dtdUrl;
+
+    final String contentEncodings;
+    final boolean supportsInheritedAcls;
+
+    /** The time to ask the GSA again, or {@code Long.MAX_VALUE}. */
+    final long expiration;
+
+    FeedCapabilities(URL dtdUrl, String contentEncodings,
+        boolean supportsInheritedAcls, long expiration) {
+      this.dtdUrl = dtdUrl;
+      this.contentEncodings = contentEncodings;
+      this.supportsInheritedAcls = supportsInheritedAcls;
+      this.expiration = expiration;
+    }
+  }
 }
@@ -14,7 +14,6 @@
 
 package com.google.enterprise.connector.pusher;
 
-import java.io.ByteArrayOutputStream;
 import java.util.logging.Logger;
 
 /**
@@ -36,7 +35,7 @@ public class NullFeedConnection implements FeedConnection {
 
   @Override
   public String sendData(FeedData feedData) {
-    ByteArrayOutputStream data = (XmlFeed) feedData;
+    SerializedFeed data = (SerializedFeed) feedData;
     LOGGER.fine("Null FeedConnection discarded " + data.size() + " bytes.");
     return GsaFeedConnection.SUCCESS_RESPONSE;
   }
@@ -46,6 +45,11 @@ public class NullFeedConnection implements FeedConnection {
     return false;
   }
 
+  @Override
+  public long getBacklogCheckDelay() {
+    return 0L;
+  }
+
   @Override
   public String getContentEncodings() {
     return "base64binary, base64compressed";
@@ -0,0 +1,137 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.Property;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.spi.Value;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A view of a {@link Document} while its feed record is written.  Many
+ * properties are read more than once for a record, for example
+ * {@code google:mimetype} is read for the record attributes, for the
+ * metadata, and for the alternate content.  Each lookup would otherwise
+ * pass through every filter in the document filter chain.  Here, the
+ * property names and each property are looked up in the source document
+ * only once, and each value is read from the source property only once,
+ * when it is first needed.  Every {@link Property} returned by
+ * {@link #findProperty} starts again at the first value.
+ * <p>
+ * The document content is not remembered, and is looked up in the source
+ * document each time.
+ * <p>
+ * A {@code RecordDocument} may be reused for other records.  This class
+ * is not thread-safe.
+ */
+class RecordDocument implements Document {
+  private Document source;
+  private Set<String> propertyNames;
+
+  /** The properties looked up so far, including nulls for missing ones. */
+  private final Map<String, PropertyValues> properties =
+      new HashMap<String, PropertyValues>();
+
+  /**
+   * Sets the source document, and forgets the properties of the
+   * previous source document.
+   *
+   * @param source a {@link Document}, or {@code null} to release the
+   *        previous source document
+   */
+  public void setSource(Document source) {
+    this.source = source;
+    this.propertyNames = null;
+    properties.clear();
+  }
+
+  @Override
+  public Set<String> getPropertyNames() throws RepositoryException {
+    if (propertyNames == null) {
+      propertyNames = source.getPropertyNames();
+    }
+    return propertyNames;
+  }
+
+  @Override
+  public Property findProperty(String name) throws RepositoryException {
+    if (SpiConstants.PROPNAME_CONTENT.equals(name)) {
+      return source.findProperty(name);
+    }
+    PropertyValues values = properties.get(name);
+    if (values == null) {
+      if (properties.containsKey(name)) {
+        return null;
+      }
+      Property property = source.findProperty(name);
+      values = (property == null) ? null : new PropertyValues(property);
+      properties.put(name, values);
+      if (values == null) {
+        return null;
+      }
+    }
+    return values.newProperty();
+  }
+
+  /** The values of a source property, read as they are needed. */
+  private static class PropertyValues {
+    private Property source;
+    private final List<Value> values = new ArrayList<Value>(2);
+
+    PropertyValues(Property source) {
+      this.source = source;
+    }
+
+    /**
+     * Returns the value at the given index, reading values from the
+     * source property if needed.
+     *
+     * @return the value, or {@code null} if there are no more values
+     */
+    Value get(int index) throws RepositoryException {
+      while (index >= values.size() && source != null) {
+        Value value = source.nextValue();
+        if (value == null) {
+          source = null;
+        } else {
+          values.add(value);
+        }
+      }
+      return (index < values.size()) ? values.get(index) : null;
+    }
+
+    Property newProperty() {
+      return new Property() {
+        private int index = 0;
+
+        @Override
+        public Value nextValue() throws RepositoryException {
+          Value value = get(index);
+          if (value != null) {
+            index++;
+          }
+          return value;
+        }
+      };
+    }
+  }
+}
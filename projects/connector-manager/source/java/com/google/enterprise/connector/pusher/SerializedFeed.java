@@ -0,0 +1,36 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A complete XML feed that can be sent by a {@link FeedConnection},
+ * either an {@link XmlFeed} built in this process, or a feed read back
+ * from the {@link FeedOutbox}.
+ */
+interface SerializedFeed extends FeedData {
+  /** Returns the size of the feed XML, in bytes. */
+  public int size();
+
+  /**
+   * Writes the feed XML to the given output stream.
+   *
+   * @param out an {@link OutputStream}
+   * @throws IOException if the feed cannot be read or written
+   */
+  public void writeTo(OutputStream out) throws IOException;
+}
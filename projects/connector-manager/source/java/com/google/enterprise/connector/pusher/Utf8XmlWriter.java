@@ -0,0 +1,209 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.common.base.Charsets;
+import com.google.enterprise.connector.spi.XmlUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Builds XML as UTF-8 encoded bytes in a reusable buffer.  Characters are
+ * encoded as they are appended, and the escaping of attribute values is
+ * done by {@link XmlUtils} appending directly to this writer, so no
+ * intermediate {@code String}s are created.  The output is byte for byte
+ * the same as building the XML in a {@code StringBuilder} with
+ * {@code XmlUtils}, and encoding the result with {@code String.getBytes},
+ * including the replacement of unpaired surrogate characters with '?'.
+ * <p>
+ * This class is not thread-safe.
+ */
+class Utf8XmlWriter implements Appendable {
+  /** Initial size of the buffer. */
+  private static final int INITIAL_SIZE = 4096;
+
+  /** Larger buffers are released by {@link #reset}. */
+  private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+  private byte[] buf = new byte[INITIAL_SIZE];
+  private int count = 0;
+
+  /** A high surrogate waiting for the following low surrogate, or 0. */
+  private char highSurrogate = 0;
+
+  /** Returns the number of bytes written. */
+  public int size() {
+    completeCharacter();
+    return count;
+  }
+
+  /** Discards the bytes written, to start a new piece of XML. */
+  public void reset() {
+    count = 0;
+    highSurrogate = 0;
+    if (buf.length > MAX_RETAINED_SIZE) {
+      buf = new byte[INITIAL_SIZE];
+    }
+  }
+
+  /**
+   * Writes the bytes written to this writer to the given output stream,
+   * with a single call to {@code write}.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    completeCharacter();
+    out.write(buf, 0, count);
+  }
+
+  /** Returns a copy of the bytes written. */
+  public byte[] toByteArray() {
+    completeCharacter();
+    byte[] bytes = new byte[count];
+    System.arraycopy(buf, 0, bytes, 0, count);
+    return bytes;
+  }
+
+  /** Decodes the bytes written, for the feed log. */
+  @Override
+  public String toString() {
+    completeCharacter();
+    return new String(buf, 0, count, Charsets.UTF_8);
+  }
+
+  @Override
+  public Utf8XmlWriter append(CharSequence csq) {
+    if (csq == null) {
+      csq = "null";
+    }
+    return append(csq, 0, csq.length());
+  }
+
+  @Override
+  public Utf8XmlWriter append(CharSequence csq, int start, int end) {
+    if (csq == null) {
+      csq = "null";
+    }
+    for (int i = start; i < end; i++) {
+      append(csq.charAt(i));
+    }
+    return this;
+  }
+
+  @Override
+  public Utf8XmlWriter append(char c) {
+    if (c < 0x80 && highSurrogate == 0) {
+      ensureCapacity(1);
+      buf[count++] = (byte) c;
+    } else {
+      appendChar(c);
+    }
+    return this;
+  }
+
+  /**
+   * Writes out an attribute for an element, using
+   * {@link XmlUtils#xmlAppendAttr}.  If the attribute value is
+   * non-{@code null} and non-empty, then the attribute is written out,
+   * preceded by a single space.
+   *
+   * @param attrName the attribute name
+   * @param attrValue the attribute value
+   */
+  public void appendAttr(String attrName, String attrValue) {
+    try {
+      XmlUtils.xmlAppendAttr(attrName, attrValue, this);
+    } catch (IOException e) {
+      // This can't happen with Utf8XmlWriter.
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Writes out an XML encoded attribute value, using
+   * {@link XmlUtils#xmlAppendAttrValue}, which escapes some characters
+   * as character entities, and drops invalid control characters.
+   *
+   * @param attrValue the attribute value
+   */
+  public void appendAttrValue(String attrValue) {
+    try {
+      XmlUtils.xmlAppendAttrValue(attrValue, this);
+    } catch (IOException e) {
+      // This can't happen with Utf8XmlWriter.
+      throw new AssertionError(e);
+    }
+  }
+
+  /** Writes an end tag, using {@link XmlUtils#xmlAppendEndTag}. */
+  public void appendEndTag(String tag) {
+    try {
+      XmlUtils.xmlAppendEndTag(tag, this);
+    } catch (IOException e) {
+      // This can't happen with Utf8XmlWriter.
+      throw new AssertionError(e);
+    }
+  }
+
+  /** Encodes a character that is not ASCII, or follows a high surrogate. */
+  private void appendChar(char c) {
+    if (highSurrogate != 0) {
+      char high = highSurrogate;
+      highSurrogate = 0;
+      if (Character.isLowSurrogate(c)) {
+        int codePoint = Character.toCodePoint(high, c);
+        ensureCapacity(4);
+        buf[count++] = (byte) (0xF0 | (codePoint >> 18));
+        buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+        buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        buf[count++] = (byte) (0x80 | (codePoint & 0x3F));
+        return;
+      }
+      append('?');
+    }
+    if (c < 0x80) {
+      append(c);
+    } else if (c < 0x800) {
+      ensureCapacity(2);
+      buf[count++] = (byte) (0xC0 | (c >> 6));
+      buf[count++] = (byte) (0x80 | (c & 0x3F));
+    } else if (Character.isHighSurrogate(c)) {
+      highSurrogate = c;
+    } else if (Character.isLowSurrogate(c)) {
+      append('?');
+    } else {
+      ensureCapacity(3);
+      buf[count++] = (byte) (0xE0 | (c >> 12));
+      buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+      buf[count++] = (byte) (0x80 | (c & 0x3F));
+    }
+  }
+
+  /** Replaces an unpaired high surrogate at the end with '?'. */
+  private void completeCharacter() {
+    if (highSurrogate != 0) {
+      highSurrogate = 0;
+      append('?');
+    }
+  }
+
+  private void ensureCapacity(int needed) {
+    if (count + needed > buf.length) {
+      byte[] newbuf = new byte[Math.max(2 * buf.length, count + needed)];
+      System.arraycopy(buf, 0, newbuf, 0, count);
+      buf = newbuf;
+    }
+  }
+}
@@ -19,9 +19,12 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.io.CountingInputStream;
 import com.google.enterprise.connector.common.AlternateContentFilterInputStream;
 import com.google.enterprise.connector.common.BigEmptyDocumentFilterInputStream;
 import com.google.enterprise.connector.common.CompressedFilterInputStream;
+import com.google.enterprise.connector.common.ParallelCompressedFilterInputStream;
+import com.google.enterprise.connector.common.SpoolingOutputStream;
 import com.google.enterprise.connector.manager.Context;
 import com.google.enterprise.connector.servlet.ServletUtil;
 import com.google.enterprise.connector.spi.Document;
@@ -46,21 +49,27 @@ import com.google.enterprise.connector.util.UniqueIdGenerator;
 import com.google.enterprise.connector.util.UuidGenerator;
 import com.google.enterprise.connector.util.filter.DocumentFilterFactory;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Class to generate XML Feed for a document from the Document and send it
  * to GSA.
+ * <p>
+ * Only the first {@link FileSizeLimitInfo#maxFeedMemorySize()} bytes of the
+ * feed are held in memory.  The remainder of the feed is spooled to a
+ * temporary file, which is deleted when the feed is {@link #discard()
+ * discarded}.
  */
-public class XmlFeed extends ByteArrayOutputStream implements FeedData {
+public class XmlFeed extends SpoolingOutputStream implements SerializedFeed {
   private static final Logger LOGGER =
       Logger.getLogger(XmlFeed.class.getName());
 
@@ -95,13 +104,17 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   /** Encoding method to use for Document content. */
   private final ContentEncoding contentEncoding;
 
+  /** Decides whether to compress the content of each record. */
+  private final ContentEncodingPolicy encodingPolicy;
+
+  /** Buffer used to look ahead at the content; allocated when needed. */
+  private byte[] lookAheadBuffer;
+
   /** If true, ACLs support inheritance and deny; otherwise legacy ACLs. */
   private final boolean supportsInheritedAcls;
 
   private static UniqueIdGenerator uniqueIdGenerator = new UuidGenerator();
 
-  private static DocumentFilterFactory stripAclDocumentFilter =
-      new StripAclDocumentFilter();
   private static DocumentFilterFactory extractedAclDocumentFilter =
       new ExtractedAclDocumentFilter();
   private static DocumentFilterFactory inheritFromExtractedAclDocumentFilter =
@@ -110,6 +123,15 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   private boolean isClosed;
   private int recordCount;
 
+  /** Builds the XML for each record, reused for every record. */
+  private final Utf8XmlWriter recordWriter = new Utf8XmlWriter();
+
+  /** The document for the current record, reused for every record. */
+  private final RecordDocument recordDocument = new RecordDocument();
+
+  /** Used to sort the property names of each record. */
+  private String[] sortedNames = new String[32];
+
   @SuppressWarnings("deprecation")
   public static final Set<String> propertySkipSet = ImmutableSet.<String>of(
       // TODO: What about displayurl, ispublic, searchurl? Should we
@@ -173,10 +195,22 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
 
   private final String  supportedEncodings;
 
+  /** True if the feed is also written to the teed feed file. */
+  private final boolean isTeedFeed;
+
   public XmlFeed(String dataSource, FeedType feedType, 
       FileSizeLimitInfo fileSizeLimit, Appendable feedLogBuilder,
       FeedConnection feedConnection) throws IOException {
-    super((int) fileSizeLimit.maxFeedSize());
+    this(dataSource, feedType, fileSizeLimit, feedLogBuilder, feedConnection,
+         new ContentEncodingPolicy());
+  }
+
+  public XmlFeed(String dataSource, FeedType feedType,
+      FileSizeLimitInfo fileSizeLimit, Appendable feedLogBuilder,
+      FeedConnection feedConnection, ContentEncodingPolicy encodingPolicy)
+      throws IOException {
+    super((int) Math.min(fileSizeLimit.maxFeedSize(),
+                         fileSizeLimit.maxFeedMemorySize()));
     this.maxFeedSize = (int) fileSizeLimit.maxFeedSize();
     this.dataSource = dataSource;
     this.feedType = feedType;
@@ -186,6 +220,8 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
     this.isClosed = false;
     this.feedId = uniqueIdGenerator.uniqueId();
     this.supportsInheritedAcls = feedConnection.supportsInheritedAcls();
+    this.encodingPolicy = encodingPolicy;
+    this.isTeedFeed = (Context.getInstance().getTeedFeedFile() != null);
 
     // Configure the dynamic ACL transformation filters for the documents.
     this.urlConstructor = new UrlConstructor(dataSource, feedType);
@@ -198,8 +234,9 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
         supportedEncodings.indexOf(ContentEncoding.BASE64COMPRESSED.toString())
         >= 0) ? ContentEncoding.BASE64COMPRESSED : ContentEncoding.BASE64BINARY;
 
-    String prefix = xmlFeedPrefix(dataSource, feedType);
-    write(prefix.getBytes(XML_DEFAULT_CHARSET));
+    recordWriter.reset();
+    xmlFeedPrefix(dataSource, feedType, recordWriter);
+    recordWriter.writeTo(this);
   }
 
   @VisibleForTesting
@@ -256,9 +293,15 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
    */
   public synchronized void addRecord(Document document)
       throws RepositoryException, IOException {
-    // Apply any ACL transformations to the document.
-    // Build an XML feed record for the document.
-    xmlWrapRecord(aclTransformFilter.newDocumentFilter(document));
+    // Apply any ACL transformations to the document, and look up each
+    // property through the transformations and filters only once.
+    recordDocument.setSource(aclTransformFilter.newDocumentFilter(document));
+    try {
+      // Build an XML feed record for the document.
+      xmlWrapRecord(recordDocument);
+    } finally {
+      recordDocument.setSource(null);
+    }
   }
 
   /*
@@ -280,61 +323,16 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   }
 
   /*
-   * ByteArrayOutputStream (and related) Interface.
-   */
-
-  /**
-   * Resets the size of this ByteArrayOutputStream to the
-   * specified {@code size}, effectively discarding any
-   * data that may have been written passed that point.
-   * Like {@code reset()}, this method retains the previously
-   * allocated buffer.
-   * <p>
-   * This method may be used to reduce the size of the data stored,
-   * but not to increase it.  In other words, the specified {@code size}
-   * cannot be greater than the current size.
-   *
-   * @param size new data size.
+   * SpoolingOutputStream Interface.
    */
-  public synchronized void reset(int size) {
-    if (size < 0 || size > count) {
-      throw new IllegalArgumentException(
-          "New size must not be negative or greater than the current size.");
-    }
-    count = size;
-  }
-
-  /**
-   * Reads the complete contents of the supplied InputStream
-   * directly into buffer of this ByteArrayOutputStream.
-   * This avoids the data copy that would occur if using
-   * {@code InputStream.read(byte[], int, int)}, followed by
-   * {@code ByteArrayOutputStream.write(byte[], int, int)}.
-   *
-   * @param in the InputStream from which to read the data.
-   * @throws IOException if an I/O error occurs.
-   */
-  public synchronized void readFrom(InputStream in) throws IOException {
-    int bytes = 0;
-    do {
-      count += bytes;
-      if (count >= buf.length) {
-        // Need to grow buffer.
-        int incr = Math.min(buf.length, 8 * 1024 * 1024);
-        byte[] newbuf = new byte[buf.length + incr];
-        System.arraycopy(buf, 0, newbuf, 0, buf.length);
-        buf = newbuf;
-      }
-      bytes = in.read(buf, count, buf.length - count);
-    } while (bytes != -1);
-  }
 
   @Override
   public synchronized void close() throws IOException {
     if (!isClosed) {
       isClosed = true;
-      String suffix = xmlFeedSuffix();
-      write(suffix.getBytes(XML_DEFAULT_CHARSET));
+      recordWriter.reset();
+      xmlFeedSuffix(recordWriter);
+      recordWriter.writeTo(this);
     }
   }
 
@@ -347,36 +345,34 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
    *
    * @param dataSource The dataSource for the feed.
    * @param feedType The type of feed.
-   * @return XML feed header string.
+   * @param prefix the writer to which to append the XML feed header
    */
-  private static String xmlFeedPrefix(String dataSource, FeedType feedType) {
-    // Build prefix.
-    StringBuffer prefix = new StringBuffer();
+  private static void xmlFeedPrefix(String dataSource, FeedType feedType,
+      Utf8XmlWriter prefix) throws IOException {
     prefix.append(XML_START).append('\n');
-    prefix.append(XmlUtils.xmlWrapStart(XML_GSAFEED)).append('\n');
-    prefix.append(XmlUtils.xmlWrapStart(XML_HEADER)).append('\n');
-    prefix.append(XmlUtils.xmlWrapStart(XML_DATASOURCE));
+    XmlUtils.xmlAppendStartTag(XML_GSAFEED, prefix);
+    prefix.append('\n');
+    XmlUtils.xmlAppendStartTag(XML_HEADER, prefix);
+    prefix.append('\n');
+    XmlUtils.xmlAppendStartTag(XML_DATASOURCE, prefix);
     prefix.append(dataSource);
-    prefix.append(XmlUtils.xmlWrapEnd(XML_DATASOURCE));
-    prefix.append(XmlUtils.xmlWrapStart(XML_FEEDTYPE));
+    prefix.appendEndTag(XML_DATASOURCE);
+    XmlUtils.xmlAppendStartTag(XML_FEEDTYPE, prefix);
     prefix.append(feedType.toLegacyString());
-    prefix.append(XmlUtils.xmlWrapEnd(XML_FEEDTYPE));
-    prefix.append(XmlUtils.xmlWrapEnd(XML_HEADER));
-    prefix.append(XmlUtils.xmlWrapStart(XML_GROUP)).append('\n');
-    return prefix.toString();
+    prefix.appendEndTag(XML_FEEDTYPE);
+    prefix.appendEndTag(XML_HEADER);
+    XmlUtils.xmlAppendStartTag(XML_GROUP, prefix);
+    prefix.append('\n');
   }
 
   /**
    * Construct the XML footer for a feed file.
    *
-   * @return XML feed suffix string.
+   * @param suffix the writer to which to append the XML feed suffix
    */
-  private static String xmlFeedSuffix() {
-    // Build suffix.
-    StringBuffer suffix = new StringBuffer();
-    suffix.append(XmlUtils.xmlWrapEnd(XML_GROUP));
-    suffix.append(XmlUtils.xmlWrapEnd(XML_GSAFEED));
-    return suffix.toString();
+  private static void xmlFeedSuffix(Utf8XmlWriter suffix) {
+    suffix.appendEndTag(XML_GROUP);
+    suffix.appendEndTag(XML_GSAFEED);
   }
 
   /*
@@ -426,16 +422,17 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
     boolean metadataAllowed = (feedType != FeedType.CONTENTURL);
     boolean contentAllowed = (feedType == FeedType.CONTENT);
 
-    StringBuilder prefix = new StringBuilder();
-    prefix.append("<").append(XML_RECORD);
+    Utf8XmlWriter prefix = recordWriter;
+    prefix.reset();
+    prefix.append('<').append(XML_RECORD);
 
     String searchUrl =
         urlConstructor.getRecordUrl(document, DocumentType.RECORD);
-    XmlUtils.xmlAppendAttr(XML_URL, searchUrl, prefix);
+    prefix.appendAttr(XML_URL, searchUrl);
 
     String displayUrl = DocUtils.getOptionalString(document,
         SpiConstants.PROPNAME_DISPLAYURL);
-    XmlUtils.xmlAppendAttr(XML_DISPLAY_URL, displayUrl, prefix);
+    prefix.appendAttr(XML_DISPLAY_URL, displayUrl);
 
     ActionType actionType = null;
     String action = DocUtils.getOptionalString(document,
@@ -444,9 +441,9 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
       // Compare to legal action types.
       actionType = ActionType.findActionType(action);
       if (actionType == ActionType.ADD) {
-        XmlUtils.xmlAppendAttr(XML_ACTION, actionType.toString(), prefix);
+        prefix.appendAttr(XML_ACTION, actionType.toString());
       } else if (actionType == ActionType.DELETE) {
-        XmlUtils.xmlAppendAttr(XML_ACTION, actionType.toString(), prefix);
+        prefix.appendAttr(XML_ACTION, actionType.toString());
         aclRecordAllowed = false;
         metadataAllowed = false;
         contentAllowed = false;
@@ -458,34 +455,34 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
 
     boolean lock = DocUtils.getOptionalBoolean(document, SpiConstants.PROPNAME_LOCK, false);
     if (lock) {
-      XmlUtils.xmlAppendAttr(XML_LOCK, Value.getBooleanValue(true).toString(), prefix);
+      prefix.appendAttr(XML_LOCK, Value.getBooleanValue(true).toString());
     }
 
     boolean crawlImmediately = DocUtils.getOptionalBoolean(
         document, SpiConstants.PROPNAME_CRAWL_IMMEDIATELY, false);
     if (crawlImmediately) {
-      XmlUtils.xmlAppendAttr(XML_CRAWL_IMMEDIATELY,
-          Value.getBooleanValue(true).toString(), prefix);
+      prefix.appendAttr(XML_CRAWL_IMMEDIATELY,
+          Value.getBooleanValue(true).toString());
     }
 
     boolean crawlOnce = DocUtils.getOptionalBoolean(
         document, SpiConstants.PROPNAME_CRAWL_ONCE, false);
     if (crawlOnce) {
-      XmlUtils.xmlAppendAttr(
-          XML_CRAWL_ONCE, Value.getBooleanValue(true).toString(), prefix);
+      prefix.appendAttr(
+          XML_CRAWL_ONCE, Value.getBooleanValue(true).toString());
     }
 
     // Do not validate the values, just send them in the feed.
     String pagerank =
         DocUtils.getOptionalString(document, SpiConstants.PROPNAME_PAGERANK);
-    XmlUtils.xmlAppendAttr(XML_PAGERANK, pagerank, prefix);
+    prefix.appendAttr(XML_PAGERANK, pagerank);
 
     String mimetype =
         DocUtils.getOptionalString(document, SpiConstants.PROPNAME_MIMETYPE);
     if (mimetype == null) {
       mimetype = SpiConstants.DEFAULT_MIMETYPE;
     }
-    XmlUtils.xmlAppendAttr(XML_MIMETYPE, mimetype, prefix);
+    prefix.appendAttr(XML_MIMETYPE, mimetype);
 
     try {
       String lastModified = DocUtils.getCalendarAndThrow(document,
@@ -494,7 +491,7 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
         LOGGER.log(Level.FINEST, "Document does not contain "
             + SpiConstants.PROPNAME_LASTMODIFIED);
       } else {
-        XmlUtils.xmlAppendAttr(XML_LAST_MODIFIED, lastModified, prefix);
+        prefix.appendAttr(XML_LAST_MODIFIED, lastModified);
       }
     } catch (IllegalArgumentException e) {
       LOGGER.log(Level.WARNING, "Swallowing exception while getting "
@@ -512,7 +509,7 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
           if (Strings.isNullOrEmpty(authmethod)){
             authmethod = CONNECTOR_AUTHMETHOD;
           }
-          XmlUtils.xmlAppendAttr(XML_AUTHMETHOD, authmethod, prefix);
+          prefix.appendAttr(XML_AUTHMETHOD, authmethod);
         }
       }
     } catch (IllegalArgumentException e) {
@@ -520,20 +517,21 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
           + " Treat as a public doc", e);
     }
 
-    prefix.append(">\n");
+    prefix.append('>').append('\n');
 
+    boolean stripAcls = false;
     if (aclRecordAllowed && DocUtils.hasAclProperties(document)) {
       xmlWrapAclRecord(prefix, document);
       // Prevent ACLs from showing up in metadata.
-      document = stripAclDocumentFilter.newDocumentFilter(document);
+      stripAcls = true;
     }
     if (metadataAllowed) {
-      xmlWrapMetadata(prefix, document);
+      xmlWrapMetadata(prefix, document, stripAcls);
     }
 
-    StringBuilder suffix = new StringBuilder();
     ContentEncoding documentContentEncoding = null;
     ContentEncoding alternateEncoding = null;
+    InputStream content = null;
     if (contentAllowed) {
       // Determine the content encoding to specify.
       String documentContentEncodingStr = DocUtils.getOptionalString(
@@ -550,25 +548,45 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
           throw new RepositoryDocumentException(message);
         }
       }
-      alternateEncoding = (documentContentEncoding == null) 
-          ? contentEncoding : documentContentEncoding;
+      content =
+          DocUtils.getOptionalStream(document, SpiConstants.PROPNAME_CONTENT);
+      if (documentContentEncoding == null) {
+        // Send already compressed or tiny content as base64binary.
+        if (contentEncoding == ContentEncoding.BASE64COMPRESSED
+            && content != null) {
+          int lookAhead = encodingPolicy.isCompressible(mimetype)
+              ? encodingPolicy.getLookAheadSize() : 0;
+          if (lookAhead > 0) {
+            content = new BufferedInputStream(content, lookAhead);
+          }
+          alternateEncoding =
+              getRecordEncoding(mimetype, content, lookAhead);
+        } else {
+          alternateEncoding = contentEncoding;
+        }
+      } else {
+        alternateEncoding = documentContentEncoding;
+      }
   
       // If including document content, wrap it with <content> tags.
-      prefix.append("<");
-      prefix.append(XML_CONTENT);
-      XmlUtils.xmlAppendAttr(XML_ENCODING,
-          alternateEncoding.toString(), prefix);
-      prefix.append(">\n");
-
-      suffix.append('\n');
-      XmlUtils.xmlAppendEndTag(XML_CONTENT, suffix);
+      prefix.append('<').append(XML_CONTENT);
+      prefix.appendAttr(XML_ENCODING, alternateEncoding.toString());
+      prefix.append('>').append('\n');
     }
 
-    write(prefix.toString().getBytes(XML_DEFAULT_CHARSET));
+    String logPrefix = (feedLogBuilder == null) ? null : prefix.toString();
+    try {
+      prefix.writeTo(this);
+    } catch (IOException e) {
+      if (content != null) {
+        content.close();
+      }
+      throw e;
+    }
 
     if (contentAllowed) {
-      InputStream contentStream = getContentStream(
-          document, documentContentEncoding, alternateEncoding);
+      InputStream contentStream = getContentStream(document, content,
+          documentContentEncoding, alternateEncoding);
       try {
         readFrom(contentStream);
       } finally {
@@ -576,16 +594,22 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
       }
     }
 
-    XmlUtils.xmlAppendEndTag(XML_RECORD, suffix);
-    write(suffix.toString().getBytes(XML_DEFAULT_CHARSET));
+    Utf8XmlWriter suffix = recordWriter;
+    suffix.reset();
+    if (contentAllowed) {
+      suffix.append('\n');
+      suffix.appendEndTag(XML_CONTENT);
+    }
+    suffix.appendEndTag(XML_RECORD);
+    suffix.writeTo(this);
 
     if (feedLogBuilder != null) {
       try {
-        feedLogBuilder.append(prefix);
+        feedLogBuilder.append(logPrefix);
         if (contentAllowed) {
           feedLogBuilder.append("...content...");
         }
-        feedLogBuilder.append(suffix);
+        feedLogBuilder.append(suffix.toString());
       } catch (IOException e) {
         // This won't happen with StringBuffer or StringBuilder.
         LOGGER.log(Level.WARNING, "Exception while constructing feed log:", e);
@@ -596,33 +620,33 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   /*
    * Generate the record tag for the ACL xml data, appending to {@code aclBuff}.
    */
-  private void xmlWrapAclRecord(StringBuilder aclBuff, Document acl)
+  private void xmlWrapAclRecord(Utf8XmlWriter aclBuff, Document acl)
       throws IOException, RepositoryException {
-    aclBuff.append("<").append(XML_ACL);
+    aclBuff.append('<').append(XML_ACL);
     String docType = DocUtils.getOptionalString(acl,
         SpiConstants.PROPNAME_DOCUMENTTYPE);
     if (docType != null
         && DocumentType.findDocumentType(docType) == DocumentType.ACL) {
       // Only specify the URL if this is a stand-alone ACL.
-      XmlUtils.xmlAppendAttr(XML_URL, 
-         urlConstructor.getRecordUrl(acl, DocumentType.ACL), aclBuff);
+      aclBuff.appendAttr(XML_URL,
+         urlConstructor.getRecordUrl(acl, DocumentType.ACL));
     }
 
     String inheritanceType = DocUtils.getOptionalString(acl,
         SpiConstants.PROPNAME_ACLINHERITANCETYPE);
     if (!Strings.isNullOrEmpty(inheritanceType)) {
-      XmlUtils.xmlAppendAttr(XML_TYPE, inheritanceType, aclBuff);
+      aclBuff.appendAttr(XML_TYPE, inheritanceType);
     }
 
     String inheritFrom = urlConstructor.getInheritFromUrl(acl);
     if (!Strings.isNullOrEmpty(inheritFrom)) {
-      XmlUtils.xmlAppendAttr(XML_INHERIT_FROM, inheritFrom, aclBuff);
+      aclBuff.appendAttr(XML_INHERIT_FROM, inheritFrom);
     }
-    aclBuff.append(">\n");
+    aclBuff.append('>').append('\n');
 
     // add principal info
     getPrincipalXml(acl, aclBuff);
-    XmlUtils.xmlAppendEndTag(XML_ACL, aclBuff);
+    aclBuff.appendEndTag(XML_ACL);
   }
 
   /*
@@ -630,14 +654,15 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
    */
   private void xmlWrapAclRecord(Document acl) throws IOException,
       RepositoryException {
-    StringBuilder aclBuff = new StringBuilder();
+    Utf8XmlWriter aclBuff = recordWriter;
+    aclBuff.reset();
     xmlWrapAclRecord(aclBuff, acl);
 
-    write(aclBuff.toString().getBytes(XML_DEFAULT_CHARSET));
+    aclBuff.writeTo(this);
 
     if (feedLogBuilder != null) {
       try {
-        feedLogBuilder.append(aclBuff);
+        feedLogBuilder.append(aclBuff.toString());
       } catch (IOException e) {
         // This won't happen with StringBuffer or StringBuilder.
         LOGGER.log(Level.WARNING, "Exception while constructing feed log:", e);
@@ -648,7 +673,7 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   /*
    * Generate the ACL principal XML data.
    */
-  private void getPrincipalXml(Document acl, StringBuilder buff)
+  private void getPrincipalXml(Document acl, Utf8XmlWriter buff)
       throws IOException, RepositoryException {
     Property property;
 
@@ -676,7 +701,7 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   /*
    * Wrap the ACL principal info as XML data.
    */
-  private static void wrapAclPrincipal(StringBuilder buff, Property property,
+  private static void wrapAclPrincipal(Utf8XmlWriter buff, Property property,
       AclScope scope, AclAccess access)
       throws RepositoryException, IOException {
     ValueImpl value;
@@ -686,31 +711,31 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
           : new Principal(value.toString().trim());
       String name = stripRoles(principal.getName(), access);
       if (!Strings.isNullOrEmpty(name)) {
-        buff.append("<").append(XML_PRINCIPAL);
+        buff.append('<').append(XML_PRINCIPAL);
         if (principal.getPrincipalType() ==
             SpiConstants.PrincipalType.UNQUALIFIED) {
           // UNQUALIFIED is a special-case on the GSA to allow us to prevent the
           // GSA from mistakeningly finding a domain in the principal name.
-          XmlUtils.xmlAppendAttr(ServletUtil.XMLTAG_PRINCIPALTYPE_ATTRIBUTE,
-              SpiConstants.PrincipalType.UNQUALIFIED.toString(), buff);
+          buff.appendAttr(ServletUtil.XMLTAG_PRINCIPALTYPE_ATTRIBUTE,
+              SpiConstants.PrincipalType.UNQUALIFIED.toString());
         }
         if (!Strings.isNullOrEmpty(principal.getNamespace())) {
-          XmlUtils.xmlAppendAttr(ServletUtil.XMLTAG_NAMESPACE_ATTRIBUTE,
-                                 principal.getNamespace(), buff);
+          buff.appendAttr(ServletUtil.XMLTAG_NAMESPACE_ATTRIBUTE,
+                          principal.getNamespace());
         }
         // The GSA's default is EVERYTHING_CASE_SENSITIVE. No need to send the
         // attribute when it is the default.
         if (principal.getCaseSensitivityType()
             != SpiConstants.CaseSensitivityType.EVERYTHING_CASE_SENSITIVE) {
-          XmlUtils.xmlAppendAttr(
+          buff.appendAttr(
               ServletUtil.XMLTAG_CASESENSITIVITYTYPE_ATTRIBUTE,
-              principal.getCaseSensitivityType().toString(), buff);
+              principal.getCaseSensitivityType().toString());
         }
-        XmlUtils.xmlAppendAttr(XML_SCOPE, scope.toString(), buff);
-        XmlUtils.xmlAppendAttr(XML_ACCESS, access.toString(), buff);
-        buff.append(">");
-        XmlUtils.xmlAppendAttrValue(name, buff);
-        XmlUtils.xmlAppendEndTag(XML_PRINCIPAL, buff);
+        buff.appendAttr(XML_SCOPE, scope.toString());
+        buff.appendAttr(XML_ACCESS, access.toString());
+        buff.append('>');
+        buff.appendAttrValue(name);
+        buff.appendEndTag(XML_PRINCIPAL);
       }
     }
   }
@@ -745,25 +770,25 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   }
 
   /**
-   * Wrap the metadata and append it to the string buffer. Empty metadata
+   * Wrap the metadata and append it to the writer. Empty metadata
    * properties are not appended.
    *
-   * @param buf string buffer
+   * @param buf the writer
    * @param document Document
+   * @param stripAcls if {@code true}, ACL properties are not appended
    * @throws RepositoryException if error reading Property from Document
-   * @throws IOException only from Appendable, and that can't really
-   *         happen when using StringBuilder.
+   * @throws IOException if the feed log could not be written
    */
-  private void xmlWrapMetadata(StringBuilder buf, Document document)
-      throws RepositoryException, IOException {
+  private void xmlWrapMetadata(Utf8XmlWriter buf, Document document,
+      boolean stripAcls) throws RepositoryException, IOException {
     boolean overwriteAcls = DocUtils.getOptionalBoolean(document,
         SpiConstants.PROPNAME_OVERWRITEACLS, true);
     buf.append('<').append(XML_METADATA);
     if (!overwriteAcls) {
-      XmlUtils.xmlAppendAttr(XML_OVERWRITEACLS,
-          Value.getBooleanValue(false).toString(), buf);
+      buf.appendAttr(XML_OVERWRITEACLS,
+          Value.getBooleanValue(false).toString());
     }
-    buf.append(">\n");
+    buf.append('>').append('\n');
 
     // Add all the metadata supplied by the Connector.
     Set<String> propertyNames = document.getPropertyNames();
@@ -773,8 +798,21 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
       // Sort property names so that metadata is written in a canonical form.
       // The GSA's metadata change detection logic depends on the metadata to be
       // in the same order each time in order to prevent reindexing.
-      propertyNames = new TreeSet<String>(propertyNames);
-      for (String name : propertyNames) {
+      int size = propertyNames.size();
+      if (sortedNames.length < size) {
+        sortedNames = new String[Math.max(size, 2 * sortedNames.length)];
+      }
+      String[] names = propertyNames.toArray(sortedNames);
+      if (names != sortedNames) {
+        size = names.length;
+      }
+      Arrays.sort(names, 0, size);
+      for (int i = 0; i < size; i++) {
+        String name = names[i];
+        names[i] = null;
+        if (stripAcls && DocUtils.aclPredicate.apply(name)) {
+          continue;
+        }
         if (propertySkipSet.contains(name)) {
           if (LOGGER.isLoggable(Level.FINEST)) {
             logOneProperty(document, name);
@@ -787,22 +825,20 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
         }
       }
     }
-    XmlUtils.xmlAppendEndTag(XML_METADATA, buf);
+    buf.appendEndTag(XML_METADATA);
   }
 
   /**
-   * Wrap a single Property and append to string buffer. Does nothing if the
+   * Wrap a single Property and append to the writer. Does nothing if the
    * Property's value is null or zero-length.
    *
-   * @param buf string builder
+   * @param buf the writer
    * @param name the property's name
    * @param property Property
    * @throws RepositoryException if error reading Property from Document
-   * @throws IOException only from Appendable, and that can't really
-   *         happen when using StringBuilder.
    */
-  private static void wrapOneProperty(StringBuilder buf, String name,
-      Property property) throws RepositoryException, IOException {
+  private static void wrapOneProperty(Utf8XmlWriter buf, String name,
+      Property property) throws RepositoryException {
     ValueImpl value = null;
     while ((value = (ValueImpl) property.nextValue()) != null) {
       if (LOGGER.isLoggable(Level.FINEST)) {
@@ -810,10 +846,10 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
       }
       String valString = value.toFeedXml();
       if (valString != null && valString.length() > 0) {
-        buf.append("<").append(XML_META);
-        XmlUtils.xmlAppendAttr(XML_NAME, name, buf);
-        XmlUtils.xmlAppendAttr(XML_CONTENT, valString, buf);
-        buf.append("/>\n");
+        buf.append('<').append(XML_META);
+        buf.appendAttr(XML_NAME, name);
+        buf.appendAttr(XML_CONTENT, valString);
+        buf.append('/').append('>').append('\n');
       }
     }
   }
@@ -839,21 +875,61 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
     }
   }
 
+  /**
+   * Returns the encoding to use for a record's content, as decided by the
+   * {@link ContentEncodingPolicy}.  If {@code lookAhead} is positive, up to
+   * that many bytes of the content are read to inform the decision, then
+   * the content is reset to its start.
+   *
+   * @param mimeType the content type
+   * @param content the content, which must support {@code mark} and
+   *        {@code reset} if {@code lookAhead} is positive
+   * @param lookAhead the number of bytes to read ahead
+   */
+  private ContentEncoding getRecordEncoding(String mimeType,
+      InputStream content, int lookAhead) throws IOException {
+    int length = 0;
+    boolean isComplete = false;
+    if (lookAhead > 0) {
+      if (lookAheadBuffer == null || lookAheadBuffer.length < lookAhead) {
+        lookAheadBuffer = new byte[lookAhead];
+      }
+      content.mark(lookAhead);
+      try {
+        while (length < lookAhead) {
+          int bytes = content.read(lookAheadBuffer, length, lookAhead - length);
+          if (bytes < 0) {
+            isComplete = true;
+            break;
+          }
+          length += bytes;
+        }
+      } catch (IOException e) {
+        // Let the error resurface when the content is read for the feed.
+        LOGGER.log(Level.FINEST, "Failed to read ahead in content", e);
+        return ContentEncoding.BASE64COMPRESSED;
+      } finally {
+        content.reset();
+      }
+    }
+    return encodingPolicy.shouldCompress(mimeType, lookAheadBuffer, length,
+        isComplete) ? ContentEncoding.BASE64COMPRESSED
+        : ContentEncoding.BASE64BINARY;
+  }
+
   /**
    * Return an InputStream for the Document's content.
    */
-  private InputStream getContentStream(Document document,
+  private InputStream getContentStream(Document document, InputStream content,
       ContentEncoding documentContentEncoding,
       ContentEncoding alternateEncoding) throws RepositoryException {
-    InputStream contentStream;
       InputStream original = new BigEmptyDocumentFilterInputStream(
-          DocUtils.getOptionalStream(document, SpiConstants.PROPNAME_CONTENT),
-          fileSizeLimit.maxDocumentSize());
+          content, fileSizeLimit.maxDocumentSize());
       InputStream encodedContentStream;
       if (documentContentEncoding == null) {
-        encodedContentStream = getEncodedStream(contentEncoding, 
-            original, (Context.getInstance().getTeedFeedFile() != null),
-            1024 * 1024);
+        encodedContentStream = getEncodedStream(alternateEncoding,
+            original, isTeedFeed,
+            1024 * 1024, true);
       } else {
         encodedContentStream = original;
       }
@@ -862,7 +938,7 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
           AlternateContentFilterInputStream.getAlternateContent(
           DocUtils.getOptionalString(document, SpiConstants.PROPNAME_TITLE), 
           DocUtils.getOptionalString(document, SpiConstants.PROPNAME_MIMETYPE)),
-          false, 2048);
+          false, 2048, false);
 
       return new AlternateContentFilterInputStream(
           encodedContentStream, encodedAlternateStream, this);
@@ -871,14 +947,39 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   /**
    * Wrap the content stream with the suitable encoding (either
    * Base64 or Base64Compressed, based upon GSA encoding support.
+   * If {@code isDocumentContent} is {@code true}, the compression is
+   * recorded by the {@link ContentEncodingPolicy} and, if the JVM supports
+   * it, large content is compressed using multiple threads.
    */
-  // TODO: Don't compress tiny content or already compressed data
-  // (based on mimetype).  This is harder than it sounds.
   private InputStream getEncodedStream(ContentEncoding contentEncoding,
-      InputStream content, boolean wrapLines, int ioBufferSize) {
+      InputStream content, boolean wrapLines, int ioBufferSize,
+      boolean isDocumentContent) {
     if (contentEncoding == ContentEncoding.BASE64COMPRESSED) {
-      return new Base64FilterInputStream(
-          new CompressedFilterInputStream(content, ioBufferSize), wrapLines);
+      if (!isDocumentContent) {
+        return new Base64FilterInputStream(
+            new CompressedFilterInputStream(content, ioBufferSize), wrapLines);
+      }
+      final CountingInputStream original = new CountingInputStream(content);
+      final InputStream compressor =
+          ParallelCompressedFilterInputStream.isSupported()
+          ? new ParallelCompressedFilterInputStream(original)
+          : new CompressedFilterInputStream(original, ioBufferSize);
+      final CountingInputStream compressed =
+          new CountingInputStream(compressor);
+      InputStream recorded = new FilterInputStream(compressed) {
+          @Override
+          public void close() throws IOException {
+            super.close();
+            encodingPolicy.recordCompression(original.getCount(),
+                compressed.getCount(),
+                (compressor instanceof ParallelCompressedFilterInputStream)
+                ? ((ParallelCompressedFilterInputStream) compressor)
+                    .getCompressionTimeNanos()
+                : ((CompressedFilterInputStream) compressor)
+                    .getCompressionTimeNanos());
+          }
+        };
+      return new Base64FilterInputStream(recorded, wrapLines);
     } else {
       return new Base64FilterInputStream(content, wrapLines);
     }
@@ -14,6 +14,8 @@
 
 package com.google.enterprise.connector.scheduler;
 
+import com.google.enterprise.connector.metrics.Metric;
+import com.google.enterprise.connector.metrics.MetricsRegistry;
 import com.google.enterprise.connector.pusher.FeedConnection;
 import com.google.enterprise.connector.traversal.BatchResult;
 import com.google.enterprise.connector.traversal.BatchSize;
@@ -36,6 +38,12 @@ public class HostLoadManager implements LoadManager {
 
   private static final long MINUTE_IN_MILLIS = 60 * 1000L;
 
+  /**
+   * How long to wait before checking again a delay condition that is not
+   * timed, such as low memory.
+   */
+  private static final long RECHECK_DELAY_MILLIS = 10 * 1000L;
+
   // TODO(bmj): Raise this to 1000 when the GSA moves there.
   public static final int DEFAULT_HOST_LOAD = 500;
 
@@ -102,6 +110,15 @@ public class HostLoadManager implements LoadManager {
   private boolean gotLowMemory = false;
   private long lastLowMemMessage = 0L;
 
+  /** The connector name, used to label the delay metrics. */
+  private String connectorName = null;
+
+  /** The reason for the current delay, or {@code null} if not delayed. */
+  private String delayReason = null;
+
+  /** The time at which the current delay ends, or 0 if not delayed. */
+  private long delayEndTime = 0L;
+
   /**
    * Constructor used by {@link HostLoadManagerFactory} to create a
    * {@link LoadManager} for a a connector instance.
@@ -118,6 +135,15 @@ public class HostLoadManager implements LoadManager {
     seedLoad();
   }
 
+  /**
+   * Sets the name of the connector instance whose load is managed.
+   *
+   * @param connectorName the name of a connector instance
+   */
+  public void setConnectorName(String connectorName) {
+    this.connectorName = connectorName;
+  }
+
   /**
    * Sets the target load in documents per period.
    *
@@ -212,8 +238,13 @@ public class HostLoadManager implements LoadManager {
         (lastBatchResult.getEndTime() + batchReq.delay <
          clock.getTimeMillis() + 100)) {
       lastBatchSize = batchReq.batchSize;
+      if (batchReq.batchSize == 0) {
+        // A zero load allows no documents; wait a period for a new load.
+        delayEndTime = clock.getTimeMillis() + periodInMillis;
+      }
       return new BatchSize(batchReq.batchSize);
     }
+    delayEndTime = lastBatchResult.getEndTime() + batchReq.delay;
     return new BatchSize();
   }
 
@@ -229,9 +260,9 @@ public class HostLoadManager implements LoadManager {
 
     // If the delay time hasn't expired, continue delay.
     // However, if there is less that 100ms left, just let it go.
-    if ((lastBatchResult.getEndTime() + batchReq.delay) >=
-        clock.getTimeMillis() + 100) {
-      return true;
+    long now = clock.getTimeMillis();
+    if ((lastBatchResult.getEndTime() + batchReq.delay) >= now + 100) {
+      return delay("load", lastBatchResult.getEndTime() + batchReq.delay);
     }
 
     // If the process is running low on memory, don't traverse.
@@ -241,14 +272,13 @@ public class HostLoadManager implements LoadManager {
       if (available < fileSizeLimit.maxFeedSize()) {
         Level level = (gotLowMemory) ? Level.FINE : Level.WARNING;
         gotLowMemory = true;
-        long now = clock.getTimeMillis();
         // Log message no more than once every minute.
         if (now > (lastLowMemMessage + (60 * 1000))) {
           lastLowMemMessage = now;
           LOGGER.log(level, "Delaying traversal due to low memory condition: "
                      + available / (1024 * 1024L) + " MB available");
         }
-        return true;
+        return delay("memory", now + RECHECK_DELAY_MILLIS);
       } else if (gotLowMemory) {
           gotLowMemory = false;
           lastLowMemMessage = 0L;
@@ -260,12 +290,42 @@ public class HostLoadManager implements LoadManager {
     // If the GSA this connector is feeding is backlogged handling feeds,
     // don't traverse.
     if ((feedConnection != null) && feedConnection.isBacklogged()) {
-      return true;
+      // Wait for the next backlog check, since the backlog will not have
+      // cleared before then.
+      long checkDelay = feedConnection.getBacklogCheckDelay();
+      return delay("backlog",
+          now + ((checkDelay > 0L) ? checkDelay : RECHECK_DELAY_MILLIS));
     }
 
+    delayReason = null;
+    delayEndTime = 0L;
     return false;
   }
 
+  @Override
+  public long getDelayEndTime() {
+    return delayEndTime;
+  }
+
+  /**
+   * Counts the start of a delay for the given reason.  The delay may be
+   * checked more than once while it lasts, but is only counted once.
+   *
+   * @param reason the reason for the delay
+   * @param endTime the time at which the delay is expected to end
+   * @return {@code true}
+   */
+  private boolean delay(String reason, long endTime) {
+    delayEndTime = endTime;
+    if (!reason.equals(delayReason)) {
+      delayReason = reason;
+      MetricsRegistry.getInstance()
+          .getCounter(Metric.TRAVERSAL_DELAYS, connectorName, reason)
+          .increment();
+    }
+    return true;
+  }
+
   /**
    * Calculate the batch size for the next traversal batch.
    * This uses the throughput of the previous traversal batch and
@@ -108,6 +108,7 @@ public class HostLoadManagerFactory implements LoadManagerFactory {
   @Override
   public LoadManager newLoadManager(String connectorName) {
     HostLoadManager hlm = new HostLoadManager(feedConnection, fileSizeLimit, clock);
+    hlm.setConnectorName(connectorName);
     hlm.setPeriod(period);
     hlm.setBatchSize(batchSize);
     return hlm;
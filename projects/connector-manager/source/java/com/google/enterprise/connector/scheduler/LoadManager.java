@@ -66,4 +66,15 @@ public interface LoadManager extends BatchResultRecorder {
    * maintain the target load management.
    */
   public boolean shouldDelay();
+
+  /**
+   * Returns the time, in milliseconds, at which the delay reported by the
+   * last call to {@link #shouldDelay}, or the empty batch returned by the
+   * last call to {@link #determineBatchSize}, is expected to end.  For
+   * delays that are not timed, such as a feed backlog, this is the time
+   * at which the condition is worth checking again.
+   *
+   * @return the end of the current delay, or 0 if there is no delay
+   */
+  public long getDelayEndTime();
 }
@@ -326,6 +326,19 @@ public class Schedule implements TraversalSchedule {
     return nextScheduledInterval(Calendar.getInstance());
   }
 
+  /**
+   * Returns the number of seconds from the given time until the next
+   * scheduled traversal interval, as {@link #nextScheduledInterval()} does
+   * for the current time.
+   *
+   * @param timeMillis the time, in milliseconds since the epoch
+   */
+  public int nextScheduledInterval(long timeMillis) {
+    Calendar now = Calendar.getInstance();
+    now.setTimeInMillis(timeMillis);
+    return nextScheduledInterval(now);
+  }
+
   @VisibleForTesting
   int nextScheduledInterval(Calendar now) {
     int hour = now.get(Calendar.HOUR_OF_DAY);
@@ -0,0 +1,143 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.scheduler;
+
+import com.google.enterprise.connector.util.Clock;
+import com.google.enterprise.connector.util.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A queue of connector instances, ordered by the time at which each might
+ * next be able to start a traversal batch.  Connector coordinators add
+ * themselves to the queue whenever their traversal state changes, for
+ * instance when a batch completes or the schedule is changed, and the
+ * {@link TraversalScheduler} takes them from the queue when they are due.
+ * <p>
+ * A connector appears in the queue at most once.  If a connector is
+ * scheduled again before it is due, the earlier of the two times is kept.
+ * <p>
+ * This class is thread safe.
+ */
+public class TraversalQueue {
+  private final Clock clock;
+
+  private final DelayQueue<Entry> queue = new DelayQueue<Entry>();
+
+  /** The current entry for each queued connector.  Guarded by this. */
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+  public TraversalQueue() {
+    this(new SystemClock());
+  }
+
+  /**
+   * Constructs a {@code TraversalQueue}.
+   *
+   * @param clock the {@link Clock} used to determine when entries are due
+   */
+  public TraversalQueue(Clock clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Schedules a connector to be considered for a traversal batch at the
+   * given time.  If the connector is already scheduled for an earlier
+   * time, this call has no effect.
+   *
+   * @param connectorName the connector name
+   * @param timeMillis the time, in milliseconds, at which the connector
+   *        might be able to start a batch
+   */
+  public void schedule(String connectorName, long timeMillis) {
+    synchronized (this) {
+      Entry current = entries.get(connectorName);
+      if (current != null && current.timeMillis <= timeMillis) {
+        return;
+      }
+      // A superseded entry is left in the queue, and ignored when taken.
+      Entry entry = new Entry(connectorName, timeMillis);
+      entries.put(connectorName, entry);
+      queue.add(entry);
+    }
+  }
+
+  /**
+   * Schedules a connector to be considered for a traversal batch now.
+   *
+   * @param connectorName the connector name
+   */
+  public void scheduleNow(String connectorName) {
+    schedule(connectorName, clock.getTimeMillis());
+  }
+
+  /**
+   * Returns the name of a connector that is due, waiting up to the
+   * given time for one to become due.
+   *
+   * @param timeout the maximum time to wait
+   * @param unit the {@link TimeUnit} of {@code timeout}
+   * @return a connector name, or {@code null} if none became due
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (true) {
+      Entry entry = queue.poll(deadline - System.nanoTime(),
+                               TimeUnit.NANOSECONDS);
+      if (entry == null) {
+        return null;
+      }
+      synchronized (this) {
+        if (entries.get(entry.connectorName) == entry) {
+          entries.remove(entry.connectorName);
+          return entry.connectorName;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the number of connectors in the queue.
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private class Entry implements Delayed {
+    final String connectorName;
+    final long timeMillis;
+
+    Entry(String connectorName, long timeMillis) {
+      this.connectorName = connectorName;
+      this.timeMillis = timeMillis;
+    }
+
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(timeMillis - clock.getTimeMillis(),
+                          TimeUnit.MILLISECONDS);
+    }
+
+    public int compareTo(Delayed other) {
+      long otherTimeMillis = ((Entry) other).timeMillis;
+      return (timeMillis < otherTimeMillis) ? -1
+          : ((timeMillis == otherTimeMillis) ? 0 : 1);
+    }
+  }
+}
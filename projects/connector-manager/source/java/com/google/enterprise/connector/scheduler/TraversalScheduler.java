@@ -18,6 +18,7 @@ import com.google.enterprise.connector.instantiator.Instantiator;
 import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.persist.ConnectorNotFoundException;
 
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,41 +27,74 @@ import java.util.logging.Logger;
  * Must initialize TraversalScheduler before running it.
  *
  * <p> This facility includes a schedule thread that runs a loop.
- * Each iteration it asks the instantiator for the schedule
- * for each Connector Instance and runs batches for those that
- * are
+ * Connector Instances are taken from a {@link TraversalQueue} as they
+ * become due, and batches are run for those that
  * <OL>
  * <LI> scheduled to run.
  * <LI> have not exhausted their quota for the current time interval.
  * <LI> are not currently running.
  * </OL>
+ * Connector Instances that cannot run a batch add themselves back to the
+ * queue at the next time they might be able to, and completed batches
+ * add their Connector Instance back to the queue immediately.  As a
+ * safety net, all Connector Instances are checked periodically.
  * The implementation must handle the situation that a Connector
  * Instance is running.
  */
-/* TODO (bmj): This should be removed and its functionality moved to
- * ConnectorCoordinator.  Connectors should be in charge of their own
- * scheduling.  In particular, the ConnectorCoordinator could leverage
- * Schedule.nextScheduledInterval(), sleeping when unscheduled rather
- * than checking all schedules once per second.
- */
 public class TraversalScheduler implements Runnable {
   public static final String SCHEDULER_CURRENT_TIME = "/Scheduler/currentTime";
 
   private static final Logger LOGGER =
     Logger.getLogger(TraversalScheduler.class.getName());
 
+  /**
+   * Interval between checks of all Connector Instances, if they do not
+   * share a {@link TraversalQueue} with this scheduler.
+   */
+  private static final long POLL_INTERVAL_MILLIS = 1000L;
+
+  /**
+   * Interval between checks of all Connector Instances, if they share a
+   * {@link TraversalQueue} with this scheduler.
+   */
+  private static final long SWEEP_INTERVAL_MILLIS = 60 * 1000L;
+
   private final Instantiator instantiator;
+  private final TraversalQueue traversalQueue;
+  private final long sweepIntervalMillis;
 
   private boolean isInitialized; // Protected by instance lock.
   private boolean isShutdown; // Protected by instance lock.
+  private Thread schedulerThread; // Protected by instance lock.
 
   /**
-   * Create a scheduler object.
+   * Create a scheduler object that checks every connector instance
+   * once a second.
    *
    * @param instantiator used to get schedule for connector instances
    */
   public TraversalScheduler(Instantiator instantiator) {
+    this(instantiator, new TraversalQueue(), POLL_INTERVAL_MILLIS);
+  }
+
+  /**
+   * Create a scheduler object that runs batches for connector instances
+   * as they become due in the supplied {@link TraversalQueue}.
+   *
+   * @param instantiator used to get schedule for connector instances
+   * @param traversalQueue the {@link TraversalQueue} shared with the
+   *        connector instances
+   */
+  public TraversalScheduler(Instantiator instantiator,
+      TraversalQueue traversalQueue) {
+    this(instantiator, traversalQueue, SWEEP_INTERVAL_MILLIS);
+  }
+
+  private TraversalScheduler(Instantiator instantiator,
+      TraversalQueue traversalQueue, long sweepIntervalMillis) {
     this.instantiator = instantiator;
+    this.traversalQueue = traversalQueue;
+    this.sweepIntervalMillis = sweepIntervalMillis;
     this.isInitialized = false;
     this.isShutdown = false;
   }
@@ -71,7 +105,8 @@ public class TraversalScheduler implements Runnable {
     }
     isInitialized = true;
     isShutdown = false;
-    new Thread(this, "TraversalScheduler").start();
+    schedulerThread = new Thread(this, "TraversalScheduler");
+    schedulerThread.start();
   }
 
   public synchronized void shutdown() {
@@ -80,6 +115,11 @@ public class TraversalScheduler implements Runnable {
     }
     isInitialized = false;
     isShutdown = true;
+    // Wake the scheduler thread, which may be waiting a long time.
+    if (schedulerThread != null) {
+      schedulerThread.interrupt();
+      schedulerThread = null;
+    }
   }
 
   /**
@@ -94,20 +134,25 @@ public class TraversalScheduler implements Runnable {
 
   private void scheduleBatches() {
     for (String connectorName : instantiator.getConnectorNames()) {
-      NDC.pushAppend(connectorName);
-      try {
-        instantiator.startBatch(connectorName);
-      } catch (ConnectorNotFoundException e) {
-        // Looks like the connector just got deleted.  Don't schedule it.
-      } finally {
-        NDC.pop();
-      }
+      startBatch(connectorName);
+    }
+  }
+
+  private void startBatch(String connectorName) {
+    NDC.pushAppend(connectorName);
+    try {
+      instantiator.startBatch(connectorName);
+    } catch (ConnectorNotFoundException e) {
+      // Looks like the connector just got deleted.  Don't schedule it.
+    } finally {
+      NDC.pop();
     }
   }
 
   public void run() {
     NDC.push("Traverse");
     try {
+      long nextSweepTime = 0L;
       while (true) {
         try {
           if (!isRunningState()) {
@@ -115,15 +160,20 @@ public class TraversalScheduler implements Runnable {
                 + "shutdown or not being initialized.");
             return;
           }
-          scheduleBatches();
-          // Give someone else a chance to run.
-          try {
-            synchronized (this) {
-              wait(1000);
+          long now = System.currentTimeMillis();
+          if (now >= nextSweepTime) {
+            nextSweepTime = now + sweepIntervalMillis;
+            scheduleBatches();
+          } else {
+            // Wait for a connector to become due.
+            String connectorName = traversalQueue.poll(nextSweepTime - now,
+                TimeUnit.MILLISECONDS);
+            if (connectorName != null) {
+              startBatch(connectorName);
             }
-          } catch (InterruptedException e) {
-            // May have been interrupted for shutdown.
           }
+        } catch (InterruptedException e) {
+          // May have been interrupted for shutdown.
         } catch (Throwable t) {
           LOGGER.log(Level.SEVERE,
               "TraversalScheduler caught unexpected Throwable: ", t);
@@ -18,6 +18,8 @@ import com.google.common.base.Strings;
 import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.manager.ConnectorStatus;
 import com.google.enterprise.connector.manager.Manager;
+import com.google.enterprise.connector.metrics.Metric;
+import com.google.enterprise.connector.metrics.MetricsRegistry;
 import com.google.enterprise.connector.spi.AuthenticationIdentity;
 import com.google.enterprise.connector.spi.AuthenticationResponse;
 import com.google.enterprise.connector.spi.Principal;
@@ -31,8 +33,14 @@ import org.w3c.dom.NodeList;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,6 +52,33 @@ public class Authenticate extends ConnectorManagerServlet {
   private static final Logger LOGGER =
       Logger.getLogger(Authenticate.class.getName());
 
+  /** The executor used to query connectors in parallel, or null. */
+  private static volatile AuthorizationExecutor executor = null;
+
+  /** Default time limit for authentication requests, in milliseconds. */
+  public static final long DEFAULT_TIMEOUT_MILLIS = 30000L;
+
+  /** The time limit for authentication requests, in milliseconds. */
+  private static volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+  /**
+   * Sets the {@link AuthorizationExecutor} used to query connectors in
+   * parallel, and the time limit for each authentication request.
+   * Connectors that do not answer in time fail to authenticate the user.
+   * The executor should not be shared with authorization requests, so
+   * that connectors that are slow to authorize do not hold up logins.
+   *
+   * @param executor an {@link AuthorizationExecutor}, or {@code null}
+   *        to query the connectors serially
+   * @param timeoutMillis the time limit, in milliseconds; zero or less
+   *        means no limit
+   */
+  public static void setAuthenticationExecutor(AuthorizationExecutor executor,
+      long timeoutMillis) {
+    Authenticate.timeoutMillis = timeoutMillis;
+    Authenticate.executor = executor;
+  }
+
   @Override
   protected void processDoPost(
       String xmlBody, Manager manager, PrintWriter out) {
@@ -61,6 +96,22 @@ public class Authenticate extends ConnectorManagerServlet {
    */
   public static void handleDoPost(
       String xmlBody, Manager manager, PrintWriter out) {
+    handleDoPost(xmlBody, manager, out, executor, timeoutMillis);
+  }
+
+  /**
+   * Handler for doPost in order to do unit tests.
+   * Writes credentials for connectors.
+   *
+   * @param xmlBody String the XML request body string
+   * @param manager Manager
+   * @param out PrintWriter where the response is written
+   * @param executor the {@link AuthorizationExecutor} used to query the
+   *        connectors in parallel, or {@code null}
+   * @param timeoutMillis the time limit for the parallel queries
+   */
+  static void handleDoPost(String xmlBody, Manager manager, PrintWriter out,
+      AuthorizationExecutor executor, long timeoutMillis) {
     Element root = XmlParseUtil.parseAndGetRootElement(
         xmlBody, ServletUtil.XMLTAG_AUTHN_REQUEST);
     if (root == null) {
@@ -103,18 +154,27 @@ public class Authenticate extends ConnectorManagerServlet {
 
     String password = XmlParseUtil.getOptionalElementByTagName(
         (Element) credList.item(0), ServletUtil.XMLTAG_AUTHN_PASSWORD);
+    List<ConnectorAuthentication> queries =
+        new ArrayList<ConnectorAuthentication>();
     for (ConnectorStatus connector : manager.getConnectorStatuses()) {
       String connectorName = connector.getName();
       if (requestedConnectors != null &&
           !requestedConnectors.contains(connectorName)) {
         continue;
       }
+      AuthenticationIdentity identity =
+          new SimpleAuthenticationIdentity(username, password, domain);
+      queries.add(new ConnectorAuthentication(manager, connectorName,
+                                              identity));
+    }
+    List<AuthenticationResponse> responses =
+        authenticate(queries, executor, timeoutMillis);
+
+    for (int i = 0; i < queries.size(); i++) {
+      String connectorName = queries.get(i).connectorName;
+      AuthenticationResponse response = responses.get(i);
       NDC.pushAppend(connectorName);
       try {
-        AuthenticationIdentity identity =
-            new SimpleAuthenticationIdentity(username, password, domain);
-        AuthenticationResponse response =
-            manager.authenticate(connectorName, identity);
         if (response.isValid()) {
           ServletUtil.writeXMLTagWithAttrs(
               out, 2, ServletUtil.XMLTAG_SUCCESS,
@@ -170,4 +230,108 @@ public class Authenticate extends ConnectorManagerServlet {
     ServletUtil.writeRootTag(out, true);
     return;
   }
+
+  /**
+   * Queries the connectors, in parallel if an executor is given.
+   *
+   * @return the responses, in the same order as the queries
+   */
+  private static List<AuthenticationResponse> authenticate(
+      List<ConnectorAuthentication> queries, AuthorizationExecutor executor,
+      long timeoutMillis) {
+    // A single query gains nothing from another thread, unless the
+    // executor is needed to enforce the time limit.
+    if (executor != null
+        && (queries.size() > 1 || (queries.size() == 1 && timeoutMillis > 0))) {
+      try {
+        return authenticateInParallel(queries, executor, timeoutMillis);
+      } catch (RejectedExecutionException e) {
+        LOGGER.warning("Authentication executor has been stopped;"
+            + " querying connectors serially.");
+      }
+    }
+    List<AuthenticationResponse> responses =
+        new ArrayList<AuthenticationResponse>(queries.size());
+    for (ConnectorAuthentication query : queries) {
+      responses.add(query.call());
+    }
+    return responses;
+  }
+
+  /**
+   * Queries the connectors in parallel.  Queries that do not complete in
+   * time, or that fail, are failed authentications.
+   *
+   * @return the responses, in the same order as the queries
+   * @throws RejectedExecutionException if the executor has been stopped
+   */
+  private static List<AuthenticationResponse> authenticateInParallel(
+      List<ConnectorAuthentication> queries, AuthorizationExecutor executor,
+      long timeoutMillis) {
+    List<Future<AuthenticationResponse>> futures = null;
+    try {
+      futures = executor.invokeAll(queries, timeoutMillis);
+    } catch (InterruptedException e) {
+      LOGGER.warning("Interrupted while waiting for authentication.");
+      Thread.currentThread().interrupt();
+    }
+    List<AuthenticationResponse> responses =
+        new ArrayList<AuthenticationResponse>(queries.size());
+    for (int i = 0; i < queries.size(); i++) {
+      ConnectorAuthentication query = queries.get(i);
+      Future<AuthenticationResponse> future =
+          (futures == null) ? null : futures.get(i);
+      AuthenticationResponse response = null;
+      if (future == null || future.isCancelled()) {
+        LOGGER.warning("Authentication by connector " + query.connectorName
+            + " did not complete in time.");
+        MetricsRegistry.getInstance()
+            .getCounter(Metric.AUTHENTICATION_TIMEOUTS, query.connectorName)
+            .increment();
+      } else {
+        try {
+          response = future.get();
+        } catch (ExecutionException e) {
+          LOGGER.log(Level.WARNING, "Authentication failed for connector "
+              + query.connectorName, e.getCause());
+        } catch (InterruptedException e) {
+          // Can't happen, the future is done.
+          Thread.currentThread().interrupt();
+        }
+      }
+      responses.add((response == null)
+          ? new AuthenticationResponse(false, null) : response);
+    }
+    return responses;
+  }
+
+  /** An authentication query of one connector. */
+  private static class ConnectorAuthentication
+      implements Callable<AuthenticationResponse> {
+    private final Manager manager;
+    private final String connectorName;
+    private final AuthenticationIdentity identity;
+    private final String context;
+
+    ConnectorAuthentication(Manager manager, String connectorName,
+        AuthenticationIdentity identity) {
+      this.manager = manager;
+      this.connectorName = connectorName;
+      this.identity = identity;
+      // Capture the diagnostic context of the request thread.
+      String current = NDC.peek();
+      this.context = ((current.length() > 0) ? current + " " : "")
+          + connectorName;
+    }
+
+    @Override
+    public AuthenticationResponse call() {
+      NDC.push(context);
+      try {
+        return manager.authenticate(connectorName, identity);
+      } finally {
+        NDC.pop();
+      }
+    }
+  }
 }
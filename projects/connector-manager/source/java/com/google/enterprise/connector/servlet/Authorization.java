@@ -15,15 +15,86 @@
 
 package com.google.enterprise.connector.servlet;
 
+import com.google.enterprise.connector.logging.NDC;
+import com.google.enterprise.connector.manager.Context;
 import com.google.enterprise.connector.manager.Manager;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 /**
  * Admin servlet for authorization
  *
  */
 public class Authorization extends ConnectorManagerServlet {
+  private static final Logger LOGGER =
+      Logger.getLogger(Authorization.class.getName());
+
+  /**
+   * Returns an XML response to the HTTP POST request.  Unlike the other
+   * servlets, the request is parsed as it is read, rather than read into a
+   * {@code String} first, and the answers are written as the connectors
+   * return them.
+   *
+   * @param req
+   * @param res
+   * @throws IOException
+   */
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse res)
+      throws IOException {
+    // Make sure this requester is OK
+    if (!RemoteAddressFilter.getInstance()
+          .allowed(RemoteAddressFilter.Access.BLACK, req.getRemoteAddr())) {
+      res.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    InputStream in = req.getInputStream();
+    res.setContentType(ServletUtil.MIMETYPE_XML);
+    res.setCharacterEncoding("UTF-8");
+    PrintWriter out = res.getWriter();
+    NDC.push(NDC.peek());
+    try {
+      if (in != null) {
+        in = new BufferedInputStream(in);
+      }
+      if (isEmpty(in)) {
+        ServletUtil.writeResponse(
+            out, ConnectorMessageCode.RESPONSE_EMPTY_REQUEST);
+        LOGGER.log(Level.WARNING, ServletUtil.LOG_RESPONSE_EMPTY_REQUEST);
+        return;
+      }
+      Manager manager = Context.getInstance().getManager();
+      AuthorizationHandler authorizationHandler = new AuthorizationHandler(
+          in, req.getCharacterEncoding(), manager, out);
+      authorizationHandler.handleDoPost();
+    } finally {
+      out.close();
+      NDC.pop();
+    }
+  }
+
+  /**
+   * Returns {@code true} if the stream is {@code null} or has no content.
+   * The stream must support {@code mark}.
+   */
+  private static boolean isEmpty(InputStream in) throws IOException {
+    if (in == null) {
+      return true;
+    }
+    in.mark(1);
+    boolean isEmpty = (in.read() == -1);
+    in.reset();
+    return isEmpty;
+  }
 
   @Override
   protected void processDoPost(
@@ -0,0 +1,369 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.servlet;
+
+import com.google.enterprise.connector.manager.ContextService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A pool of threads, shared by all authorization requests or by all
+ * authentication requests, that queries the connectors in parallel.  This
+ * allows a request that spans several connector instances or identities to
+ * wait for the slowest connector, rather than for the sum of all of them,
+ * while bounding the total number of threads used by concurrent requests.
+ * <p>
+ * Each request may be given a deadline.  Queries that have not completed
+ * by the deadline are canceled, so that the response can be returned
+ * before the GSA gives up on it.
+ * <p>
+ * Without a deadline, each request runs one of its queries on its own
+ * thread, and takes back any of the others that are still waiting for a
+ * pool thread, so that slow or hung connectors that fill the pool do not
+ * hold up requests for other connectors.
+ * <p>
+ * The documents requested from a connector may be split into batches of
+ * a limited size, which are queried in parallel.  The size may be
+ * configured for each connector type, since some repositories answer large
+ * queries poorly, while others have a high cost for each query.
+ * <p>
+ * The threads are created lazily and are allowed to die when idle.
+ */
+public class AuthorizationExecutor implements ContextService {
+  private static final Logger LOGGER =
+      Logger.getLogger(AuthorizationExecutor.class.getName());
+
+  /** Default number of authorization threads. */
+  public static final int DEFAULT_THREADS = 10;
+
+  /** Default time limit for a request, in milliseconds; zero means none. */
+  public static final long DEFAULT_TIMEOUT_MILLIS = 0L;
+
+  /** Default maximum number of documents in a query; zero means none. */
+  public static final int DEFAULT_BATCH_SIZE = 0;
+
+  /** Time idle threads are kept alive before exiting. */
+  private static final long KEEP_ALIVE_SECONDS = 60L;
+
+  private final int threads;
+  private final long timeoutMillis;
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private Map<String, Integer> typeBatchSizes =
+      new HashMap<String, Integer>();
+
+  /** The lazily constructed executor. */
+  private ThreadPoolExecutor executor;
+
+  /** Flag indicating stop was called.  Don't accept any more queries. */
+  private boolean isShutdown = false;
+
+  /**
+   * Creates an {@code AuthorizationExecutor} with the default configuration.
+   */
+  public AuthorizationExecutor() {
+    this(DEFAULT_THREADS, DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Creates an {@code AuthorizationExecutor}.
+   *
+   * @param threads the maximum number of connector queries that may run
+   *        at once, across all requests
+   * @param timeoutMillis the time limit for each request, in milliseconds;
+   *        zero or less means no limit
+   */
+  public AuthorizationExecutor(int threads, long timeoutMillis) {
+    if (threads < 1) {
+      throw new IllegalArgumentException(
+          "The number of authorization threads must be positive.");
+    }
+    this.threads = threads;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /** Returns the maximum number of connector queries that may run at once. */
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * Returns the time limit for each request, in milliseconds, or zero or
+   * less for no limit.
+   */
+  public long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  /**
+   * Sets the maximum number of documents in a single query of a
+   * connector, for connector types that do not have their own.
+   *
+   * @param batchSize the maximum number of documents in a query; zero or
+   *        less means no limit
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Sets the maximum number of documents in a single query of a
+   * connector, for specific connector types.
+   *
+   * @param typeBatchSizes a map from connector type name to the maximum
+   *        number of documents in a query; zero or less means no limit.
+   *        The values may be numbers or their string representations.
+   * @throws NumberFormatException if a value is not an integer
+   */
+  public void setTypeBatchSizes(Map<String, ?> typeBatchSizes) {
+    Map<String, Integer> sizes = new HashMap<String, Integer>();
+    if (typeBatchSizes != null) {
+      for (Map.Entry<String, ?> entry : typeBatchSizes.entrySet()) {
+        sizes.put(entry.getKey(),
+                  Integer.valueOf(entry.getValue().toString().trim()));
+      }
+    }
+    this.typeBatchSizes = sizes;
+  }
+
+  /**
+   * Returns {@code true} if any connector types have their own batch size,
+   * so the caller needs to know a connector's type.
+   */
+  public boolean hasTypeBatchSizes() {
+    return !typeBatchSizes.isEmpty();
+  }
+
+  /**
+   * Returns the maximum number of documents in a single query of a
+   * connector of the given type, or zero or less for no limit.
+   *
+   * @param connectorType the connector type name, or {@code null} if it
+   *        is not known
+   */
+  public int getBatchSize(String connectorType) {
+    Integer size = (connectorType == null)
+        ? null : typeBatchSizes.get(connectorType);
+    return (size == null) ? batchSize : size;
+  }
+
+  /**
+   * Runs the given tasks, and waits for them to complete or for the time
+   * limit to expire, whichever comes first.  Tasks that have not completed
+   * by then are canceled.
+   *
+   * @param tasks the tasks to run
+   * @return a list of {@link Future Futures}, in the same order as the
+   *         tasks, all of which are done
+   * @throws InterruptedException if interrupted while waiting
+   * @throws RejectedExecutionException if the executor has been stopped
+   */
+  public <T> List<Future<T>> invokeAll(List<? extends Callable<T>> tasks)
+      throws InterruptedException {
+    return invokeAll(tasks, timeoutMillis);
+  }
+
+  /**
+   * Runs the given tasks, and waits for them to complete or for the given
+   * time limit to expire, whichever comes first.  Tasks that have not
+   * completed by then are canceled.  Without a time limit, the calling
+   * thread runs some of the tasks itself, as described for
+   * {@link #submitAll submitAll}.
+   *
+   * @param tasks the tasks to run
+   * @param timeoutMillis the time limit, in milliseconds; zero or less
+   *        means no limit
+   * @return a list of {@link Future Futures}, in the same order as the
+   *         tasks, all of which are done
+   * @throws InterruptedException if interrupted while waiting
+   * @throws RejectedExecutionException if the executor has been stopped
+   */
+  public <T> List<Future<T>> invokeAll(List<? extends Callable<T>> tasks,
+      long timeoutMillis) throws InterruptedException {
+    if (timeoutMillis > 0) {
+      return getExecutor().invokeAll(tasks, timeoutMillis,
+                                     TimeUnit.MILLISECONDS);
+    }
+    List<Future<T>> futures =
+        submitAll(tasks, timeoutMillis, new LinkedBlockingQueue<Future<T>>());
+    try {
+      for (Future<T> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          // The caller gets the exception from the Future.
+        }
+      }
+    } catch (InterruptedException e) {
+      for (Future<T> future : futures) {
+        future.cancel(true);
+      }
+      throw e;
+    }
+    return futures;
+  }
+
+  /**
+   * Starts the given tasks, adding each one to the completion queue when it
+   * is done.  If there is no time limit, the first task is run on the
+   * calling thread, and the rest on the pool.  Once its own task is done,
+   * the calling thread also runs any of the rest that the pool has not yet
+   * started.  So a request never waits in the queue behind the queries of
+   * other requests, and a connector that hangs holds up only the requests
+   * that query it.  If there is a time limit, all of the tasks are run on
+   * the pool, so that the caller can stop waiting for them at the deadline.
+   *
+   * @param tasks the tasks to run
+   * @param timeoutMillis the time limit, in milliseconds; zero or less
+   *        means no limit
+   * @param completionQueue the queue to which each {@link Future} is added
+   *        when its task is done
+   * @return a list of {@link Future Futures}, in the same order as the
+   *         tasks; tasks run on the pool may not be done yet
+   * @throws RejectedExecutionException if the executor has been stopped
+   */
+  public <T> List<Future<T>> submitAll(List<? extends Callable<T>> tasks,
+      long timeoutMillis, final Queue<Future<T>> completionQueue) {
+    List<FutureTask<T>> futures = new ArrayList<FutureTask<T>>(tasks.size());
+    for (Callable<T> task : tasks) {
+      futures.add(new FutureTask<T>(task) {
+          @Override
+          protected void done() {
+            completionQueue.add(this);
+          }
+        });
+    }
+    if (futures.isEmpty()) {
+      return new ArrayList<Future<T>>();
+    }
+
+    boolean callerRuns = (timeoutMillis <= 0);
+    ThreadPoolExecutor executor = getExecutor();
+    List<FutureTask<T>> pooled =
+        futures.subList(callerRuns ? 1 : 0, futures.size());
+    try {
+      for (FutureTask<T> future : pooled) {
+        executor.execute(future);
+      }
+    } catch (RejectedExecutionException e) {
+      for (FutureTask<T> future : pooled) {
+        future.cancel(true);
+      }
+      throw e;
+    }
+
+    if (callerRuns) {
+      futures.get(0).run();
+      for (FutureTask<T> future : pooled) {
+        // A task removed from the queue will never be started by the pool.
+        if (executor.remove(future)) {
+          future.run();
+        }
+      }
+    }
+    return new ArrayList<Future<T>>(futures);
+  }
+
+  /**
+   * Returns the executor, constructing it if necessary.
+   *
+   * @throws RejectedExecutionException if the executor has been stopped
+   */
+  private synchronized ThreadPoolExecutor getExecutor() {
+    if (isShutdown) {
+      throw new RejectedExecutionException(
+          "AuthorizationExecutor has been stopped.");
+    }
+    if (executor == null) {
+      executor = new ThreadPoolExecutor(threads, threads,
+          KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(),
+          new AuthorizationThreadFactory());
+      executor.allowCoreThreadTimeOut(true);
+      LOGGER.config("Started authorization executor with " + threads
+          + " threads.");
+    }
+    return executor;
+  }
+
+  @Override
+  public void start() {
+    // The executor is started lazily.
+  }
+
+  /**
+   * Stops the executor.  Subsequent requests are rejected.
+   *
+   * @param force if {@code true}, running queries are interrupted
+   */
+  @Override
+  public synchronized void stop(boolean force) {
+    isShutdown = true;
+    if (executor != null) {
+      if (force) {
+        executor.shutdownNow();
+      } else {
+        executor.shutdown();
+      }
+    }
+  }
+
+  @Override
+  public synchronized boolean isRunning() {
+    return !isShutdown;
+  }
+
+  @Override
+  public String getName() {
+    return getClass().getSimpleName();
+  }
+
+  @Override
+  public String toString() {
+    return "AuthorizationExecutor: threads = " + threads
+        + ", timeoutMillis = " + timeoutMillis + ", batchSize = " + batchSize
+        + ", typeBatchSizes = " + typeBatchSizes;
+  }
+
+  /**
+   * A {@link ThreadFactory} that names the authorization threads to
+   * provide diagnostic context in stack traces.  The threads are daemon
+   * threads, so that a hung connector does not prevent shutdown.
+   */
+  private static class AuthorizationThreadFactory implements ThreadFactory {
+    private final ThreadFactory delegate = Executors.defaultThreadFactory();
+
+    public Thread newThread(Runnable r) {
+      Thread t = delegate.newThread(r);
+      t.setName("Authorization-" + t.getName());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
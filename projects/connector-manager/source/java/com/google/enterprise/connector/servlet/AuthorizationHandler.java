@@ -14,25 +14,38 @@
 
 package com.google.enterprise.connector.servlet;
 
+import com.google.common.collect.Lists;
 import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.manager.Manager;
+import com.google.enterprise.connector.metrics.Metric;
+import com.google.enterprise.connector.metrics.MetricsRegistry;
 import com.google.enterprise.connector.servlet.AuthorizationParser.ConnectorQueries;
 import com.google.enterprise.connector.servlet.AuthorizationParser.QueryResources;
+import com.google.enterprise.connector.persist.ConnectorNotFoundException;
 import com.google.enterprise.connector.spi.AuthenticationIdentity;
 import com.google.enterprise.connector.spi.AuthorizationResponse;
 import com.google.enterprise.connector.spi.XmlUtils;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,17 +57,60 @@ public class AuthorizationHandler {
       Logger.getLogger(AuthorizationHandler.class.getName());
 
   String xmlBody;
+  InputStream in;
+  String encoding;
   Manager manager;
   PrintWriter out;
   ConnectorMessageCode status;
 
+  /**
+   * The decisions, collected to be written all at once in a predictable
+   * order, or {@code null} to write each decision as it arrives.
+   */
   Map<AuthorizationResource, AuthorizationResponse.Status> results;
 
+  /** Whether the {@code AuthorizationResponse} start tag has been written. */
+  private boolean hasAnswers = false;
+
+  /** The executor used to query connectors in parallel, or null. */
+  AuthorizationExecutor executor;
+
+  /** The shared executor used by new handlers, or null. */
+  private static volatile AuthorizationExecutor sharedExecutor = null;
+
+  /**
+   * Sets the {@link AuthorizationExecutor} used to query connectors in
+   * parallel.  If {@code null}, the connectors are queried serially.
+   *
+   * @param executor an {@link AuthorizationExecutor}, or {@code null}
+   */
+  public static void setAuthorizationExecutor(AuthorizationExecutor executor) {
+    sharedExecutor = executor;
+  }
+
   AuthorizationHandler(String xmlBody, Manager manager, PrintWriter out) {
     this.xmlBody = xmlBody;
     this.manager = manager;
     this.out = out;
-    results = new HashMap<AuthorizationResource, AuthorizationResponse.Status>();
+    this.executor = sharedExecutor;
+    results = null;
+  }
+
+  /**
+   * Constructs a handler that parses the request as it is read from the
+   * given stream.
+   *
+   * @param in the request body
+   * @param encoding the character encoding of the request body, or
+   *        {@code null} to detect it from the XML declaration
+   * @param manager the {@link Manager}
+   * @param out the writer for the response
+   */
+  AuthorizationHandler(InputStream in, String encoding, Manager manager,
+      PrintWriter out) {
+    this((String) null, manager, out);
+    this.in = in;
+    this.encoding = encoding;
   }
 
   /**
@@ -76,35 +132,56 @@ public class AuthorizationHandler {
   public void handleDoPost() {
     NDC.pushAppend("AuthZ");
     try {
-      AuthorizationParser authorizationParser =
-          new AuthorizationParser(xmlBody);
+      AuthorizationParser authorizationParser = (xmlBody == null)
+          ? new AuthorizationParser(in, encoding)
+          : new AuthorizationParser(xmlBody);
       status = authorizationParser.getStatus();
       if (status.getMessageId() ==
           ConnectorMessageCode.ERROR_PARSING_XML_REQUEST) {
         ServletUtil.writeResponse(out,status);
         return;
       }
+      ServletUtil.writeRootTag(out, false);
       computeResultSet(authorizationParser);
-      generateXml();
+      if (results != null) {
+        writeResults(results);
+      }
+      if (hasAnswers) {
+        ServletUtil.writeXMLTag(out, 1, ServletUtil.XMLTAG_AUTHZ_RESPONSE,
+                                true);
+      }
+      ServletUtil.writeMessageCode(out, status);
+      ServletUtil.writeRootTag(out, true);
     } finally {
       NDC.pop();
     }
   }
 
-  private void generateXml() {
-    ServletUtil.writeRootTag(out, false);
-    if (results.size() > 0) {
-      ServletUtil.writeXMLTag(out, 1, ServletUtil.XMLTAG_AUTHZ_RESPONSE, false);
-      generateEachResultXml();
-      ServletUtil.writeXMLTag(out, 1, ServletUtil.XMLTAG_AUTHZ_RESPONSE, true);
+  /**
+   * Adds the decisions of one query to the response.  Unless the decisions
+   * are being collected, they are written and flushed immediately, so the
+   * answers from the faster connectors are sent while waiting for the
+   * slower ones.
+   */
+  private void addResults(
+      Map<AuthorizationResource, AuthorizationResponse.Status> decisions) {
+    if (results != null) {
+      results.putAll(decisions);
+    } else if (!decisions.isEmpty()) {
+      writeResults(decisions);
+      out.flush();
     }
-    ServletUtil.writeMessageCode(out, status);
-    ServletUtil.writeRootTag(out, true);
   }
 
-  private void generateEachResultXml() {
+  private void writeResults(
+      Map<AuthorizationResource, AuthorizationResponse.Status> decisions) {
     for (Entry<AuthorizationResource, AuthorizationResponse.Status> e :
-         results.entrySet()) {
+         decisions.entrySet()) {
+      if (!hasAnswers) {
+        ServletUtil.writeXMLTag(out, 1, ServletUtil.XMLTAG_AUTHZ_RESPONSE,
+                                false);
+        hasAnswers = true;
+      }
       writeResultElement(e.getKey(), e.getValue());
     }
   }
@@ -132,61 +209,225 @@ public class AuthorizationHandler {
   }
 
   private void computeResultSet(AuthorizationParser authorizationParser) {
+    List<ConnectorQuery> queries = new ArrayList<ConnectorQuery>();
     for (AuthenticationIdentity identity: authorizationParser.getIdentities()) {
-      NDC.pushAppend(identity.getUsername());
+      ConnectorQueries urlsByConnector =
+          authorizationParser.getConnectorQueriesForIdentity(identity);
+      for (String connectorName : urlsByConnector.getConnectors()) {
+        QueryResources urlsByDocid =
+            urlsByConnector.getQueryResources(connectorName);
+        List<String> docids = new ArrayList<String>(urlsByDocid.getDocids());
+        int batchSize = getBatchSize(connectorName);
+        if (batchSize > 0 && docids.size() > batchSize) {
+          for (List<String> batch : Lists.partition(docids, batchSize)) {
+            queries.add(new ConnectorQuery(identity, connectorName,
+                urlsByDocid, batch));
+          }
+        } else {
+          queries.add(new ConnectorQuery(identity, connectorName,
+              urlsByDocid, docids));
+        }
+      }
+    }
+    // A single query gains nothing from another thread, unless the
+    // executor is needed to enforce the time limit.
+    if (executor != null && (queries.size() > 1
+        || (queries.size() == 1 && executor.getTimeoutMillis() > 0))) {
       try {
-        ConnectorQueries queries =
-            authorizationParser.getConnectorQueriesForIdentity(identity);
-        runManagerQueries(identity, queries);
-      } finally {
-        NDC.pop();
+        runParallelQueries(queries);
+        return;
+      } catch (RejectedExecutionException e) {
+        LOGGER.warning("Authorization executor has been stopped;"
+            + " querying connectors serially.");
+      }
+    }
+    for (ConnectorQuery query : queries) {
+      addResults(query.call());
+    }
+  }
+
+  /**
+   * Returns the maximum number of documents in a query of the given
+   * connector, or zero or less for no limit.
+   */
+  private int getBatchSize(String connectorName) {
+    if (executor == null) {
+      return 0;
+    }
+    String connectorType = null;
+    if (executor.hasTypeBatchSizes()) {
+      try {
+        connectorType = manager.getConnectorStatus(connectorName).getType();
+      } catch (ConnectorNotFoundException e) {
+        // Use the default batch size. The query will fail anyway.
       }
     }
+    return executor.getBatchSize(connectorType);
   }
 
-  private void runManagerQueries(AuthenticationIdentity identity,
-      ConnectorQueries urlsByConnector) {
-    for (String connectorName : urlsByConnector.getConnectors()) {
-      NDC.pushAppend(connectorName);
+  /**
+   * Runs the queries in parallel on the {@link AuthorizationExecutor}.
+   * Without a time limit, this thread runs some of the queries itself.
+   * Each query returns its own decisions, which are added to the response
+   * on this thread as each query completes.  Queries that do not complete
+   * in time are canceled, and their documents are {@code INDETERMINATE}.
+   */
+  private void runParallelQueries(List<ConnectorQuery> queries) {
+    BlockingQueue<Future<Map<AuthorizationResource,
+        AuthorizationResponse.Status>>> completionQueue = new
+        LinkedBlockingQueue<Future<Map<AuthorizationResource,
+        AuthorizationResponse.Status>>>();
+    long timeoutMillis = executor.getTimeoutMillis();
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    List<Future<Map<AuthorizationResource, AuthorizationResponse.Status>>>
+        futures = executor.submitAll(queries, timeoutMillis, completionQueue);
+    Map<Future<?>, ConnectorQuery> pending =
+        new LinkedHashMap<Future<?>, ConnectorQuery>();
+    for (int i = 0; i < futures.size(); i++) {
+      pending.put(futures.get(i), queries.get(i));
+    }
+
+    try {
+      while (!pending.isEmpty()) {
+        Future<Map<AuthorizationResource, AuthorizationResponse.Status>>
+            future;
+        if (timeoutMillis > 0) {
+          long remaining = deadline - System.currentTimeMillis();
+          future = (remaining > 0)
+              ? completionQueue.poll(remaining, TimeUnit.MILLISECONDS)
+              : null;
+          if (future == null) {
+            break;
+          }
+        } else {
+          future = completionQueue.take();
+        }
+        ConnectorQuery query = pending.remove(future);
+        try {
+          addResults(future.get());
+        } catch (ExecutionException e) {
+          LOGGER.log(Level.WARNING, "Authorization failed for connector "
+              + query.connectorName + ": " + query.identity.getUsername(),
+              e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      LOGGER.warning("Interrupted while waiting for authorization.");
+      Thread.currentThread().interrupt();
+    }
+
+    for (Entry<Future<?>, ConnectorQuery> entry : pending.entrySet()) {
+      entry.getKey().cancel(true);
+      ConnectorQuery query = entry.getValue();
+      LOGGER.warning("Authorization by connector " + query.connectorName
+          + " for " + query.identity.getUsername()
+          + " did not complete in time.");
+      MetricsRegistry.getInstance()
+          .getCounter(Metric.AUTHORIZATION_TIMEOUTS, query.connectorName)
+          .increment();
+      addResults(query.getIndeterminateResults());
+    }
+  }
+
+  /**
+   * A query of one connector for a batch of the documents requested for
+   * one identity.  The query returns its decisions, rather than adding
+   * them to the shared {@code results}, so that it may run on another
+   * thread.
+   */
+  private class ConnectorQuery implements
+      Callable<Map<AuthorizationResource, AuthorizationResponse.Status>> {
+    private final AuthenticationIdentity identity;
+    private final String connectorName;
+    private final QueryResources urlsByDocid;
+    private final List<String> docids;
+    private final String context;
+
+    ConnectorQuery(AuthenticationIdentity identity, String connectorName,
+        QueryResources urlsByDocid, List<String> docids) {
+      this.identity = identity;
+      this.connectorName = connectorName;
+      this.urlsByDocid = urlsByDocid;
+      this.docids = docids;
+      // Capture the diagnostic context of the request thread.
+      String current = NDC.peek();
+      this.context = ((current.length() > 0) ? current + " " : "")
+          + identity.getUsername() + " " + connectorName;
+    }
+
+    @Override
+    public Map<AuthorizationResource, AuthorizationResponse.Status> call() {
+      NDC.push(context);
       try {
-        // TODO [bmj]: It is conceivable that multiple URLs (resources) could
-        // map to the same repository document (docid).  We should handle the
-        // duplicates, somehow?
-        QueryResources urlsByDocid = urlsByConnector.getQueryResources(connectorName);
-        List<String> docidList = new ArrayList<String>(urlsByDocid.getDocids());
-        Collection<AuthorizationResponse> answerSet =
-            manager.authorizeDocids(connectorName, docidList, identity);
-        if (answerSet != null) {
-          accumulateQueryResults(answerSet, urlsByDocid);
+        // Copy the batch, since the connector may modify it.
+        List<String> docidList = new ArrayList<String>(docids);
+        long start = System.nanoTime();
+        Collection<AuthorizationResponse> answerSet;
+        try {
+          answerSet =
+              manager.authorizeDocids(connectorName, docidList, identity);
+        } finally {
+          MetricsRegistry.getInstance()
+              .getHistogram(Metric.AUTHORIZATION_LATENCY, connectorName)
+              .record((System.nanoTime() - start) / 1000000L);
         }
+        if (answerSet == null) {
+          return Collections.emptyMap();
+        }
+        return accumulateQueryResults(answerSet, urlsByDocid, docids);
       } finally {
         NDC.pop();
       }
     }
+
+    /** Returns {@code INDETERMINATE} for each of the requested documents. */
+    Map<AuthorizationResource, AuthorizationResponse.Status>
+        getIndeterminateResults() {
+      Map<AuthorizationResource, AuthorizationResponse.Status> decisions =
+          new LinkedHashMap<AuthorizationResource,
+                            AuthorizationResponse.Status>();
+      for (String docid : docids) {
+        for (AuthorizationResource resource :
+                 urlsByDocid.getResources(docid)) {
+          decisions.put(resource, AuthorizationResponse.Status.INDETERMINATE);
+        }
+      }
+      return decisions;
+    }
   }
 
-  private void accumulateQueryResults(Collection<AuthorizationResponse> answerSet,
-      QueryResources urlsByDocid) {
-    Set<String> docids = new HashSet<String>(urlsByDocid.getDocids());
+  private Map<AuthorizationResource, AuthorizationResponse.Status>
+      accumulateQueryResults(Collection<AuthorizationResponse> answerSet,
+      QueryResources urlsByDocid, List<String> queried) {
+    Map<AuthorizationResource, AuthorizationResponse.Status> decisions =
+        new LinkedHashMap<AuthorizationResource,
+                          AuthorizationResponse.Status>();
+    Set<String> docids = new HashSet<String>(queried);
+    Set<String> unanswered = new HashSet<String>(queried);
     for (AuthorizationResponse response : answerSet) {
       String docid = response.getDocid();
-      AuthorizationResource resource = urlsByDocid.getResource(docid);
-      if (resource == null) {
+      if (!docids.contains(docid)) {
         LOGGER.warning("Received unexpected AuthorizationResponse for document "
                        + docid);
       } else {
-        results.put(resource, response.getStatus());
-        docids.remove(docid);
+        // The answer applies to every resource for the document.
+        for (AuthorizationResource resource :
+                 urlsByDocid.getResources(docid)) {
+          decisions.put(resource, response.getStatus());
+        }
+        unanswered.remove(docid);
       }
     }
     // Return DENY for documents not returned by connector.
-    for (String docid : docids) {
-      AuthorizationResource resource = urlsByDocid.getResource(docid);
-      results.put(resource, AuthorizationResponse.Status.DENY);
+    for (String docid : unanswered) {
+      for (AuthorizationResource resource : urlsByDocid.getResources(docid)) {
+        decisions.put(resource, AuthorizationResponse.Status.DENY);
+      }
       if (LOGGER.isLoggable(Level.FINEST)) {
         LOGGER.finest("AUTHORIZED " + docid + ": "
                       + AuthorizationResponse.Status.DENY);
       }
     }
+    return decisions;
   }
 }
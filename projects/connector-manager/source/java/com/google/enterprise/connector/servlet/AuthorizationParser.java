@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.servlet;
 
+import com.google.common.base.Strings;
 import com.google.enterprise.connector.spi.AuthenticationIdentity;
 import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
 import com.google.enterprise.connector.util.XmlParseUtil;
@@ -21,12 +22,20 @@ import com.google.enterprise.connector.util.XmlParseUtil;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
 /**
  * This class parses the xml body of an Authorization request.
  * <p>
@@ -51,17 +60,43 @@ public class AuthorizationParser {
   private static final Logger LOGGER =
       Logger.getLogger(AuthorizationParser.class.getName());
 
-  private final String xmlBody;
+  private static final XMLInputFactory INPUT_FACTORY = newInputFactory();
+
   private ConnectorMessageCode status;
   private int numDocs;
   private final Map<AuthenticationIdentity, ConnectorQueries> parseMap;
 
-  public AuthorizationParser(String xmlBody) {
-    this.xmlBody = xmlBody;
+  private AuthorizationParser() {
     parseMap = new HashMap<AuthenticationIdentity, ConnectorQueries>();
     status = new ConnectorMessageCode();
     numDocs = 0;
-    parse();
+  }
+
+  public AuthorizationParser(String xmlBody) {
+    this();
+    parse(xmlBody);
+  }
+
+  /**
+   * Parses the request as it is read from the given stream, without
+   * building a DOM for it.  Large batched requests are parsed with far less
+   * garbage than the request body as a {@code String} and its DOM.
+   *
+   * @param in the request body
+   * @param encoding the character encoding of the request body, or
+   *        {@code null} to detect it from the XML declaration
+   */
+  public AuthorizationParser(InputStream in, String encoding) {
+    this();
+    parse(in, encoding);
+  }
+
+  private static XMLInputFactory newInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                        Boolean.FALSE);
+    return factory;
   }
 
   /**
@@ -84,7 +119,7 @@ public class AuthorizationParser {
    * two levels (AuthorizationParser and ConnectorQueries) each have only one
    * item.
    */
-  private void parse() {
+  private void parse(String xmlBody) {
     Element root = XmlParseUtil.parseAndGetRootElement(xmlBody,
         ServletUtil.XMLTAG_AUTHZ_QUERY);
 
@@ -106,12 +141,6 @@ public class AuthorizationParser {
     for (int i = 0; i < queryList.getLength(); ++i) {
       Element queryItem = (Element) queryList.item(i);
       AuthenticationIdentity identity = parseIdentityGroup(queryItem);
-      // Only consider Resources for which there is an associated identity.
-      // A null Identity is considered an error on the part of the GSA.
-      // Skip all its resources and continue with the next ConnectorQuery item.
-      // Subsequently, this ConnectorQuery will not run and none of its
-      // QueryResources will be returned. The GSA will then consider them
-      // INDETERMINATE.
       if (identity != null) {
         parseResourceGroup(identity, queryItem);
       }
@@ -123,6 +152,146 @@ public class AuthorizationParser {
     }
   }
 
+  /**
+   * Parses the Authorization Request XML from a stream into the same
+   * hierarchy as {@link #parse(String)}.  The {@code Resource} elements of
+   * each {@code ConnectorQuery} are kept until the end of the
+   * {@code ConnectorQuery}, since its {@code Identity} might follow them.
+   */
+  private void parse(InputStream in, String encoding) {
+    try {
+      XMLStreamReader reader = (encoding == null)
+          ? INPUT_FACTORY.createXMLStreamReader(in)
+          : INPUT_FACTORY.createXMLStreamReader(in, encoding);
+      try {
+        if (!nextElement(reader, ServletUtil.XMLTAG_AUTHZ_QUERY)) {
+          LOGGER.log(Level.WARNING, "Empty node: "
+              + ServletUtil.XMLTAG_AUTHZ_QUERY);
+          setStatus(ConnectorMessageCode.ERROR_PARSING_XML_REQUEST);
+          return;
+        }
+        int queries = 0;
+        while (nextElement(reader, ServletUtil.XMLTAG_CONNECTOR_QUERY)) {
+          parseConnectorQuery(reader);
+          queries++;
+        }
+        if (queries == 0) {
+          LOGGER.log(Level.WARNING, ServletUtil.LOG_RESPONSE_EMPTY_NODE);
+        } else if (numDocs == 0) {
+          LOGGER.warning("No docid available.");
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException e) {
+      LOGGER.log(Level.SEVERE, "XML parsing exception", e);
+      // As with the DOM parser, a malformed request yields nothing.
+      parseMap.clear();
+      numDocs = 0;
+      status = new ConnectorMessageCode();
+      setStatus(ConnectorMessageCode.ERROR_PARSING_XML_REQUEST);
+    }
+  }
+
+  /**
+   * Advances the reader to the next start tag with the given name.
+   *
+   * @return {@code true} if the element was found, or {@code false} if the
+   *         end of the document was reached
+   */
+  private static boolean nextElement(XMLStreamReader reader, String name)
+      throws XMLStreamException {
+    while (reader.hasNext()) {
+      if (reader.next() == XMLStreamConstants.START_ELEMENT
+          && name.equals(reader.getLocalName())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the text of the current element, up to its end tag.  Like the
+   * DOM parser, this returns {@code null} for an empty element, and ignores
+   * any text that follows a child element.
+   */
+  private static String readText(XMLStreamReader reader)
+      throws XMLStreamException {
+    StringBuilder text = null;
+    boolean hasChild = false;
+    int depth = 1;
+    while (depth > 0) {
+      switch (reader.next()) {
+        case XMLStreamConstants.START_ELEMENT:
+          hasChild = true;
+          depth++;
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          depth--;
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+          if (!hasChild) {
+            if (text == null) {
+              text = new StringBuilder();
+            }
+            text.append(reader.getText());
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return (text == null) ? null : text.toString();
+  }
+
+  /**
+   * Parses a {@code ConnectorQuery} element, up to its end tag.
+   */
+  private void parseConnectorQuery(XMLStreamReader reader)
+      throws XMLStreamException {
+    boolean hasIdentity = false;
+    String username = null;
+    String domain = null;
+    String password = null;
+    List<AuthorizationResource> resources =
+        new ArrayList<AuthorizationResource>();
+    int depth = 1;
+    while (depth > 0) {
+      switch (reader.next()) {
+        case XMLStreamConstants.START_ELEMENT:
+          String name = reader.getLocalName();
+          if (ServletUtil.XMLTAG_IDENTITY.equals(name) && !hasIdentity) {
+            hasIdentity = true;
+            domain = Strings.nullToEmpty(reader.getAttributeValue(null,
+                ServletUtil.XMLTAG_DOMAIN_ATTRIBUTE));
+            password = Strings.nullToEmpty(reader.getAttributeValue(null,
+                ServletUtil.XMLTAG_PASSWORD_ATTRIBUTE));
+            username = readText(reader);
+          } else if (ServletUtil.XMLTAG_RESOURCE.equals(name)) {
+            String connectorName = reader.getAttributeValue(null,
+                ServletUtil.XMLTAG_CONNECTOR_NAME_ATTRIBUTE);
+            resources.add(new AuthorizationResource(
+                Strings.nullToEmpty(readText(reader)), connectorName));
+          } else {
+            depth++;
+          }
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          depth--;
+          break;
+        default:
+          break;
+      }
+    }
+    AuthenticationIdentity identity =
+        addIdentity(username, password, domain);
+    if (identity != null) {
+      addResources(identity, resources);
+    }
+  }
+
   /**
    * Utility function to establish the first level mapping from the Identity
    * to the ConnectorQueries.
@@ -136,7 +305,24 @@ public class AuthorizationParser {
     String password =
         XmlParseUtil.getFirstAttribute(queryItem, ServletUtil.XMLTAG_IDENTITY,
         ServletUtil.XMLTAG_PASSWORD_ATTRIBUTE);
+    return addIdentity(username, password, domain);
+  }
 
+  /**
+   * Establishes the first level mapping from the Identity to the
+   * ConnectorQueries.
+   * <p>
+   * Only Resources for which there is an associated identity are
+   * considered.  A null Identity is considered an error on the part of the
+   * GSA.  The caller skips all its resources and continues with the next
+   * ConnectorQuery item.  Subsequently, this ConnectorQuery will not run
+   * and none of its QueryResources will be returned.  The GSA will then
+   * consider them INDETERMINATE.
+   *
+   * @return the identity, or {@code null} if the username is {@code null}
+   */
+  private AuthenticationIdentity addIdentity(String username, String password,
+      String domain) {
     if (username == null) {
       LOGGER.warning("Null Identity");
       // TODO: Is this the only way this can happen?
@@ -156,6 +342,22 @@ public class AuthorizationParser {
     return identity;
   }
 
+  /**
+   * Utility function to parse the Resource elements of a ConnectorQuery.
+   */
+  private void parseResourceGroup(AuthenticationIdentity identity,
+      Element queryItem) {
+    NodeList resourceList =
+        queryItem.getElementsByTagName(ServletUtil.XMLTAG_RESOURCE);
+    List<AuthorizationResource> resources =
+        new ArrayList<AuthorizationResource>(resourceList.getLength());
+    for (int i = 0; i < resourceList.getLength(); ++i) {
+      resources.add(
+          new AuthorizationResource((Element) resourceList.item(i)));
+    }
+    addResources(identity, resources);
+  }
+
   /**
    * Utility function to establish the second level mapping from the connector
    * name to the QueryResources and the third level mapping from the docid to the
@@ -167,11 +369,9 @@ public class AuthorizationParser {
    * Therefore, the resources are validated at this point to determine if they
    * can be routed to a connector for authorization.
    */
-  private void parseResourceGroup(AuthenticationIdentity identity,
-      Element queryItem) {
-    NodeList resourceList =
-        queryItem.getElementsByTagName(ServletUtil.XMLTAG_RESOURCE);
-    if (resourceList.getLength() == 0) {
+  private void addResources(AuthenticationIdentity identity,
+      List<AuthorizationResource> resources) {
+    if (resources.isEmpty()) {
       LOGGER.warning("Null Resources");
       setStatus(ConnectorMessageCode.RESPONSE_NULL_RESOURCE);
       return;
@@ -180,9 +380,7 @@ public class AuthorizationParser {
     // Get the ConnectorQueries for the given Identity.
     ConnectorQueries urlsByConnector =
         getConnectorQueriesForIdentity(identity);
-    for (int i = 0; i < resourceList.getLength(); ++i) {
-      Element resourceItem = (Element) resourceList.item(i);
-      AuthorizationResource resource = new AuthorizationResource(resourceItem);
+    for (AuthorizationResource resource : resources) {
       if (resource.getStatus() != ConnectorMessageCode.SUCCESS) {
         setStatus(resource.getStatus());
         // Skip this failed resource and continue with the next one.
@@ -198,8 +396,9 @@ public class AuthorizationParser {
           urlsByConnector.putQueryResources(resource.getConnectorName(),
               urlsByDocid);
         }
-        urlsByDocid.putResource(resource.getDocId(), resource);
-        numDocs++;
+        if (urlsByDocid.putResource(resource.getDocId(), resource)) {
+          numDocs++;
+        }
       }
     }
   }
@@ -318,32 +517,62 @@ public class AuthorizationParser {
 
   /**
    * {@code QueryResources} is a map from docid strings to the corresponding
-   * {@link AuthorizationResource}.
+   * {@link AuthorizationResource AuthorizationResources}.  Several resources
+   * with different URLs may refer to the same document, for instance a
+   * {@code googleconnector://} URL and a {@code getDocumentContent} URL.
+   * The docid is only asked about once, and the answer applies to all of
+   * them.
    */
   public static class QueryResources {
-    Map<String, AuthorizationResource> resourceMap;
+    Map<String, List<AuthorizationResource>> resourceMap;
 
     /*
      * Private constructor so this class can only be constructed by
      * AuthorizationParser.
      */
     private QueryResources() {
-      resourceMap = new HashMap<String, AuthorizationResource>();
+      resourceMap = new HashMap<String, List<AuthorizationResource>>();
     }
 
-    private void putResource(String docid, AuthorizationResource p) {
-      resourceMap.put(docid, p);
+    /**
+     * Adds the resource, unless there is already one with the same URL.
+     *
+     * @return {@code true} if the resource was added
+     */
+    private boolean putResource(String docid, AuthorizationResource p) {
+      List<AuthorizationResource> resources = resourceMap.get(docid);
+      if (resources == null) {
+        resources = new ArrayList<AuthorizationResource>(1);
+        resourceMap.put(docid, resources);
+      } else {
+        for (AuthorizationResource resource : resources) {
+          if (resource.getUrl().equals(p.getUrl())) {
+            return false;
+          }
+        }
+      }
+      resources.add(p);
+      return true;
     }
 
+    /** Returns the distinct docids. */
     public Collection<String> getDocids() {
       return resourceMap.keySet();
     }
 
+    /** Returns the number of distinct docids. */
     public int size() {
       return resourceMap.size();
     }
 
+    /** Returns the first resource for the docid, or {@code null}. */
     public AuthorizationResource getResource(String docid) {
+      List<AuthorizationResource> resources = resourceMap.get(docid);
+      return (resources == null) ? null : resources.get(0);
+    }
+
+    /** Returns all of the resources for the docid, or {@code null}. */
+    public List<AuthorizationResource> getResources(String docid) {
       return resourceMap.get(docid);
     }
   }
@@ -20,6 +20,9 @@ import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.manager.ConnectorManagerException;
 import com.google.enterprise.connector.manager.Context;
 import com.google.enterprise.connector.manager.Manager;
+import com.google.enterprise.connector.metrics.Counter;
+import com.google.enterprise.connector.metrics.Metric;
+import com.google.enterprise.connector.metrics.MetricsRegistry;
 import com.google.enterprise.connector.persist.ConnectorNotFoundException;
 import com.google.enterprise.connector.pusher.FeedConnection;
 import com.google.enterprise.connector.pusher.XmlFeed;
@@ -39,13 +42,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.text.ParseException;
+import java.util.Calendar;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -80,7 +86,27 @@ public class GetDocumentContent extends HttpServlet {
   private static final String EXTERNAL_METADATA_HEADER =
       "X-Gsa-External-Metadata";
 
+  /** Size of the buffers used to copy the document content. */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Maximum number of idle buffers kept for reuse. */
+  private static final int BUFFER_POOL_SIZE = 16;
+
+  /** Idle buffers, shared by all requests. */
+  private static final BlockingQueue<byte[]> bufferPool =
+      new ArrayBlockingQueue<byte[]>(BUFFER_POOL_SIZE);
+
+  /**
+   * Distinguished range denoting that the requested range does not overlap
+   * the document.
+   */
+  @VisibleForTesting
+  static final ByteRange UNSATISFIABLE_RANGE = new ByteRange(0L, -1L);
+
   private static boolean useCompression = false;
+  private static RetrieverCompressionPolicy compressionPolicy =
+      new RetrieverCompressionPolicy();
+  private static boolean supportRangeRequests = false;
   private static FeedConnection feedConnection;
   /**
    * GSA 7.0 introduces the ability to provide a HTTP header that specifies
@@ -93,6 +119,24 @@ public class GetDocumentContent extends HttpServlet {
     useCompression = doCompression;
   }
 
+  /**
+   * Sets the policy that decides whether, and how hard, to compress the
+   * content of a document, when compression is enabled.
+   */
+  public static void setCompressionPolicy(RetrieverCompressionPolicy policy) {
+    compressionPolicy = policy;
+  }
+
+  /**
+   * Sets whether HEAD requests and single byte range GET requests are
+   * served.  Otherwise they are denied, since older GSAs use them to check
+   * authorization, and would take a response as permission to see the
+   * document.
+   */
+  public static void setSupportRangeRequests(boolean supportRanges) {
+    supportRangeRequests = supportRanges;
+  }
+
   /**
    * Set the feed connection to use to discover if the security header is
    * supported. This must be set during startup to take effect.
@@ -117,8 +161,6 @@ public class GetDocumentContent extends HttpServlet {
     return securityHeaderSupported;
   }
 
-  // TODO: Range requests?
-
   /**
    * Retrieves the content of a document from a connector instance.
    *
@@ -145,6 +187,20 @@ public class GetDocumentContent extends HttpServlet {
     doGet(req, res, Context.getInstance().getManager());
   }
 
+  /**
+   * Returns the headers that a GET request of the document would return,
+   * without retrieving the content.
+   *
+   * @param req
+   * @param res
+   * @throws IOException
+   */
+  @Override
+  protected void doHead(HttpServletRequest req, HttpServletResponse res)
+      throws IOException {
+    doGet(req, res, Context.getInstance().getManager());
+  }
+
   /**
    * Fetches the last modified date for the document, in milliseconds since
    * the epoch; or -1 if the last modified date is not known or unavailable.
@@ -156,6 +212,24 @@ public class GetDocumentContent extends HttpServlet {
    */
   @Override
   protected long getLastModified(HttpServletRequest req) {
+    return getLastModified(req, Context.getInstance().getManager());
+  }
+
+  /**
+   * Fetches the last modified date for the document, in milliseconds since
+   * the epoch; or -1 if the last modified date is not known or unavailable.
+   * For conditional requests, the connector is first asked for only the
+   * date, so that an unchanged document may be answered with a 304 Not
+   * Modified response without retrieving its metadata.
+   *
+   * @param req
+   * @param manager manager to use for retrieving document information
+   * @return a long integer specifying the time the document was last modified,
+   * in milliseconds since midnight, January 1, 1970 GMT, or -1 if the time is
+   * not known.
+   */
+  @VisibleForTesting
+  static long getLastModified(HttpServletRequest req, Manager manager) {
     Map<String, List<String>> params = getQueryParams(req);
     String connectorName = ServletUtil.getFirstParameter(
         params, ServletUtil.XMLTAG_CONNECTOR_NAME);
@@ -164,8 +238,33 @@ public class GetDocumentContent extends HttpServlet {
     if (Strings.isNullOrEmpty(connectorName) || Strings.isNullOrEmpty(docid)) {
       return -1L;
     }
+    if (req.getHeader(HDR_IF_MODIFIED) != null) {
+      Calendar lastModified =
+          getLastModifiedNoThrow(manager, connectorName, docid);
+      if (lastModified != null) {
+        LOGGER.log(Level.FINEST, "Document last modified {0}",
+                   lastModified.getTime());
+        return lastModified.getTimeInMillis();
+      }
+    }
     return handleGetLastModified(getDocumentMetaDataNoThrow(req,
-        Context.getInstance().getManager(), connectorName, docid));
+        manager, connectorName, docid));
+  }
+
+  /**
+   * Returns the last modified date supplied directly by the connector, or
+   * {@code null} if it is unavailable.  Failures are left for the metadata
+   * retrieval to report.
+   */
+  private static Calendar getLastModifiedNoThrow(Manager manager,
+      String connectorName, String docid) {
+    try {
+      return manager.getLastModified(connectorName, docid);
+    } catch (ConnectorManagerException e) {
+      return null;
+    } catch (RepositoryException e) {
+      return null;
+    }
   }
 
   /**
@@ -194,15 +293,17 @@ public class GetDocumentContent extends HttpServlet {
       Manager manager) throws IOException {
     // The servlet relies on proper security to be handled by a filter.
 
+    boolean isHead = "HEAD".equals(req.getMethod());
+    String range = req.getHeader("Range");
     if ("SecMgr".equals(req.getHeader("User-Agent")) || 
-        req.getHeader("Range") != null ||
-        "HEAD".equals(req.getMethod())) {
+        (!supportRangeRequests && (range != null || isHead))) {
       // GSA does a GET with Range:0-0 to simulate head request.
       // Assume that a "HEAD" request to check authz is being performed
       // due to presence of Range header.
       // We don't support authz by hr so we always issue deny.
       // TODO(ejona): Remove checking for Range header and HEAD once 
       // Legacy Authz is removed from supported GSA versions.
+      // Until then, they are only served if explicitly configured.
       LOGGER.finest("RETRIEVER: Head request denied");
       res.sendError(HttpServletResponse.SC_FORBIDDEN);
       return;
@@ -240,7 +341,47 @@ public class GetDocumentContent extends HttpServlet {
     res.setContentType(mimeType);
 
     Integer contentLength = handleGetContentLength(metadata);
-    if (contentLength != null) {
+    ByteRange byteRange = null;
+    if (supportRangeRequests && contentLength != null) {
+      res.setHeader("Accept-Ranges", "bytes");
+      // If-Range can't be validated, so send the whole document instead.
+      if (range != null && !isHead && req.getHeader("If-Range") == null) {
+        byteRange = parseRange(range, contentLength);
+      }
+    }
+
+    // Content-Range refers to the uncompressed content.
+    int compressionLevel = Deflater.NO_COMPRESSION;
+    if (useCompression && byteRange == null) {
+      int level = compressionPolicy.getCompressionLevel(mimeType,
+                                                        contentLength);
+      if (level != Deflater.NO_COMPRESSION) {
+        // Select Content-Encoding based on the client's Accept-Encoding
+        // header.  Choose GZIP if the header includes "gzip", otherwise
+        // no compression.
+        String encodings = req.getHeader("Accept-Encoding");
+        if (encodings != null && encodings.matches(".*\\bgzip\\b.*")) {
+          res.setHeader("Content-Encoding", "gzip");
+          compressionLevel = level;
+        }
+        res.setHeader("Vary", "Accept-Encoding");
+      }
+    }
+    if (byteRange == UNSATISFIABLE_RANGE) {
+      LOGGER.log(Level.FINEST, "Unsatisfiable range {0}", range);
+      res.setHeader("Content-Range", "bytes */" + contentLength);
+      res.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      NDC.pop();
+      return;
+    } else if (byteRange != null) {
+      LOGGER.log(Level.FINEST, "Document Content-Range {0}", byteRange);
+      res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      res.setHeader("Content-Range", "bytes " + byteRange.first + "-"
+          + byteRange.last + "/" + contentLength);
+      res.setContentLength((int) byteRange.getLength());
+    } else if (contentLength != null
+               && compressionLevel == Deflater.NO_COMPRESSION) {
+      // The compressed length is not known in advance.
       LOGGER.log(Level.FINEST, "Document Content-Length {0}", contentLength);
       res.setContentLength(contentLength);
     }
@@ -250,25 +391,26 @@ public class GetDocumentContent extends HttpServlet {
       res.setHeader(EXTERNAL_METADATA_HEADER, getMetadataHeader(metadata));
     }
 
+    if (isHead) {
+      res.setStatus(HttpServletResponse.SC_OK);
+      NDC.pop();
+      return;
+    }
+
     OutputStream out = res.getOutputStream();
-    if (useCompression) {
-      // Select Content-Encoding based on the client's Accept-Encoding header.
-      // Choose GZIP if the header includes "gzip", otherwise no compression.
-      String encodings = req.getHeader("Accept-Encoding");
-      if (encodings != null && encodings.matches(".*\\bgzip\\b.*")) {
-        res.setHeader("Content-Encoding", "gzip");
-        out = new GZIPOutputStream(out, 64 * 1024);
-      }
-      res.setHeader("Vary", "Accept-Encoding");
+    if (compressionLevel != Deflater.NO_COMPRESSION) {
+      LOGGER.log(Level.FINEST, "Compressing content at level {0}",
+                 compressionLevel);
+      out = compressionPolicy.newGzipOutputStream(out, compressionLevel);
     }
 
     // TODO: Configure chunked output?
 
     try {
-      int code = handleDoGet(manager, connectorName, docid, out);
+      int code = handleDoGet(manager, connectorName, docid, out, byteRange);
       if (code != HttpServletResponse.SC_OK) {
         res.sendError(code);
-      } else {
+      } else if (byteRange == null) {
         res.setStatus(code);
       }
     } finally {
@@ -344,7 +486,28 @@ public class GetDocumentContent extends HttpServlet {
   @VisibleForTesting
   static int handleDoGet(Manager manager, String connectorName, String docid,
       OutputStream out) throws IOException {
+    return handleDoGet(manager, connectorName, docid, out, null);
+  }
+
+  /**
+   * Retrieves a range of the content of a document from a connector
+   * instance.
+   *
+   * @param manager a Manager
+   * @param connectorName the name of the connector instance that
+   *        can access the document
+   * @param docId the document identifer
+   * @param out OutputStream to which to write the content
+   * @param byteRange the range of the content to write, or {@code null}
+   *        to write all of it
+   * @return an HTTP Status Code
+   * @throws IOException
+   */
+  @VisibleForTesting
+  static int handleDoGet(Manager manager, String connectorName, String docid,
+      OutputStream out, ByteRange byteRange) throws IOException {
     InputStream in = null;
+    byte[] buffer = null;
     try {
       in = manager.getDocumentContent(connectorName, docid);
       if (in == null) {
@@ -352,24 +515,139 @@ public class GetDocumentContent extends HttpServlet {
         // will return an AlternateContent InputStream.
         in = new ByteArrayInputStream(new byte[0]);
       }
-      byte[] buffer = new byte[1024 * 1024];
-      int bytes;
-      do {
-        bytes = in.read(buffer);
+      buffer = getBuffer();
+      Counter bytesServed = MetricsRegistry.getInstance()
+          .getCounter(Metric.RETRIEVER_BYTES, connectorName);
+      long remaining;
+      if (byteRange == null) {
+        remaining = Long.MAX_VALUE;
+      } else {
+        // The content is read rather than skipped, since the filters
+        // wrapping the connector's stream only see what is read.
+        long skip = byteRange.first;
+        while (skip > 0) {
+          int bytes = in.read(buffer, 0, (int) Math.min(skip, buffer.length));
+          if (bytes == -1) {
+            break;
+          }
+          skip -= bytes;
+        }
+        remaining = byteRange.getLength();
+      }
+      while (remaining > 0) {
+        int bytes =
+            in.read(buffer, 0, (int) Math.min(remaining, buffer.length));
+        if (bytes == -1) {
+          break;
+        }
         if (bytes > 0) {
           out.write(buffer, 0, bytes);
+          bytesServed.add(bytes);
+          remaining -= bytes;
         }
-      } while (bytes != -1);
+      }
       return HttpServletResponse.SC_OK;
     } catch (Exception e) {
       return handleException("content", e);
     } finally {
+      if (buffer != null) {
+        releaseBuffer(buffer);
+      }
       if (in != null) {
         in.close();
       }
     }
   }
 
+  /** Returns an idle buffer, or a new one if there are none. */
+  private static byte[] getBuffer() {
+    byte[] buffer = bufferPool.poll();
+    return (buffer == null) ? new byte[BUFFER_SIZE] : buffer;
+  }
+
+  /** Returns a buffer to the pool, unless the pool is full. */
+  private static void releaseBuffer(byte[] buffer) {
+    bufferPool.offer(buffer);
+  }
+
+  /**
+   * Parses the value of a {@code Range} header.  Only a single byte range
+   * is supported.
+   *
+   * @param range the value of the {@code Range} header
+   * @param contentLength the length of the document
+   * @return the requested range, limited to the length of the document;
+   *         {@link #UNSATISFIABLE_RANGE} if the range does not overlap the
+   *         document; or {@code null} if the header is malformed or asks
+   *         for more than one range, in which case the whole document
+   *         should be returned
+   */
+  @VisibleForTesting
+  static ByteRange parseRange(String range, long contentLength) {
+    String prefix = "bytes=";
+    range = range.trim();
+    if (!range.regionMatches(true, 0, prefix, 0, prefix.length())
+        || range.indexOf(',') >= 0) {
+      return null;
+    }
+    String spec = range.substring(prefix.length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    String firstStr = spec.substring(0, dash).trim();
+    String lastStr = spec.substring(dash + 1).trim();
+    try {
+      long first;
+      long last;
+      if (firstStr.length() == 0) {
+        // A suffix range, giving the number of bytes at the end.
+        long suffixLength = Long.parseLong(lastStr);
+        if (suffixLength < 0) {
+          return null;
+        } else if (suffixLength == 0 || contentLength == 0) {
+          return UNSATISFIABLE_RANGE;
+        }
+        first = Math.max(0L, contentLength - suffixLength);
+        last = contentLength - 1;
+      } else {
+        first = Long.parseLong(firstStr);
+        last = (lastStr.length() == 0)
+            ? Long.MAX_VALUE : Long.parseLong(lastStr);
+        if (first < 0 || last < first) {
+          return null;
+        } else if (first >= contentLength) {
+          return UNSATISFIABLE_RANGE;
+        }
+        last = Math.min(last, contentLength - 1);
+      }
+      return new ByteRange(first, last);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** A range of bytes in a document, from first to last, inclusive. */
+  @VisibleForTesting
+  static class ByteRange {
+    final long first;
+    final long last;
+
+    ByteRange(long first, long last) {
+      this.first = first;
+      this.last = last;
+    }
+
+    long getLength() {
+      return last - first + 1;
+    }
+
+    @Override
+    public String toString() {
+      return first + "-" + last;
+    }
+  }
+
   /**
    * Retrieve and cache the metadata of the currently requested document.
    * The metadata is cached for the life of the servlet request.
@@ -0,0 +1,236 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.servlet;
+
+import com.google.enterprise.connector.common.Histogram;
+import com.google.enterprise.connector.logging.NDC;
+import com.google.enterprise.connector.metrics.Counter;
+import com.google.enterprise.connector.metrics.Gauge;
+import com.google.enterprise.connector.metrics.Metric;
+import com.google.enterprise.connector.metrics.MetricsRegistry;
+import com.google.enterprise.connector.spi.XmlUtils;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Admin servlet to get the Connector Manager metrics, such as documents
+ * traversed and feed post latencies for each connector instance.  The
+ * metrics are returned as XML, or in the Prometheus text format if the
+ * {@code format} parameter is {@code prometheus}.
+ */
+public class GetMetrics extends HttpServlet {
+  public static final String QUERY_PARAM_FORMAT = "format";
+  public static final String FORMAT_PROMETHEUS = "prometheus";
+
+  /** The content type of the Prometheus text format. */
+  public static final String MIMETYPE_PROMETHEUS =
+      "text/plain; version=0.0.4";
+
+  /**
+   * Returns the metrics.
+   *
+   * @param req
+   * @param res
+   * @throws IOException
+   */
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse res)
+      throws IOException {
+    // Make sure this requester is OK
+    if (!RemoteAddressFilter.getInstance()
+          .allowed(RemoteAddressFilter.Access.BLACK, req.getRemoteAddr())) {
+      res.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    String format = req.getParameter(QUERY_PARAM_FORMAT);
+    res.setContentType(FORMAT_PROMETHEUS.equalsIgnoreCase(format)
+        ? MIMETYPE_PROMETHEUS : ServletUtil.MIMETYPE_XML);
+    res.setCharacterEncoding("UTF-8");
+    PrintWriter out = res.getWriter();
+    NDC.pushAppend("Metrics");
+    try {
+      handleDoGet(MetricsRegistry.getInstance(), format, out);
+    } finally {
+      out.close();
+      NDC.pop();
+    }
+  }
+
+  /**
+   * Returns the metrics.
+   *
+   * @param req
+   * @param res
+   * @throws IOException
+   */
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse res)
+      throws IOException {
+    doGet(req, res);
+  }
+
+  /**
+   * Handler for doGet in order to do unit tests.
+   *
+   * @param registry the {@link MetricsRegistry} to write
+   * @param format the requested format, or {@code null} for XML
+   * @param out PrintWriter where the response is written
+   */
+  public static void handleDoGet(MetricsRegistry registry, String format,
+      PrintWriter out) throws IOException {
+    if (FORMAT_PROMETHEUS.equalsIgnoreCase(format)) {
+      writePrometheus(registry.getMetrics(), out);
+    } else {
+      writeXml(registry.getMetrics(), out);
+    }
+  }
+
+  /**
+   * Writes the metrics as XML.  Each series is written as a {@code Metric}
+   * element with attributes for the name, type, and labels.  Histograms
+   * include a cumulative count for each bucket, as in Prometheus.
+   */
+  private static void writeXml(
+      SortedMap<Metric, SortedMap<List<String>, Object>> metrics,
+      PrintWriter out) throws IOException {
+    ServletUtil.writeRootTag(out, false);
+    ServletUtil.writeStatusId(out, ConnectorMessageCode.SUCCESS);
+    ServletUtil.writeXMLTag(out, 1, ServletUtil.XMLTAG_METRICS, false);
+    for (Map.Entry<Metric, SortedMap<List<String>, Object>> entry
+             : metrics.entrySet()) {
+      Metric metric = entry.getKey();
+      String[] labelNames = metric.getLabelNames();
+      for (Map.Entry<List<String>, Object> series
+               : entry.getValue().entrySet()) {
+        StringBuilder attrs = new StringBuilder();
+        attrs.append(ServletUtil.ATTRIBUTE_NAME).append(metric.getName())
+            .append(ServletUtil.QUOTE);
+        XmlUtils.xmlAppendAttr("type", metric.getType().toString(), attrs);
+        for (int i = 0; i < labelNames.length; i++) {
+          XmlUtils.xmlAppendAttr(labelNames[i], series.getKey().get(i), attrs);
+        }
+        Object value = series.getValue();
+        if (value instanceof Histogram) {
+          Histogram histogram = (Histogram) value;
+          ServletUtil.writeXMLTagWithAttrs(out, 2, ServletUtil.XMLTAG_METRIC,
+              attrs.toString(), false);
+          long[] bounds = histogram.getBounds();
+          long[] counts = histogram.getCounts();
+          long cumulative = 0;
+          for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            ServletUtil.writeXMLTagWithAttrs(out, 3, ServletUtil.XMLTAG_BUCKET,
+                "le=\"" + ((i < bounds.length) ? bounds[i] : "+Inf") + "\" "
+                + "count=\"" + cumulative + "\"", true);
+          }
+          ServletUtil.writeXMLElement(out, 3, ServletUtil.XMLTAG_COUNT,
+              Long.toString(cumulative));
+          ServletUtil.writeXMLElement(out, 3, ServletUtil.XMLTAG_SUM,
+              Long.toString(histogram.getSum()));
+          ServletUtil.writeXMLTag(out, 2, ServletUtil.XMLTAG_METRIC, true);
+        } else {
+          XmlUtils.xmlAppendAttr("value", Long.toString(getValue(value)),
+              attrs);
+          ServletUtil.writeXMLTagWithAttrs(out, 2, ServletUtil.XMLTAG_METRIC,
+              attrs.toString(), true);
+        }
+      }
+    }
+    ServletUtil.writeXMLTag(out, 1, ServletUtil.XMLTAG_METRICS, true);
+    ServletUtil.writeRootTag(out, true);
+  }
+
+  /** Writes the metrics in the Prometheus text exposition format. */
+  private static void writePrometheus(
+      SortedMap<Metric, SortedMap<List<String>, Object>> metrics,
+      PrintWriter out) {
+    for (Map.Entry<Metric, SortedMap<List<String>, Object>> entry
+             : metrics.entrySet()) {
+      Metric metric = entry.getKey();
+      String name = metric.getName();
+      String[] labelNames = metric.getLabelNames();
+      out.print("# HELP " + name + " ");
+      out.print(metric.getHelp().replace("\\", "\\\\").replace("\n", "\\n"));
+      out.print('\n');
+      out.print("# TYPE " + name + " " + metric.getType() + "\n");
+      for (Map.Entry<List<String>, Object> series
+               : entry.getValue().entrySet()) {
+        StringBuilder labels = new StringBuilder();
+        for (int i = 0; i < labelNames.length; i++) {
+          appendLabel(labels, labelNames[i], series.getKey().get(i));
+        }
+        Object value = series.getValue();
+        if (value instanceof Histogram) {
+          Histogram histogram = (Histogram) value;
+          long[] bounds = histogram.getBounds();
+          long[] counts = histogram.getCounts();
+          long cumulative = 0;
+          for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            StringBuilder bucketLabels = new StringBuilder(labels);
+            appendLabel(bucketLabels, "le",
+                (i < bounds.length) ? Long.toString(bounds[i]) : "+Inf");
+            writeSample(out, name + "_bucket", bucketLabels, cumulative);
+          }
+          writeSample(out, name + "_sum", labels, histogram.getSum());
+          writeSample(out, name + "_count", labels, cumulative);
+        } else {
+          writeSample(out, name, labels, getValue(value));
+        }
+      }
+    }
+  }
+
+  private static void appendLabel(StringBuilder labels, String name,
+      String value) {
+    if (labels.length() > 0) {
+      labels.append(',');
+    }
+    labels.append(name).append("=\"");
+    labels.append(value.replace("\\", "\\\\").replace("\"", "\\\"")
+        .replace("\n", "\\n"));
+    labels.append('"');
+  }
+
+  private static void writeSample(PrintWriter out, String name,
+      CharSequence labels, long value) {
+    out.print(name);
+    if (labels.length() > 0) {
+      out.print('{');
+      out.print(labels);
+      out.print('}');
+    }
+    out.print(' ');
+    out.print(value);
+    out.print('\n');
+  }
+
+  private static long getValue(Object value) {
+    if (value instanceof Counter) {
+      return ((Counter) value).get();
+    } else {
+      return ((Gauge) value).getValue();
+    }
+  }
+}
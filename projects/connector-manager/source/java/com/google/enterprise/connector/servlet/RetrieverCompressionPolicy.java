@@ -0,0 +1,221 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.servlet;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.connector.traversal.MimeTypeMap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Decides whether, and how hard, to gzip the document content returned by
+ * the {@link GetDocumentContent} servlet.  Compression is skipped for
+ * <ul>
+ * <li>content of a type that is already compressed, such as JPEG, ZIP,
+ * or Office Open XML, as configured in the {@link MimeTypeMap}; and</li>
+ * <li>content smaller than the {@link #setMinCompressSize minimum size},
+ * if the connector supplies the content length.</li>
+ * </ul>
+ * Content at least as large as the {@link #setFastCompressSize fast
+ * compression size} is compressed at the fastest level, since the time to
+ * compress it would otherwise hold up the response.
+ * <p>
+ * The {@code Deflater} instances used to compress the content are reused
+ * by later responses, since each one allocates native memory.
+ * <p>
+ * If not configured, all content is compressed at the default level.
+ */
+public class RetrieverCompressionPolicy {
+  /** Maximum number of idle {@code Deflater} instances kept for reuse. */
+  private static final int DEFLATER_POOL_SIZE = 16;
+
+  /** Size of the buffer used by the compressed output stream. */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private MimeTypeMap mimeTypeMap = null;
+  private long minCompressSize = 0L;
+  private long fastCompressSize = Long.MAX_VALUE;
+
+  /** Idle {@code Deflater} instances. */
+  private final BlockingQueue<Deflater> deflaterPool =
+      new ArrayBlockingQueue<Deflater>(DEFLATER_POOL_SIZE);
+
+  /**
+   * Sets the {@link MimeTypeMap} used to identify content types that
+   * are already compressed.
+   *
+   * @param mimeTypeMap a {@link MimeTypeMap}, or {@code null} to
+   *        consider all content types compressible
+   */
+  public void setMimeTypeMap(MimeTypeMap mimeTypeMap) {
+    this.mimeTypeMap = mimeTypeMap;
+  }
+
+  /**
+   * Sets the minimum size of content, in bytes, that will be compressed.
+   * Smaller content is sent uncompressed.
+   *
+   * @param minCompressSize a non-negative number of bytes
+   */
+  public void setMinCompressSize(long minCompressSize) {
+    if (minCompressSize < 0) {
+      throw new IllegalArgumentException(
+          "minCompressSize must not be negative.");
+    }
+    this.minCompressSize = minCompressSize;
+  }
+
+  /**
+   * Sets the size of content, in bytes, at or above which the content is
+   * compressed at the fastest level, rather than the default level.
+   *
+   * @param fastCompressSize a non-negative number of bytes
+   */
+  public void setFastCompressSize(long fastCompressSize) {
+    if (fastCompressSize < 0) {
+      throw new IllegalArgumentException(
+          "fastCompressSize must not be negative.");
+    }
+    this.fastCompressSize = fastCompressSize;
+  }
+
+  /**
+   * Returns the compression level to use for content, or
+   * {@code Deflater.NO_COMPRESSION} if it should not be compressed.
+   *
+   * @param mimeType the content type, may be {@code null}
+   * @param contentLength the content length, or {@code null} if it is
+   *        not known
+   * @return {@code Deflater.NO_COMPRESSION}, {@code Deflater.BEST_SPEED},
+   *         or {@code Deflater.DEFAULT_COMPRESSION}
+   */
+  public int getCompressionLevel(String mimeType, Integer contentLength) {
+    if (mimeTypeMap != null && mimeTypeMap.isCompressedMimeType(mimeType)) {
+      return Deflater.NO_COMPRESSION;
+    }
+    if (contentLength == null) {
+      return Deflater.DEFAULT_COMPRESSION;
+    }
+    if (contentLength < minCompressSize) {
+      return Deflater.NO_COMPRESSION;
+    }
+    return (contentLength >= fastCompressSize)
+        ? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION;
+  }
+
+  /**
+   * Returns an output stream that writes gzip compressed data to the
+   * given output stream.  Closing the returned stream returns its
+   * {@code Deflater} to the pool, and closes the given stream.
+   *
+   * @param out the output stream for the compressed data
+   * @param level the compression level
+   * @throws IOException if the gzip header cannot be written
+   */
+  public OutputStream newGzipOutputStream(OutputStream out, int level)
+      throws IOException {
+    Deflater deflater = deflaterPool.poll();
+    if (deflater == null) {
+      deflater = new Deflater(level, true);
+    } else {
+      deflater.setLevel(level);
+    }
+    try {
+      return new PooledGzipOutputStream(out, deflater);
+    } catch (IOException e) {
+      releaseDeflater(deflater);
+      throw e;
+    }
+  }
+
+  /** Resets a {@code Deflater} and returns it to the pool if there is room. */
+  private void releaseDeflater(Deflater deflater) {
+    deflater.reset();
+    if (!deflaterPool.offer(deflater)) {
+      deflater.end();
+    }
+  }
+
+  /** Returns the number of idle {@code Deflater} instances. */
+  @VisibleForTesting
+  int getPoolSize() {
+    return deflaterPool.size();
+  }
+
+  /**
+   * A gzip output stream that uses a given {@code Deflater}, unlike
+   * {@code GZIPOutputStream}, which always constructs its own.
+   */
+  private class PooledGzipOutputStream extends DeflaterOutputStream {
+    private final CRC32 crc = new CRC32();
+    private boolean isFinished = false;
+    private boolean isClosed = false;
+
+    PooledGzipOutputStream(OutputStream out, Deflater deflater)
+        throws IOException {
+      super(out, deflater, BUFFER_SIZE);
+      // Magic number, deflate method, no flags, no time, no extra flags,
+      // unknown operating system.
+      out.write(new byte[] {
+          (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0,
+          (byte) 0xff });
+    }
+
+    @Override
+    public synchronized void write(byte[] buf, int off, int len)
+        throws IOException {
+      super.write(buf, off, len);
+      crc.update(buf, off, len);
+    }
+
+    @Override
+    public void finish() throws IOException {
+      if (!isFinished) {
+        isFinished = true;
+        super.finish();
+        writeInt((int) crc.getValue());
+        writeInt((int) def.getBytesRead());
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!isClosed) {
+        isClosed = true;
+        try {
+          finish();
+        } finally {
+          try {
+            out.close();
+          } finally {
+            releaseDeflater(def);
+          }
+        }
+      }
+    }
+
+    /** Writes an integer in little-endian byte order. */
+    private void writeInt(int i) throws IOException {
+      out.write(new byte[] {
+          (byte) i, (byte) (i >> 8), (byte) (i >> 16), (byte) (i >> 24) });
+    }
+  }
+}
@@ -106,6 +106,12 @@ public class ServletUtil {
   public static final String XMLTAG_INFO = "Info";
   public static final String XMLTAG_LEVEL = "Level";
 
+  public static final String XMLTAG_METRICS = "Metrics";
+  public static final String XMLTAG_METRIC = "Metric";
+  public static final String XMLTAG_BUCKET = "Bucket";
+  public static final String XMLTAG_COUNT = "Count";
+  public static final String XMLTAG_SUM = "Sum";
+
   public static final String XMLTAG_CONNECTOR_INSTANCES = "ConnectorInstances";
   public static final String XMLTAG_CONNECTOR_INSTANCE = "ConnectorInstance";
   public static final String XMLTAG_CONNECTOR_TYPES = "ConnectorTypes";
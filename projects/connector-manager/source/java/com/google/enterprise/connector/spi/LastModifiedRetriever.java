@@ -0,0 +1,49 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.spi;
+
+import java.util.Calendar;
+
+/**
+ * A {@link Retriever} may implement this optional interface if it can
+ * supply the last modified date of a document more cheaply than its
+ * complete meta-data.  When the search appliance asks whether a document
+ * has changed since it was last crawled, the date is compared without
+ * calling {@link Retriever#getMetaData} or {@link Retriever#getContent},
+ * so unchanged documents are not retrieved at all.
+ * <p>
+ * The date is used as is; it is not seen by any document filters.
+ *
+ * @since 3.3
+ */
+public interface LastModifiedRetriever {
+  /**
+   * Return the time the document identified by {@code docid} was last
+   * modified.  This should be the same as the value of the
+   * {@code google:lastmodified} Property returned by
+   * {@link Retriever#getMetaData}.
+   *
+   * @param docid the document identifier
+   * @return the last modified time of the document, or {@code null} if it
+   *         is not readily available, in which case the meta-data of the
+   *         document is retrieved instead
+   * @throws RepositoryDocumentException if there was a document-specific
+   *         error accessing the document, for instance the document does
+   *         not exist or should be skipped
+   * @throws RepositoryException if there was a problem accessing the
+   *         document repository
+   */
+  public Calendar getLastModified(String docid) throws RepositoryException;
+}
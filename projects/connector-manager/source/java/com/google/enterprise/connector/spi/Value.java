@@ -22,7 +22,6 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.Locale;
 import java.util.TimeZone;
 import java.util.logging.Logger;
 
@@ -214,31 +213,20 @@ public abstract class Value {
   @Override
   public abstract String toString();
 
-  private static final Calendar CALENDAR = Calendar.getInstance();
-  private static final SimpleDateFormat ISO8601_DATE_FORMAT_MILLIS =
-      new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-  private static final SimpleDateFormat ISO8601_DATE_FORMAT_SECS =
-      new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-  private static final SimpleDateFormat ISO8601_DATE_FORMAT_MINS =
-      new SimpleDateFormat("yyyy-MM-dd'T'HH:mmZ");
-  private static final SimpleDateFormat ISO8601_DATE_FORMAT_DATE =
-      new SimpleDateFormat("yyyy-MM-dd");
-  private static final SimpleDateFormat RFC822_DATE_FORMAT =
-      new SimpleDateFormat("EEE', 'dd' 'MMM' 'yyyy' 'HH:mm:ss Z",
-          Locale.ENGLISH);
-
-  static {
-    ISO8601_DATE_FORMAT_MILLIS.setCalendar(CALENDAR);
-    ISO8601_DATE_FORMAT_MILLIS.setLenient(true);
-    ISO8601_DATE_FORMAT_SECS.setCalendar(CALENDAR);
-    ISO8601_DATE_FORMAT_SECS.setLenient(true);
-    ISO8601_DATE_FORMAT_MINS.setCalendar(CALENDAR);
-    ISO8601_DATE_FORMAT_MINS.setLenient(true);
-    ISO8601_DATE_FORMAT_DATE.setCalendar(CALENDAR);
-    ISO8601_DATE_FORMAT_DATE.setLenient(true);
-    RFC822_DATE_FORMAT.setCalendar(CALENDAR);
-    RFC822_DATE_FORMAT.setLenient(true);
-  }
+  /** The time zone used to format date values for the feed. */
+  private static volatile TimeZone feedTimeZone = TimeZone.getDefault();
+
+  /**
+   * The date formatting state for each thread, for the current feed time
+   * zone. The state is replaced if the feed time zone changes.
+   */
+  private static final ThreadLocal<DateFormats> DATE_FORMATS =
+      new ThreadLocal<DateFormats>();
+
+  private static final String[] RFC822_DAYS =
+      { "Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat" };
+  private static final String[] RFC822_MONTHS = { "Jan", "Feb", "Mar",
+      "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
 
   /**
    * Sets the time zone used to format date values for the feed to the
@@ -250,7 +238,7 @@ public abstract class Value {
    * @see TimeZone#getDefault
    * @since 2.4.4
    */
-  public static synchronized void setFeedTimeZone(String id) {
+  public static void setFeedTimeZone(String id) {
     TimeZone tz;
     if (id == null || id.length() == 0) {
       id = "default"; // For the log message.
@@ -259,7 +247,7 @@ public abstract class Value {
       tz = TimeZone.getTimeZone(id);
     }
     LOGGER.config("Setting feed time zone to " + id + " = " + tz.getID());
-    CALENDAR.setTimeZone(tz);
+    feedTimeZone = tz;
   }
 
   /**
@@ -267,8 +255,19 @@ public abstract class Value {
    *
    * @since 2.4.4
    */
-  static synchronized String getFeedTimeZone() {
-    return CALENDAR.getTimeZone().getID();
+  static String getFeedTimeZone() {
+    return feedTimeZone.getID();
+  }
+
+  /** Gets the date formatting state for this thread. */
+  private static DateFormats getDateFormats() {
+    TimeZone tz = feedTimeZone;
+    DateFormats formats = DATE_FORMATS.get();
+    if (formats == null || formats.timeZone != tz) {
+      formats = new DateFormats(tz);
+      DATE_FORMATS.set(formats);
+    }
+    return formats;
   }
 
   /**
@@ -281,9 +280,9 @@ public abstract class Value {
    * @param calendar a {@code Calendar}
    * @return a String in ISO-8601 date format
    */
-  public static synchronized String calendarToFeedXml(Calendar calendar) {
-    Date date = calendar.getTime();
-    return ISO8601_DATE_FORMAT_DATE.format(date);
+  public static String calendarToFeedXml(Calendar calendar) {
+    return getDateFormats().formatIso8601(calendar.getTimeInMillis(),
+        Calendar.DATE);
   }
 
   /**
@@ -294,12 +293,8 @@ public abstract class Value {
    * @param calendar a {@code Calendar}
    * @return a String in RFC 822 format
    */
-  public static synchronized String calendarToRfc822(Calendar calendar) {
-    Date date = calendar.getTime();
-    // Fix UTC time zone marker. The SimpleDateFormat Z pattern letter
-    // always produces an offset string, e.g., "-0800" or "+000". For
-    // UTC, the use of "GMT" (RFC 822) or "Z" (ISO 8601) is preferred.
-    return RFC822_DATE_FORMAT.format(date).replaceFirst("\\+0000$", "GMT");
+  public static String calendarToRfc822(Calendar calendar) {
+    return getDateFormats().formatRfc822(calendar.getTimeInMillis());
   }
 
   /**
@@ -310,39 +305,20 @@ public abstract class Value {
    * @param calendar a {@code Calendar}
    * @return a String in ISO-8601 format
    */
-  public static synchronized String calendarToIso8601(Calendar calendar) {
-    Date date = calendar.getTime();
-    String isoString;
+  public static String calendarToIso8601(Calendar calendar) {
+    // Get the time first, which may change which fields are set.
+    long millis = calendar.getTimeInMillis();
+    int precision;
     if (calendar.isSet(Calendar.MILLISECOND)) {
-      isoString = ISO8601_DATE_FORMAT_MILLIS.format(date);
+      precision = Calendar.MILLISECOND;
     } else if (calendar.isSet(Calendar.SECOND)) {
-      isoString = ISO8601_DATE_FORMAT_SECS.format(date);
+      precision = Calendar.SECOND;
     } else if (calendar.isSet(Calendar.MINUTE)) {
-      isoString = ISO8601_DATE_FORMAT_MINS.format(date);
+      precision = Calendar.MINUTE;
     } else {
-      isoString = ISO8601_DATE_FORMAT_DATE.format(date);
+      precision = Calendar.DATE;
     }
-    // Fix UTC time zone marker.
-    return isoString.replaceFirst("\\+0000$", "Z");
-  }
-
-  private static synchronized Date iso8601ToDate(String s)
-      throws ParseException {
-    Date date = null;
-    try {
-      date = ISO8601_DATE_FORMAT_MILLIS.parse(s);
-    } catch (ParseException e1) {
-      try {
-        date = ISO8601_DATE_FORMAT_SECS.parse(s);
-      } catch (ParseException e2) {
-        try {
-          date = ISO8601_DATE_FORMAT_MINS.parse(s);
-        } catch (ParseException e3) {
-          date = ISO8601_DATE_FORMAT_DATE.parse(s);
-        }
-      }
-    }
-    return date;
+    return getDateFormats().formatIso8601(millis, precision);
   }
 
   /**
@@ -355,13 +331,250 @@ public abstract class Value {
    * @return a Calendar object
    * @throws ParseException if the the String can not be parsed
    */
-  public static synchronized Calendar iso8601ToCalendar(String dateString)
+  public static Calendar iso8601ToCalendar(String dateString)
       throws ParseException {
-    // Fix UTC time zone marker. For parsing, the Z pattern letter
-    // does not accept "Z" for UTC.
-    Date date = iso8601ToDate(dateString.replaceFirst("Z$", "+0000"));
+    Date date = getDateFormats().parseIso8601(dateString);
     Calendar calendar = Calendar.getInstance();
     calendar.setTime(date);
     return calendar;
   }
+
+  /**
+   * The date formatting state for a thread and a feed time zone. The
+   * formats written by {@link #calendarToIso8601} and
+   * {@link #calendarToRfc822} are fixed, so they are written by hand
+   * rather than by a {@code SimpleDateFormat}. Strings in those formats
+   * are also parsed by hand, and anything else is parsed by lenient
+   * {@code SimpleDateFormat} instances, as in earlier releases.
+   */
+  private static class DateFormats {
+    private static final String[] ISO8601_PATTERNS = {
+        "yyyy-MM-dd'T'HH:mm:ss.SSSZ",
+        "yyyy-MM-dd'T'HH:mm:ssZ",
+        "yyyy-MM-dd'T'HH:mmZ",
+        "yyyy-MM-dd" };
+
+    final TimeZone timeZone;
+    private final Calendar calendar;
+    private final StringBuilder buffer = new StringBuilder(32);
+
+    /** Created on first use, since most strings are parsed by hand. */
+    private SimpleDateFormat[] parsers;
+
+    DateFormats(TimeZone timeZone) {
+      this.timeZone = timeZone;
+      this.calendar = Calendar.getInstance(timeZone);
+    }
+
+    /**
+     * Formats the given time in ISO-8601 format.
+     *
+     * @param millis the time, in milliseconds since the epoch
+     * @param precision the smallest field to include: one of
+     *        {@code Calendar.DATE}, {@code MINUTE}, {@code SECOND},
+     *        or {@code MILLISECOND}
+     */
+    String formatIso8601(long millis, int precision) {
+      calendar.setTimeInMillis(millis);
+      StringBuilder buf = buffer;
+      buf.setLength(0);
+      appendNumber(buf, calendar.get(Calendar.YEAR), 4);
+      buf.append('-');
+      appendNumber(buf, calendar.get(Calendar.MONTH) + 1, 2);
+      buf.append('-');
+      appendNumber(buf, calendar.get(Calendar.DAY_OF_MONTH), 2);
+      if (precision == Calendar.DATE) {
+        return buf.toString();
+      }
+      buf.append('T');
+      appendNumber(buf, calendar.get(Calendar.HOUR_OF_DAY), 2);
+      buf.append(':');
+      appendNumber(buf, calendar.get(Calendar.MINUTE), 2);
+      if (precision != Calendar.MINUTE) {
+        buf.append(':');
+        appendNumber(buf, calendar.get(Calendar.SECOND), 2);
+        if (precision == Calendar.MILLISECOND) {
+          buf.append('.');
+          appendNumber(buf, calendar.get(Calendar.MILLISECOND), 3);
+        }
+      }
+      appendZone(buf, "Z");
+      return buf.toString();
+    }
+
+    /**
+     * Formats the given time in RFC 822 format.
+     *
+     * @param millis the time, in milliseconds since the epoch
+     */
+    String formatRfc822(long millis) {
+      calendar.setTimeInMillis(millis);
+      StringBuilder buf = buffer;
+      buf.setLength(0);
+      buf.append(RFC822_DAYS[calendar.get(Calendar.DAY_OF_WEEK) - 1]);
+      buf.append(", ");
+      appendNumber(buf, calendar.get(Calendar.DAY_OF_MONTH), 2);
+      buf.append(' ');
+      buf.append(RFC822_MONTHS[calendar.get(Calendar.MONTH)]);
+      buf.append(' ');
+      appendNumber(buf, calendar.get(Calendar.YEAR), 4);
+      buf.append(' ');
+      appendNumber(buf, calendar.get(Calendar.HOUR_OF_DAY), 2);
+      buf.append(':');
+      appendNumber(buf, calendar.get(Calendar.MINUTE), 2);
+      buf.append(':');
+      appendNumber(buf, calendar.get(Calendar.SECOND), 2);
+      buf.append(' ');
+      appendZone(buf, "GMT");
+      return buf.toString();
+    }
+
+    /**
+     * Appends the UTC offset of the calendar in the same form as the
+     * {@code SimpleDateFormat} Z pattern letter, e.g., "-0800", except
+     * that a zero offset is written as the given UTC marker. For UTC,
+     * the use of "GMT" (RFC 822) or "Z" (ISO 8601) is preferred.
+     */
+    private void appendZone(StringBuilder buf, String utc) {
+      int minutes = (calendar.get(Calendar.ZONE_OFFSET)
+          + calendar.get(Calendar.DST_OFFSET)) / 60000;
+      if (minutes == 0) {
+        buf.append(utc);
+      } else {
+        if (minutes < 0) {
+          buf.append('-');
+          minutes = -minutes;
+        } else {
+          buf.append('+');
+        }
+        appendNumber(buf, (minutes / 60) * 100 + minutes % 60, 4);
+      }
+    }
+
+    /** Appends a non-negative number, padded with zeros to the width. */
+    private static void appendNumber(StringBuilder buf, int value,
+        int width) {
+      for (int limit = 10; width > 1; width--, limit *= 10) {
+        if (value < limit) {
+          buf.append('0');
+        }
+      }
+      buf.append(value);
+    }
+
+    /**
+     * Parses a string in one of the formats written by
+     * {@link #formatIso8601}, or any string accepted by earlier releases.
+     */
+    Date parseIso8601(String s) throws ParseException {
+      Date date = parseFixedIso8601(s);
+      return (date == null) ? parseLenientIso8601(s) : date;
+    }
+
+    /**
+     * Parses a string in exactly one of the formats written by
+     * {@link #formatIso8601}, with either "Z" or a four digit UTC offset.
+     *
+     * @return the parsed date, or {@code null} if the string is not in
+     *         one of those formats
+     */
+    private Date parseFixedIso8601(String s) {
+      int length = s.length();
+      if (length < 10 || !isDigits(s, 0, 4) || s.charAt(4) != '-'
+          || !isDigits(s, 5, 7) || s.charAt(7) != '-'
+          || !isDigits(s, 8, 10)) {
+        return null;
+      }
+      calendar.clear();
+      calendar.set(toInt(s, 0, 4), toInt(s, 5, 7) - 1, toInt(s, 8, 10));
+      if (length == 10) {
+        // Midnight in the feed time zone.
+        return calendar.getTime();
+      }
+
+      if (length < 16 || s.charAt(10) != 'T' || !isDigits(s, 11, 13)
+          || s.charAt(13) != ':' || !isDigits(s, 14, 16)) {
+        return null;
+      }
+      calendar.set(Calendar.HOUR_OF_DAY, toInt(s, 11, 13));
+      calendar.set(Calendar.MINUTE, toInt(s, 14, 16));
+      int pos = 16;
+      if (length >= pos + 3 && s.charAt(pos) == ':'
+          && isDigits(s, pos + 1, pos + 3)) {
+        calendar.set(Calendar.SECOND, toInt(s, pos + 1, pos + 3));
+        pos += 3;
+        if (length >= pos + 4 && s.charAt(pos) == '.'
+            && isDigits(s, pos + 1, pos + 4)) {
+          calendar.set(Calendar.MILLISECOND, toInt(s, pos + 1, pos + 4));
+          pos += 4;
+        }
+      }
+
+      int offset;
+      if (length == pos + 1 && s.charAt(pos) == 'Z') {
+        offset = 0;
+      } else if (length == pos + 5 && isDigits(s, pos + 1, pos + 5)
+          && (s.charAt(pos) == '+' || s.charAt(pos) == '-')) {
+        int hours = toInt(s, pos + 1, pos + 3);
+        int minutes = toInt(s, pos + 3, pos + 5);
+        if (hours > 23 || minutes > 59) {
+          return null;
+        }
+        offset = (hours * 60 + minutes) * 60000;
+        if (s.charAt(pos) == '-') {
+          offset = -offset;
+        }
+      } else {
+        return null;
+      }
+      calendar.set(Calendar.ZONE_OFFSET, offset);
+      calendar.set(Calendar.DST_OFFSET, 0);
+      return calendar.getTime();
+    }
+
+    private static boolean isDigits(String s, int start, int end) {
+      for (int i = start; i < end; i++) {
+        char c = s.charAt(i);
+        if (c < '0' || c > '9') {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static int toInt(String s, int start, int end) {
+      int value = 0;
+      for (int i = start; i < end; i++) {
+        value = value * 10 + (s.charAt(i) - '0');
+      }
+      return value;
+    }
+
+    /** Parses a string with lenient {@code SimpleDateFormat} instances. */
+    private Date parseLenientIso8601(String s) throws ParseException {
+      if (parsers == null) {
+        parsers = new SimpleDateFormat[ISO8601_PATTERNS.length];
+        for (int i = 0; i < parsers.length; i++) {
+          parsers[i] = new SimpleDateFormat(ISO8601_PATTERNS[i]);
+          parsers[i].setTimeZone(timeZone);
+          parsers[i].setLenient(true);
+        }
+      }
+
+      // Fix UTC time zone marker. For parsing, the Z pattern letter
+      // does not accept "Z" for UTC.
+      if (s.endsWith("Z")) {
+        s = s.substring(0, s.length() - 1) + "+0000";
+      }
+      ParseException exception = null;
+      for (SimpleDateFormat parser : parsers) {
+        try {
+          return parser.parse(s);
+        } catch (ParseException e) {
+          exception = e;
+        }
+      }
+      throw exception;
+    }
+  }
 }
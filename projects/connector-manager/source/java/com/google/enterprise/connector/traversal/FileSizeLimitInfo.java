@@ -35,6 +35,10 @@ public class FileSizeLimitInfo {
   // Default target feed size is 10MB - about 75-100 typical documents.
   private long maxFeedSize = 10 * 1024 * 1024;
 
+  // Default amount of a feed to hold in memory is 2MB. Feed data
+  // beyond this is spooled to a temporary file.
+  private long maxFeedMemorySize = 2 * 1024 * 1024;
+
   public void setMaxDocumentSize(long maxDocumentSize) {
     if (maxDocumentSize <= 0) {
       throw new IllegalArgumentException("maxDocumentSize must be positive.");
@@ -65,9 +69,30 @@ public class FileSizeLimitInfo {
     return maxFeedSize;
   }
 
+  public void setMaxFeedMemorySize(long maxFeedMemorySize) {
+    if (maxFeedMemorySize < 0) {
+      throw new IllegalArgumentException(
+          "maxFeedMemorySize must not be negative.");
+    }
+    if (maxFeedMemorySize > MAXIMUM_FEED_FILE_SIZE) {
+      this.maxFeedMemorySize = MAXIMUM_FEED_FILE_SIZE;
+    } else {
+      this.maxFeedMemorySize = maxFeedMemorySize;
+    }
+  }
+
+  /**
+   * Returns the maximum number of bytes of a feed file to hold in memory.
+   * Feed data beyond this size is spooled to disk.
+   */
+  public long maxFeedMemorySize() {
+    return maxFeedMemorySize;
+  }
+
   @Override
   public String toString() {
     return "FileSizeLimitInfo: maxDocumentSize = " + maxDocumentSize
-           + ", maxFeedSize = " + maxFeedSize;
+           + ", maxFeedSize = " + maxFeedSize
+           + ", maxFeedMemorySize = " + maxFeedMemorySize;
   }
 }
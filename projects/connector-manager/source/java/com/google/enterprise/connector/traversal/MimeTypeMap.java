@@ -17,6 +17,7 @@ package com.google.enterprise.connector.traversal;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -34,11 +35,13 @@ public class MimeTypeMap {
       Logger.getLogger(MimeTypeMap.class.getName());
 
   private final Map<String, Integer> typeMap;
+  private final Set<String> compressedTypes;
   private int unknownMimeTypeSupportLevel;
 
   public MimeTypeMap() {
     // if no setters are called, then all mime types are supported
     typeMap = new HashMap<String, Integer>();
+    compressedTypes = new HashSet<String>();
     unknownMimeTypeSupportLevel = 1;
   }
 
@@ -113,6 +116,53 @@ public class MimeTypeMap {
     initMimeTypes(mimeTypes, -5);
   }
 
+  /**
+   * Sets the mime types whose content is already compressed, such as
+   * images, archives, and Office Open XML documents.  Compressing such
+   * content again wastes CPU for little or no reduction in size.
+   * As with the other mime type sets, entries may be content types
+   * sans subtypes, matching all subtypes of that content type.
+   *
+   * @param mimeTypes Set of mime types that are already compressed.
+   */
+  public void setCompressedMimeTypes(Set<String> mimeTypes) {
+    LOGGER.config("Setting compressed mime types to " + mimeTypes);
+    compressedTypes.clear();
+    if (mimeTypes != null) {
+      for (String mimeType : mimeTypes) {
+        mimeType = mimeType.trim().toLowerCase();
+        if (mimeType.length() > 0) {
+          compressedTypes.add(mimeType);
+        }
+      }
+    }
+  }
+
+  /**
+   * Return {@code true} if content of the given mime type is already
+   * compressed. No validation is performed.
+   *
+   * @param mimeType
+   * @return {@code true} if the mime type, or its content type sans subtype,
+   *         is one of the configured compressed mime types.
+   */
+  public boolean isCompressedMimeType(String mimeType) {
+    if (mimeType == null || compressedTypes.isEmpty()) {
+      return false;
+    }
+    mimeType = mimeType.trim().toLowerCase();
+    // Ignore any parameters, such as "; charset=UTF-8".
+    int i = mimeType.indexOf(';');
+    if (i >= 0) {
+      mimeType = mimeType.substring(0, i).trim();
+    }
+    if (compressedTypes.contains(mimeType)) {
+      return true;
+    }
+    i = mimeType.indexOf('/');
+    return (i > 0) && compressedTypes.contains(mimeType.substring(0, i));
+  }
+
   /*
    * Add the set of mimetypes to the typeMap at the desired support level.
    * Mimetypes with "/vnd.*" subtypes are preferred over others, and
@@ -0,0 +1,221 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.traversal;
+
+import com.google.enterprise.connector.logging.NDC;
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.DocumentList;
+import com.google.enterprise.connector.spi.RepositoryDocumentException;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link DocumentList} that fetches documents from another
+ * {@code DocumentList} in a separate thread, up to a fixed number of
+ * documents ahead of the consumer.  This lets the time the repository
+ * spends in {@code nextDocument} overlap with the time spent building
+ * the feed.
+ * <p>
+ * Documents are returned in the order they were fetched, and exceptions
+ * thrown by the underlying {@code nextDocument} are rethrown in the same
+ * position.  A {@code RepositoryException} that is not a
+ * {@link RepositoryDocumentException} ends the fetching.
+ * <p>
+ * The checkpoint of the underlying list covers every document it has
+ * returned, including those still waiting to be consumed.  To end a batch
+ * early, call {@link #stopFetching}, then consume the remaining documents
+ * until {@code nextDocument} returns {@code null}.  {@link #checkpoint}
+ * fails if any fetched documents have not been consumed.
+ * <p>
+ * The consumer methods must be called from a single thread.
+ */
+public class PrefetchingDocumentList implements DocumentList {
+  private static final Logger LOGGER =
+      Logger.getLogger(PrefetchingDocumentList.class.getName());
+
+  /** Queued after the last item, when the fetcher thread exits. */
+  private static final Object END = new Object();
+
+  private final DocumentList documentList;
+  private final String name;
+
+  /** Limits the number of fetched documents that have not been consumed. */
+  private final Semaphore permits;
+
+  /** Fetched documents and exceptions, followed by {@link #END}. */
+  private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+
+  private volatile boolean isStopped = false;
+
+  private Thread fetcher = null;
+  private boolean isEnded = false;
+
+  /**
+   * Constructs a {@code PrefetchingDocumentList}.  The fetcher thread is
+   * started by the first call to {@link #nextDocument}.
+   *
+   * @param documentList the {@link DocumentList} to fetch documents from
+   * @param prefetchSize the maximum number of documents to fetch ahead
+   * @param name a name for the fetcher thread, typically the connector name
+   */
+  public PrefetchingDocumentList(DocumentList documentList, int prefetchSize,
+      String name) {
+    if (prefetchSize <= 0) {
+      throw new IllegalArgumentException("prefetchSize must be positive.");
+    }
+    this.documentList = documentList;
+    this.name = name;
+    this.permits = new Semaphore(prefetchSize);
+  }
+
+  /**
+   * Returns the next fetched document, waiting for it to be fetched if
+   * necessary.  Returns {@code null} at the end of the underlying list,
+   * or after {@link #stopFetching} once the fetched documents have been
+   * consumed.
+   */
+  @Override
+  public Document nextDocument() throws RepositoryException {
+    if (isEnded) {
+      return null;
+    }
+    if (fetcher == null) {
+      if (isStopped) {
+        isEnded = true;
+        return null;
+      }
+      startFetching();
+    }
+
+    Object item;
+    try {
+      item = queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepositoryException("Interrupted waiting for next document", e);
+    }
+    if (item == END) {
+      isEnded = true;
+      return null;
+    }
+    permits.release();
+    if (item instanceof Document) {
+      return (Document) item;
+    } else if (item instanceof RepositoryException) {
+      throw (RepositoryException) item;
+    } else if (item instanceof RuntimeException) {
+      throw (RuntimeException) item;
+    } else {
+      throw (Error) item;
+    }
+  }
+
+  /**
+   * Stops fetching documents, and waits for a fetch in progress to
+   * complete.  Documents that have already been fetched are still returned
+   * by {@link #nextDocument}.
+   */
+  public void stopFetching() {
+    isStopped = true;
+    if (fetcher != null) {
+      // Wake the fetcher, if it is waiting for a permit.
+      permits.release();
+      try {
+        fetcher.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Stops fetching documents and returns the checkpoint of the underlying
+   * list.
+   *
+   * @throws RepositoryException if fetched documents have not been consumed
+   */
+  @Override
+  public String checkpoint() throws RepositoryException {
+    stopFetching();
+    if (fetcher != null && fetcher.isAlive()) {
+      throw new RepositoryException(
+          "Unable to checkpoint while fetching documents.");
+    }
+    for (Object item : queue) {
+      if (item instanceof Document) {
+        throw new RepositoryException(
+            "Unable to checkpoint with fetched documents not consumed.");
+      }
+    }
+    return documentList.checkpoint();
+  }
+
+  private void startFetching() {
+    fetcher = new Thread(new Runnable() {
+        public void run() {
+          NDC.push("Prefetch " + name);
+          try {
+            fetch();
+          } finally {
+            NDC.remove();
+          }
+        }
+      }, "Prefetch-" + name);
+    fetcher.setDaemon(true);
+    fetcher.start();
+  }
+
+  /** Fetches documents until stopped or the end of the list. */
+  private void fetch() {
+    try {
+      while (true) {
+        permits.acquire();
+        if (isStopped) {
+          break;
+        }
+        Document document;
+        try {
+          document = documentList.nextDocument();
+        } catch (RepositoryDocumentException e) {
+          // Let the consumer skip this document.
+          queue.add(e);
+          continue;
+        } catch (RepositoryException e) {
+          queue.add(e);
+          break;
+        } catch (RuntimeException e) {
+          queue.add(e);
+          continue;
+        }
+        if (document == null) {
+          break;
+        }
+        queue.add(document);
+      }
+    } catch (InterruptedException e) {
+      LOGGER.fine("Document prefetch for " + name + " was interrupted.");
+    } catch (Throwable t) {
+      LOGGER.log(Level.FINE, "Document prefetch for " + name + " failed.", t);
+      queue.add(t);
+    } finally {
+      queue.add(END);
+    }
+  }
+}
@@ -14,6 +14,8 @@
 
 package com.google.enterprise.connector.traversal;
 
+import com.google.enterprise.connector.metrics.Metric;
+import com.google.enterprise.connector.metrics.MetricsRegistry;
 import com.google.enterprise.connector.pusher.FeedException;
 import com.google.enterprise.connector.pusher.PushException;
 import com.google.enterprise.connector.pusher.Pusher;
@@ -47,6 +49,9 @@ public class QueryTraverser implements Traverser {
   private final TraversalContext traversalContext;
   private final Clock clock;
 
+  /** The number of documents to fetch ahead, or zero to disable prefetch. */
+  private int prefetchSize = 0;
+
   // Synchronize access to cancelWork.
   private final Object cancelLock = new Object();
   private boolean cancelWork = false;
@@ -77,6 +82,25 @@ public class QueryTraverser implements Traverser {
     this.clock = clock;
   }
 
+  /**
+   * Sets the number of documents to fetch from the repository ahead of
+   * building the feed.  If positive, documents are fetched in a separate
+   * thread, so that repository access overlaps with feed construction.
+   * Documents that have been fetched when a batch ends early are still
+   * fed before the checkpoint is taken.  Prefetch is disabled by default,
+   * since some connectors may expect all calls to their {@code DocumentList}
+   * and {@code Documents} to occur in the same thread.
+   *
+   * @param prefetchSize the maximum number of documents to fetch ahead,
+   *        or zero to fetch documents only as they are needed
+   */
+  public void setPrefetchSize(int prefetchSize) {
+    if (prefetchSize < 0) {
+      throw new IllegalArgumentException("prefetchSize must not be negative.");
+    }
+    this.prefetchSize = prefetchSize;
+  }
+
   @Override
   public void cancelBatch() {
     synchronized(cancelLock) {
@@ -151,10 +175,16 @@ public class QueryTraverser implements Traverser {
                   + " is NULL, no documents returned for traversal.");
       return new BatchResult(TraversalDelayPolicy.POLL, 0);
     }
+    if (prefetchSize > 0) {
+      resultSet =
+          new PrefetchingDocumentList(resultSet, prefetchSize, connectorName);
+    }
 
     Pusher pusher = null;
     BatchResult result = null;
     int counter = 0;
+    // Once the batch is ending, any prefetched documents are still fed.
+    boolean isDraining = false;
     try {
       // Get a Pusher for feeding the returned Documents.
       pusher = pusherFactory.newPusher(connectorName);
@@ -165,10 +195,13 @@ public class QueryTraverser implements Traverser {
                       + " has been interrupted; breaking out of batch run.");
           break;
         }
-        if (clock.getTimeMillis() >= timeoutTime) {
+        if (!isDraining && clock.getTimeMillis() >= timeoutTime) {
           LOGGER.fine("Traversal batch for connector " + connectorName
               + " is completing due to time limit.");
-          break;
+          isDraining = stopPrefetch(resultSet);
+          if (!isDraining) {
+            break;
+          }
         }
 
         String docid = null;
@@ -188,6 +221,11 @@ public class QueryTraverser implements Traverser {
             // RepositoryDocumentException signaling a skipped document in which
             // case the call will not be counted against the batch maximum.
             counter++;
+            // The counters are looked up each time, rather than cached,
+            // since the connector's metrics are removed with the connector.
+            MetricsRegistry.getInstance()
+                .getCounter(Metric.DOCUMENTS_TRAVERSED, connectorName)
+                .increment();
             // Fetch DocId to use in messages.
             try {
               docid = Value.getSingleValueString(nextDocument,
@@ -203,11 +241,18 @@ public class QueryTraverser implements Traverser {
           LOGGER.finer("Sending document (" + docid + ") from connector "
               + connectorName + " to Pusher");
 
-          if (pusher.take(nextDocument) != PusherStatus.OK) {
-            LOGGER.fine("Traversal batch for connector " + connectorName
-                + " is completing at the request of the Pusher,"
-                + " after processing " + counter + " documents.");
-            break;
+          PusherStatus status = pusher.take(nextDocument);
+          if (status != PusherStatus.OK) {
+            if (!isDraining) {
+              LOGGER.fine("Traversal batch for connector " + connectorName
+                  + " is completing at the request of the Pusher,"
+                  + " after processing " + counter + " documents.");
+              isDraining = stopPrefetch(resultSet);
+            }
+            // A disabled Pusher did not accept the document.
+            if (!isDraining || status == PusherStatus.DISABLED) {
+              break;
+            }
           }
         } catch (SkippedDocumentException e) {
           /* TODO (bmj): This is a temporary solution and should be replaced.
@@ -264,6 +309,8 @@ public class QueryTraverser implements Traverser {
       // it has fed, and what actually has been pushed).
       result = new BatchResult(TraversalDelayPolicy.ERROR);
    } finally {
+      stopPrefetch(resultSet);
+
       // If we have cancelled the work, abandon the batch.
       if (isCancelled()) {
         result = new BatchResult(TraversalDelayPolicy.ERROR);
@@ -287,6 +334,20 @@ public class QueryTraverser implements Traverser {
     return result;
   }
 
+  /**
+   * Stops fetching documents ahead, if prefetch is enabled.
+   *
+   * @return {@code true} if documents that have already been fetched
+   *         must be fed before the batch is checkpointed
+   */
+  private boolean stopPrefetch(DocumentList resultSet) {
+    if (resultSet instanceof PrefetchingDocumentList) {
+      ((PrefetchingDocumentList) resultSet).stopFetching();
+      return true;
+    }
+    return false;
+  }
+
   private String checkpointAndSave(DocumentList pm) {
     String connectorState = null;
     LOGGER.fine("CHECKPOINT: Generating checkpoint for connector "
@@ -324,6 +385,8 @@ public class QueryTraverser implements Traverser {
   }
 
   private void logSkippedDocument(String docid, Exception e) {
+    MetricsRegistry.getInstance()
+        .getCounter(Metric.DOCUMENTS_SKIPPED, connectorName).increment();
     if (LOGGER.isLoggable(Level.FINER)) {
       LOGGER.log(Level.FINER, "Skipping document (" + docid
           + ") from connector " + connectorName + ": " + e.getMessage());
@@ -57,11 +57,21 @@ public class SslUtil {
         }
       };
 
-  private static SSLSocketFactory getTrustingFactory()
+  /**
+   * The all-trusting socket factory. A single factory is shared, so that
+   * its SSL sessions are reused, and so that connections that use it may
+   * be kept alive and reused, which requires the same socket factory.
+   */
+  private static SSLSocketFactory trustingFactory = null;
+
+  private static synchronized SSLSocketFactory getTrustingFactory()
       throws GeneralSecurityException {
-    SSLContext sc = SSLContext.getInstance("SSL");
-    sc.init(null, trustAllCerts, null);
-    return sc.getSocketFactory();
+    if (trustingFactory == null) {
+      SSLContext sc = SSLContext.getInstance("SSL");
+      sc.init(null, trustAllCerts, null);
+      trustingFactory = sc.getSocketFactory();
+    }
+    return trustingFactory;
   }
 
   /**
@@ -0,0 +1,53 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.common;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link Histogram}.
+ */
+public class HistogramTest extends TestCase {
+  public void testBoundsOrder() {
+    try {
+      new Histogram(10, 5);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testEmpty() {
+    Histogram histogram = new Histogram(10, 100);
+    assertTrue(Arrays.equals(new long[] { 10, 100 }, histogram.getBounds()));
+    assertTrue(Arrays.equals(new long[] { 0, 0, 0 }, histogram.getCounts()));
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getSum());
+  }
+
+  public void testRecord() {
+    Histogram histogram = new Histogram(10, 100);
+    histogram.record(0);
+    histogram.record(10);
+    histogram.record(11);
+    histogram.record(100);
+    histogram.record(1000);
+    assertTrue(Arrays.toString(histogram.getCounts()),
+        Arrays.equals(new long[] { 2, 2, 1 }, histogram.getCounts()));
+    assertEquals(5, histogram.getCount());
+    assertEquals(1121, histogram.getSum());
+  }
+}
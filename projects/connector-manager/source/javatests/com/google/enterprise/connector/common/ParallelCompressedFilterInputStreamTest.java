@@ -0,0 +1,186 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.common;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Inflater;
+
+/**
+ * Tests for {@link ParallelCompressedFilterInputStream}.
+ */
+public class ParallelCompressedFilterInputStreamTest extends TestCase {
+  private static final int BLOCK_SIZE = 32 * 1024;
+
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() {
+    executor = Executors.newFixedThreadPool(3);
+  }
+
+  @Override
+  protected void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private InputStream newStream(byte[] input) {
+    return new ParallelCompressedFilterInputStream(
+        new ByteArrayInputStream(input), executor, BLOCK_SIZE, 4);
+  }
+
+  private static byte[] readAll(InputStream in, int bufferSize)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[bufferSize];
+    int bytes;
+    while ((bytes = in.read(buffer)) != -1) {
+      out.write(buffer, 0, bytes);
+    }
+    return out.toByteArray();
+  }
+
+  /** Inflates a complete zlib stream, checking its header and checksum. */
+  private static byte[] inflate(byte[] compressed) throws Exception {
+    Inflater inflater = new Inflater();
+    inflater.setInput(compressed);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    while (!inflater.finished()) {
+      int bytes = inflater.inflate(buffer);
+      assertFalse("Truncated stream", bytes == 0 && !inflater.finished()
+          && (inflater.needsInput() || inflater.needsDictionary()));
+      out.write(buffer, 0, bytes);
+    }
+    assertEquals("Trailing garbage", 0, inflater.getRemaining());
+    inflater.end();
+    return out.toByteArray();
+  }
+
+  private void checkRoundTrip(byte[] input) throws Exception {
+    // Read using both large and tiny reads.
+    for (int bufferSize : new int[] { 100000, 7 }) {
+      byte[] compressed = readAll(newStream(input), bufferSize);
+      assertTrue(Arrays.equals(input, inflate(compressed)));
+    }
+  }
+
+  private static byte[] textInput(int length) {
+    byte[] phrase = ("Given the enormous volume of web site information"
+        + " added, deleted, and changed on a frequent basis, ").getBytes();
+    byte[] input = new byte[length];
+    for (int i = 0; i < length; i++) {
+      input[i] = phrase[i % phrase.length];
+    }
+    return input;
+  }
+
+  private static byte[] randomInput(int length) {
+    byte[] input = new byte[length];
+    new Random(42).nextBytes(input);
+    return input;
+  }
+
+  public void testEmpty() throws Exception {
+    checkRoundTrip(new byte[0]);
+  }
+
+  public void testTiny() throws Exception {
+    checkRoundTrip(new byte[] { 'a' });
+  }
+
+  public void testExactlyOneBlock() throws Exception {
+    checkRoundTrip(textInput(BLOCK_SIZE));
+  }
+
+  public void testManyBlocksText() throws Exception {
+    checkRoundTrip(textInput(20 * BLOCK_SIZE + 69));
+  }
+
+  public void testManyBlocksRandom() throws Exception {
+    // Incompressible data expands slightly; make sure it is all flushed.
+    checkRoundTrip(randomInput(10 * BLOCK_SIZE + 1));
+  }
+
+  public void testSingleBlockMatchesSerial() throws Exception {
+    byte[] input = textInput(BLOCK_SIZE - 1);
+    byte[] parallel = readAll(newStream(input), 8192);
+    byte[] serial = readAll(new CompressedFilterInputStream(
+        new ByteArrayInputStream(input)), 8192);
+    assertTrue(Arrays.equals(serial, parallel));
+  }
+
+  public void testCompressionRatio() throws Exception {
+    // The dictionary should keep the ratio near that of a single Deflater.
+    byte[] input = textInput(20 * BLOCK_SIZE);
+    byte[] parallel = readAll(newStream(input), 8192);
+    byte[] serial = readAll(new CompressedFilterInputStream(
+        new ByteArrayInputStream(input)), 8192);
+    assertTrue("parallel " + parallel.length + ", serial " + serial.length,
+               parallel.length < 2 * serial.length + 1024);
+  }
+
+  public void testReadError() throws Exception {
+    InputStream bad = new InputStream() {
+        private int count = 0;
+        @Override
+        public int read() throws IOException {
+          if (count++ > BLOCK_SIZE * 2) {
+            throw new IOException("This stream is unreadable");
+          }
+          return 'a';
+        }
+      };
+    InputStream in = new ParallelCompressedFilterInputStream(
+        bad, executor, BLOCK_SIZE, 4);
+    try {
+      readAll(in, 8192);
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      assertEquals("This stream is unreadable", expected.getMessage());
+    }
+    in.close();
+  }
+
+  public void testShutdownDefaultExecutor() throws Exception {
+    byte[] input =
+        new byte[ParallelCompressedFilterInputStream.DEFAULT_BLOCK_SIZE * 3];
+    Arrays.fill(input, (byte) 'a');
+    InputStream in = new ParallelCompressedFilterInputStream(
+        new ByteArrayInputStream(input));
+    readAll(in, 8192);
+    in.close();
+    ExecutorService shared =
+        ParallelCompressedFilterInputStream.peekDefaultExecutor();
+    assertNotNull(shared);
+
+    ParallelCompressionService service = new ParallelCompressionService();
+    service.start();
+    assertTrue(service.isRunning());
+    service.stop(false);
+    assertFalse(service.isRunning());
+    assertTrue(shared.awaitTermination(10, TimeUnit.SECONDS));
+    assertNull(ParallelCompressedFilterInputStream.peekDefaultExecutor());
+  }
+}
@@ -0,0 +1,161 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.common;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link SpoolingOutputStream}.
+ */
+public class SpoolingOutputStreamTest extends TestCase {
+  private static final int MEMORY_LIMIT = 1000;
+
+  private File spoolDir;
+  private byte[] data;
+
+  @Override
+  protected void setUp() throws Exception {
+    spoolDir = new File("testdata/tmp/SpoolingOutputStreamTest");
+    assertTrue(spoolDir.mkdirs() || spoolDir.isDirectory());
+    data = new byte[200 * 1024];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i % 251);
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    File[] files = spoolDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    spoolDir.delete();
+  }
+
+  private SpoolingOutputStream newStream() {
+    return new SpoolingOutputStream(MEMORY_LIMIT, spoolDir);
+  }
+
+  private void assertContents(byte[] expected, int length,
+      SpoolingOutputStream out) throws Exception {
+    assertEquals(length, out.size());
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    out.writeTo(actual);
+    assertTrue(Arrays.equals(Arrays.copyOf(expected, length),
+                             actual.toByteArray()));
+  }
+
+  public void testInMemory() throws Exception {
+    SpoolingOutputStream out = newStream();
+    out.write(data, 0, MEMORY_LIMIT);
+    assertFalse(out.isSpooled());
+    assertContents(data, MEMORY_LIMIT, out);
+    assertEquals(0, spoolDir.list().length);
+  }
+
+  public void testSpooled() throws Exception {
+    SpoolingOutputStream out = newStream();
+    out.write(data);
+    assertTrue(out.isSpooled());
+    assertEquals(1, spoolDir.list().length);
+    assertContents(data, data.length, out);
+    // Should be able to read the data more than once.
+    assertContents(data, data.length, out);
+    out.discard();
+    assertEquals(0, spoolDir.list().length);
+  }
+
+  public void testWriteByte() throws Exception {
+    SpoolingOutputStream out = newStream();
+    for (byte b : data) {
+      out.write(b);
+    }
+    assertTrue(out.isSpooled());
+    assertContents(data, data.length, out);
+    out.discard();
+  }
+
+  public void testReadFrom() throws Exception {
+    SpoolingOutputStream out = newStream();
+    out.write(data, 0, 10);
+    out.readFrom(new ByteArrayInputStream(data, 10, data.length - 10));
+    assertContents(data, data.length, out);
+    out.discard();
+  }
+
+  public void testResetInMemory() throws Exception {
+    SpoolingOutputStream out = newStream();
+    out.write(data);
+    out.reset(MEMORY_LIMIT / 2);
+    assertFalse(out.isSpooled());
+    out.write(data, MEMORY_LIMIT / 2, data.length - MEMORY_LIMIT / 2);
+    assertContents(data, data.length, out);
+    out.discard();
+  }
+
+  public void testResetSpooled() throws Exception {
+    SpoolingOutputStream out = newStream();
+    out.write(data);
+    int resetPoint = data.length / 2;
+    out.reset(resetPoint);
+    assertTrue(out.isSpooled());
+    assertContents(data, resetPoint, out);
+    out.write(data, resetPoint, data.length - resetPoint);
+    assertContents(data, data.length, out);
+    out.discard();
+  }
+
+  public void testResetPendingSpoolBuffer() throws Exception {
+    SpoolingOutputStream out = newStream();
+    out.write(data, 0, MEMORY_LIMIT + 20);
+    out.reset(MEMORY_LIMIT + 10);
+    out.write(data, MEMORY_LIMIT + 10, 100);
+    assertContents(data, MEMORY_LIMIT + 110, out);
+    out.discard();
+  }
+
+  public void testResetTooBig() throws Exception {
+    SpoolingOutputStream out = newStream();
+    out.write(data, 0, 10);
+    try {
+      out.reset(11);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testToString() throws Exception {
+    SpoolingOutputStream out = new SpoolingOutputStream(4, spoolDir);
+    out.write("Hello World".getBytes("UTF-8"));
+    assertTrue(out.isSpooled());
+    assertEquals("Hello World", out.toString("UTF-8"));
+    out.discard();
+  }
+
+  public void testZeroMemoryLimit() throws Exception {
+    SpoolingOutputStream out = new SpoolingOutputStream(0, spoolDir);
+    out.write(data, 0, 100);
+    assertTrue(out.isSpooled());
+    assertContents(data, 100, out);
+    out.discard();
+  }
+}
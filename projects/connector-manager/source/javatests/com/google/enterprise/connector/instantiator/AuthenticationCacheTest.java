@@ -0,0 +1,141 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.instantiator;
+
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.AuthenticationManager;
+import com.google.enterprise.connector.spi.AuthenticationResponse;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
+import com.google.enterprise.connector.util.testing.AdjustableClock;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link AuthenticationCache}.
+ */
+public class AuthenticationCacheTest extends TestCase {
+  private AdjustableClock clock;
+  private CountingAuthenticationManager delegate;
+  private AuthenticationCache cache;
+  private AuthenticationManager manager;
+
+  @Override
+  protected void setUp() {
+    clock = new AdjustableClock(1000L);
+    delegate = new CountingAuthenticationManager();
+    cache = new AuthenticationCache("test", 100, 1000L, clock);
+    manager = cache.getAuthenticationManager(delegate);
+  }
+
+  /**
+   * Authenticates users whose password is "secret", and returns their
+   * groups.  Throws an exception for the user "error".
+   */
+  private static class CountingAuthenticationManager
+      implements AuthenticationManager {
+    int count = 0;
+
+    @Override
+    public AuthenticationResponse authenticate(AuthenticationIdentity identity)
+        throws RepositoryException {
+      count++;
+      if ("error".equals(identity.getUsername())) {
+        throw new RepositoryException("error");
+      }
+      return new AuthenticationResponse("secret".equals(identity.getPassword()),
+          null, Arrays.asList("staff", "wheel"));
+    }
+  }
+
+  private AuthenticationResponse authenticate(String username,
+      String password, String domain) throws Exception {
+    return manager.authenticate(
+        new SimpleAuthenticationIdentity(username, password, domain));
+  }
+
+  public void testCachedResponse() throws Exception {
+    AuthenticationResponse response = authenticate("user1", "secret", null);
+    assertTrue(response.isValid());
+    assertEquals(1, delegate.count);
+
+    AuthenticationResponse cached = authenticate("user1", "secret", null);
+    assertTrue(cached.isValid());
+    assertEquals(response.getGroups(), cached.getGroups());
+    assertEquals(1, delegate.count);
+  }
+
+  public void testCachedFailure() throws Exception {
+    assertFalse(authenticate("user1", "wrong", null).isValid());
+    assertFalse(authenticate("user1", "wrong", null).isValid());
+    assertEquals(1, delegate.count);
+  }
+
+  public void testDifferentCredentials() throws Exception {
+    authenticate("user1", "secret", null);
+    assertFalse(authenticate("user1", "wrong", null).isValid());
+    assertEquals(2, delegate.count);
+    authenticate("user1", "secret", "domain");
+    assertEquals(3, delegate.count);
+    authenticate("user2", "secret", null);
+    assertEquals(4, delegate.count);
+    authenticate("user1", null, null);
+    assertEquals(5, delegate.count);
+    // Fields are delimited, so moving characters between them differs.
+    authenticate("user1s", "ecret", null);
+    assertEquals(6, delegate.count);
+  }
+
+  public void testExpiration() throws Exception {
+    authenticate("user1", "secret", null);
+    // The AdjustableClock also advances in real time.
+    clock.adjustTime(500L);
+    authenticate("user1", "secret", null);
+    assertEquals(1, delegate.count);
+    clock.adjustTime(500L);
+    authenticate("user1", "secret", null);
+    assertEquals(2, delegate.count);
+  }
+
+  public void testExceptionNotCached() throws Exception {
+    for (int i = 1; i <= 2; i++) {
+      try {
+        authenticate("error", "secret", null);
+        fail("Expected a RepositoryException");
+      } catch (RepositoryException expected) {
+      }
+      assertEquals(i, delegate.count);
+    }
+  }
+
+  public void testMaximumSize() throws Exception {
+    cache = new AuthenticationCache("test", 10, 1000L, clock);
+    manager = cache.getAuthenticationManager(delegate);
+    for (int i = 0; i < 100; i++) {
+      authenticate("user" + i, "secret", null);
+    }
+    assertTrue(String.valueOf(cache.size()), cache.size() <= 10);
+  }
+
+  public void testInvalidateAll() throws Exception {
+    authenticate("user1", "secret", null);
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+    authenticate("user1", "secret", null);
+    assertEquals(2, delegate.count);
+  }
+}
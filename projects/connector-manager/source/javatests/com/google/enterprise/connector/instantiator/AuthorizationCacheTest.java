@@ -0,0 +1,195 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.instantiator;
+
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.AuthorizationManager;
+import com.google.enterprise.connector.spi.AuthorizationResponse;
+import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
+import com.google.enterprise.connector.util.testing.AdjustableClock;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tests for {@link AuthorizationCache}.
+ */
+public class AuthorizationCacheTest extends TestCase {
+  private static final AuthenticationIdentity USER1 =
+      new SimpleAuthenticationIdentity("user1");
+  private static final AuthenticationIdentity USER2 =
+      new SimpleAuthenticationIdentity("user2");
+
+  private AdjustableClock clock;
+  private RecordingAuthorizationManager delegate;
+  private AuthorizationCache cache;
+  private AuthorizationManager manager;
+
+  @Override
+  protected void setUp() {
+    clock = new AdjustableClock(1000L);
+    delegate = new RecordingAuthorizationManager();
+    cache = new AuthorizationCache("test", 100, 1000L, 5000L, clock);
+    manager = cache.getAuthorizationManager(delegate);
+  }
+
+  /**
+   * A connector that permits docids starting with "p", denies those
+   * starting with "d", is indeterminate for those starting with "i",
+   * and omits the others.  It records the docids it is asked about.
+   */
+  private static class RecordingAuthorizationManager
+      implements AuthorizationManager {
+    final List<String> queried = new ArrayList<String>();
+
+    @Override
+    public Collection<AuthorizationResponse> authorizeDocids(
+        Collection<String> docids, AuthenticationIdentity identity) {
+      List<AuthorizationResponse> responses =
+          new ArrayList<AuthorizationResponse>();
+      for (String docid : docids) {
+        queried.add(docid);
+        if (docid.startsWith("p")) {
+          responses.add(new AuthorizationResponse(
+              AuthorizationResponse.Status.PERMIT, docid));
+        } else if (docid.startsWith("d")) {
+          responses.add(new AuthorizationResponse(
+              AuthorizationResponse.Status.DENY, docid));
+        } else if (docid.startsWith("i")) {
+          responses.add(new AuthorizationResponse(
+              AuthorizationResponse.Status.INDETERMINATE, docid));
+        }
+      }
+      return responses;
+    }
+  }
+
+  private Map<String, AuthorizationResponse.Status> authorize(
+      AuthenticationIdentity identity, String... docids) throws Exception {
+    Map<String, AuthorizationResponse.Status> results =
+        new TreeMap<String, AuthorizationResponse.Status>();
+    for (AuthorizationResponse response :
+             manager.authorizeDocids(Arrays.asList(docids), identity)) {
+      results.put(response.getDocid(), response.getStatus());
+    }
+    return results;
+  }
+
+  public void testCachedDecisions() throws Exception {
+    Map<String, AuthorizationResponse.Status> expected =
+        authorize(USER1, "p1", "d1", "i1", "x1");
+    assertEquals(3, expected.size());
+    assertEquals(Arrays.asList("p1", "d1", "i1", "x1"), delegate.queried);
+
+    delegate.queried.clear();
+    assertEquals(expected, authorize(USER1, "p1", "d1", "i1", "x1"));
+    // INDETERMINATE decisions and missing responses are not cached.
+    assertEquals(Arrays.asList("i1", "x1"), delegate.queried);
+  }
+
+  public void testAllCached() throws Exception {
+    authorize(USER1, "p1", "d1");
+    delegate.queried.clear();
+    authorize(USER1, "p1", "d1");
+    assertTrue(delegate.queried.toString(), delegate.queried.isEmpty());
+  }
+
+  public void testIdentities() throws Exception {
+    authorize(USER1, "p1");
+    delegate.queried.clear();
+    authorize(USER2, "p1");
+    assertEquals(Arrays.asList("p1"), delegate.queried);
+
+    delegate.queried.clear();
+    authorize(new SimpleAuthenticationIdentity("user1", "password"), "p1");
+    assertEquals(Arrays.asList("p1"), delegate.queried);
+
+    // An equal identity finds the cached decisions.
+    delegate.queried.clear();
+    authorize(new SimpleAuthenticationIdentity("user1", "password"), "p1");
+    assertTrue(delegate.queried.toString(), delegate.queried.isEmpty());
+  }
+
+  public void testSeparateTtls() throws Exception {
+    authorize(USER1, "p1", "d1");
+
+    // The AdjustableClock also advances in real time.
+    clock.adjustTime(500L);
+    delegate.queried.clear();
+    authorize(USER1, "p1", "d1");
+    assertTrue(delegate.queried.toString(), delegate.queried.isEmpty());
+
+    // The PERMIT has expired, but the DENY has not.
+    clock.adjustTime(500L);
+    authorize(USER1, "p1", "d1");
+    assertEquals(Arrays.asList("p1"), delegate.queried);
+
+    clock.adjustTime(5000L);
+    delegate.queried.clear();
+    authorize(USER1, "p1", "d1");
+    assertEquals(Arrays.asList("p1", "d1"), delegate.queried);
+  }
+
+  public void testZeroTtl() throws Exception {
+    cache = new AuthorizationCache("test", 100, 0L, 5000L, clock);
+    manager = cache.getAuthorizationManager(delegate);
+    authorize(USER1, "p1", "d1");
+    delegate.queried.clear();
+    authorize(USER1, "p1", "d1");
+    assertEquals(Arrays.asList("p1"), delegate.queried);
+  }
+
+  public void testMaximumSize() throws Exception {
+    cache = new AuthorizationCache("test", 10, 1000L, 1000L, clock);
+    manager = cache.getAuthorizationManager(delegate);
+    for (int i = 0; i < 100; i++) {
+      authorize(USER1, "p" + i);
+    }
+    assertTrue(String.valueOf(cache.size()), cache.size() <= 10);
+  }
+
+  public void testInvalidateAll() throws Exception {
+    authorize(USER1, "p1", "d1");
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+    delegate.queried.clear();
+    authorize(USER1, "p1", "d1");
+    assertEquals(Arrays.asList("p1", "d1"), delegate.queried);
+  }
+
+  public void testNullResponse() throws Exception {
+    AuthorizationManager nullManager = cache.getAuthorizationManager(
+        new AuthorizationManager() {
+          @Override
+          public Collection<AuthorizationResponse> authorizeDocids(
+              Collection<String> docids, AuthenticationIdentity identity) {
+            return null;
+          }
+        });
+    assertNull(nullManager.authorizeDocids(Arrays.asList("p1"), USER1));
+
+    authorize(USER1, "p1");
+    Collection<AuthorizationResponse> responses =
+        nullManager.authorizeDocids(Arrays.asList("p1", "p2"), USER1);
+    assertEquals(1, responses.size());
+    assertEquals("p1", responses.iterator().next().getDocid());
+  }
+}
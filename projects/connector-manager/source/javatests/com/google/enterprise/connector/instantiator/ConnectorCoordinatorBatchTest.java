@@ -22,6 +22,7 @@ import com.google.enterprise.connector.pusher.PusherFactory;
 import com.google.enterprise.connector.scheduler.LoadManager;
 import com.google.enterprise.connector.scheduler.LoadManagerFactory;
 import com.google.enterprise.connector.scheduler.Schedule;
+import com.google.enterprise.connector.scheduler.TraversalQueue;
 import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.SimpleDocument;
@@ -32,6 +33,7 @@ import com.google.enterprise.connector.traversal.BatchResult;
 import com.google.enterprise.connector.traversal.BatchSize;
 import com.google.enterprise.connector.traversal.TraversalDelayPolicy;
 import com.google.enterprise.connector.util.SystemClock;
+import com.google.enterprise.connector.util.testing.AdjustableClock;
 
 import junit.framework.Assert;
 import junit.framework.TestCase;
@@ -225,6 +227,72 @@ public class ConnectorCoordinatorBatchTest extends TestCase {
     fail("Failed to start batch - probably a batch is not ending properly.");
   }
 
+  public void testTraversalQueue() throws Exception {
+    TraversalQueue queue = new TraversalQueue();
+    getCoordinatorFactory().setTraversalQueue(queue);
+    createPusherAndCoordinator();
+
+    // The newly configured connector is due immediately.
+    assertEquals("c1", queue.poll(0, TimeUnit.MILLISECONDS));
+    assertEquals(0, queue.size());
+
+    // A running batch is not queued, but is queued when it completes.
+    runBatch(1, 1, 0);
+    assertEquals("c1", queue.poll(LONG_TIME_OUT, TimeUnit.MILLISECONDS));
+  }
+
+  public void testTraversalQueueDelay() throws Exception {
+    TraversalQueue queue = new TraversalQueue();
+    getCoordinatorFactory().setTraversalQueue(queue);
+    createPusherAndCoordinator();
+    assertEquals("c1", queue.poll(0, TimeUnit.MILLISECONDS));
+
+    // A schedule change makes the connector due immediately.
+    coordinator.setConnectorSchedule(new Schedule("c1:1000:100000:0-0"));
+    assertEquals("c1", queue.poll(0, TimeUnit.MILLISECONDS));
+
+    // A connector waiting to poll is queued, but not yet due.
+    coordinator.delayTraversal(TraversalDelayPolicy.POLL);
+    assertFalse(coordinator.startBatch());
+    assertEquals(1, queue.size());
+    assertNull(queue.poll(SHORT_TIME_OUT, TimeUnit.MILLISECONDS));
+
+    // IMMEDIATE makes it due now.
+    coordinator.delayTraversal(TraversalDelayPolicy.IMMEDIATE);
+    assertEquals("c1", queue.poll(0, TimeUnit.MILLISECONDS));
+  }
+
+  public void testTraversalQueueLoadDelay() throws Exception {
+    TraversalQueue queue = new TraversalQueue();
+    getCoordinatorFactory().setTraversalQueue(queue);
+    createPusherAndCoordinator();
+    assertEquals("c1", queue.poll(0, TimeUnit.MILLISECONDS));
+
+    // A connector delayed by the load manager is not due until the delay
+    // ends, rather than being retried every second.
+    recordingLoadManager.delayEndTime = System.currentTimeMillis() + 60000L;
+    assertFalse(coordinator.startBatch());
+    assertEquals(1, queue.size());
+    assertNull(queue.poll(1500, TimeUnit.MILLISECONDS));
+
+    // The end of the delay makes it due.
+    recordingLoadManager.delayEndTime = 0L;
+    coordinator.delayTraversal(TraversalDelayPolicy.IMMEDIATE);
+    assertEquals("c1", queue.poll(0, TimeUnit.MILLISECONDS));
+  }
+
+  public void testTraversalQueueDisabledTraversal() throws Exception {
+    TraversalQueue queue = new TraversalQueue();
+    getCoordinatorFactory().setTraversalQueue(queue);
+    createPusherAndCoordinator();
+    assertEquals("c1", queue.poll(0, TimeUnit.MILLISECONDS));
+
+    // A disabled connector is not queued.
+    coordinator.setConnectorSchedule(new Schedule("#c1:1000:0:0-0"));
+    assertFalse(coordinator.startBatch());
+    assertEquals(0, queue.size());
+  }
+
   public void testDisabledTraversal() throws Exception {
     SyncingConnector.setPollTimeout(SHORT_TIME_OUT);
     createPusherAndCoordinator();
@@ -327,6 +395,56 @@ public class ConnectorCoordinatorBatchTest extends TestCase {
     assertTrue(coordinator.startBatch());
   }
 
+  /**
+   * Tests that the next batch time is computed from the coordinator's
+   * clock, for a schedule that spans midnight.
+   */
+  public void testTraversalIntervalsAcrossMidnight() throws Exception {
+    Calendar lateTonight = Calendar.getInstance();
+    lateTonight.set(Calendar.HOUR_OF_DAY, 23);
+    lateTonight.set(Calendar.MINUTE, 30);
+    lateTonight.set(Calendar.SECOND, 0);
+    lateTonight.set(Calendar.MILLISECOND, 0);
+    long lateTonightMillis = lateTonight.getTimeInMillis();
+    long halfHour = 30 * 60 * 1000L;
+    AdjustableClock clock = new AdjustableClock(lateTonightMillis);
+    getCoordinatorFactory().setClock(clock);
+    createPusherAndCoordinator();
+
+    // At 11:30PM, the next 1-2AM interval starts in an hour and a half.
+    coordinator.setConnectorSchedule(new Schedule("c1:1000:0:1-2"));
+    assertFalse(coordinator.shouldRun());
+    assertNextBatchTime(lateTonightMillis + 3 * halfHour);
+
+    // With no intervals at all, check again at midnight.
+    coordinator.setConnectorSchedule(new Schedule("c1:1000:0:"));
+    assertEquals(lateTonightMillis + halfHour, coordinator.getNextBatchTime());
+
+    // An interval from 11PM to 1AM includes both 11:30PM and 12:30AM.
+    coordinator.setConnectorSchedule(new Schedule("c1:1000:0:23-1"));
+    assertTrue(coordinator.shouldRun());
+    assertTrue(coordinator.getNextBatchTime() <= clock.getTimeMillis());
+    clock.adjustTime(2 * halfHour);
+    assertTrue(coordinator.shouldRun());
+    assertTrue(coordinator.getNextBatchTime() <= clock.getTimeMillis());
+
+    // At 12:30AM, the 1-2AM interval is half an hour away.
+    coordinator.setConnectorSchedule(new Schedule("c1:1000:0:1-2"));
+    assertFalse(coordinator.shouldRun());
+    assertNextBatchTime(lateTonightMillis + 3 * halfHour);
+  }
+
+  /**
+   * Asserts that the next batch time is the expected time, allowing for
+   * the time that passes during the test.
+   */
+  private void assertNextBatchTime(long expected) {
+    long nextBatchTime = coordinator.getNextBatchTime();
+    assertTrue(nextBatchTime + " < " + expected, nextBatchTime >= expected);
+    assertTrue(nextBatchTime + " > " + expected + " + 1s",
+               nextBatchTime < expected + 1000L);
+  }
+
   public void testTraversalDelayPolicy1() throws Exception {
     SyncingConnector.setPollTimeout(SHORT_TIME_OUT);
     createPusherAndCoordinator();
@@ -518,6 +636,7 @@ public class ConnectorCoordinatorBatchTest extends TestCase {
   private static class RecordingLoadManager implements LoadManager {
     int load = 200;
     int batchSize = 3;
+    volatile long delayEndTime = 0L;
 
     private final BlockingQueue<BatchResult> resultQueue =
         new ArrayBlockingQueue<BatchResult>(10);
@@ -533,6 +652,7 @@ public class ConnectorCoordinatorBatchTest extends TestCase {
 
     void reset() {
       resultQueue.clear();
+      delayEndTime = 0L;
     }
 
     @Override
@@ -556,7 +676,12 @@ public class ConnectorCoordinatorBatchTest extends TestCase {
 
     @Override
     public boolean shouldDelay() {
-      return false;
+      return delayEndTime != 0L;
+    }
+
+    @Override
+    public long getDelayEndTime() {
+      return delayEndTime;
     }
   }
 }
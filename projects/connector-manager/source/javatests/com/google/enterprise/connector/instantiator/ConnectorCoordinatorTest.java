@@ -21,15 +21,20 @@ import com.google.enterprise.connector.persist.ConnectorExistsException;
 import com.google.enterprise.connector.persist.ConnectorNotFoundException;
 import com.google.enterprise.connector.persist.ConnectorTypeNotFoundException;
 import com.google.enterprise.connector.scheduler.Schedule;
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.AuthorizationManager;
+import com.google.enterprise.connector.spi.AuthorizationResponse;
 import com.google.enterprise.connector.spi.ConfigureResponse;
 import com.google.enterprise.connector.spi.ConnectorFactory;
 import com.google.enterprise.connector.spi.DocumentAcceptor;
 import com.google.enterprise.connector.spi.Lister;
 import com.google.enterprise.connector.spi.MockConnector;
 import com.google.enterprise.connector.spi.MockConnectorType;
+import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
 import com.google.enterprise.connector.test.ConnectorTestUtils;
 import com.google.enterprise.connector.test.JsonObjectAsMap;
 import com.google.enterprise.connector.traversal.TraversalDelayPolicy;
+import com.google.enterprise.connector.util.SystemClock;
 import com.google.enterprise.connector.util.filter.AbstractDocumentFilter;
 import com.google.enterprise.connector.util.filter.DocumentFilterChain;
 import com.google.enterprise.connector.util.filter.DocumentFilterFactory;
@@ -44,7 +49,11 @@ import java.io.File;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
@@ -808,6 +817,49 @@ public class ConnectorCoordinatorTest extends TestCase {
     assertEquals(1, lister.getShutdownCount());
   }
 
+  /** An AuthorizationManager that permits every document. */
+  private static class PermitAllAuthorizationManager
+      implements AuthorizationManager {
+    @Override
+    public Collection<AuthorizationResponse> authorizeDocids(
+        Collection<String> docids, AuthenticationIdentity identity) {
+      List<AuthorizationResponse> responses =
+          new ArrayList<AuthorizationResponse>();
+      for (String docid : docids) {
+        responses.add(new AuthorizationResponse(
+            AuthorizationResponse.Status.PERMIT, docid));
+      }
+      return responses;
+    }
+  }
+
+  /** A Connector that has an AuthorizationManager. */
+  private static class AuthorizingConnector extends MockConnector {
+    public AuthorizingConnector() {
+      super(null, null, new PermitAllAuthorizationManager(), null, null);
+    }
+  }
+
+  /** Tests restartConnectorTraversal clears the authorization cache. */
+  public void testRestartInvalidatesAuthorizationCache() throws Exception {
+    String connectorInstancePrototype = BEANS_PREFIX
+        + "<bean class=\"" + AuthorizingConnector.class.getName() + "\"/>\n"
+        + BEANS_POSTFIX;
+    ConnectorCoordinatorImpl instance =
+        createMockConnector("authorizing", connectorInstancePrototype);
+    AuthorizationCache cache = new AuthorizationCache("authorizing", 100,
+        60000L, 60000L, new SystemClock());
+    instance.setAuthorizationCache(cache);
+
+    instance.getAuthorizationManager().authorizeDocids(
+        Arrays.asList("doc1", "doc2"),
+        new SimpleAuthenticationIdentity("user1"));
+    assertEquals(2, cache.size());
+
+    instance.restartConnectorTraversal();
+    assertEquals(0, cache.size());
+  }
+
   /* TODO (bmj): Many of these tests are really testing stuff in InstanceInfo
      and DocumentFilterFactoryFactory, but are included here to leverage
      all the test machinery to create connector instances.  Perhaps the
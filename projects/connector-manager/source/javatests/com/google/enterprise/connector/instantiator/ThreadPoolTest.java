@@ -168,6 +168,52 @@ public class ThreadPoolTest extends TestCase {
     assertNull(handle);
   }
 
+  public void testMaximumThreads() throws Exception {
+    final int count = 5;
+    ThreadPool threadPool = new ThreadPool(DEFAULT_TASK_LIFE_SECS, clock);
+    threadPool.setMaximumThreads(2);
+    BlockingQueue<Object> taskRunningQ = new ArrayBlockingQueue<Object>(count);
+    BlockingQueue<Object> taskStoppingQ = new ArrayBlockingQueue<Object>(count);
+    List<TaskHandle> taskHandles = new ArrayList<TaskHandle>();
+    for (int ix = 0; ix < count; ix++) {
+      taskHandles.add(threadPool.submit(
+          new BlockingQueueCancelable(taskRunningQ, taskStoppingQ)));
+    }
+    take(2, taskRunningQ);
+    verifyRunning(taskHandles);
+    // Only two tasks run at a time, the rest wait their turn.
+    Thread.sleep(50);
+    assertEquals(0, taskRunningQ.size());
+    assertEquals(2, threadPool.getActiveTaskCount());
+    assertEquals(3, threadPool.getQueuedTaskCount());
+
+    put(2, taskStoppingQ);
+    take(2, taskRunningQ);
+    put(2, taskStoppingQ);
+    take(1, taskRunningQ);
+    put(1, taskStoppingQ);
+    verifyCompleted(taskHandles);
+    assertEquals(0, threadPool.getQueuedTaskCount());
+    assertEquals(count, threadPool.getTaskDurations().getCount());
+    assertEquals(0L, threadPool.getTimeoutCount());
+  }
+
+  public void testMaximumThreadsAfterSubmit() throws Exception {
+    ThreadPool threadPool = new ThreadPool(DEFAULT_TASK_LIFE_SECS, clock);
+    BlockingQueue<Object> runningQ = new ArrayBlockingQueue<Object>(10);
+    BlockingQueue<Object> stoppingQ = new ArrayBlockingQueue<Object>(10);
+    TaskHandle handle =
+        threadPool.submit(new BlockingQueueCancelable(runningQ, stoppingQ));
+    try {
+      threadPool.setMaximumThreads(2);
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    } finally {
+      stoppingQ.put(this);
+      verifyCompleted(handle);
+    }
+  }
+
   private final static int SHORT_TASK_LIFE_SECS = 1;
 
   public void testTimeToLiveWithHungBatch() throws Exception {
@@ -181,6 +227,7 @@ public class ThreadPoolTest extends TestCase {
     assertFalse(task.isExiting());
     assertEquals(1, task.getCancelCount());
     assertEquals(1, task.getTimeoutCount());
+    assertEquals(1L, threadPool.getTimeoutCount());
   }
 
   public void testTimeToLiveWithSlowBatch() throws Exception {
@@ -0,0 +1,114 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.instantiator;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link TimeoutWheel}.
+ */
+public class TimeoutWheelTest extends TestCase {
+  private TimeoutWheel wheel;
+  private BlockingQueue<String> fired;
+
+  @Override
+  protected void setUp() {
+    // A small wheel, so that time outs wrap around it.
+    wheel = new TimeoutWheel(getName(), 10L, 4);
+    fired = new LinkedBlockingQueue<String>();
+  }
+
+  @Override
+  protected void tearDown() {
+    wheel.shutdown();
+  }
+
+  private Runnable task(final String name) {
+    return new Runnable() {
+        public void run() {
+          fired.add(name);
+        }
+      };
+  }
+
+  public void testTimeout() throws Exception {
+    long start = System.currentTimeMillis();
+    wheel.schedule(task("a"), 100L);
+    assertEquals(1, wheel.size());
+    assertEquals("a", fired.poll(2, TimeUnit.SECONDS));
+    assertTrue(System.currentTimeMillis() - start >= 100L);
+    assertEquals(0, wheel.size());
+  }
+
+  public void testOrder() throws Exception {
+    wheel.schedule(task("c"), 150L);
+    wheel.schedule(task("a"), 10L);
+    wheel.schedule(task("b"), 75L);
+    assertEquals("a", fired.poll(2, TimeUnit.SECONDS));
+    assertEquals("b", fired.poll(2, TimeUnit.SECONDS));
+    assertEquals("c", fired.poll(2, TimeUnit.SECONDS));
+  }
+
+  public void testEarlierTimeout() throws Exception {
+    // The worker sleeps until the long time out, but is woken to run
+    // the shorter one scheduled later.
+    wheel.schedule(task("b"), 10 * 60 * 1000L);
+    Thread.sleep(50L);
+    wheel.schedule(task("a"), 50L);
+    assertEquals("a", fired.poll(2, TimeUnit.SECONDS));
+    assertEquals(1, wheel.size());
+  }
+
+  public void testCancel() throws Exception {
+    TimeoutWheel.Timeout timeout = wheel.schedule(task("a"), 50L);
+    wheel.schedule(task("b"), 100L);
+    timeout.cancel();
+    assertEquals(1, wheel.size());
+    assertEquals("b", fired.poll(2, TimeUnit.SECONDS));
+    assertTrue(fired.isEmpty());
+  }
+
+  public void testManyTimeouts() throws Exception {
+    // Time outs share ticks, wrap around the wheel, and some are canceled.
+    int count = 1000;
+    TimeoutWheel.Timeout[] timeouts = new TimeoutWheel.Timeout[count];
+    for (int i = 0; i < count; i++) {
+      timeouts[i] = wheel.schedule(task("t" + i), 20L + (i % 100));
+    }
+    for (int i = 0; i < count; i += 2) {
+      timeouts[i].cancel();
+    }
+    assertEquals(count / 2, wheel.size());
+    for (int i = 0; i < count / 2; i++) {
+      assertNotNull(fired.poll(2, TimeUnit.SECONDS));
+    }
+    assertNull(fired.poll(100, TimeUnit.MILLISECONDS));
+    assertEquals(0, wheel.size());
+  }
+
+  public void testFailingTask() throws Exception {
+    wheel.schedule(new Runnable() {
+        public void run() {
+          throw new IllegalStateException("expected");
+        }
+      }, 10L);
+    wheel.schedule(task("a"), 50L);
+    assertEquals("a", fired.poll(2, TimeUnit.SECONDS));
+  }
+}
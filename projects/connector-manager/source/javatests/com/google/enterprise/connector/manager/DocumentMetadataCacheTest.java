@@ -0,0 +1,136 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.manager;
+
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.Property;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.spi.Value;
+import com.google.enterprise.connector.test.ConnectorTestUtils;
+import com.google.enterprise.connector.util.testing.AdjustableClock;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests for {@link DocumentMetadataCache}.
+ */
+public class DocumentMetadataCacheTest extends TestCase {
+  private AdjustableClock clock;
+  private DocumentMetadataCache cache;
+
+  @Override
+  protected void setUp() {
+    clock = new AdjustableClock(1000L);
+    cache = new DocumentMetadataCache(100, 1000L, clock);
+  }
+
+  private static Document createDocument(String docid) {
+    Map<String, Object> props =
+        ConnectorTestUtils.createSimpleDocumentBasicProperties(docid);
+    props.put("multi", Arrays.asList("one", "two"));
+    return ConnectorTestUtils.createSimpleDocument(props);
+  }
+
+  public void testSnapshot() throws Exception {
+    Document document = createDocument("doc1");
+    Document snapshot = cache.put("test", "doc1", document);
+    assertEquals(document.getPropertyNames(), snapshot.getPropertyNames());
+
+    // The snapshot may be read again and again.
+    for (int i = 0; i < 2; i++) {
+      assertEquals("doc1", Value.getSingleValueString(snapshot,
+          SpiConstants.PROPNAME_DOCID));
+      Property property = snapshot.findProperty("multi");
+      assertEquals("one", property.nextValue().toString());
+      assertEquals("two", property.nextValue().toString());
+      assertNull(property.nextValue());
+    }
+    assertNull(snapshot.findProperty("missing"));
+  }
+
+  public void testCachedDocument() throws Exception {
+    assertNull(cache.get("test", "doc1"));
+    Document snapshot = cache.put("test", "doc1", createDocument("doc1"));
+    assertSame(snapshot, cache.get("test", "doc1"));
+    assertNull(cache.get("test", "doc2"));
+    assertNull(cache.get("other", "doc1"));
+  }
+
+  public void testExpiration() throws Exception {
+    cache.put("test", "doc1", createDocument("doc1"));
+    // The AdjustableClock also advances in real time.
+    clock.adjustTime(500L);
+    assertNotNull(cache.get("test", "doc1"));
+    clock.adjustTime(500L);
+    assertNull(cache.get("test", "doc1"));
+  }
+
+  public void testBinaryValueNotCached() throws Exception {
+    Map<String, Object> props =
+        ConnectorTestUtils.createSimpleDocumentBasicProperties("doc1");
+    props.put("binary", new ByteArrayInputStream("data".getBytes()));
+    Document snapshot = cache.put("test", "doc1",
+        ConnectorTestUtils.createSimpleDocument(props));
+    assertNotNull(snapshot.findProperty("binary"));
+    assertNull(cache.get("test", "doc1"));
+    assertEquals(0, cache.size());
+  }
+
+  public void testExceptionNotCached() throws Exception {
+    Document document = new Document() {
+      @Override
+      public Property findProperty(String name) throws RepositoryException {
+        throw new RepositoryException(name);
+      }
+
+      @Override
+      public Set<String> getPropertyNames() {
+        return Collections.singleton("error");
+      }
+    };
+    try {
+      cache.put("test", "doc1", document);
+      fail("Expected a RepositoryException");
+    } catch (RepositoryException expected) {
+    }
+    assertNull(cache.get("test", "doc1"));
+  }
+
+  public void testMaximumSize() throws Exception {
+    cache = new DocumentMetadataCache(10, 1000L, clock);
+    for (int i = 0; i < 100; i++) {
+      cache.put("test", "doc" + i, createDocument("doc" + i));
+    }
+    assertTrue(String.valueOf(cache.size()), cache.size() <= 10);
+  }
+
+  public void testInvalidate() throws Exception {
+    cache.put("test", "doc1", createDocument("doc1"));
+    cache.put("test", "doc2", createDocument("doc2"));
+    cache.put("other", "doc1", createDocument("doc1"));
+    cache.invalidate("test");
+    assertEquals(1, cache.size());
+    assertNull(cache.get("test", "doc1"));
+    assertNull(cache.get("test", "doc2"));
+    assertNotNull(cache.get("other", "doc1"));
+  }
+}
@@ -37,6 +37,7 @@ import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -248,6 +249,12 @@ public class MockManager implements Manager {
                                          + connectorName);
   }
 
+  @Override
+  public Calendar getLastModified(String connectorName, String docid)
+      throws ConnectorNotFoundException {
+    return null;
+  }
+
   @Override
   public Set<String> getConnectorTypeNames() {
     return new TreeSet<String>(Arrays.asList(
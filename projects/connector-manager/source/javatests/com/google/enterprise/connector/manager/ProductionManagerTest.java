@@ -30,6 +30,7 @@ import com.google.enterprise.connector.spi.AuthorizationResponse;
 import com.google.enterprise.connector.spi.ConfigureResponse;
 import com.google.enterprise.connector.spi.ConnectorType;
 import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.LastModifiedRetriever;
 import com.google.enterprise.connector.spi.MockConnector;
 import com.google.enterprise.connector.spi.MockRetriever;
 import com.google.enterprise.connector.spi.RepositoryDocumentException;
@@ -45,6 +46,7 @@ import junit.framework.TestCase;
 
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -370,6 +372,181 @@ public class ProductionManagerTest extends TestCase {
         Value.getSingleValueString(document, SpiConstants.PROPNAME_DOCID));
   }
 
+  /** A Retriever that counts the requests for metadata. */
+  private static class CountingRetriever extends MockRetriever {
+    int count = 0;
+
+    @Override
+    public Document getMetaData(String docid) throws RepositoryException {
+      count++;
+      return super.getMetaData(docid);
+    }
+  }
+
+  /** Test getDocumentMetaData with the metadata cache disabled. */
+  public void testGetDocumentMetaDataNotCached() throws Exception {
+    CountingRetriever retriever = new CountingRetriever();
+    instantiator.addConnector(connectorName,
+        new MockConnector(null, null, null, retriever, null));
+    manager.getDocumentMetaData(connectorName, "docid");
+    manager.getDocumentMetaData(connectorName, "docid");
+    assertEquals(2, retriever.count);
+  }
+
+  /** Test getDocumentMetaData with the metadata cache enabled. */
+  public void testGetDocumentMetaDataCached() throws Exception {
+    // The ACL filters need a content URL to read the whole document.
+    String contentUrlPrefix = Context.getInstance().getContentUrlPrefix();
+    Context.getInstance().setContentUrlPrefix("http://contentUrlPrefix");
+    try {
+      checkGetDocumentMetaDataCached();
+    } finally {
+      Context.getInstance().setContentUrlPrefix(contentUrlPrefix);
+    }
+  }
+
+  private void checkGetDocumentMetaDataCached() throws Exception {
+    manager.setMetadataCacheSize(100);
+    manager.setMetadataCacheTtl(60);
+    CountingRetriever retriever = new CountingRetriever();
+    instantiator.addConnector(connectorName,
+        new MockConnector(null, null, null, retriever, null));
+    for (int i = 0; i < 2; i++) {
+      Document document = manager.getDocumentMetaData(connectorName, "docid");
+      assertEquals("docid",
+          Value.getSingleValueString(document, SpiConstants.PROPNAME_DOCID));
+    }
+    assertEquals(1, retriever.count);
+
+    manager.getDocumentMetaData(connectorName, "docid2");
+    assertEquals(2, retriever.count);
+
+    // Failures are not cached.
+    for (int i = 0; i < 2; i++) {
+      try {
+        manager.getDocumentMetaData(connectorName,
+                                    MockRetriever.DOCID_REPOSITORY_EXCEPTION);
+        fail("Expected RepositoryException");
+      } catch (RepositoryException expected) {
+        // Expected.
+      }
+    }
+    assertEquals(4, retriever.count);
+
+    // Restarting the traversal discards the cached metadata.
+    manager.restartConnectorTraversal(connectorName);
+    manager.getDocumentMetaData(connectorName, "docid");
+    assertEquals(5, retriever.count);
+  }
+
+  /** Test getDocumentMetaData with metadata that cannot be read. */
+  public void testGetDocumentMetaDataCacheFailure() throws Exception {
+    // Without a content URL, reading the ACL filters fails, but the
+    // caller is still given the document.
+    String contentUrlPrefix = Context.getInstance().getContentUrlPrefix();
+    Context.getInstance().setContentUrlPrefix(null);
+    try {
+      manager.setMetadataCacheSize(100);
+      manager.setMetadataCacheTtl(60);
+      CountingRetriever retriever = new CountingRetriever();
+      instantiator.addConnector(connectorName,
+          new MockConnector(null, null, null, retriever, null));
+      Document document = manager.getDocumentMetaData(connectorName, "docid");
+      assertEquals("docid",
+          Value.getSingleValueString(document, SpiConstants.PROPNAME_DOCID));
+      assertEquals(2, retriever.count);
+    } finally {
+      Context.getInstance().setContentUrlPrefix(contentUrlPrefix);
+    }
+  }
+
+  /** A Retriever that supplies last modified dates directly. */
+  private static class LastModifiedMockRetriever extends CountingRetriever
+      implements LastModifiedRetriever {
+    @Override
+    public Calendar getLastModified(String docid) throws RepositoryException {
+      if (DOCID_REPOSITORY_EXCEPTION.equals(docid)) {
+        throw new RepositoryException("Repository Error");
+      }
+      Calendar calendar = Calendar.getInstance();
+      calendar.setTimeInMillis(1000L);
+      return calendar;
+    }
+  }
+
+  /** Test getLastModified with a Retriever that does not supply it. */
+  public void testGetLastModifiedNotSupported() throws Exception {
+    instantiator.addConnector(connectorName,
+        new MockConnector(null, null, null, new MockRetriever(), null));
+    assertNull(manager.getLastModified(connectorName, "docid"));
+  }
+
+  /** Test getLastModified with a Retriever that supplies it. */
+  public void testGetLastModified() throws Exception {
+    LastModifiedMockRetriever retriever = new LastModifiedMockRetriever();
+    instantiator.addConnector(connectorName,
+        new MockConnector(null, null, null, retriever, null));
+    assertEquals(1000L,
+        manager.getLastModified(connectorName, "docid").getTimeInMillis());
+    assertEquals(0, retriever.count);
+    try {
+      manager.getLastModified(connectorName,
+                              MockRetriever.DOCID_REPOSITORY_EXCEPTION);
+      fail("Expected RepositoryException");
+    } catch (RepositoryException expected) {
+      // Expected.
+    }
+    try {
+      manager.getLastModified("nonexistent", "docid");
+      fail("Expected ConnectorNotFoundException");
+    } catch (ConnectorNotFoundException expected) {
+      // Expected.
+    }
+  }
+
+  /** Test getLastModified defers to cached metadata. */
+  public void testGetLastModifiedCachedMetadata() throws Exception {
+    String contentUrlPrefix = Context.getInstance().getContentUrlPrefix();
+    Context.getInstance().setContentUrlPrefix("http://contentUrlPrefix");
+    try {
+      manager.setMetadataCacheSize(100);
+      manager.setMetadataCacheTtl(60);
+      instantiator.addConnector(connectorName, new MockConnector(
+          null, null, null, new LastModifiedMockRetriever(), null));
+      assertNotNull(manager.getLastModified(connectorName, "docid"));
+      manager.getDocumentMetaData(connectorName, "docid");
+      assertNull(manager.getLastModified(connectorName, "docid"));
+    } finally {
+      Context.getInstance().setContentUrlPrefix(contentUrlPrefix);
+    }
+  }
+
+  /** Test the metadata cache configuration. */
+  public void testMetadataCacheConfiguration() throws Exception {
+    try {
+      manager.setMetadataCacheSize(-1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+    try {
+      manager.setMetadataCacheTtl(-1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+
+    // A zero TTL disables the cache.
+    manager.setMetadataCacheSize(100);
+    manager.setMetadataCacheTtl(0);
+    CountingRetriever retriever = new CountingRetriever();
+    instantiator.addConnector(connectorName,
+        new MockConnector(null, null, null, retriever, null));
+    manager.getDocumentMetaData(connectorName, "docid");
+    manager.getDocumentMetaData(connectorName, "docid");
+    assertEquals(2, retriever.count);
+  }
+
   /** Test getConnectorStatus. */
   public void testGetConnectorStatus() throws Exception {
     ConnectorStatus status = manager.getConnectorStatus(connectorName);
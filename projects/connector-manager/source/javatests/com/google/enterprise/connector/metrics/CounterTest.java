@@ -0,0 +1,51 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.metrics;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link Counter}.
+ */
+public class CounterTest extends TestCase {
+  public void testIncrement() {
+    Counter counter = new Counter();
+    assertEquals(0L, counter.get());
+    counter.increment();
+    counter.add(41L);
+    assertEquals(42L, counter.get());
+    assertEquals("42", counter.toString());
+  }
+
+  public void testManyThreads() throws Exception {
+    final Counter counter = new Counter();
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+          @Override
+          public void run() {
+            for (int j = 0; j < 10000; j++) {
+              counter.increment();
+            }
+          }
+        };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(80000L, counter.get());
+  }
+}
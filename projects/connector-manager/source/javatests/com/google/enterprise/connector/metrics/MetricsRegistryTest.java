@@ -0,0 +1,137 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.metrics;
+
+import com.google.enterprise.connector.common.Histogram;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * Tests for {@link MetricsRegistry}.
+ */
+public class MetricsRegistryTest extends TestCase {
+  private MetricsRegistry registry;
+
+  @Override
+  protected void setUp() {
+    registry = new MetricsRegistry();
+  }
+
+  public void testGetCounter() {
+    Counter counter =
+        registry.getCounter(Metric.DOCUMENTS_TRAVERSED, "connector1");
+    assertSame(counter,
+        registry.getCounter(Metric.DOCUMENTS_TRAVERSED, "connector1"));
+    assertNotSame(counter,
+        registry.getCounter(Metric.DOCUMENTS_TRAVERSED, "connector2"));
+    assertNotSame(counter,
+        registry.getCounter(Metric.DOCUMENTS_SKIPPED, "connector1"));
+  }
+
+  public void testGetHistogram() {
+    Histogram histogram =
+        registry.getHistogram(Metric.FEED_POST_LATENCY, "connector1");
+    assertSame(histogram,
+        registry.getHistogram(Metric.FEED_POST_LATENCY, "connector1"));
+    assertTrue(Arrays.equals(Metric.LATENCY_BOUNDS_MILLIS,
+                             histogram.getBounds()));
+  }
+
+  public void testWrongType() {
+    try {
+      registry.getCounter(Metric.FEED_POST_LATENCY, "connector1");
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      registry.getHistogram(Metric.FEED_BYTES, "connector1");
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testWrongLabelCount() {
+    try {
+      registry.getCounter(Metric.FEED_RESPONSES, "connector1");
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testNullLabelValue() {
+    registry.getCounter(Metric.FEED_BYTES, (String) null).add(10L);
+    assertEquals(10L, registry.getCounter(Metric.FEED_BYTES, "").get());
+  }
+
+  public void testGauge() {
+    registry.register(Metric.THREAD_POOL_ACTIVE, new Gauge() {
+        public long getValue() {
+          return 7L;
+        }
+      });
+    Object gauge = registry.getMetrics().get(Metric.THREAD_POOL_ACTIVE)
+        .get(Arrays.<String>asList());
+    assertEquals(7L, ((Gauge) gauge).getValue());
+  }
+
+  public void testGetMetrics() {
+    assertTrue(registry.getMetrics().isEmpty());
+    registry.getCounter(Metric.FEED_RESPONSES, "c2", "Success");
+    registry.getCounter(Metric.FEED_RESPONSES, "c1", "Success");
+    registry.getCounter(Metric.FEED_RESPONSES, "c1", "Internal Error");
+    registry.getCounter(Metric.DOCUMENTS_TRAVERSED, "c1");
+
+    SortedMap<Metric, SortedMap<List<String>, Object>> metrics =
+        registry.getMetrics();
+    assertEquals(Arrays.asList(Metric.DOCUMENTS_TRAVERSED,
+                               Metric.FEED_RESPONSES),
+                 Arrays.asList(metrics.keySet().toArray()));
+    List<List<String>> expected = new ArrayList<List<String>>();
+    expected.add(Arrays.asList("c1", "Internal Error"));
+    expected.add(Arrays.asList("c1", "Success"));
+    expected.add(Arrays.asList("c2", "Success"));
+    assertEquals(expected,
+                 Arrays.asList(metrics.get(Metric.FEED_RESPONSES).keySet()
+                               .toArray()));
+  }
+
+  public void testRemoveConnector() {
+    registry.getCounter(Metric.FEED_RESPONSES, "c1", "Success");
+    registry.getCounter(Metric.FEED_RESPONSES, "c2", "Success");
+    registry.getCounter(Metric.DOCUMENTS_TRAVERSED, "c1");
+    registry.register(Metric.THREAD_POOL_ACTIVE, new Gauge() {
+        public long getValue() {
+          return 0L;
+        }
+      });
+    registry.removeConnector("c1");
+
+    SortedMap<Metric, SortedMap<List<String>, Object>> metrics =
+        registry.getMetrics();
+    assertNull(metrics.get(Metric.DOCUMENTS_TRAVERSED));
+    assertEquals(1, metrics.get(Metric.FEED_RESPONSES).size());
+    assertEquals(1, metrics.get(Metric.THREAD_POOL_ACTIVE).size());
+  }
+
+  public void testLogBounds() {
+    assertTrue(Arrays.equals(new long[] { 1, 2, 5, 10, 20, 50, 100 },
+                             Metric.logBounds(100L)));
+  }
+}
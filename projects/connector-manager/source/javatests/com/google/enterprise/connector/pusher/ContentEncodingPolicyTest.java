@@ -0,0 +1,163 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.connector.metrics.Gauge;
+import com.google.enterprise.connector.metrics.Metric;
+import com.google.enterprise.connector.metrics.MetricsRegistry;
+import com.google.enterprise.connector.traversal.MimeTypeMap;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Tests for {@link ContentEncodingPolicy}.
+ */
+public class ContentEncodingPolicyTest extends TestCase {
+  private ContentEncodingPolicy policy;
+
+  @Override
+  protected void setUp() {
+    MimeTypeMap mimeTypeMap = new MimeTypeMap();
+    mimeTypeMap.setCompressedMimeTypes(
+        ImmutableSet.of("image", "application/zip"));
+    policy = new ContentEncodingPolicy();
+    policy.setMimeTypeMap(mimeTypeMap);
+  }
+
+  private static byte[] textBytes(int length) {
+    byte[] phrase = "the quick brown fox jumps over the lazy dog ".getBytes();
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = phrase[i % phrase.length];
+    }
+    return bytes;
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(42).nextBytes(bytes);
+    return bytes;
+  }
+
+  public void testDefaults() {
+    ContentEncodingPolicy defaultPolicy = new ContentEncodingPolicy();
+    assertEquals(0, defaultPolicy.getLookAheadSize());
+    assertTrue(defaultPolicy.isCompressible("image/jpeg"));
+    assertTrue(defaultPolicy.shouldCompress("image/jpeg", null, 0, false));
+    assertTrue(defaultPolicy.shouldCompress("text/plain", new byte[1], 1,
+                                            true));
+    assertEquals(0, defaultPolicy.getUncompressedRecords());
+  }
+
+  public void testIllegalArguments() {
+    try {
+      policy.setMinCompressSize(-1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      policy.setProbeSize(-1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      policy.setMaxCompressionRatio(1.5);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testLookAheadSize() {
+    policy.setMinCompressSize(1024);
+    assertEquals(1024, policy.getLookAheadSize());
+    policy.setProbeSize(4096);
+    assertEquals(4096, policy.getLookAheadSize());
+  }
+
+  public void testCompressedMimeTypes() {
+    assertFalse(policy.isCompressible("image/jpeg"));
+    assertFalse(policy.isCompressible("application/zip"));
+    assertTrue(policy.isCompressible("application/msword"));
+    assertTrue(policy.isCompressible(null));
+    assertFalse(policy.shouldCompress("image/png", null, 0, false));
+    assertTrue(policy.shouldCompress("text/html", null, 0, false));
+    assertEquals(1, policy.getUncompressedRecords());
+  }
+
+  public void testMinCompressSize() {
+    policy.setMinCompressSize(100);
+    byte[] bytes = textBytes(100);
+    assertFalse(policy.shouldCompress("text/plain", bytes, 99, true));
+    assertTrue(policy.shouldCompress("text/plain", bytes, 100, true));
+    // Incomplete content is at least as big as the look ahead.
+    assertTrue(policy.shouldCompress("text/plain", bytes, 99, false));
+    assertEquals(1, policy.getUncompressedRecords());
+  }
+
+  public void testProbe() {
+    policy.setProbeSize(8192);
+    assertTrue(policy.shouldCompress("text/plain", textBytes(8192), 8192,
+                                     false));
+    assertFalse(policy.shouldCompress("text/plain", randomBytes(8192), 8192,
+                                      false));
+    assertEquals(1, policy.getUncompressedRecords());
+    assertTrue(policy.getCompressionTimeNanos() >= 0);
+  }
+
+  public void testProbeRatio() {
+    // Hexadecimal text compresses to a little over half its size.
+    byte[] random = randomBytes(4096);
+    byte[] hex = new byte[2 * random.length];
+    for (int i = 0; i < random.length; i++) {
+      hex[2 * i] = (byte) Character.forDigit((random[i] >> 4) & 0xf, 16);
+      hex[2 * i + 1] = (byte) Character.forDigit(random[i] & 0xf, 16);
+    }
+    policy.setProbeSize(hex.length);
+    assertTrue(policy.shouldCompress("text/plain", hex, hex.length, true));
+    policy.setMaxCompressionRatio(0.4);
+    assertFalse(policy.shouldCompress("text/plain", hex, hex.length, true));
+  }
+
+  public void testRecordCompression() {
+    policy.recordCompression(1000, 400, 5);
+    policy.recordCompression(2000, 1000, 7);
+    assertEquals(2, policy.getCompressedRecords());
+    assertEquals(1600, policy.getBytesSaved());
+    assertEquals(12, policy.getCompressionTimeNanos());
+  }
+
+  private static long getValue(MetricsRegistry metrics, Metric metric) {
+    Gauge gauge = (Gauge) metrics.getMetrics().get(metric)
+        .get(ImmutableList.<String>of());
+    return gauge.getValue();
+  }
+
+  public void testRegisterMetrics() {
+    MetricsRegistry metrics = new MetricsRegistry();
+    policy.registerMetrics(metrics);
+    assertEquals(0, getValue(metrics, Metric.FEED_RECORDS_COMPRESSED));
+
+    policy.recordCompression(1000, 400, 3000000);
+    policy.shouldCompress("image/jpeg", null, 0, false);
+    assertEquals(1, getValue(metrics, Metric.FEED_RECORDS_COMPRESSED));
+    assertEquals(1, getValue(metrics, Metric.FEED_RECORDS_UNCOMPRESSED));
+    assertEquals(600, getValue(metrics, Metric.FEED_COMPRESSION_BYTES_SAVED));
+    assertEquals(3, getValue(metrics, Metric.FEED_COMPRESSION_TIME));
+  }
+}
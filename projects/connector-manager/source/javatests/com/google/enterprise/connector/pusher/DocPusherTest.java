@@ -14,6 +14,8 @@
 
 package com.google.enterprise.connector.pusher;
 
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.connector.jcr.JcrDocumentTest;
 import com.google.enterprise.connector.jcr.JcrTraversalManager;
 import com.google.enterprise.connector.manager.Context;
@@ -38,6 +40,7 @@ import com.google.enterprise.connector.spi.TraversalManager;
 import com.google.enterprise.connector.spi.Value;
 import com.google.enterprise.connector.test.ConnectorTestUtils;
 import com.google.enterprise.connector.traversal.FileSizeLimitInfo;
+import com.google.enterprise.connector.traversal.MimeTypeMap;
 import com.google.enterprise.connector.util.Base64;
 import com.google.enterprise.connector.util.Clock;
 import com.google.enterprise.connector.util.SAXParseErrorHandler;
@@ -67,7 +70,11 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.SimpleFormatter;
@@ -385,6 +392,10 @@ public class DocPusherTest extends TestCase {
 
     String expectedXml = buildExpectedXML(feedType, records);
     takeMultiFeed(expectedXml, "MockRepositoryEventLog9.txt", false);
+
+    // The same feed, but with most of the feed spooled to disk.
+    fsli.setMaxFeedMemorySize(100);
+    takeMultiFeed(expectedXml, "MockRepositoryEventLog9.txt", false);
   }
 
   /**
@@ -635,6 +646,92 @@ public class DocPusherTest extends TestCase {
         resultXML);
   }
 
+  /** Returns a ContentEncodingPolicy that does not compress JPEG images. */
+  private ContentEncodingPolicy getContentEncodingPolicy() {
+    MimeTypeMap mimeTypeMap = new MimeTypeMap();
+    mimeTypeMap.setCompressedMimeTypes(ImmutableSet.of("image/jpeg"));
+    ContentEncodingPolicy policy = new ContentEncodingPolicy();
+    policy.setMimeTypeMap(mimeTypeMap);
+    policy.setMinCompressSize(100);
+    policy.setProbeSize(1000);
+    return policy;
+  }
+
+  /** Returns a simple document with the given content and mimetype. */
+  private Document getContentDocument(String content, String mimeType)
+      throws Exception {
+    Map<String, Object> props = getTestDocumentConfig();
+    props.put(
+        SpiConstants.PROPNAME_ACTION, SpiConstants.ActionType.ADD.toString());
+    props.put(SpiConstants.PROPNAME_MIMETYPE, mimeType);
+    props.put(SpiConstants.PROPNAME_CONTENT, content);
+    return ConnectorTestUtils.createSimpleDocument(props);
+  }
+
+  /** Returns the decoded content of the single record in a feed. */
+  private String getBinaryContent(String resultXml) throws Exception {
+    String contentTag =
+        "<content encoding=\"" + ContentEncoding.BASE64BINARY + "\">";
+    assertStringContains(contentTag, resultXml);
+    return new String(Base64.decode(resultXml.substring(
+        resultXml.indexOf(contentTag) + contentTag.length(),
+        resultXml.indexOf("</content>"))));
+  }
+
+  /** Tests that content of an already compressed type is not compressed. */
+  public void testCompressedMimeTypeContent() throws Exception {
+    String content = Strings.repeat("not really a JPEG image ", 100);
+    ContentEncodingPolicy policy = getContentEncodingPolicy();
+
+    String resultXml = feedCompressedDocument(
+        getContentDocument(content, "image/jpeg"), policy);
+    assertEquals(content, getBinaryContent(resultXml));
+    assertEquals(0, policy.getCompressedRecords());
+    assertEquals(1, policy.getUncompressedRecords());
+  }
+
+  /** Tests that tiny content is not compressed. */
+  public void testTinyContent() throws Exception {
+    String content = "hello doc";
+    ContentEncodingPolicy policy = getContentEncodingPolicy();
+
+    String resultXml = feedCompressedDocument(
+        getContentDocument(content, "text/plain"), policy);
+    assertEquals(content, getBinaryContent(resultXml));
+    assertEquals(0, policy.getCompressedRecords());
+    assertEquals(1, policy.getUncompressedRecords());
+  }
+
+  /** Tests that content that does not compress well is not compressed. */
+  public void testIncompressibleContent() throws Exception {
+    // Base64 encoded random bytes compress only to about 3/4 of their size.
+    byte[] bytes = new byte[3000];
+    new Random(42).nextBytes(bytes);
+    String content = Base64.encode(bytes);
+    ContentEncodingPolicy policy = getContentEncodingPolicy();
+    policy.setMaxCompressionRatio(0.5);
+
+    String resultXml = feedCompressedDocument(
+        getContentDocument(content, "text/plain"), policy);
+    assertEquals(content, getBinaryContent(resultXml));
+    assertEquals(1, policy.getUncompressedRecords());
+  }
+
+  /** Tests that compressible content is compressed and counted. */
+  public void testCompressibleContent() throws Exception {
+    String content = Strings.repeat("hello doc ", 1000);
+    ContentEncodingPolicy policy = getContentEncodingPolicy();
+
+    String resultXml = feedCompressedDocument(
+        getContentDocument(content, "text/plain"), policy);
+    assertStringContains(
+        "<content encoding=\"" + ContentEncoding.BASE64COMPRESSED + "\">",
+        resultXml);
+    assertEquals(1, policy.getCompressedRecords());
+    assertEquals(0, policy.getUncompressedRecords());
+    assertTrue(policy.getBytesSaved() > content.length() / 2);
+  }
+
   public void testSimpleBinaryContent() throws Exception {
     String docId = "doc1";
     String content = "hello doc";
@@ -1666,6 +1763,27 @@ public class DocPusherTest extends TestCase {
     return takeDocument(document, dfc, false);
   }
 
+  /**
+   * Utility method to take the given Document and feed it through a
+   * DocPusher using the given ContentEncodingPolicy, and return the
+   * resulting XML feed string.
+   */
+  private String feedCompressedDocument(Document document,
+      ContentEncodingPolicy policy) throws Exception {
+    MockFeedConnection mockFeedConnection = new MockFeedConnection() {
+      public String getContentEncodings() {
+        return ContentEncoding.BASE64COMPRESSED.toString();
+      }
+    };
+
+    DocPusher dpusher =
+        new DocPusher(mockFeedConnection, dataSource, fsli, dfc);
+    dpusher.setContentEncodingPolicy(policy);
+    assertEquals(PusherStatus.OK, dpusher.take(document, null));
+    dpusher.flush();
+    return mockFeedConnection.getFeed();
+  }
+
   /**
    * Utility method to take the given Document and DocumentFilterFactory
    * and feed it through a DocPusher and return the resulting XML feed
@@ -3264,6 +3382,214 @@ public class DocPusherTest extends TestCase {
     dpusher.flush();
   }
 
+  /**
+   * Test that a DocPusher using a shared FeedSenderPool may have several
+   * feeds outstanding at once, but that they are sent one at a time, in
+   * order, so that a delete does not overtake the add it follows.
+   */
+  public void testConcurrentFeeds() throws Exception {
+    Map<String, Object> props = getTestDocumentConfig();
+    props.put(SpiConstants.PROPNAME_ACTION,
+        SpiConstants.ActionType.DELETE.toString());
+    Document delete = ConnectorTestUtils.createSimpleDocument(props);
+    Document add = getTestDocument();
+    // Force 1 document per feed by setting a tiny feed size.
+    FileSizeLimitInfo limit = new FileSizeLimitInfo();
+    limit.setMaxFeedSize(32);
+    limit.setMaxDocumentSize(64 * 1024);
+
+    final CountDownLatch sending = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger sends = new AtomicInteger();
+    final AtomicInteger maxSends = new AtomicInteger();
+    MockFeedConnection feedConnection = new MockFeedConnection() {
+      @Override
+      public String sendData(FeedData feedData)
+          throws FeedException, RepositoryException {
+        int count = sends.incrementAndGet();
+        if (count > maxSends.get()) {
+          maxSends.set(count);
+        }
+        sending.countDown();
+        try {
+          // Hold up the first feed, the add, so the delete could race it.
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        try {
+          return super.sendData(feedData);
+        } finally {
+          sends.decrementAndGet();
+        }
+      }
+    };
+
+    FeedSenderPool pool = new FeedSenderPool(3, 50, 10);
+    try {
+      DocPusher dpusher =
+          new DocPusher(feedConnection, dataSource, limit, dfc, pool);
+      assertEquals(PusherStatus.OK, dpusher.take(add));
+      assertEquals(PusherStatus.OK, dpusher.take(delete));
+      assertEquals(PusherStatus.OK, dpusher.take(add));
+      assertTrue(sending.await(10, TimeUnit.SECONDS));
+      assertEquals(3, dpusher.checkSubmissions());
+      release.countDown();
+      dpusher.flush();
+      assertEquals(0, dpusher.checkSubmissions());
+      assertEquals(0, pool.getFeedsInFlight());
+      assertEquals(1, maxSends.get());
+      assertEquals(PusherStatus.DISABLED, dpusher.take(add));
+
+      String[] feeds = feedConnection.getFeed().split("</gsafeed>");
+      assertEquals(4, feeds.length);
+      assertStringNotContains("action=\"delete\"", feeds[0]);
+      assertStringContains("action=\"delete\"", feeds[1]);
+      assertStringNotContains("action=\"delete\"", feeds[2]);
+    } finally {
+      release.countDown();
+      pool.stop(true);
+    }
+  }
+
+  /**
+   * Test that if the feeds of all the DocPushers sharing a FeedSenderPool
+   * have backed up, the DocPushers return an indication to stop feeding
+   * docs, and that canceling one DocPusher does not affect the others.
+   */
+  public void testGlobalFeedBacklog() throws Exception {
+    Document document = getTestDocument();
+    // Force 1 document per feed by setting a tiny feed size.
+    FileSizeLimitInfo limit = new FileSizeLimitInfo();
+    limit.setMaxFeedSize(32);
+    limit.setMaxDocumentSize(64 * 1024);
+
+    final CountDownLatch release = new CountDownLatch(1);
+    MockFeedConnection feedConnection = new MockFeedConnection() {
+      @Override
+      public String sendData(FeedData feedData)
+          throws FeedException, RepositoryException {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return super.sendData(feedData);
+      }
+    };
+
+    FeedSenderPool pool = new FeedSenderPool(1, 2, 10);
+    try {
+      DocPusher dpusher1 =
+          new DocPusher(feedConnection, "connector1", limit, dfc, pool);
+      DocPusher dpusher2 =
+          new DocPusher(feedConnection, "connector2", limit, dfc, pool);
+      assertEquals(PusherStatus.OK, dpusher1.take(document));
+      assertEquals(PusherStatus.OK, dpusher1.take(document));
+      assertEquals(PusherStatus.LOCAL_FEED_BACKLOG, dpusher2.take(document));
+      assertEquals(PusherStatus.LOCAL_FEED_BACKLOG,
+                   dpusher1.getPusherStatus());
+
+      // Canceling one DocPusher abandons its feeds, relieving the backlog.
+      dpusher1.cancel();
+      assertEquals(PusherStatus.DISABLED, dpusher1.getPusherStatus());
+      assertEquals(PusherStatus.OK, dpusher2.getPusherStatus());
+      release.countDown();
+      dpusher2.flush();
+      assertEquals(0, pool.getFeedsInFlight());
+      assertTrue(pool.isRunning());
+    } finally {
+      release.countDown();
+      pool.stop(true);
+    }
+  }
+
+  /**
+   * Test that a DocPusher with a FeedOutbox finishes a batch once its
+   * feeds are in the outbox, even if the GSA is unavailable, and that
+   * the outbox sends the feeds later.
+   */
+  public void testFeedOutbox() throws Exception {
+    Document document = getTestDocument();
+    // Force 1 document per feed by setting a tiny feed size.
+    FileSizeLimitInfo limit = new FileSizeLimitInfo();
+    limit.setMaxFeedSize(32);
+    limit.setMaxDocumentSize(64 * 1024);
+
+    final CountDownLatch available = new CountDownLatch(1);
+    MockFeedConnection feedConnection = new MockFeedConnection() {
+      @Override
+      public String sendData(FeedData feedData)
+          throws FeedException, RepositoryException {
+        if (available.getCount() > 0) {
+          throw new FeedException("GSA is unavailable");
+        }
+        return super.sendData(feedData);
+      }
+    };
+
+    File directory = new File("testdata/tmp/DocPusherOutboxTest");
+    ConnectorTestUtils.deleteAllFiles(directory);
+    FeedOutbox outbox =
+        new FeedOutbox(feedConnection, directory.getPath(), 1);
+    outbox.setRetryDelays(10L, 10L);
+    try {
+      outbox.start();
+      DocPusher dpusher =
+          new DocPusher(feedConnection, dataSource, limit, dfc);
+      dpusher.setFeedOutbox(outbox);
+      assertEquals(PusherStatus.OK, dpusher.take(document));
+      assertEquals(PusherStatus.LOCAL_FEED_BACKLOG, dpusher.take(document));
+      dpusher.flush();
+      assertEquals(2, outbox.getFeedCount());
+      assertEquals("", feedConnection.getFeed());
+
+      available.countDown();
+      for (int i = 0; i < 500 && outbox.getFeedCount() > 0; i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(0, outbox.getFeedCount());
+      String feeds = feedConnection.getFeed();
+      assertEquals(feeds, 2, feeds.split("</gsafeed>").length - 1);
+    } finally {
+      outbox.stop(true);
+      ConnectorTestUtils.deleteAllFiles(directory);
+    }
+  }
+
+  /**
+   * Tests that a feed for a stopped outbox fails with a FeedException.
+   */
+  public void testFeedOutboxStopped() throws Exception {
+    Document document = getTestDocument();
+    FileSizeLimitInfo limit = new FileSizeLimitInfo();
+    limit.setMaxFeedSize(32);
+    limit.setMaxDocumentSize(64 * 1024);
+    MockFeedConnection feedConnection = new MockFeedConnection();
+
+    File directory = new File("testdata/tmp/DocPusherOutboxTest");
+    ConnectorTestUtils.deleteAllFiles(directory);
+    FeedOutbox outbox =
+        new FeedOutbox(feedConnection, directory.getPath(), 1);
+    try {
+      outbox.start();
+      outbox.stop(true);
+      DocPusher dpusher =
+          new DocPusher(feedConnection, dataSource, limit, dfc);
+      dpusher.setFeedOutbox(outbox);
+      try {
+        dpusher.take(document);
+        dpusher.flush();
+        fail("Expected FeedException");
+      } catch (FeedException expected) {
+        assertTrue(expected.getCause() instanceof IllegalStateException);
+      }
+      assertEquals("", feedConnection.getFeed());
+    } finally {
+      ConnectorTestUtils.deleteAllFiles(directory);
+    }
+  }
+
   /**
    * Test that if DocPusher is not low on memory, it returns an indication
    * to continue feeding docs.
@@ -3291,7 +3617,19 @@ public class DocPusherTest extends TestCase {
    * to stop feeding docs.
    */
   public void testLowMemory() throws Exception {
-    FeedConnection feedConnection = new MockFeedConnection();
+    // Hold up the feed submission, so the feed remains in memory.
+    final CountDownLatch latch = new CountDownLatch(1);
+    FeedConnection feedConnection = new MockFeedConnection() {
+      @Override
+      public String sendData(FeedData feedData) {
+        try {
+          latch.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return GsaFeedConnection.SUCCESS_RESPONSE;
+      }
+    };
 
     Runtime rt = Runtime.getRuntime();
     rt.gc();
@@ -3302,6 +3640,7 @@ public class DocPusherTest extends TestCase {
     // available memory - there should not be room for a second one.
     limit.setMaxDocumentSize(memAvailable/4);
     limit.setMaxFeedSize(memAvailable/3);
+    limit.setMaxFeedMemorySize(memAvailable/3);
 
     DocPusher dpusher =
         new DocPusher(feedConnection, dataSource, limit, dfc);
@@ -3310,6 +3649,7 @@ public class DocPusherTest extends TestCase {
                new HugeInputStream(limit.maxDocumentSize() - 10));
     Document bigDocument = ConnectorTestUtils.createSimpleDocument(config);
     assertEquals(PusherStatus.LOW_MEMORY, dpusher.take(bigDocument, null));
+    latch.countDown();
     dpusher.flush();
     assertFalse(feedConnection.isBacklogged());
   }
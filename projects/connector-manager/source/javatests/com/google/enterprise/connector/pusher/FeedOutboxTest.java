@@ -0,0 +1,351 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.enterprise.connector.spi.SpiConstants.FeedType;
+import com.google.enterprise.connector.test.ConnectorTestUtils;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link FeedOutbox}.
+ */
+public class FeedOutboxTest extends TestCase {
+  private static final String TEST_DIR_NAME = "testdata/tmp/FeedOutboxTests";
+  private final File directory = new File(TEST_DIR_NAME);
+
+  private RecordingFeedConnection feedConnection;
+  private FeedOutbox outbox;
+
+  @Override
+  protected void setUp() {
+    ConnectorTestUtils.deleteAllFiles(directory);
+    feedConnection = new RecordingFeedConnection();
+    outbox = newOutbox(2);
+  }
+
+  @Override
+  protected void tearDown() {
+    outbox.stop(true);
+    ConnectorTestUtils.deleteAllFiles(directory);
+  }
+
+  private FeedOutbox newOutbox(int maxFeeds) {
+    FeedOutbox newOutbox =
+        new FeedOutbox(feedConnection, TEST_DIR_NAME, maxFeeds);
+    newOutbox.setRetryDelays(10L, 40L);
+    return newOutbox;
+  }
+
+  /** A feed with the given XML. */
+  private static class TestFeed implements SerializedFeed {
+    private final String dataSource;
+    private final byte[] xml;
+
+    TestFeed(String dataSource, String xml) throws IOException {
+      this.dataSource = dataSource;
+      this.xml = xml.getBytes("UTF-8");
+    }
+
+    @Override
+    public FeedType getFeedType() {
+      return FeedType.CONTENTURL;
+    }
+
+    @Override
+    public String getDataSource() {
+      return dataSource;
+    }
+
+    @Override
+    public int size() {
+      return xml.length;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      out.write(xml);
+    }
+  }
+
+  /**
+   * Records the feeds it is sent, after failing the given number of
+   * attempts.  If a response is given, the feeds are answered with it
+   * instead.
+   */
+  private static class RecordingFeedConnection extends MockFeedConnection {
+    final List<String> feeds = new ArrayList<String>();
+    volatile int failures = 0;
+    volatile int attempts = 0;
+    volatile String response = null;
+
+    @Override
+    public synchronized String sendData(FeedData feedData)
+        throws FeedException {
+      attempts++;
+      if (response != null) {
+        return response;
+      }
+      if (failures > 0) {
+        failures--;
+        throw new FeedException("Not now");
+      }
+      try {
+        SerializedFeed feed = (SerializedFeed) feedData;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        feed.writeTo(out);
+        assertEquals(feed.size(), out.size());
+        feeds.add(feed.getDataSource() + ":" + feed.getFeedType() + ":"
+            + out.toString("UTF-8"));
+      } catch (IOException e) {
+        throw new FeedException(e);
+      }
+      return GsaFeedConnection.SUCCESS_RESPONSE;
+    }
+
+    synchronized List<String> getFeeds() {
+      return new ArrayList<String>(feeds);
+    }
+  }
+
+  private File[] listFiles() {
+    File[] files = directory.listFiles();
+    Arrays.sort(files);
+    return files;
+  }
+
+  /** Waits for the outbox to be empty. */
+  private void waitForFeeds() throws InterruptedException {
+    for (int i = 0; i < 500 && outbox.getFeedCount() > 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, outbox.getFeedCount());
+  }
+
+  public void testConstructorArgs() {
+    try {
+      new FeedOutbox(feedConnection, TEST_DIR_NAME, 0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testDisabled() throws Exception {
+    FeedOutbox disabled = new FeedOutbox(feedConnection, "", 1);
+    assertFalse(disabled.isEnabled());
+    disabled.start();
+    assertFalse(disabled.isRunning());
+    try {
+      disabled.add(new TestFeed("test", "<xml/>"));
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+    assertFalse(directory.exists());
+  }
+
+  public void testAdd() throws Exception {
+    assertTrue(outbox.isEnabled());
+    outbox.add(new TestFeed("test", "<xml>one</xml>"));
+    outbox.add(new TestFeed("test", "<xml>two</xml>"));
+    assertEquals(2, outbox.getFeedCount());
+
+    File[] files = listFiles();
+    assertEquals(2, files.length);
+    assertEquals("00000000000000000000" + FeedOutbox.FEED_SUFFIX,
+        files[0].getName());
+    assertEquals("00000000000000000001" + FeedOutbox.FEED_SUFFIX,
+        files[1].getName());
+
+    FeedOutbox.SpooledFeed feed = new FeedOutbox.SpooledFeed(files[1]);
+    assertEquals("test", feed.getDataSource());
+    assertEquals(FeedType.CONTENTURL, feed.getFeedType());
+    assertEquals(14, feed.size());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    feed.writeTo(out);
+    assertEquals("<xml>two</xml>", out.toString("UTF-8"));
+  }
+
+  public void testSend() throws Exception {
+    outbox.add(new TestFeed("test", "<xml>one</xml>"));
+    File file = listFiles()[0];
+    assertTrue(outbox.send(file));
+    assertFalse(file.exists());
+    assertEquals(Arrays.asList("test:CONTENTURL:<xml>one</xml>"),
+        feedConnection.getFeeds());
+  }
+
+  public void testSendFailure() throws Exception {
+    feedConnection.failures = 1;
+    outbox.add(new TestFeed("test", "<xml>one</xml>"));
+    File file = listFiles()[0];
+    assertFalse(outbox.send(file));
+    assertTrue(file.exists());
+    assertTrue(outbox.send(file));
+    assertFalse(file.exists());
+  }
+
+  /** Tests that a rejected feed is set aside after a few attempts. */
+  private void testRejection(String response) throws Exception {
+    feedConnection.response = response;
+    outbox.add(new TestFeed("test", "<xml>one</xml>"));
+    File file = listFiles()[0];
+    for (int i = 1; i < FeedOutbox.MAX_REJECTIONS; i++) {
+      assertFalse(outbox.send(file));
+      assertTrue(file.exists());
+    }
+    assertTrue(outbox.send(file));
+    assertFalse(file.exists());
+    assertTrue(new File(directory, file.getName() + FeedOutbox.BAD_SUFFIX)
+        .exists());
+    assertEquals(FeedOutbox.MAX_REJECTIONS, feedConnection.attempts);
+  }
+
+  public void testUnauthorized() throws Exception {
+    testRejection(GsaFeedConnection.UNAUTHORIZED_RESPONSE);
+  }
+
+  public void testInternalError() throws Exception {
+    testRejection(GsaFeedConnection.INTERNAL_ERROR_RESPONSE);
+  }
+
+  public void testDiskFull() throws Exception {
+    feedConnection.response = GsaFeedConnection.DISKFULL_RESPONSE;
+    outbox.add(new TestFeed("test", "<xml>one</xml>"));
+    File file = listFiles()[0];
+    for (int i = 0; i <= FeedOutbox.MAX_REJECTIONS; i++) {
+      assertFalse(outbox.send(file));
+      assertTrue(file.exists());
+    }
+
+    feedConnection.response = null;
+    assertTrue(outbox.send(file));
+    assertFalse(file.exists());
+  }
+
+  /** Tests that a feed that keeps failing is eventually set aside. */
+  private void assertSetAsideAfterFailures() throws Exception {
+    outbox.add(new TestFeed("test", "<xml>one</xml>"));
+    File file = listFiles()[0];
+    for (int i = 1; i < FeedOutbox.MAX_FAILURES; i++) {
+      assertFalse(outbox.send(file));
+      assertTrue(file.exists());
+    }
+    assertTrue(outbox.send(file));
+    assertFalse(file.exists());
+    assertTrue(new File(directory, file.getName() + FeedOutbox.BAD_SUFFIX)
+        .exists());
+    assertEquals(FeedOutbox.MAX_FAILURES, feedConnection.attempts);
+  }
+
+  public void testRepeatedDiskFull() throws Exception {
+    feedConnection.response = GsaFeedConnection.DISKFULL_RESPONSE;
+    assertSetAsideAfterFailures();
+  }
+
+  public void testRepeatedFeedException() throws Exception {
+    feedConnection.failures = FeedOutbox.MAX_FAILURES + 1;
+    assertSetAsideAfterFailures();
+  }
+
+  /** Tests that a successful send resets the count of failures. */
+  public void testFailuresReset() throws Exception {
+    feedConnection.failures = FeedOutbox.MAX_FAILURES - 1;
+    outbox.add(new TestFeed("test", "<xml>one</xml>"));
+    outbox.add(new TestFeed("test", "<xml>two</xml>"));
+    File[] files = listFiles();
+    for (int i = 1; i < FeedOutbox.MAX_FAILURES; i++) {
+      assertFalse(outbox.send(files[0]));
+    }
+    assertTrue(outbox.send(files[0]));
+    assertFalse(files[0].exists());
+
+    feedConnection.failures = 1;
+    assertFalse(outbox.send(files[1]));
+    assertTrue(outbox.send(files[1]));
+    assertEquals(Arrays.asList("test:CONTENTURL:<xml>one</xml>",
+            "test:CONTENTURL:<xml>two</xml>"), feedConnection.getFeeds());
+  }
+
+  public void testBadFile() throws Exception {
+    assertTrue(ConnectorTestUtils.mkdirs(directory));
+    File file = new File(directory, "00000000000000000007.feed");
+    OutputStream out = new FileOutputStream(file);
+    out.write("garbage".getBytes("UTF-8"));
+    out.close();
+
+    assertTrue(outbox.send(file));
+    assertFalse(file.exists());
+    assertTrue(new File(directory, file.getName() + FeedOutbox.BAD_SUFFIX)
+        .exists());
+    assertEquals(0, feedConnection.attempts);
+  }
+
+  public void testBacklogged() throws Exception {
+    outbox.add(new TestFeed("test", "<xml>one</xml>"));
+    outbox.add(new TestFeed("test", "<xml>two</xml>"));
+    assertFalse(outbox.isBacklogged());
+    outbox.add(new TestFeed("test", "<xml>three</xml>"));
+    assertTrue(outbox.isBacklogged());
+  }
+
+  public void testSendInBackground() throws Exception {
+    feedConnection.failures = 3;
+    outbox.start();
+    assertTrue(outbox.isRunning());
+    outbox.add(new TestFeed("one", "<xml>one</xml>"));
+    outbox.add(new TestFeed("two", "<xml>two</xml>"));
+    waitForFeeds();
+    assertEquals(5, feedConnection.attempts);
+    assertEquals(Arrays.asList("one:CONTENTURL:<xml>one</xml>",
+        "two:CONTENTURL:<xml>two</xml>"), feedConnection.getFeeds());
+    assertEquals(0, listFiles().length);
+  }
+
+  public void testRecovery() throws Exception {
+    outbox.add(new TestFeed("one", "<xml>one</xml>"));
+    outbox.add(new TestFeed("two", "<xml>two</xml>"));
+    outbox.stop(false);
+    try {
+      outbox.add(new TestFeed("test", "<xml/>"));
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+    // An incomplete feed is discarded.
+    File temp = new File(directory, "00000000000000000002.tmp");
+    assertTrue(temp.createNewFile());
+
+    outbox = newOutbox(2);
+    outbox.start();
+    waitForFeeds();
+    assertEquals(Arrays.asList("one:CONTENTURL:<xml>one</xml>",
+        "two:CONTENTURL:<xml>two</xml>"), feedConnection.getFeeds());
+    assertFalse(temp.exists());
+
+    // New feeds follow the old ones.
+    feedConnection.failures = 1000;
+    outbox.add(new TestFeed("three", "<xml>three</xml>"));
+    assertEquals("00000000000000000003" + FeedOutbox.FEED_SUFFIX,
+        listFiles()[0].getName());
+  }
+}
@@ -0,0 +1,193 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link FeedSenderPool}.
+ */
+public class FeedSenderPoolTest extends TestCase {
+  private FeedSenderPool pool;
+  private BlockingQueue<Future<String>> completions;
+
+  @Override
+  protected void setUp() {
+    pool = new FeedSenderPool(2, 3, 1);
+    completions = new LinkedBlockingQueue<Future<String>>();
+  }
+
+  @Override
+  protected void tearDown() {
+    pool.stop(true);
+  }
+
+  /** A task that waits for a latch, then returns its name. */
+  private static class LatchedTask implements Callable<String> {
+    private final String name;
+    private final CountDownLatch latch;
+
+    LatchedTask(String name, CountDownLatch latch) {
+      this.name = name;
+      this.latch = latch;
+    }
+
+    public String call() throws Exception {
+      latch.await();
+      return name;
+    }
+  }
+
+  public void testConstructorArgs() {
+    try {
+      new FeedSenderPool(0, 1, 1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new FeedSenderPool(1, 0, 1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new FeedSenderPool(1, 1, 0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals(1, pool.getMaxFeedsInFlightPerConnector());
+  }
+
+  public void testCompletionQueue() throws Exception {
+    CountDownLatch latch = new CountDownLatch(1);
+    Future<String> future =
+        pool.submit("test", new LatchedTask("feed", latch), completions);
+    assertEquals(1, pool.getFeedsInFlight());
+    assertNull(completions.poll());
+
+    latch.countDown();
+    assertSame(future, completions.poll(10, TimeUnit.SECONDS));
+    assertEquals("feed", future.get());
+    assertEquals(0, pool.getFeedsInFlight());
+  }
+
+  public void testFailedTask() throws Exception {
+    Future<String> future = pool.submit("test", new Callable<String>() {
+        public String call() throws Exception {
+          throw new FeedException("failed");
+        }
+      }, completions);
+    assertSame(future, completions.poll(10, TimeUnit.SECONDS));
+    try {
+      future.get();
+      fail("Expected ExecutionException");
+    } catch (ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof FeedException);
+    }
+    assertEquals(0, pool.getFeedsInFlight());
+  }
+
+  public void testBacklog() throws Exception {
+    CountDownLatch latch = new CountDownLatch(1);
+    for (int i = 0; i < 3; i++) {
+      pool.submit("test" + i, new LatchedTask("feed" + i, latch),
+                  completions);
+      assertFalse(pool.isBacklogged());
+    }
+    Future<String> future =
+        pool.submit("test3", new LatchedTask("feed3", latch), completions);
+    assertTrue(pool.isBacklogged());
+
+    // A canceled task is complete, and no longer in flight.
+    future.cancel(true);
+    assertSame(future, completions.poll());
+    assertFalse(pool.isBacklogged());
+
+    latch.countDown();
+    for (int i = 0; i < 3; i++) {
+      assertNotNull(completions.poll(10, TimeUnit.SECONDS));
+    }
+    assertEquals(0, pool.getFeedsInFlight());
+  }
+
+  /** A task that records its name when it runs. */
+  private static class RecordingTask extends LatchedTask {
+    private final String name;
+    private final List<String> names;
+
+    RecordingTask(String name, CountDownLatch latch, List<String> names) {
+      super(name, latch);
+      this.name = name;
+      this.names = names;
+    }
+
+    @Override
+    public String call() throws Exception {
+      String result = super.call();
+      names.add(name);
+      return result;
+    }
+  }
+
+  /**
+   * Tests that a slow feed holds up later feeds for the same data source,
+   * so that a delete is not sent before the add it follows, but does not
+   * hold up the feeds for other data sources.
+   */
+  public void testOrderPerDataSource() throws Exception {
+    List<String> names = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch slow = new CountDownLatch(1);
+    CountDownLatch fast = new CountDownLatch(0);
+    pool.submit("test", new RecordingTask("add", slow, names), completions);
+    pool.submit("test", new RecordingTask("delete", fast, names),
+                completions);
+    Future<String> other = pool.submit("other",
+        new RecordingTask("other", fast, names), completions);
+    assertSame(other, completions.poll(10, TimeUnit.SECONDS));
+    assertNull(completions.poll(100, TimeUnit.MILLISECONDS));
+    assertEquals(2, pool.getFeedsInFlight());
+
+    slow.countDown();
+    assertEquals("add", completions.poll(10, TimeUnit.SECONDS).get());
+    assertEquals("delete", completions.poll(10, TimeUnit.SECONDS).get());
+    assertEquals(Arrays.asList("other", "add", "delete"), names);
+    assertEquals(0, pool.getFeedsInFlight());
+  }
+
+  public void testStop() throws Exception {
+    assertTrue(pool.isRunning());
+    pool.stop(false);
+    assertFalse(pool.isRunning());
+    try {
+      pool.submit("test", new LatchedTask("feed", new CountDownLatch(0)),
+                  completions);
+      fail("Expected RejectedExecutionException");
+    } catch (RejectedExecutionException expected) {
+    }
+    assertEquals(0, pool.getFeedsInFlight());
+  }
+}
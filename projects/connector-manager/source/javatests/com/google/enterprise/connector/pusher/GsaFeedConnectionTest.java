@@ -14,12 +14,28 @@
 
 package com.google.enterprise.connector.pusher;
 
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.enterprise.connector.util.testing.AdjustableClock;
+
 import junit.framework.TestCase;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HttpsURLConnection;
 
-/** Tests for {@link GsaFeedConnection} URLs. */
+/** Tests for {@link GsaFeedConnection} URLs and capabilities. */
 public class GsaFeedConnectionTest extends TestCase {
   private void assertFeedUrl(String protocol,
       String host, int port, GsaFeedConnection feeder) {
@@ -88,4 +104,438 @@ public class GsaFeedConnectionTest extends TestCase {
     assertFeedUrl("https", "myhost", 19902,
         new GsaFeedConnection("https", "myhost", 19900, 19902));
   }
+
+  private static final String ACL_DTD =
+      "<!ELEMENT gsafeed (header, group+)>\n"
+      + "<!ELEMENT acl (principal*)>\n";
+
+  private static final String PLAIN_DTD = "<!ELEMENT gsafeed (header, group+)>";
+
+  /** Returns the given DTDs in turn, and records the requested URLs. */
+  private static class ProbedFeedConnection extends GsaFeedConnection {
+    final List<URL> requests = new ArrayList<URL>();
+    final String[] dtds;
+
+    ProbedFeedConnection(String... dtds) throws MalformedURLException {
+      super("http", "myhost", 19900, -1);
+      this.dtds = dtds;
+      setExecutor(MoreExecutors.sameThreadExecutor());
+    }
+
+    @Override
+    String getFeedDtd(URL url) {
+      requests.add(url);
+      return dtds[Math.min(requests.size(), dtds.length) - 1];
+    }
+  }
+
+  public void testCapabilitiesProbedOnce() throws Exception {
+    ProbedFeedConnection feeder = new ProbedFeedConnection(ACL_DTD);
+    assertTrue(feeder.supportsInheritedAcls());
+    assertEquals("base64binary,base64compressed",
+        feeder.getContentEncodings());
+    assertTrue(feeder.supportsInheritedAcls());
+    assertEquals(1, feeder.requests.size());
+    assertEquals("/getdtd", feeder.requests.get(0).getPath());
+  }
+
+  public void testCapabilitiesProbedInBackground() throws Exception {
+    ProbedFeedConnection feeder = new ProbedFeedConnection(ACL_DTD);
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    feeder.setExecutor(new Executor() {
+        @Override
+        public void execute(Runnable command) {
+          tasks.add(command);
+        }
+      });
+    feeder.start();
+    assertEquals(1, tasks.size());
+
+    // The defaults are returned until the probe is done.
+    assertFalse(feeder.supportsInheritedAcls());
+    assertEquals("base64binary", feeder.getContentEncodings());
+    assertEquals(0, feeder.requests.size());
+    assertEquals(1, tasks.size());
+
+    tasks.get(0).run();
+    assertEquals(1, feeder.requests.size());
+    assertTrue(feeder.supportsInheritedAcls());
+    assertEquals("base64binary,base64compressed",
+        feeder.getContentEncodings());
+    assertEquals(1, tasks.size());
+  }
+
+  public void testNoInheritedAcls() throws Exception {
+    ProbedFeedConnection feeder = new ProbedFeedConnection(PLAIN_DTD);
+    assertFalse(feeder.supportsInheritedAcls());
+    assertEquals("base64binary,base64compressed",
+        feeder.getContentEncodings());
+    assertEquals(1, feeder.requests.size());
+  }
+
+  public void testConfiguredContentEncodings() throws Exception {
+    ProbedFeedConnection feeder = new ProbedFeedConnection(ACL_DTD);
+    feeder.setContentEncodings("base64binary");
+    assertEquals("base64binary", feeder.getContentEncodings());
+    assertEquals(0, feeder.requests.size());
+  }
+
+  public void testFailedProbeRetried() throws Exception {
+    AdjustableClock clock = new AdjustableClock(1000L);
+    ProbedFeedConnection feeder = new ProbedFeedConnection(null, ACL_DTD);
+    feeder.setClock(clock);
+    assertFalse(feeder.supportsInheritedAcls());
+    assertEquals("base64binary", feeder.getContentEncodings());
+    assertEquals(1, feeder.requests.size());
+
+    // The failure is remembered until the retry interval passes.
+    clock.adjustTime(59 * 1000L);
+    assertFalse(feeder.supportsInheritedAcls());
+    assertEquals(1, feeder.requests.size());
+
+    // The expired capabilities are returned while the GSA is asked again.
+    clock.adjustTime(1000L);
+    assertFalse(feeder.supportsInheritedAcls());
+    assertEquals(2, feeder.requests.size());
+    assertTrue(feeder.supportsInheritedAcls());
+    assertEquals("base64binary,base64compressed",
+        feeder.getContentEncodings());
+
+    // Successfully read capabilities do not expire.
+    clock.adjustTime(24 * 60 * 60 * 1000L);
+    assertTrue(feeder.supportsInheritedAcls());
+    assertEquals(2, feeder.requests.size());
+  }
+
+  public void testNewFeedHostProbed() throws Exception {
+    ProbedFeedConnection feeder = new ProbedFeedConnection(PLAIN_DTD, ACL_DTD);
+    assertFalse(feeder.supportsInheritedAcls());
+    feeder.setContentEncodings("base64binary");
+
+    // The new GSA is asked for its capabilities right away.
+    feeder.setFeedHostAndPort("http", "otherhost", 19900, -1);
+    assertEquals(2, feeder.requests.size());
+    assertEquals("otherhost", feeder.requests.get(1).getHost());
+    assertTrue(feeder.supportsInheritedAcls());
+    assertEquals("base64binary,base64compressed",
+        feeder.getContentEncodings());
+    assertEquals(2, feeder.requests.size());
+  }
+
+  public void testNewFeedHostBeforeProbe() throws Exception {
+    ProbedFeedConnection feeder = new ProbedFeedConnection(ACL_DTD);
+    feeder.setFeedHostAndPort("http", "otherhost", 19900, -1);
+    assertEquals(0, feeder.requests.size());
+    assertTrue(feeder.supportsInheritedAcls());
+    assertEquals("otherhost", feeder.requests.get(0).getHost());
+  }
+
+  /**
+   * Returns the given backlog counts in turn, with {@code null} for a
+   * failed check, and keeps the background tasks instead of running them.
+   */
+  private static class BacklogFeedConnection extends GsaFeedConnection {
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    final Integer[] counts;
+    volatile int checks = 0;
+
+    BacklogFeedConnection(Integer... counts) throws MalformedURLException {
+      super("http", "myhost", 19900, -1);
+      this.counts = counts;
+      setBacklogCheck(10, 100, 60);
+      setExecutor(new Executor() {
+          @Override
+          public void execute(Runnable command) {
+            tasks.add(command);
+          }
+        });
+    }
+
+    @Override
+    int getBacklogCount(URL backlogUrl) throws FeedException {
+      Integer count = counts[checks++];
+      if (count == null) {
+        throw new FeedException("backlog check failed");
+      }
+      return count;
+    }
+  }
+
+  public void testBacklogMonitorStartedOnce() throws Exception {
+    BacklogFeedConnection feeder = new BacklogFeedConnection();
+    assertFalse(feeder.isBacklogged());
+    assertFalse(feeder.isBacklogged());
+    assertEquals(1, feeder.tasks.size());
+    assertEquals(0, feeder.checks);
+  }
+
+  public void testBacklogHysteresis() throws Exception {
+    BacklogFeedConnection feeder =
+        new BacklogFeedConnection(50, 101, 50, 10, 9, 50, 100);
+    long interval = 60 * 1000L;
+    boolean[] expected =
+        { false, true, true, true, false, false, false };
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(interval, feeder.checkBacklog());
+      assertEquals("check " + i, expected[i], feeder.isBacklogged());
+    }
+  }
+
+  public void testBacklogCheckBackoff() throws Exception {
+    BacklogFeedConnection feeder = new BacklogFeedConnection(
+        null, null, null, null, null, null, 50, null);
+    long interval = 60 * 1000L;
+    long[] expected = { interval, 2 * interval, 4 * interval, 8 * interval,
+        16 * interval, 16 * interval, interval, interval };
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals("check " + i, expected[i], feeder.checkBacklog());
+      // A failed check stops the feed until a check succeeds.
+      assertEquals("check " + i, i != 6, feeder.isBacklogged());
+    }
+  }
+
+  public void testBacklogUnsupported() throws Exception {
+    BacklogFeedConnection feeder = new BacklogFeedConnection() {
+        @Override
+        int getBacklogCount(URL backlogUrl) {
+          throw new UnsupportedOperationException();
+        }
+      };
+    assertEquals(0L, feeder.checkBacklog());
+    assertFalse(feeder.isBacklogged());
+  }
+
+  public void testNewFeedHostClearsBacklog() throws Exception {
+    BacklogFeedConnection feeder = new BacklogFeedConnection(101);
+    feeder.checkBacklog();
+    assertTrue(feeder.isBacklogged());
+    feeder.setFeedHostAndPort("http", "otherhost", 19900, -1);
+    assertFalse(feeder.isBacklogged());
+  }
+
+  /** Runs the backlog monitor in its own thread. */
+  public void testBacklogMonitor() throws Exception {
+    final BacklogFeedConnection feeder =
+        new BacklogFeedConnection(101, 101, 5);
+    feeder.isBacklogged();
+    Thread monitor = new Thread(feeder.tasks.get(0));
+    monitor.setDaemon(true);
+    monitor.start();
+    try {
+      for (int i = 0; i < 100 && feeder.checks == 0; i++) {
+        Thread.sleep(10);
+      }
+      assertTrue(feeder.isBacklogged());
+
+      // The next check is an interval away.
+      for (int i = 0; i < 100 && feeder.getBacklogCheckDelay() == 0; i++) {
+        Thread.sleep(10);
+      }
+      assertTrue(feeder.getBacklogCheckDelay() > 0);
+      assertTrue(feeder.getBacklogCheckDelay() <= 60 * 1000L);
+
+      // Changing the feed host wakes the monitor to check the new host.
+      feeder.setFeedHostAndPort("http", "otherhost", 19900, -1);
+      for (int i = 0; i < 100 && feeder.checks < 2; i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(2, feeder.checks);
+    } finally {
+      monitor.interrupt();
+      monitor.join(10000);
+    }
+    assertFalse(monitor.isAlive());
+  }
+
+  /** Starts the backlog monitor task in its own thread. */
+  private Thread startMonitor(BacklogFeedConnection feeder) throws Exception {
+    Thread monitor = new Thread(feeder.tasks.get(feeder.tasks.size() - 1));
+    monitor.setDaemon(true);
+    monitor.start();
+    for (int i = 0; i < 100 && feeder.checks == 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, feeder.checks);
+    return monitor;
+  }
+
+  public void testStopBacklogMonitor() throws Exception {
+    BacklogFeedConnection feeder = new BacklogFeedConnection(5);
+    assertTrue(feeder.isRunning());
+    feeder.isBacklogged();
+    Thread monitor = startMonitor(feeder);
+    try {
+      feeder.stop(false);
+      monitor.join(10000);
+      assertFalse(monitor.isAlive());
+      assertFalse(feeder.isRunning());
+
+      // A stopped connection does not start the monitor again.
+      assertFalse(feeder.isBacklogged());
+      assertEquals(1, feeder.tasks.size());
+    } finally {
+      monitor.interrupt();
+    }
+  }
+
+  public void testIdleBacklogMonitor() throws Exception {
+    BacklogFeedConnection feeder = new BacklogFeedConnection(5, 5, 5, 5);
+    feeder.isBacklogged();
+    Thread monitor = startMonitor(feeder);
+    try {
+      // Changing the feed host wakes the monitor without a query; the
+      // monitor stops after two checks without one.
+      for (int i = 0; i < 100 && monitor.isAlive(); i++) {
+        feeder.setFeedHostAndPort("http", "otherhost", 19900, -1);
+        Thread.sleep(10);
+      }
+      monitor.join(10000);
+      assertFalse(monitor.isAlive());
+      assertEquals(3, feeder.checks);
+
+      // The next query starts the monitor again.
+      feeder.isBacklogged();
+      assertEquals(2, feeder.tasks.size());
+    } finally {
+      monitor.interrupt();
+    }
+  }
+
+  public void testResponseLabels() {
+    assertEquals("Success", GsaFeedConnection.getResponseLabel("success"));
+    assertEquals("Unauthorized", GsaFeedConnection.getResponseLabel(
+        GsaFeedConnection.UNAUTHORIZED_RESPONSE));
+    assertEquals("Disk Full", GsaFeedConnection.getResponseLabel(
+        GsaFeedConnection.DISKFULL_RESPONSE));
+    assertEquals("Internal Error", GsaFeedConnection.getResponseLabel(
+        GsaFeedConnection.INTERNAL_ERROR_RESPONSE));
+    assertEquals("Other",
+        GsaFeedConnection.getResponseLabel("<html>Bad Gateway</html>"));
+    assertEquals("Exception", GsaFeedConnection.getResponseLabel(null));
+  }
+
+  public void testConnectionTimeouts() throws Exception {
+    GsaFeedConnection feeder =
+        new GsaFeedConnection("http", "myhost", 19900, -1);
+    HttpURLConnection conn = feeder.openConnection(feeder.getFeedUrl());
+    assertEquals(60000, conn.getConnectTimeout());
+    assertEquals(300000, conn.getReadTimeout());
+
+    feeder.setConnectTimeout(1234);
+    feeder.setReadTimeout(0);
+    conn = feeder.openConnection(feeder.getFeedUrl());
+    assertEquals(1234, conn.getConnectTimeout());
+    assertEquals(0, conn.getReadTimeout());
+  }
+
+  /** Connections must share a socket factory to be kept alive. */
+  public void testTrustingSocketFactoryShared() throws Exception {
+    GsaFeedConnection feeder =
+        new GsaFeedConnection("https", "myhost", -1, 19902);
+    feeder.setValidateCertificate(false);
+    HttpsURLConnection first =
+        (HttpsURLConnection) feeder.openConnection(feeder.getFeedUrl());
+    HttpsURLConnection second =
+        (HttpsURLConnection) feeder.openConnection(feeder.getFeedUrl());
+    assertSame(first.getSSLSocketFactory(), second.getSSLSocketFactory());
+  }
+
+  /**
+   * A minimal HTTP server that answers every request on a connection with
+   * the given body, or never answers if the body is {@code null}.
+   */
+  private static class BacklogServer implements Runnable {
+    final ServerSocket serverSocket = new ServerSocket(0);
+    final AtomicInteger connections = new AtomicInteger();
+    final String body;
+
+    BacklogServer(String body) throws IOException {
+      this.body = body;
+      Thread thread = new Thread(this);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    int getPort() {
+      return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          final Socket socket = serverSocket.accept();
+          connections.incrementAndGet();
+          Thread thread = new Thread() {
+              @Override
+              public void run() {
+                serve(socket);
+              }
+            };
+          thread.setDaemon(true);
+          thread.start();
+        }
+      } catch (IOException e) {
+        // The server socket was closed.
+      }
+    }
+
+    private void serve(Socket socket) {
+      try {
+        BufferedReader in = new BufferedReader(
+            new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        OutputStream out = socket.getOutputStream();
+        String line;
+        while ((line = in.readLine()) != null) {
+          if (line.length() == 0 && body != null) {
+            out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length()
+                + "\r\n\r\n" + body).getBytes("UTF-8"));
+            out.flush();
+          }
+        }
+        socket.close();
+      } catch (IOException e) {
+        // The client went away.
+      }
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+    }
+  }
+
+  private GsaFeedConnection newLocalFeeder(int port)
+      throws MalformedURLException {
+    GsaFeedConnection feeder =
+        new GsaFeedConnection("http", "localhost", port, -1);
+    feeder.setBacklogCheck(10, 100, 60);
+    return feeder;
+  }
+
+  public void testConnectionReused() throws Exception {
+    BacklogServer server = new BacklogServer("500");
+    try {
+      GsaFeedConnection feeder = newLocalFeeder(server.getPort());
+      feeder.checkBacklog();
+      feeder.checkBacklog();
+      feeder.checkBacklog();
+      assertTrue(feeder.isBacklogged());
+      assertEquals(1, server.connections.get());
+    } finally {
+      server.close();
+    }
+  }
+
+  public void testReadTimeout() throws Exception {
+    BacklogServer server = new BacklogServer(null);
+    try {
+      GsaFeedConnection feeder = newLocalFeeder(server.getPort());
+      feeder.setReadTimeout(100);
+      // The check fails instead of waiting forever, and backs off.
+      assertEquals(60 * 1000L, feeder.checkBacklog());
+      assertEquals(2 * 60 * 1000L, feeder.checkBacklog());
+    } finally {
+      server.close();
+    }
+  }
 }
@@ -21,8 +21,8 @@ import java.io.IOException;
 
 /**
  * Mock <code>GsaFeedConnection</code> that expects to be given a
- * <code>XmlFeed</code> data object.  Stores the associated data stream into
- * an internal buffer for later comparison.
+ * <code>SerializedFeed</code> data object.  Stores the associated data
+ * stream into an internal buffer for later comparison.
  */
 public class MockFeedConnection implements FeedConnection {
 
@@ -41,8 +41,9 @@ public class MockFeedConnection implements FeedConnection {
   public String sendData(FeedData feedData)
       throws FeedException, RepositoryException {
     try {
-      ByteArrayOutputStream data = (XmlFeed) feedData;
-      String dataStr = data.toString("UTF-8");
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ((SerializedFeed) feedData).writeTo(out);
+      String dataStr = out.toString("UTF-8");
       buf.append(dataStr);
       System.out.println(dataStr);
     } catch (IOException e) {
@@ -56,6 +57,11 @@ public class MockFeedConnection implements FeedConnection {
     return false;
   }
 
+  @Override
+  public long getBacklogCheckDelay() {
+    return 0L;
+  }
+
   @Override
   public String getContentEncodings() {
     return "base64binary";
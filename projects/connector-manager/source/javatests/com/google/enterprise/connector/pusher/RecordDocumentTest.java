@@ -0,0 +1,152 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.Property;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.spi.Value;
+import com.google.enterprise.connector.test.ConnectorTestUtils;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests for {@link RecordDocument}.
+ */
+public class RecordDocumentTest extends TestCase {
+  /** Counts the lookups in the source document and its properties. */
+  private static class CountingDocument implements Document {
+    private final Document source;
+    final Map<String, Integer> lookups = new HashMap<String, Integer>();
+    int nameLookups = 0;
+    int valueReads = 0;
+
+    CountingDocument(Document source) {
+      this.source = source;
+    }
+
+    @Override
+    public Set<String> getPropertyNames() throws RepositoryException {
+      nameLookups++;
+      return source.getPropertyNames();
+    }
+
+    @Override
+    public Property findProperty(String name) throws RepositoryException {
+      Integer count = lookups.get(name);
+      lookups.put(name, (count == null) ? 1 : count + 1);
+      final Property property = source.findProperty(name);
+      if (property == null) {
+        return null;
+      }
+      return new Property() {
+        @Override
+        public Value nextValue() throws RepositoryException {
+          valueReads++;
+          return property.nextValue();
+        }
+      };
+    }
+
+    int getLookups(String name) {
+      Integer count = lookups.get(name);
+      return (count == null) ? 0 : count;
+    }
+  }
+
+  private CountingDocument source;
+  private RecordDocument document;
+
+  @Override
+  protected void setUp() {
+    Map<String, Object> props =
+        ConnectorTestUtils.createSimpleDocumentBasicProperties("doc1");
+    props.put("multi", Arrays.asList("one", "two"));
+    props.put(SpiConstants.PROPNAME_CONTENT,
+        new ByteArrayInputStream("content".getBytes()));
+    source = new CountingDocument(
+        ConnectorTestUtils.createSimpleDocument(props));
+    document = new RecordDocument();
+    document.setSource(source);
+  }
+
+  public void testPropertyNames() throws Exception {
+    Set<String> names = document.getPropertyNames();
+    assertTrue(names.contains("multi"));
+    assertSame(names, document.getPropertyNames());
+    assertEquals(1, source.nameLookups);
+  }
+
+  public void testSingleLookup() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      assertEquals("doc1",
+          Value.getSingleValueString(document, SpiConstants.PROPNAME_DOCID));
+    }
+    assertEquals(1, source.getLookups(SpiConstants.PROPNAME_DOCID));
+    assertEquals(1, source.valueReads);
+  }
+
+  public void testMissingProperty() throws Exception {
+    assertNull(document.findProperty("missing"));
+    assertNull(document.findProperty("missing"));
+    assertEquals(1, source.getLookups("missing"));
+  }
+
+  public void testReplayedValues() throws Exception {
+    Property first = document.findProperty("multi");
+    assertEquals("one", first.nextValue().toString());
+
+    // A second reader starts again at the first value, and reads the
+    // second value from the source property.
+    Property second = document.findProperty("multi");
+    assertEquals("one", second.nextValue().toString());
+    assertEquals("two", second.nextValue().toString());
+    assertNull(second.nextValue());
+    assertNull(second.nextValue());
+
+    assertEquals("two", first.nextValue().toString());
+    assertNull(first.nextValue());
+    assertEquals(1, source.getLookups("multi"));
+    // Two values and the null at the end.
+    assertEquals(3, source.valueReads);
+  }
+
+  public void testContentNotRemembered() throws Exception {
+    assertNotNull(document.findProperty(SpiConstants.PROPNAME_CONTENT));
+    assertNotNull(document.findProperty(SpiConstants.PROPNAME_CONTENT));
+    assertEquals(2, source.getLookups(SpiConstants.PROPNAME_CONTENT));
+  }
+
+  public void testSetSource() throws Exception {
+    assertNotNull(document.findProperty("multi"));
+    document.getPropertyNames();
+
+    CountingDocument other = new CountingDocument(
+        ConnectorTestUtils.createSimpleDocument("doc2"));
+    document.setSource(other);
+    assertNull(document.findProperty("multi"));
+    assertEquals("doc2",
+        Value.getSingleValueString(document, SpiConstants.PROPNAME_DOCID));
+    assertFalse(document.getPropertyNames().contains("multi"));
+    assertEquals(1, other.nameLookups);
+  }
+}
@@ -0,0 +1,131 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.common.base.Charsets;
+import com.google.enterprise.connector.spi.XmlUtils;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests for {@link Utf8XmlWriter}.
+ */
+public class Utf8XmlWriterTest extends TestCase {
+  private Utf8XmlWriter writer;
+
+  @Override
+  protected void setUp() {
+    writer = new Utf8XmlWriter();
+  }
+
+  /** Asserts that the writer holds the UTF-8 encoding of the string. */
+  private void assertBytes(String expected) throws Exception {
+    byte[] expectedBytes = expected.getBytes(Charsets.UTF_8);
+    assertTrue(expected + " != " + writer,
+        Arrays.equals(expectedBytes, writer.toByteArray()));
+    assertEquals(expectedBytes.length, writer.size());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer.writeTo(out);
+    assertTrue(Arrays.equals(expectedBytes, out.toByteArray()));
+  }
+
+  public void testAppend() throws Exception {
+    writer.append('<').append("record").append("xyz", 1, 2).append(null);
+    assertBytes("<recordynull");
+  }
+
+  public void testAppendAttr() throws Exception {
+    StringBuilder expected = new StringBuilder();
+    XmlUtils.xmlAppendAttr("url", "http://a/b?c=d&e='<f>'\"", expected);
+    XmlUtils.xmlAppendAttr("empty", "", expected);
+    XmlUtils.xmlAppendAttr("null", null, expected);
+    writer.appendAttr("url", "http://a/b?c=d&e='<f>'\"");
+    writer.appendAttr("empty", "");
+    writer.appendAttr("null", null);
+    assertBytes(expected.toString());
+  }
+
+  public void testAppendEndTag() throws Exception {
+    StringBuilder expected = new StringBuilder();
+    XmlUtils.xmlAppendEndTag("record", expected);
+    writer.appendEndTag("record");
+    assertBytes(expected.toString());
+  }
+
+  public void testControlCharacters() throws Exception {
+    writer.appendAttrValue("a\u0000b\tc\nd\re\u001ff\ufffe\uffff");
+    assertBytes("ab\tc\nd\ref");
+  }
+
+  public void testMultibyteCharacters() throws Exception {
+    String value = "\u00e9t\u00e9 \u20ac \u65e5\u672c \ud83d\ude00";
+    writer.appendAttrValue(value);
+    assertBytes(value);
+  }
+
+  public void testUnpairedSurrogates() throws Exception {
+    // Encoded like String.getBytes, with '?' for each unpaired surrogate.
+    String value = "a\ud83d b\ude00 c\ud83d\ud83d\ude00 d\ud83d";
+    writer.appendAttrValue(value);
+    assertBytes(value);
+    assertEquals("a? b? c?\ud83d\ude00 d?", writer.toString());
+  }
+
+  public void testSurrogateBeforeEntity() throws Exception {
+    writer.appendAttrValue("\ud83d&");
+    assertBytes("?&amp;");
+  }
+
+  public void testRandomValues() throws Exception {
+    Random random = new Random(42);
+    for (int i = 0; i < 1000; i++) {
+      char[] chars = new char[random.nextInt(40)];
+      for (int j = 0; j < chars.length; j++) {
+        // Favor ASCII, but include every kind of character.
+        chars[j] = (char) (random.nextBoolean()
+            ? random.nextInt(0x80) : random.nextInt(0x10000));
+      }
+      String value = new String(chars);
+      StringBuilder expected = new StringBuilder();
+      XmlUtils.xmlAppendAttr("name", value, expected);
+      expected.append("/>");
+      writer.reset();
+      writer.appendAttr("name", value);
+      writer.append("/>");
+      assertBytes(expected.toString());
+    }
+  }
+
+  public void testGrowAndReset() throws Exception {
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      expected.append("\u00e9&");
+      writer.appendAttrValue("\u00e9&");
+    }
+    assertEquals(700000, writer.size());
+    assertEquals(expected.toString().replace("&", "&amp;"),
+        writer.toString());
+
+    writer.reset();
+    assertEquals(0, writer.size());
+    writer.append("after");
+    assertBytes("after");
+  }
+}
@@ -14,6 +14,9 @@
 
 package com.google.enterprise.connector.scheduler;
 
+import com.google.enterprise.connector.metrics.Counter;
+import com.google.enterprise.connector.metrics.Metric;
+import com.google.enterprise.connector.metrics.MetricsRegistry;
 import com.google.enterprise.connector.pusher.MockFeedConnection;
 import com.google.enterprise.connector.traversal.BatchResult;
 import com.google.enterprise.connector.traversal.BatchSize;
@@ -169,6 +172,31 @@ public class HostLoadManagerTest extends TestCase {
     assertFalse(hostLoadManager.shouldDelay());
   }
 
+  /**
+   * Test that the delay ends when the load manager says it will.
+   */
+  public void testDelayEndTime() {
+    HostLoadManager hostLoadManager = newHostLoadManager(50);
+    hostLoadManager.setPeriod(1); // 1 second.
+
+    assertFalse(hostLoadManager.shouldDelay());
+    assertEquals(0L, hostLoadManager.getDelayEndTime());
+    hostLoadManager.recordResult(newBatchResult(150));
+    assertTrue(hostLoadManager.shouldDelay());
+    long delayEndTime = hostLoadManager.getDelayEndTime();
+    assertTrue(delayEndTime > clock.getTimeMillis());
+
+    // The empty batch ends at the same time.
+    assertEquals(0, hostLoadManager.determineBatchSize().getHint());
+    assertEquals(delayEndTime, hostLoadManager.getDelayEndTime());
+
+    clock.setTimeMillis(delayEndTime - 101);
+    assertTrue(hostLoadManager.shouldDelay());
+    clock.setTimeMillis(delayEndTime);
+    assertFalse(hostLoadManager.shouldDelay());
+    assertEquals(0L, hostLoadManager.getDelayEndTime());
+  }
+
   /**
    * The new determineBatchSize logic treats both the hint and the load
    * as "suggestions", or "desired targets".  The traversal might
@@ -273,6 +301,47 @@ public class HostLoadManagerTest extends TestCase {
     // Not OK to start a traversal if feedConnection is backlogged.
     feedConnection.setBacklogged(true);
     assertTrue(hostLoadManager.shouldDelay());
+
+    // The delay lasts until the backlog is checked again.
+    feedConnection.backlogCheckDelay = 30000L;
+    assertTrue(hostLoadManager.shouldDelay());
+    assertEquals(clock.getTimeMillis() + 30000L,
+        hostLoadManager.getDelayEndTime());
+  }
+
+  /**
+   * Test the delay for a backlog when the next check time is not known.
+   */
+  public void testShouldDelayFeedBackloggedUnknownCheck() {
+    BacklogFeedConnection feedConnection = new BacklogFeedConnection();
+    HostLoadManager hostLoadManager =
+        new HostLoadManager(feedConnection, null, clock);
+    feedConnection.setBacklogged(true);
+    assertTrue(hostLoadManager.shouldDelay());
+    assertTrue(hostLoadManager.getDelayEndTime() > clock.getTimeMillis());
+  }
+
+  /**
+   * Test that a delay is counted once, however often it is checked.
+   */
+  public void testDelayMetrics() {
+    BacklogFeedConnection feedConnection = new BacklogFeedConnection();
+    HostLoadManager hostLoadManager = new HostLoadManager(feedConnection, null, clock);
+    hostLoadManager.setConnectorName(getName());
+    Counter delays = MetricsRegistry.getInstance()
+        .getCounter(Metric.TRAVERSAL_DELAYS, getName(), "backlog");
+    long count = delays.get();
+
+    feedConnection.setBacklogged(true);
+    assertTrue(hostLoadManager.shouldDelay());
+    assertTrue(hostLoadManager.shouldDelay());
+    assertEquals(count + 1, delays.get());
+
+    feedConnection.setBacklogged(false);
+    assertFalse(hostLoadManager.shouldDelay());
+    feedConnection.setBacklogged(true);
+    assertTrue(hostLoadManager.shouldDelay());
+    assertEquals(count + 2, delays.get());
   }
 
   /**
@@ -280,6 +349,7 @@ public class HostLoadManagerTest extends TestCase {
    */
   private class BacklogFeedConnection extends MockFeedConnection {
     private boolean backlogged = false;
+    long backlogCheckDelay = 0L;
 
     public void setBacklogged(boolean backlogged) {
       this.backlogged = backlogged;
@@ -289,5 +359,10 @@ public class HostLoadManagerTest extends TestCase {
     public boolean isBacklogged() {
       return backlogged;
     }
+
+    @Override
+    public long getBacklogCheckDelay() {
+      return backlogCheckDelay;
+    }
   }
 }
@@ -0,0 +1,93 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.scheduler;
+
+import com.google.enterprise.connector.util.testing.AdjustableClock;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link TraversalQueue}.
+ */
+public class TraversalQueueTest extends TestCase {
+  private AdjustableClock clock;
+  private TraversalQueue queue;
+
+  @Override
+  protected void setUp() {
+    clock = new AdjustableClock();
+    queue = new TraversalQueue(clock);
+  }
+
+  private String poll() throws InterruptedException {
+    return queue.poll(0, TimeUnit.MILLISECONDS);
+  }
+
+  public void testEmpty() throws Exception {
+    assertEquals(0, queue.size());
+    assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+  }
+
+  public void testScheduleNow() throws Exception {
+    queue.scheduleNow("c1");
+    assertEquals(1, queue.size());
+    assertEquals("c1", poll());
+    assertEquals(0, queue.size());
+    assertNull(poll());
+  }
+
+  public void testNotYetDue() throws Exception {
+    queue.schedule("c1", clock.getTimeMillis() + 1000);
+    assertNull(poll());
+    assertEquals(1, queue.size());
+
+    clock.adjustTime(1000);
+    assertEquals("c1", poll());
+  }
+
+  public void testOrder() throws Exception {
+    long now = clock.getTimeMillis();
+    queue.schedule("c3", now + 300);
+    queue.schedule("c1", now + 100);
+    queue.schedule("c2", now + 200);
+    clock.adjustTime(1000);
+    assertEquals("c1", poll());
+    assertEquals("c2", poll());
+    assertEquals("c3", poll());
+    assertNull(poll());
+  }
+
+  public void testEarliestTimeWins() throws Exception {
+    long now = clock.getTimeMillis();
+    queue.schedule("c1", now + 1000);
+    queue.schedule("c1", now);
+    queue.schedule("c1", now + 2000);
+    assertEquals(1, queue.size());
+
+    // The superseded entries are not returned.
+    assertEquals("c1", poll());
+    clock.adjustTime(5000);
+    assertNull(poll());
+    assertEquals(0, queue.size());
+  }
+
+  public void testPollWaits() throws Exception {
+    TraversalQueue systemQueue = new TraversalQueue();
+    systemQueue.schedule("c1", System.currentTimeMillis() + 50);
+    assertEquals("c1", systemQueue.poll(5000, TimeUnit.MILLISECONDS));
+  }
+}
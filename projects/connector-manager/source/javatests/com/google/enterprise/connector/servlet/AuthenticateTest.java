@@ -17,6 +17,8 @@ package com.google.enterprise.connector.servlet;
 import com.google.common.collect.ImmutableList;
 import com.google.enterprise.connector.common.StringUtils;
 import com.google.enterprise.connector.manager.MockManager;
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.AuthenticationResponse;
 import com.google.enterprise.connector.spi.Principal;
 import com.google.enterprise.connector.spi.SpiConstants;
 
@@ -25,6 +27,9 @@ import junit.framework.TestCase;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -383,6 +388,158 @@ public class AuthenticateTest extends TestCase {
     return ImmutableList.copyOf(groups);
   }
 
+  private static final String FOO_USER_REQUEST =
+      "<AuthnRequest>\n" +
+      "  <Credentials>\n" +
+      "    <Username>fooUser</Username>\n" +
+      "    <Password>fooPassword</Password>\n" +
+      "  </Credentials>\n" +
+      "</AuthnRequest>";
+
+  /** Tests that the connectors are queried in parallel. */
+  public void testParallelQueries() throws Exception {
+    // Each query waits for the other, so they must run at once.
+    final CyclicBarrier barrier = new CyclicBarrier(2);
+    MockManager manager = new MockManager() {
+        @Override
+        public AuthenticationResponse authenticate(String connectorName,
+            AuthenticationIdentity identity) {
+          try {
+            barrier.await(10, TimeUnit.SECONDS);
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+          return super.authenticate(connectorName, identity);
+        }
+      };
+    String expectedResult =
+      "<CmResponse>\n" +
+      "  <AuthnResponse>\n" +
+      "    <Success ConnectorName=\"connector1\">\n" +
+      "      <Identity>fooUser</Identity>\n" +
+      "    </Success>\n" +
+      "    <Success ConnectorName=\"connector2\">\n" +
+      "      <Identity>fooUser</Identity>\n" +
+      "    </Success>\n" +
+      "  </AuthnResponse>\n" +
+      "</CmResponse>\n";
+    AuthorizationExecutor executor = new AuthorizationExecutor(2, 0L);
+    try {
+      doTest(FOO_USER_REQUEST, expectedResult, manager, executor, 0L);
+    } finally {
+      executor.stop(true);
+    }
+  }
+
+  /** Tests that connectors that do not answer in time fail. */
+  public void testQueryTimeout() throws Exception {
+    final CountDownLatch hung = new CountDownLatch(1);
+    MockManager manager = new MockManager() {
+        @Override
+        public AuthenticationResponse authenticate(String connectorName,
+            AuthenticationIdentity identity) {
+          if ("connector1".equals(connectorName)) {
+            try {
+              hung.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              // Canceled.
+            }
+          }
+          return super.authenticate(connectorName, identity);
+        }
+      };
+    String expectedResult =
+      "<CmResponse>\n" +
+      "  <AuthnResponse>\n" +
+      "    <Failure ConnectorName=\"connector1\"/>\n" +
+      "    <Success ConnectorName=\"connector2\">\n" +
+      "      <Identity>fooUser</Identity>\n" +
+      "    </Success>\n" +
+      "  </AuthnResponse>\n" +
+      "</CmResponse>\n";
+    AuthorizationExecutor executor = new AuthorizationExecutor(2, 0L);
+    long start = System.currentTimeMillis();
+    try {
+      doTest(FOO_USER_REQUEST, expectedResult, manager, executor, 500L);
+    } finally {
+      hung.countDown();
+      executor.stop(true);
+    }
+    assertTrue(System.currentTimeMillis() - start < 10000L);
+  }
+
+  /**
+   * Tests that connectors that hang, and fill the pool, do not hold up
+   * other requests for longer than their time limit.
+   */
+  public void testBlockedPool() throws Exception {
+    final CountDownLatch blocked = new CountDownLatch(2);
+    final CountDownLatch hung = new CountDownLatch(1);
+    final MockManager manager = new MockManager() {
+        @Override
+        public AuthenticationResponse authenticate(String connectorName,
+            AuthenticationIdentity identity) {
+          if ("barUser".equals(identity.getUsername())) {
+            blocked.countDown();
+            try {
+              hung.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              // Canceled.
+            }
+          }
+          return super.authenticate(connectorName, identity);
+        }
+      };
+    manager.setShouldVerifyIdentity(false);
+    final AuthorizationExecutor executor = new AuthorizationExecutor(1, 0L);
+    Thread hungThread = new Thread() {
+        @Override
+        public void run() {
+          Authenticate.handleDoPost(
+              FOO_USER_REQUEST.replace("fooUser", "barUser"), manager,
+              new PrintWriter(new StringWriter()), executor, 0L);
+        }
+      };
+    String successResult =
+      "<CmResponse>\n" +
+      "  <AuthnResponse>\n" +
+      "    <Success ConnectorName=\"connector1\">\n" +
+      "      <Identity>fooUser</Identity>\n" +
+      "    </Success>\n" +
+      "    <Success ConnectorName=\"connector2\">\n" +
+      "      <Identity>fooUser</Identity>\n" +
+      "    </Success>\n" +
+      "  </AuthnResponse>\n" +
+      "</CmResponse>\n";
+    String failureResult =
+      "<CmResponse>\n" +
+      "  <AuthnResponse>\n" +
+      "    <Failure ConnectorName=\"connector1\"/>\n" +
+      "    <Failure ConnectorName=\"connector2\"/>\n" +
+      "  </AuthnResponse>\n" +
+      "</CmResponse>\n";
+    try {
+      // One query hangs on the requesting thread, the other on the only
+      // thread in the pool.
+      hungThread.start();
+      assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+      // Without a time limit, the queries run on the requesting thread.
+      long start = System.currentTimeMillis();
+      doTest(FOO_USER_REQUEST, successResult, manager, executor, 0L);
+      assertTrue(System.currentTimeMillis() - start < 10000L);
+
+      // With a time limit, the queries wait for the pool, then fail.
+      start = System.currentTimeMillis();
+      doTest(FOO_USER_REQUEST, failureResult, manager, executor, 500L);
+      assertTrue(System.currentTimeMillis() - start < 10000L);
+    } finally {
+      hung.countDown();
+      executor.stop(true);
+    }
+    hungThread.join(10000L);
+  }
+
   private void doTest(String xmlBody, String expectedResult, String domain,
       String username, String password, Collection<?> groups) {
     LOGGER.info("============== " + getName() + " ====================");
@@ -393,6 +550,23 @@ public class AuthenticateTest extends TestCase {
     StringWriter writer = new StringWriter();
     PrintWriter out = new PrintWriter(writer);
     Authenticate.handleDoPost(xmlBody, manager, out);
+    checkResult(expectedResult, writer, out);
+  }
+
+  private void doTest(String xmlBody, String expectedResult,
+      MockManager manager, AuthorizationExecutor executor,
+      long timeoutMillis) {
+    LOGGER.info("============== " + getName() + " ====================");
+    LOGGER.info("xmlBody:\n" + xmlBody);
+    manager.setShouldVerifyIdentity(false);
+    StringWriter writer = new StringWriter();
+    PrintWriter out = new PrintWriter(writer);
+    Authenticate.handleDoPost(xmlBody, manager, out, executor, timeoutMillis);
+    checkResult(expectedResult, writer, out);
+  }
+
+  private void checkResult(String expectedResult, StringWriter writer,
+      PrintWriter out) {
     out.flush();
     String result = writer.toString();
     out.close();
@@ -21,6 +21,8 @@ import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayInputStream;
+
 /**
  * Tests the AuthorizationParser class
  */
@@ -283,6 +285,142 @@ public class AuthorizationParserTest extends TestCase {
     assertEquals(2, countUrlsForIdentityConnectorPair(ap, id, "ex-tca-02"));
   }
 
+  private static AuthorizationParser parseStream(String xmlBody)
+      throws Exception {
+    return new AuthorizationParser(
+        new ByteArrayInputStream(xmlBody.getBytes("UTF-8")), null);
+  }
+
+  /** Asserts that the two parsers produced the same hierarchy. */
+  private void assertSameQueries(AuthorizationParser expected,
+      AuthorizationParser actual) {
+    assertEquals(expected.getStatus().getMessageId(),
+                 actual.getStatus().getMessageId());
+    assertEquals(expected.getNumDocs(), actual.getNumDocs());
+    assertEquals(expected.countParsedIdentities(),
+                 actual.countParsedIdentities());
+    for (AuthenticationIdentity identity : expected.getIdentities()) {
+      ConnectorQueries expectedQueries =
+          expected.getConnectorQueriesForIdentity(identity);
+      ConnectorQueries actualQueries =
+          getConnectorQueriesByIdentity(actual, identity);
+      assertNotNull(identity.getUsername(), actualQueries);
+      assertEquals(expectedQueries.getConnectors(),
+                   actualQueries.getConnectors());
+      for (String connector : expectedQueries.getConnectors()) {
+        QueryResources expectedResources =
+            expectedQueries.getQueryResources(connector);
+        QueryResources actualResources =
+            actualQueries.getQueryResources(connector);
+        assertEquals(expectedResources.getDocids(),
+                     actualResources.getDocids());
+        for (String docid : expectedResources.getDocids()) {
+          assertEquals(expectedResources.getResource(docid).getUrl(),
+                       actualResources.getResource(docid).getUrl());
+        }
+      }
+    }
+  }
+
+  private void checkStream(String xmlBody) throws Exception {
+    assertSameQueries(new AuthorizationParser(xmlBody), parseStream(xmlBody));
+  }
+
+  public void testStream() throws Exception {
+    checkStream(AuthorizationTest.TEST_XML1);
+    checkStream(TWO_IDENTITIES_TWO_CONNECTORS);
+    checkStream(ONE_IDENTITY_TWO_QUERIES);
+    checkStream(TWO_IDENTITIES_MULTIPLE_QUERIES);
+    checkStream(ONE_DOMAINSPECIFIC_IDENTITY);
+    checkStream(TWO_DOMAINSPECIFIC_IDENTITIES_MULTIPLE_QUERIES);
+    checkStream(PASSWORD_IDENTITY);
+  }
+
+  public void testStreamMalformedXml() throws Exception {
+    checkStream(MALFORMED_XML);
+    checkStream("");
+    checkStream("<NotAnAuthorizationQuery/>");
+    // The error is at the end, after a complete ConnectorQuery.
+    AuthorizationParser ap = parseStream(
+        ONE_DOMAINSPECIFIC_IDENTITY.replace("</AuthorizationQuery>", ""));
+    assertEquals(ConnectorMessageCode.ERROR_PARSING_XML_REQUEST,
+                 ap.getStatus().getMessageId());
+    assertEquals(0, ap.countParsedIdentities());
+    assertEquals(0, ap.getNumDocs());
+  }
+
+  public void testStreamErrors() throws Exception {
+    // Null identity.
+    checkStream("<AuthorizationQuery><ConnectorQuery><Identity/>"
+        + "<Resource>googleconnector://connector1.localhost/doc?docid=doc1a"
+        + "</Resource></ConnectorQuery></AuthorizationQuery>");
+    // No resources.
+    checkStream("<AuthorizationQuery><ConnectorQuery>"
+        + "<Identity>username</Identity>"
+        + "</ConnectorQuery></AuthorizationQuery>");
+    // No connector name.
+    checkStream("<AuthorizationQuery><ConnectorQuery>"
+        + "<Identity>username</Identity>"
+        + "<Resource>http://example.com/doc1</Resource>"
+        + "<Resource connectorname=\"connector1\">http://example.com/doc2"
+        + "</Resource></ConnectorQuery></AuthorizationQuery>");
+  }
+
+  public void testStreamIdentityAfterResources() throws Exception {
+    String xmlBody = "<AuthorizationQuery><ConnectorQuery>"
+        + "<Resource>googleconnector://connector1.localhost/doc?docid=doc1a"
+        + "</Resource>"
+        + "<Identity domain=\"foodomain\">username</Identity>"
+        + "</ConnectorQuery></AuthorizationQuery>";
+    checkStream(xmlBody);
+    AuthorizationParser ap = parseStream(xmlBody);
+    SimpleAuthenticationIdentity id =
+        new SimpleAuthenticationIdentity("username", null, "foodomain");
+    assertEquals(1, countUrlsForIdentityConnectorPair(ap, id, "connector1"));
+  }
+
+  public void testStreamEntities() throws Exception {
+    String xmlBody = "<AuthorizationQuery><ConnectorQuery>"
+        + "<Identity>user&amp;name</Identity>"
+        + "<Resource>googleconnector://connector1.localhost/doc?docid=doc1a"
+        + "&amp;x=<![CDATA[y]]></Resource>"
+        + "</ConnectorQuery></AuthorizationQuery>";
+    AuthorizationParser ap = parseStream(xmlBody);
+    AuthenticationIdentity id = new SimpleAuthenticationIdentity("user&name");
+    ConnectorQueries queries = getConnectorQueriesByIdentity(ap, id);
+    assertNotNull(queries);
+    QueryResources resources = queries.getQueryResources("connector1");
+    assertEquals(1, resources.size());
+    assertEquals("googleconnector://connector1.localhost/doc?docid=doc1a&x=y",
+        resources.getResource(resources.getDocids().iterator().next())
+        .getUrl());
+  }
+
+  public void testDuplicateDocids() throws Exception {
+    String connectorUrl = "googleconnector://connector1.localhost/doc?docid=";
+    String retrieverUrl = "http://localhost/connector-manager/"
+        + "getDocumentContent?connectorname=connector1&amp;docid=";
+    String xmlBody = "<AuthorizationQuery><ConnectorQuery>"
+        + "<Identity>username</Identity>"
+        + "<Resource>" + connectorUrl + "doc1</Resource>"
+        + "<Resource>" + retrieverUrl + "doc1</Resource>"
+        + "<Resource>" + connectorUrl + "doc1</Resource>"
+        + "<Resource>" + connectorUrl + "doc2</Resource>"
+        + "</ConnectorQuery></AuthorizationQuery>";
+    AuthorizationParser ap = new AuthorizationParser(xmlBody);
+    checkStream(xmlBody);
+    // The identical URL is dropped.
+    assertEquals(3, ap.getNumDocs());
+    ConnectorQueries queries = getConnectorQueriesByIdentity(ap,
+        new SimpleAuthenticationIdentity("username"));
+    QueryResources resources = queries.getQueryResources("connector1");
+    assertEquals(2, resources.size());
+    assertEquals(2, resources.getResources("doc1").size());
+    assertEquals(1, resources.getResources("doc2").size());
+    assertSame(resources.getResources("doc1").get(0),
+               resources.getResource("doc1"));
+  }
+
   public void testMatchesIdentity() {
     AuthenticationIdentity nameId =
         new SimpleAuthenticationIdentity("user1");
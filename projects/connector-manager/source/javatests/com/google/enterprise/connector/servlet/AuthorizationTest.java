@@ -16,11 +16,22 @@ package com.google.enterprise.connector.servlet;
 
 import com.google.enterprise.connector.common.StringUtils;
 import com.google.enterprise.connector.manager.MockManager;
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.AuthorizationResponse;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayInputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -544,20 +555,317 @@ public class AuthorizationTest extends TestCase {
         false, null, null, null);
   }
 
+  /** Test that the connectors are queried in parallel. */
+  public void testParallelQueries() throws Exception {
+    // Each query waits for the other two, so they must run at once.
+    final CyclicBarrier barrier = new CyclicBarrier(3);
+    MockManager manager = new MockManager() {
+        @Override
+        public Collection<AuthorizationResponse> authorizeDocids(
+            String connectorName, List<String> docidList,
+            AuthenticationIdentity identity) {
+          try {
+            barrier.await(10, TimeUnit.SECONDS);
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+          return super.authorizeDocids(connectorName, docidList, identity);
+        }
+      };
+    AuthorizationExecutor executor = new AuthorizationExecutor(3, 0L);
+    try {
+      doTest(TEST_XML1, NON_AUTHN_EXPECTED_RESULT, manager, executor);
+    } finally {
+      executor.stop(true);
+    }
+  }
+
+  /** Test that connectors that do not answer in time are INDETERMINATE. */
+  public void testQueryTimeout() throws Exception {
+    final CountDownLatch hung = new CountDownLatch(1);
+    MockManager manager = new MockManager() {
+        @Override
+        public Collection<AuthorizationResponse> authorizeDocids(
+            String connectorName, List<String> docidList,
+            AuthenticationIdentity identity) {
+          if ("connector2".equals(connectorName)) {
+            try {
+              hung.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              // Canceled.
+            }
+          }
+          return super.authorizeDocids(connectorName, docidList, identity);
+        }
+      };
+    String expectedResult = NON_AUTHN_EXPECTED_RESULT.replace(
+        "foo2</Resource>\n      <Decision>PERMIT",
+        "foo2</Resource>\n      <Decision>INDETERMINATE");
+    assertFalse(expectedResult.equals(NON_AUTHN_EXPECTED_RESULT));
+    AuthorizationExecutor executor = new AuthorizationExecutor(3, 500L);
+    long start = System.currentTimeMillis();
+    try {
+      doTest(TEST_XML1, expectedResult, manager, executor);
+    } finally {
+      hung.countDown();
+      executor.stop(true);
+    }
+    assertTrue(System.currentTimeMillis() - start < 10000L);
+  }
+
+  /** Test that the results are the same if the executor is stopped. */
+  public void testStoppedExecutor() throws Exception {
+    AuthorizationExecutor executor = new AuthorizationExecutor(3, 500L);
+    executor.stop(false);
+    MockManager manager = MockManager.getInstance();
+    manager.setShouldVerifyIdentity(false);
+    doTest(TEST_XML1, NON_AUTHN_EXPECTED_RESULT, manager, executor);
+  }
+
+  /**
+   * Test that a connector that hangs, and fills the pool, does not hold up
+   * a request for another connector.
+   */
+  public void testBlockedConnector() throws Exception {
+    final CountDownLatch blocked = new CountDownLatch(2);
+    final CountDownLatch hung = new CountDownLatch(1);
+    final RecordingManager manager = new RecordingManager() {
+        @Override
+        public Collection<AuthorizationResponse> authorizeDocids(
+            String connectorName, List<String> docidList,
+            AuthenticationIdentity identity) {
+          if ("connector2".equals(connectorName)) {
+            blocked.countDown();
+            try {
+              hung.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              // Canceled.
+            }
+          }
+          return super.authorizeDocids(connectorName, docidList, identity);
+        }
+      };
+    final AuthorizationExecutor executor = new AuthorizationExecutor(1, 0L);
+    executor.setBatchSize(1);
+    String connector1Url =
+        ServletUtil.PROTOCOL + "connector1.localhost" + ServletUtil.DOCID;
+    String connector2Url =
+        ServletUtil.PROTOCOL + "connector2.localhost" + ServletUtil.DOCID;
+    final String hungRequest =
+        makeRequest(connector2Url + "foo1", connector2Url + "foo2");
+    String request =
+        makeRequest(connector1Url + "foo1", connector1Url + "foo2");
+    String response =
+        makeResponse("connector1", connector1Url + "foo1",
+            connector1Url + "foo2");
+
+    Thread hungThread = new Thread() {
+        @Override
+        public void run() {
+          AuthorizationHandler authorizationHandler =
+              AuthorizationHandler.makeAuthorizationHandlerForTest(
+                  hungRequest, manager, new PrintWriter(new StringWriter()));
+          authorizationHandler.executor = executor;
+          authorizationHandler.handleDoPost();
+        }
+      };
+    try {
+      // One query hangs on the requesting thread, the other on the only
+      // thread in the pool.
+      hungThread.start();
+      assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+      long start = System.currentTimeMillis();
+      doTest(request, response, manager, executor);
+      assertTrue(System.currentTimeMillis() - start < 10000L);
+    } finally {
+      hung.countDown();
+      executor.stop(true);
+    }
+    hungThread.join(10000L);
+    assertEquals(Arrays.asList(1, 1, 1, 1), manager.getQuerySizes());
+  }
+
+  /**
+   * A MockManager that records the docids in each query, and permits
+   * them all.
+   */
+  private static class RecordingManager extends MockManager {
+    final List<List<String>> queries =
+        Collections.synchronizedList(new ArrayList<List<String>>());
+
+    RecordingManager() {
+      setShouldVerifyIdentity(false);
+    }
+
+    @Override
+    public Collection<AuthorizationResponse> authorizeDocids(
+        String connectorName, List<String> docidList,
+        AuthenticationIdentity identity) {
+      queries.add(new ArrayList<String>(docidList));
+      return super.authorizeDocids(connectorName, docidList, identity);
+    }
+
+    /** Returns the sizes of the queries, in ascending order. */
+    List<Integer> getQuerySizes() {
+      List<Integer> sizes = new ArrayList<Integer>();
+      for (List<String> query : queries) {
+        sizes.add(query.size());
+      }
+      Collections.sort(sizes);
+      return sizes;
+    }
+  }
+
+  private static String makeRequest(String... resources) {
+    StringBuilder request = new StringBuilder();
+    request.append("<AuthorizationQuery>\n<ConnectorQuery>\n"
+        + "  <Identity source=\"gsa\">CN=foo</Identity>\n");
+    for (String resource : resources) {
+      request.append("  <Resource>").append(resource).append("</Resource>\n");
+    }
+    request.append("</ConnectorQuery>\n</AuthorizationQuery>");
+    return request.toString();
+  }
+
+  private static String makeResponse(String connectorName,
+      String... resources) {
+    StringBuilder response = new StringBuilder();
+    response.append("<CmResponse>\n  <AuthorizationResponse>\n");
+    for (String resource : resources) {
+      response.append("    <Answer>\n      <Resource connectorname=\"")
+          .append(connectorName).append("\">").append(resource)
+          .append("</Resource>\n      <Decision>PERMIT</Decision>\n"
+                  + "    </Answer>\n");
+    }
+    response.append("  </AuthorizationResponse>\n"
+        + "  <StatusId>0</StatusId>\n</CmResponse>\n");
+    return response.toString();
+  }
+
+  /**
+   * Test that a document requested by several URLs is only queried once,
+   * and the answer is returned for each URL.
+   */
+  public void testDuplicateDocids() throws Exception {
+    String connectorUrl =
+        ServletUtil.PROTOCOL + "connector1.localhost" + ServletUtil.DOCID;
+    String retrieverUrl = "http://localhost/connector-manager/"
+        + "getDocumentContent?connectorname=connector1&amp;docid=";
+    String request = makeRequest(connectorUrl + "foo1", retrieverUrl + "foo1",
+        connectorUrl + "foo1", connectorUrl + "foo2");
+    String response = makeResponse("connector1", connectorUrl + "foo1",
+        connectorUrl + "foo2", retrieverUrl + "foo1");
+    RecordingManager manager = new RecordingManager();
+    doTest(request, response, manager, null);
+    assertEquals(1, manager.queries.size());
+    List<String> docids = manager.queries.get(0);
+    Collections.sort(docids);
+    assertEquals(Arrays.asList("foo1", "foo2"), docids);
+  }
+
+  /** Test that large queries are split into batches. */
+  public void testBatchedQueries() throws Exception {
+    String connectorUrl =
+        ServletUtil.PROTOCOL + "connector1.localhost" + ServletUtil.DOCID;
+    String[] resources = new String[5];
+    for (int i = 0; i < resources.length; i++) {
+      resources[i] = connectorUrl + "foo" + i;
+    }
+    String request = makeRequest(resources);
+    String response = makeResponse("connector1", resources);
+
+    AuthorizationExecutor executor = new AuthorizationExecutor(3, 0L);
+    try {
+      RecordingManager manager = new RecordingManager();
+      doTest(request, response, manager, executor);
+      assertEquals(Arrays.asList(5), manager.getQuerySizes());
+
+      executor.setBatchSize(2);
+      manager = new RecordingManager();
+      doTest(request, response, manager, executor);
+      assertEquals(Arrays.asList(1, 2, 2), manager.getQuerySizes());
+
+      // MockManager connectors are of type "Documentum".
+      executor.setTypeBatchSizes(
+          Collections.singletonMap("Documentum", 4));
+      manager = new RecordingManager();
+      doTest(request, response, manager, executor);
+      assertEquals(Arrays.asList(1, 4), manager.getQuerySizes());
+
+      executor.setTypeBatchSizes(Collections.singletonMap("Other", 4));
+      manager = new RecordingManager();
+      doTest(request, response, manager, executor);
+      assertEquals(Arrays.asList(1, 2, 2), manager.getQuerySizes());
+    } finally {
+      executor.stop(true);
+    }
+  }
+
+  /**
+   * Test parsing the request from a stream and writing the answers as
+   * they arrive.  The answers are not sorted, so compare them as a set.
+   */
+  public void testStreamedResponse() throws Exception {
+    MockManager manager = MockManager.getInstance();
+    manager.setShouldVerifyIdentity(false);
+    AuthorizationExecutor executor = new AuthorizationExecutor(3, 0L);
+    StringWriter writer = new StringWriter();
+    PrintWriter out = new PrintWriter(writer);
+    try {
+      AuthorizationHandler authorizationHandler = new AuthorizationHandler(
+          new ByteArrayInputStream(TEST_XML1.getBytes("UTF-8")), "UTF-8",
+          manager, out);
+      authorizationHandler.executor = executor;
+      authorizationHandler.handleDoPost();
+    } finally {
+      executor.stop(true);
+    }
+    out.flush();
+    String result = writer.toString();
+    out.close();
+    LOGGER.info("Actual Response:\n" + result);
+    String expectedResult =
+        StringUtils.normalizeNewlines(NON_AUTHN_EXPECTED_RESULT);
+    result = StringUtils.normalizeNewlines(result);
+    String trailer = "  </AuthorizationResponse>";
+    int expectedEnd = expectedResult.indexOf(trailer);
+    int actualEnd = result.indexOf(trailer);
+    assertTrue(result, actualEnd > 0);
+    assertEquals(expectedResult.substring(expectedEnd),
+                 result.substring(actualEnd));
+    // The first block is the header.
+    String answer = "    <Answer>\n";
+    String[] expected =
+        expectedResult.substring(0, expectedEnd).split(answer);
+    String[] actual = result.substring(0, actualEnd).split(answer);
+    assertEquals(expected.length, actual.length);
+    assertEquals(expected[0], actual[0]);
+    Arrays.sort(expected, 1, expected.length);
+    Arrays.sort(actual, 1, actual.length);
+    assertEquals(Arrays.asList(expected), Arrays.asList(actual));
+  }
+
   private void doTest(String xmlBody, String expectedResult,
       boolean verifyIdentity, String username, String password, String domain) {
-    LOGGER.info("Test: " + getName());
-    LOGGER.info("xmlBody:\n " + xmlBody);
     MockManager manager = MockManager.getInstance();
     manager.setShouldVerifyIdentity(verifyIdentity);
     if (verifyIdentity) {
       manager.setExpectedIdentity(domain, username, password, null);
     }
+    doTest(xmlBody, expectedResult, manager, null);
+  }
+
+  private void doTest(String xmlBody, String expectedResult,
+      MockManager manager, AuthorizationExecutor executor) {
+    LOGGER.info("Test: " + getName());
+    LOGGER.info("xmlBody:\n " + xmlBody);
     StringWriter writer = new StringWriter();
     PrintWriter out = new PrintWriter(writer);
     AuthorizationHandler authorizationHandler =
         AuthorizationHandler.makeAuthorizationHandlerForTest(xmlBody, manager,
             out);
+    authorizationHandler.executor = executor;
     authorizationHandler.handleDoPost();
     out.flush();
     String result = writer.toString();
@@ -27,11 +27,15 @@ import com.google.enterprise.connector.pusher.MockFeedConnection;
 import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.DocumentAccessException;
 import com.google.enterprise.connector.spi.DocumentNotFoundException;
+import com.google.enterprise.connector.spi.LastModifiedRetriever;
 import com.google.enterprise.connector.spi.MockConnector;
 import com.google.enterprise.connector.spi.MockRetriever;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.Retriever;
 import com.google.enterprise.connector.spi.SpiConstants;
 import com.google.enterprise.connector.spi.Value;
 import com.google.enterprise.connector.test.ConnectorTestUtils;
+import com.google.enterprise.connector.traversal.MimeTypeMap;
 import com.google.enterprise.connector.util.SystemClock;
 
 import junit.framework.TestCase;
@@ -41,7 +45,9 @@ import org.springframework.mock.web.MockHttpServletResponse;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.net.URLEncoder;
+import java.util.Calendar;
 import java.util.Collections;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -186,11 +192,16 @@ public class GetDocumentContentTest extends TestCase {
   private String docid = "docid";
 
   private MockInstantiator getMockInstantiator() throws Exception {
+    return getMockInstantiator(new MockRetriever());
+  }
+
+  private MockInstantiator getMockInstantiator(Retriever retriever)
+      throws Exception {
     MockInstantiator instantiator =
         new MockInstantiator(new ThreadPool(5, new SystemClock()));
     instantiator.setupTestTraversers();
     instantiator.addConnector(connectorName,
-        new MockConnector(null, null, null, new MockRetriever(), null));
+        new MockConnector(null, null, null, retriever, null));
     return instantiator;
   }
 
@@ -203,7 +214,12 @@ public class GetDocumentContentTest extends TestCase {
   }
 
   private void patchRealProductionManager() throws Exception {
-    MockInstantiator instantiator = getMockInstantiator();
+    patchRealProductionManager(new MockRetriever());
+  }
+
+  private void patchRealProductionManager(Retriever retriever)
+      throws Exception {
+    MockInstantiator instantiator = getMockInstantiator(retriever);
     assertTrue(Context.getInstance().getManager() instanceof ProductionManager);
     ProductionManager manager =
         (ProductionManager) (Context.getInstance().getManager());
@@ -438,6 +454,130 @@ public class GetDocumentContentTest extends TestCase {
     assertEquals(403, res.getStatus());
   }
 
+  /** Test HEAD requests, when they are supported. */
+  public void testHeadRequestSupported() throws Exception {
+    patchRealProductionManager();
+    MockHttpServletRequest req = createMockRequest(connectorName, docid);
+    req.setMethod("HEAD");
+    req.addHeader("User-Agent", "gsa-crawler");
+    MockHttpServletResponse res = new MockHttpServletResponse();
+    GetDocumentContent.setSupportRangeRequests(true);
+    try {
+      new GetDocumentContent().service(req, res);
+    } finally {
+      GetDocumentContent.setSupportRangeRequests(false);
+    }
+    assertEquals(200, res.getStatus());
+    assertEquals(docid.length(), res.getContentLength());
+    assertEquals("bytes", res.getHeader("Accept-Ranges"));
+    assertNotNull(res.getHeader("X-Gsa-External-Metadata"));
+    assertTrue(res.getContentType().contains("text/plain"));
+    assertEquals(0, res.getContentAsByteArray().length);
+  }
+
+  private MockHttpServletResponse getRange(String docid, String range)
+      throws Exception {
+    MockHttpServletRequest req = createMockRequest(connectorName, docid);
+    req.addHeader("User-Agent", "gsa-crawler");
+    req.addHeader("Range", range);
+    MockHttpServletResponse res = new MockHttpServletResponse();
+    GetDocumentContent.setSupportRangeRequests(true);
+    try {
+      new GetDocumentContent().service(req, res);
+    } finally {
+      GetDocumentContent.setSupportRangeRequests(false);
+    }
+    return res;
+  }
+
+  /** Test Range requests, when they are supported. */
+  public void testRangeRequestSupported() throws Exception {
+    patchRealProductionManager();
+    String docid = "NowIsTheTimeForAllGoodMenToComeToTheAidOfTheCountry";
+    int length = docid.length();
+
+    MockHttpServletResponse res = getRange(docid, "bytes=3-4");
+    assertEquals(206, res.getStatus());
+    assertEquals("Is", res.getContentAsString());
+    assertEquals(2, res.getContentLength());
+    assertEquals("bytes 3-4/" + length, res.getHeader("Content-Range"));
+
+    res = getRange(docid, "bytes=-7");
+    assertEquals(206, res.getStatus());
+    assertEquals("Country", res.getContentAsString());
+    assertEquals("bytes " + (length - 7) + "-" + (length - 1) + "/" + length,
+                 res.getHeader("Content-Range"));
+
+    res = getRange(docid, "bytes=45-1000");
+    assertEquals(206, res.getStatus());
+    assertEquals(docid.substring(45), res.getContentAsString());
+
+    res = getRange(docid, "bytes=" + length + "-");
+    assertEquals(416, res.getStatus());
+    assertEquals("bytes */" + length, res.getHeader("Content-Range"));
+
+    // Malformed and multiple ranges return the whole document.
+    res = getRange(docid, "0-0");
+    assertEquals(200, res.getStatus());
+    assertEquals(docid, res.getContentAsString());
+    res = getRange(docid, "bytes=0-1,5-6");
+    assertEquals(200, res.getStatus());
+    assertEquals(docid, res.getContentAsString());
+  }
+
+  /** Test Range requests, when the length of the document is not known. */
+  public void testRangeRequestNoContentLength() throws Exception {
+    patchRealProductionManager();
+    MockHttpServletResponse res =
+        getRange(MockRetriever.DOCID_NO_CONTENT, "bytes=0-0");
+    assertEquals(200, res.getStatus());
+    assertEquals(" ", res.getContentAsString());
+    assertNull(res.getHeader("Accept-Ranges"));
+  }
+
+  public void testParseRange() {
+    assertRange(0, 0, "bytes=0-0", 10);
+    assertRange(2, 9, "bytes=2-", 10);
+    assertRange(2, 9, "bytes=2-100", 10);
+    assertRange(7, 9, "bytes=-3", 10);
+    assertRange(0, 9, "bytes=-30", 10);
+    assertRange(1, 2, " Bytes=1-2 ", 10);
+    assertSame(GetDocumentContent.UNSATISFIABLE_RANGE,
+               GetDocumentContent.parseRange("bytes=10-", 10));
+    assertSame(GetDocumentContent.UNSATISFIABLE_RANGE,
+               GetDocumentContent.parseRange("bytes=-0", 10));
+    assertSame(GetDocumentContent.UNSATISFIABLE_RANGE,
+               GetDocumentContent.parseRange("bytes=-500", 0));
+    assertSame(GetDocumentContent.UNSATISFIABLE_RANGE,
+               GetDocumentContent.parseRange("bytes=0-", 0));
+    assertNull(GetDocumentContent.parseRange("0-0", 10));
+    assertNull(GetDocumentContent.parseRange("bytes=5-2", 10));
+    assertNull(GetDocumentContent.parseRange("bytes=a-b", 10));
+    assertNull(GetDocumentContent.parseRange("bytes=1", 10));
+    assertNull(GetDocumentContent.parseRange("bytes=0-1,3-4", 10));
+    assertNull(GetDocumentContent.parseRange("pages=0-1", 10));
+  }
+
+  private void assertRange(long first, long last, String range,
+      long contentLength) {
+    GetDocumentContent.ByteRange byteRange =
+        GetDocumentContent.parseRange(range, contentLength);
+    assertNotNull(range, byteRange);
+    assertEquals(range, first, byteRange.first);
+    assertEquals(range, last, byteRange.last);
+  }
+
+  /** Test retrieving part of the content against a MockManager. */
+  public void testHandleDoGetRange() throws Exception {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    // Connector1 serves up document content equal to docid.
+    int status = GetDocumentContent.handleDoGet(MockManager.getInstance(),
+        "connector1", "xyzzy", buffer,
+        new GetDocumentContent.ByteRange(1L, 3L));
+    assertEquals(200, status);
+    assertEquals("yzz", buffer.toString());
+  }
+
   /** Test requiring GSA to use authentication for private doc. */
   public void testHttpBasicWithoutCredentials() throws Exception {
     MockHttpServletRequest req = createMockRequest();
@@ -524,13 +664,73 @@ public class GetDocumentContentTest extends TestCase {
     req.addHeader("Accept-Encoding", "gzip");
     GetDocumentContent.setUseCompression(true);
     MockHttpServletResponse res = new MockHttpServletResponse();
-    new GetDocumentContent().doGet(req, res);
+    try {
+      new GetDocumentContent().doGet(req, res);
+    } finally {
+      GetDocumentContent.setUseCompression(false);
+    }
     assertEquals(200, res.getStatus());
     assertEquals("gzip", res.getHeader("Content-Encoding"));
     assertFalse(docid.equals(res.getContentAsString()));
     assertTrue(docid.equals(StringUtils.streamToString(
         new GZIPInputStream(new ByteArrayInputStream(
         res.getContentAsByteArray())))));
+    // The length of the uncompressed content does not apply.
+    assertEquals(0, res.getContentLength());
+  }
+
+  private MockHttpServletResponse getCompressed(String docid,
+      RetrieverCompressionPolicy policy) throws Exception {
+    patchRealProductionManager();
+    MockHttpServletRequest req = createMockRequest(connectorName, docid);
+    req.addHeader("Accept-Encoding", "gzip");
+    GetDocumentContent.setUseCompression(true);
+    GetDocumentContent.setCompressionPolicy(policy);
+    MockHttpServletResponse res = new MockHttpServletResponse();
+    try {
+      new GetDocumentContent().doGet(req, res);
+    } finally {
+      GetDocumentContent.setUseCompression(false);
+      GetDocumentContent.setCompressionPolicy(
+          new RetrieverCompressionPolicy());
+    }
+    assertEquals(200, res.getStatus());
+    return res;
+  }
+
+  /**
+   * Test that content of a compressed type is not compressed again.
+   */
+  public void testDoGetCompressedMimeType() throws Exception {
+    String docid = "NowIsTheTimeForAllGoodMenToComeToTheAidOfTheCountry";
+    MimeTypeMap mimeTypeMap = new MimeTypeMap();
+    mimeTypeMap.setCompressedMimeTypes(Collections.singleton("text/plain"));
+    RetrieverCompressionPolicy policy = new RetrieverCompressionPolicy();
+    policy.setMimeTypeMap(mimeTypeMap);
+    MockHttpServletResponse res = getCompressed(docid, policy);
+    assertNull(res.getHeader("Content-Encoding"));
+    assertNull(res.getHeader("Vary"));
+    assertEquals(docid, res.getContentAsString());
+    assertEquals(docid.length(), res.getContentLength());
+  }
+
+  /**
+   * Test that small content is not compressed.
+   */
+  public void testDoGetSmallContent() throws Exception {
+    String docid = "NowIsTheTimeForAllGoodMenToComeToTheAidOfTheCountry";
+    RetrieverCompressionPolicy policy = new RetrieverCompressionPolicy();
+    policy.setMinCompressSize(docid.length() + 1);
+    MockHttpServletResponse res = getCompressed(docid, policy);
+    assertNull(res.getHeader("Content-Encoding"));
+    assertEquals(docid, res.getContentAsString());
+
+    policy.setMinCompressSize(docid.length());
+    res = getCompressed(docid, policy);
+    assertEquals("gzip", res.getHeader("Content-Encoding"));
+    assertEquals("Accept-Encoding", res.getHeader("Vary"));
+    assertEquals(docid, StringUtils.streamToString(new GZIPInputStream(
+        new ByteArrayInputStream(res.getContentAsByteArray()))));
   }
 
   /**
@@ -567,6 +767,104 @@ public class GetDocumentContentTest extends TestCase {
     assertTrue(Strings.isNullOrEmpty(res.getContentAsString()));
   }
 
+  /**
+   * A Retriever that supplies last modified dates directly, and counts
+   * the requests for metadata and content.
+   */
+  private static class LastModifiedMockRetriever extends MockRetriever
+      implements LastModifiedRetriever {
+    int lastModifiedCount = 0;
+    int retrievalCount = 0;
+
+    @Override
+    public Calendar getLastModified(String docid) throws RepositoryException {
+      lastModifiedCount++;
+      if (DOCID_NO_LASTMODIFIED.equals(docid)) {
+        return null;
+      }
+      // The same date as the metadata.
+      Calendar calendar = Calendar.getInstance();
+      calendar.setTimeInMillis(3600 * 1000);
+      return calendar;
+    }
+
+    @Override
+    public Document getMetaData(String docid) throws RepositoryException {
+      retrievalCount++;
+      return super.getMetaData(docid);
+    }
+
+    @Override
+    public InputStream getContent(String docid) throws RepositoryException {
+      retrievalCount++;
+      return super.getContent(docid);
+    }
+  }
+
+  /**
+   * Test If-Modified-Since, where unmodified, answered by the connector
+   * without retrieving the document.
+   */
+  public void testGetUnModifiedSinceLastModifiedRetriever() throws Exception {
+    LastModifiedMockRetriever retriever = new LastModifiedMockRetriever();
+    patchRealProductionManager(retriever);
+    MockHttpServletRequest req = createMockRequest(connectorName, docid);
+    req.addHeader("If-Modified-Since", SystemClock.INSTANCE.getTimeMillis());
+    MockHttpServletResponse res = new MockHttpServletResponse();
+    new GetDocumentContent().service(req, res);
+    assertEquals(304, res.getStatus());
+    assertTrue(Strings.isNullOrEmpty(res.getContentAsString()));
+    assertEquals(1, retriever.lastModifiedCount);
+    assertEquals(0, retriever.retrievalCount);
+  }
+
+  /**
+   * Test If-Modified-Since, where modified, with a connector that supplies
+   * last modified dates.
+   */
+  public void testGetIfModifiedSinceLastModifiedRetriever() throws Exception {
+    LastModifiedMockRetriever retriever = new LastModifiedMockRetriever();
+    patchRealProductionManager(retriever);
+    MockHttpServletRequest req = createMockRequest(connectorName, docid);
+    req.addHeader("If-Modified-Since", 1);
+    MockHttpServletResponse res = new MockHttpServletResponse();
+    new GetDocumentContent().service(req, res);
+    assertEquals(200, res.getStatus());
+    assertEquals(docid, res.getContentAsString());
+    assertEquals(1, retriever.lastModifiedCount);
+  }
+
+  /**
+   * Test If-Modified-Since, where the connector does not supply the last
+   * modified date directly, so it comes from the metadata.
+   */
+  public void testGetUnModifiedSinceNoLastModifiedRetriever()
+      throws Exception {
+    LastModifiedMockRetriever retriever = new LastModifiedMockRetriever();
+    patchRealProductionManager(retriever);
+    String docid = MockRetriever.DOCID_NO_LASTMODIFIED;
+    MockHttpServletRequest req = createMockRequest(connectorName, docid);
+    req.addHeader("If-Modified-Since", SystemClock.INSTANCE.getTimeMillis());
+    getDocumentContent(req, docid);
+    assertEquals(-1L, GetDocumentContent.getLastModified(
+        req, Context.getInstance().getManager()));
+    assertEquals(1, retriever.lastModifiedCount);
+  }
+
+  /**
+   * Test that unconditional requests do not ask the connector for the
+   * last modified date separately.
+   */
+  public void testGetLastModifiedUnconditional() throws Exception {
+    LastModifiedMockRetriever retriever = new LastModifiedMockRetriever();
+    patchRealProductionManager(retriever);
+    MockHttpServletRequest req = createMockRequest(connectorName, docid);
+    assertEquals(3600 * 1000, GetDocumentContent.getLastModified(
+        req, Context.getInstance().getManager()));
+    assertEquals(0, retriever.lastModifiedCount);
+    assertEquals(1, retriever.retrievalCount);
+  }
+
   /**
    * Test ContentType.
    */
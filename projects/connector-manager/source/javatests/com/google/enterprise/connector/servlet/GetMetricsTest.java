@@ -0,0 +1,113 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.servlet;
+
+import com.google.enterprise.connector.common.Histogram;
+import com.google.enterprise.connector.metrics.Gauge;
+import com.google.enterprise.connector.metrics.Metric;
+import com.google.enterprise.connector.metrics.MetricsRegistry;
+import com.google.enterprise.connector.util.XmlParseUtil;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Tests for {@link GetMetrics}.
+ */
+public class GetMetricsTest extends TestCase {
+  private MetricsRegistry registry;
+
+  @Override
+  protected void setUp() {
+    registry = new MetricsRegistry();
+    registry.getCounter(Metric.DOCUMENTS_TRAVERSED, "c1").add(12L);
+    registry.getCounter(Metric.FEED_RESPONSES, "c1", "Success").add(3L);
+    Histogram histogram =
+        registry.getHistogram(Metric.FEED_POST_LATENCY, "c\"1");
+    histogram.record(3L);
+    histogram.record(40L);
+    registry.register(Metric.THREAD_POOL_ACTIVE, new Gauge() {
+        public long getValue() {
+          return 2L;
+        }
+      });
+  }
+
+  private String getMetrics(String format) throws Exception {
+    StringWriter writer = new StringWriter();
+    PrintWriter out = new PrintWriter(writer);
+    GetMetrics.handleDoGet(registry, format, out);
+    out.flush();
+    return writer.toString();
+  }
+
+  public void testXml() throws Exception {
+    String xml = getMetrics(null);
+    assertTrue(xml, xml.startsWith("<CmResponse>"));
+    assertTrue(xml, xml.contains("<StatusId>0</StatusId>"));
+    assertTrue(xml, xml.contains("<Metric name=\""
+        + Metric.DOCUMENTS_TRAVERSED.getName()
+        + "\" type=\"counter\" connector=\"c1\" value=\"12\"/>"));
+    assertTrue(xml, xml.contains("<Metric name=\""
+        + Metric.FEED_RESPONSES.getName()
+        + "\" type=\"counter\" connector=\"c1\" response=\"Success\""
+        + " value=\"3\"/>"));
+    assertTrue(xml, xml.contains("<Metric name=\""
+        + Metric.FEED_POST_LATENCY.getName()
+        + "\" type=\"histogram\" connector=\"c&quot;1\">"));
+    assertTrue(xml, xml.contains("<Bucket le=\"2\" count=\"0\"/>"));
+    assertTrue(xml, xml.contains("<Bucket le=\"5\" count=\"1\"/>"));
+    assertTrue(xml, xml.contains("<Bucket le=\"50\" count=\"2\"/>"));
+    assertTrue(xml, xml.contains("<Bucket le=\"+Inf\" count=\"2\"/>"));
+    assertTrue(xml, xml.contains("<Count>2</Count>"));
+    assertTrue(xml, xml.contains("<Sum>43</Sum>"));
+    assertTrue(xml, xml.contains("<Metric name=\""
+        + Metric.THREAD_POOL_ACTIVE.getName()
+        + "\" type=\"gauge\" value=\"2\"/>"));
+    assertNotNull(XmlParseUtil.parseAndGetRootElement(xml,
+        ServletUtil.XMLTAG_RESPONSE_ROOT));
+  }
+
+  public void testPrometheus() throws Exception {
+    String text = getMetrics(GetMetrics.FORMAT_PROMETHEUS);
+    String traversed = Metric.DOCUMENTS_TRAVERSED.getName();
+    assertTrue(text, text.contains("# HELP " + traversed + " "
+        + Metric.DOCUMENTS_TRAVERSED.getHelp() + "\n"));
+    assertTrue(text, text.contains("# TYPE " + traversed + " counter\n"));
+    assertTrue(text, text.contains(traversed + "{connector=\"c1\"} 12\n"));
+    assertTrue(text, text.contains(Metric.FEED_RESPONSES.getName()
+        + "{connector=\"c1\",response=\"Success\"} 3\n"));
+
+    String latency = Metric.FEED_POST_LATENCY.getName();
+    assertTrue(text, text.contains("# TYPE " + latency + " histogram\n"));
+    assertTrue(text, text.contains(
+        latency + "_bucket{connector=\"c\\\"1\",le=\"5\"} 1\n"));
+    assertTrue(text, text.contains(
+        latency + "_bucket{connector=\"c\\\"1\",le=\"+Inf\"} 2\n"));
+    assertTrue(text, text.contains(latency + "_sum{connector=\"c\\\"1\"} 43\n"));
+    assertTrue(text, text.contains(latency + "_count{connector=\"c\\\"1\"} 2\n"));
+
+    assertTrue(text, text.contains(
+        Metric.THREAD_POOL_ACTIVE.getName() + " 2\n"));
+  }
+
+  public void testEmpty() throws Exception {
+    registry = new MetricsRegistry();
+    assertEquals("", getMetrics("Prometheus"));
+    assertTrue(getMetrics("xml").contains("<Metrics>"));
+  }
+}
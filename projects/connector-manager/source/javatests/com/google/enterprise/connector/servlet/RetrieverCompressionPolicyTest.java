@@ -0,0 +1,192 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.servlet;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.connector.traversal.MimeTypeMap;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Tests for {@link RetrieverCompressionPolicy}.
+ */
+public class RetrieverCompressionPolicyTest extends TestCase {
+  private RetrieverCompressionPolicy policy;
+
+  @Override
+  protected void setUp() {
+    policy = new RetrieverCompressionPolicy();
+  }
+
+  public void testDefaultPolicy() {
+    assertEquals(Deflater.DEFAULT_COMPRESSION,
+        policy.getCompressionLevel("image/jpeg", 0));
+    assertEquals(Deflater.DEFAULT_COMPRESSION,
+        policy.getCompressionLevel(null, null));
+    assertEquals(Deflater.DEFAULT_COMPRESSION,
+        policy.getCompressionLevel("text/plain", Integer.MAX_VALUE));
+  }
+
+  public void testCompressedMimeTypes() {
+    MimeTypeMap mimeTypeMap = new MimeTypeMap();
+    mimeTypeMap.setCompressedMimeTypes(ImmutableSet.of("image/jpeg", "video"));
+    policy.setMimeTypeMap(mimeTypeMap);
+    assertEquals(Deflater.NO_COMPRESSION,
+        policy.getCompressionLevel("image/jpeg", 100000));
+    assertEquals(Deflater.NO_COMPRESSION,
+        policy.getCompressionLevel("video/mp4", null));
+    assertEquals(Deflater.DEFAULT_COMPRESSION,
+        policy.getCompressionLevel("text/html; charset=UTF-8", 100000));
+    assertEquals(Deflater.DEFAULT_COMPRESSION,
+        policy.getCompressionLevel(null, 100000));
+  }
+
+  public void testSizes() {
+    policy.setMinCompressSize(1024);
+    policy.setFastCompressSize(1048576);
+    assertEquals(Deflater.NO_COMPRESSION,
+        policy.getCompressionLevel("text/plain", 0));
+    assertEquals(Deflater.NO_COMPRESSION,
+        policy.getCompressionLevel("text/plain", 1023));
+    assertEquals(Deflater.DEFAULT_COMPRESSION,
+        policy.getCompressionLevel("text/plain", 1024));
+    assertEquals(Deflater.DEFAULT_COMPRESSION,
+        policy.getCompressionLevel("text/plain", 1048575));
+    assertEquals(Deflater.BEST_SPEED,
+        policy.getCompressionLevel("text/plain", 1048576));
+    // Without a length, the content is compressed at the default level.
+    assertEquals(Deflater.DEFAULT_COMPRESSION,
+        policy.getCompressionLevel("text/plain", null));
+  }
+
+  public void testNegativeSizes() {
+    try {
+      policy.setMinCompressSize(-1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      policy.setFastCompressSize(-1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private byte[] gzip(byte[] data, int level) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    OutputStream out = policy.newGzipOutputStream(baos, level);
+    // Write in pieces, and a single byte, to exercise all of the writes.
+    out.write(data, 0, data.length / 2);
+    if (data.length > 0) {
+      out.write(data[data.length / 2]);
+      out.write(data, data.length / 2 + 1, data.length - data.length / 2 - 1);
+    }
+    out.close();
+    return baos.toByteArray();
+  }
+
+  private byte[] gunzip(byte[] data) throws IOException {
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      baos.write(buffer, 0, count);
+    }
+    return baos.toByteArray();
+  }
+
+  public void testGzip() throws Exception {
+    byte[] data = "now is the time for all good men".getBytes("UTF-8");
+    assertTrue(Arrays.equals(data, gunzip(gzip(data,
+        Deflater.DEFAULT_COMPRESSION))));
+  }
+
+  public void testGzipEmpty() throws Exception {
+    byte[] data = new byte[0];
+    assertTrue(Arrays.equals(data, gunzip(gzip(data, Deflater.BEST_SPEED))));
+  }
+
+  public void testGzipLarge() throws Exception {
+    // Larger than the output buffer, and not very compressible.
+    byte[] data = new byte[300 * 1024];
+    new Random(42).nextBytes(data);
+    Arrays.fill(data, 0, 1024, (byte) 'x');
+    assertTrue(Arrays.equals(data, gunzip(gzip(data, Deflater.BEST_SPEED))));
+  }
+
+  public void testDeflaterReuse() throws Exception {
+    assertEquals(0, policy.getPoolSize());
+    byte[] data = "now is the time for all good men".getBytes("UTF-8");
+    byte[] first = gzip(data, Deflater.DEFAULT_COMPRESSION);
+    assertEquals(1, policy.getPoolSize());
+
+    // The reused Deflater starts afresh, at the new level.
+    byte[] second = gzip(data, Deflater.BEST_SPEED);
+    assertEquals(1, policy.getPoolSize());
+    assertTrue(Arrays.equals(data, gunzip(second)));
+    assertTrue(Arrays.equals(first, gzip(data, Deflater.DEFAULT_COMPRESSION)));
+  }
+
+  public void testDoubleClose() throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    OutputStream out =
+        policy.newGzipOutputStream(baos, Deflater.DEFAULT_COMPRESSION);
+    out.write(1);
+    out.close();
+    out.close();
+    assertEquals(1, policy.getPoolSize());
+    assertTrue(Arrays.equals(new byte[] { 1 }, gunzip(baos.toByteArray())));
+  }
+
+  public void testCloseFailure() throws Exception {
+    OutputStream broken = new OutputStream() {
+      private int count = 0;
+
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        // Allow the header, then fail.
+        if (count++ > 0) {
+          throw new IOException("broken");
+        }
+      }
+    };
+    OutputStream out =
+        policy.newGzipOutputStream(broken, Deflater.DEFAULT_COMPRESSION);
+    out.write(1);
+    try {
+      out.close();
+      fail("Expected IOException");
+    } catch (IOException expected) {
+    }
+    // The Deflater is returned to the pool anyway.
+    assertEquals(1, policy.getPoolSize());
+  }
+}
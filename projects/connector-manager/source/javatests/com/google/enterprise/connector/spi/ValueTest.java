@@ -28,10 +28,13 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Locale;
+import java.util.Random;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Unit tests for the {@link Value} class.
@@ -231,6 +234,225 @@ public class ValueTest extends TestCase {
     assertEquals(expected.iso8601Date, s);
   }
 
+  private static final String[] TIME_ZONES = { "GMT", "GMT-0800",
+      "America/Los_Angeles", "Asia/Kolkata", "Australia/Lord_Howe" };
+
+  /** Returns a lenient {@code SimpleDateFormat} in the given time zone. */
+  private static SimpleDateFormat newFormat(String pattern, Locale locale,
+      TimeZone tz) {
+    SimpleDateFormat format = new SimpleDateFormat(pattern, locale);
+    format.setTimeZone(tz);
+    format.setLenient(true);
+    return format;
+  }
+
+  /** Formats a date with {@code SimpleDateFormat}, as in older releases. */
+  private static String referenceFormat(String pattern, Locale locale,
+      TimeZone tz, long millis, String utc) {
+    String s = newFormat(pattern, locale, tz).format(new Date(millis));
+    return s.replaceFirst("\\+0000$", utc);
+  }
+
+  /** Parses a date with {@code SimpleDateFormat}, as in older releases. */
+  private static long referenceParse(String s, TimeZone tz)
+      throws ParseException {
+    s = s.replaceFirst("Z$", "+0000");
+    String[] patterns = { "yyyy-MM-dd'T'HH:mm:ss.SSSZ",
+        "yyyy-MM-dd'T'HH:mm:ssZ", "yyyy-MM-dd'T'HH:mmZ", "yyyy-MM-dd" };
+    ParseException exception = null;
+    for (String pattern : patterns) {
+      try {
+        return newFormat(pattern, Locale.getDefault(), tz).parse(s).getTime();
+      } catch (ParseException e) {
+        exception = e;
+      }
+    }
+    throw exception;
+  }
+
+  /** Returns random times, including years before 1000 and after 9999. */
+  private static long[] getTestTimes() {
+    Random random = new Random(1234);
+    long[] times = new long[500];
+    for (int i = 0; i < times.length; i++) {
+      // About 300,000 years either side of the epoch.
+      times[i] = random.nextLong() % (1L << 53);
+    }
+    times[0] = 0L;
+    times[1] = -62135769600000L; // 0001-01-01T00:00:00Z
+    times[2] = 253402300799999L; // 9999-12-31T23:59:59.999Z
+    return times;
+  }
+
+  /**
+   * Tests that the hand-written formats match the earlier
+   * {@code SimpleDateFormat} formats.
+   */
+  public void testFormatMatchesSimpleDateFormat() {
+    for (String id : TIME_ZONES) {
+      Value.setFeedTimeZone(id);
+      TimeZone tz = TimeZone.getTimeZone(id);
+      for (long millis : getTestTimes()) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(millis);
+        assertEquals(referenceFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ",
+                Locale.getDefault(), tz, millis, "Z"),
+            Value.calendarToIso8601(c));
+        assertEquals(referenceFormat("EEE', 'dd' 'MMM' 'yyyy' 'HH:mm:ss Z",
+                Locale.ENGLISH, tz, millis, "GMT"),
+            Value.calendarToRfc822(c));
+        assertEquals(referenceFormat("yyyy-MM-dd", Locale.getDefault(), tz,
+                millis, "Z"),
+            Value.calendarToFeedXml(c));
+      }
+    }
+  }
+
+  /** Tests the ISO-8601 format used for each set of calendar fields. */
+  public void testCalendarToIso8601Precision() {
+    Value.setFeedTimeZone("GMT");
+    assertEquals("0987-01-02",
+        Value.calendarToIso8601(newCalendar(Calendar.DATE)));
+    assertEquals("0987-01-02T00:03Z",
+        Value.calendarToIso8601(newCalendar(Calendar.MINUTE)));
+    assertEquals("0987-01-02T00:03:04Z",
+        Value.calendarToIso8601(newCalendar(Calendar.SECOND)));
+    assertEquals("0987-01-02T00:03:04.005Z",
+        Value.calendarToIso8601(newCalendar(Calendar.MILLISECOND)));
+  }
+
+  /**
+   * Returns a new GMT calendar with the fields set down to the given
+   * field. Formatting a calendar computes all of its fields, so each
+   * precision needs a new calendar.
+   */
+  private static Calendar newCalendar(int precision) {
+    Calendar c = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+    c.clear();
+    c.set(987, 0, 2);
+    if (precision >= Calendar.MINUTE) {
+      c.set(Calendar.MINUTE, 3);
+    }
+    if (precision >= Calendar.SECOND) {
+      c.set(Calendar.SECOND, 4);
+    }
+    if (precision >= Calendar.MILLISECOND) {
+      c.set(Calendar.MILLISECOND, 5);
+    }
+    return c;
+  }
+
+  /**
+   * Tests that parsing matches the earlier {@code SimpleDateFormat}
+   * parsing, for the strings we write and for other strings.
+   */
+  public void testParseMatchesSimpleDateFormat() throws ParseException {
+    String[] strings = {
+        // Strings in the formats we write.
+        "2000-12-31", "2000-12-31T23:59Z", "2000-12-31T23:59:01-0800",
+        "2001-01-01T00:00:59.999+1100", "0987-01-02T00:03:04.005Z",
+        "2001-01-01T00:00:00+0530",
+        // Strings that are parsed leniently.
+        "2000-12-31T23:59", "2000-1-2", "2000-12-31T23:59:01.5Z",
+        "2000-12-31T23:59:01+05:30", "2000-12-31T23:59:01 GMT",
+        "2000-12-31T23:59:01+2400", "2000-13-32T25:61:61.1000Z",
+        "12345-01-01T00:00:00Z", "2000-12-31T23:59:01Zjunk",
+        "2000-12-31X23:59:01Z" };
+    for (String id : TIME_ZONES) {
+      Value.setFeedTimeZone(id);
+      TimeZone tz = TimeZone.getTimeZone(id);
+      for (String s : strings) {
+        assertEquals(s, referenceParse(s, tz),
+            Value.iso8601ToCalendar(s).getTimeInMillis());
+      }
+    }
+  }
+
+  /** Tests that formatted strings are parsed to the same time. */
+  public void testRoundTrip() throws ParseException {
+    for (String id : TIME_ZONES) {
+      Value.setFeedTimeZone(id);
+      for (long millis : getTestTimes()) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(millis);
+        String s = Value.calendarToIso8601(c);
+        if (isRoundTrip(millis, s)) {
+          assertEquals(s, millis,
+              Value.iso8601ToCalendar(s).getTimeInMillis());
+        }
+      }
+    }
+  }
+
+  /** 0002-01-01T00:00:00Z, safely after the start of year 1 AD. */
+  private static final long YEAR_2_AD = -62104233600000L;
+
+  /**
+   * Returns {@code true} if the formatted time can be parsed back to the
+   * same time. BC years are written without an era, and years after 9999
+   * do not fit the fixed format.
+   */
+  private static boolean isRoundTrip(long millis, String s) {
+    return millis >= YEAR_2_AD && s.charAt(4) == '-';
+  }
+
+  public void testIso8601ToCalendarInvalid() {
+    for (String s : new String[] { "", "2000", "not a date", "T10:00Z" }) {
+      try {
+        Value.iso8601ToCalendar(s);
+        fail("Expected a ParseException: " + s);
+      } catch (ParseException expected) {
+      }
+    }
+  }
+
+  /** Tests formatting and parsing in many threads at once. */
+  public void testConcurrentFormatting() throws Exception {
+    Value.setFeedTimeZone("America/Los_Angeles");
+    final long[] times = getTestTimes();
+    final String[] expected = new String[times.length];
+    for (int i = 0; i < times.length; i++) {
+      Calendar c = Calendar.getInstance();
+      c.setTimeInMillis(times[i]);
+      expected[i] = Value.calendarToIso8601(c);
+    }
+
+    final AtomicReference<String> failure = new AtomicReference<String>();
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      final int offset = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int n = 0; n < 20; n++) {
+              for (int i = 0; i < times.length; i++) {
+                int j = (i + offset) % times.length;
+                Calendar c = Calendar.getInstance();
+                c.setTimeInMillis(times[j]);
+                String s = Value.calendarToIso8601(c);
+                if (!s.equals(expected[j])) {
+                  failure.compareAndSet(null, expected[j] + " != " + s);
+                }
+                if (isRoundTrip(times[j], s) && Value.iso8601ToCalendar(s)
+                    .getTimeInMillis() != times[j]) {
+                  failure.compareAndSet(null, "Parsed " + s);
+                }
+              }
+            }
+          } catch (Exception e) {
+            failure.compareAndSet(null, e.toString());
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(failure.get(), failure.get());
+  }
+
   private static final String TEST_DIR = "testdata/contextTests/value/";
 
   /** Tests the default Spring configuration. */
@@ -155,6 +155,23 @@ public class MimeTypeMapTest extends TestCase {
     assertNull(testMap.preferredMimeType(new HashSet<String>()));
   }
 
+  /** Test compressed mime types. */
+  public void testCompressedMimeTypes() {
+    MimeTypeMap testMap = new MimeTypeMap();
+    assertFalse(testMap.isCompressedMimeType("image/jpeg"));
+
+    String[] compressedMimeTypes = {"Image", " application/zip "};
+    testMap.setCompressedMimeTypes(ArrayAsSet(compressedMimeTypes));
+    assertTrue(testMap.isCompressedMimeType("image/jpeg"));
+    assertTrue(testMap.isCompressedMimeType("IMAGE/PNG"));
+    assertTrue(testMap.isCompressedMimeType("application/zip"));
+    assertTrue(testMap.isCompressedMimeType("application/zip; name=foo.zip"));
+    assertFalse(testMap.isCompressedMimeType("application/zipper"));
+    assertFalse(testMap.isCompressedMimeType("application"));
+    assertFalse(testMap.isCompressedMimeType("text/html"));
+    assertFalse(testMap.isCompressedMimeType(null));
+  }
+
   private static Set<String> ArrayAsSet(String[] a) {
     return new HashSet<String>(Arrays.asList(a));
   }
@@ -0,0 +1,192 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.traversal;
+
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.DocumentList;
+import com.google.enterprise.connector.spi.RepositoryDocumentException;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.spi.Value;
+import com.google.enterprise.connector.test.ConnectorTestUtils;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests for {@link PrefetchingDocumentList}.
+ */
+public class PrefetchingDocumentListTest extends TestCase {
+
+  /**
+   * A {@link DocumentList} of numbered documents, that throws configured
+   * exceptions in place of some documents.
+   */
+  private static class CountingDocumentList implements DocumentList {
+    private final int size;
+    private final Map<Integer, Exception> exceptions =
+        new HashMap<Integer, Exception>();
+    private int count = 0;
+
+    CountingDocumentList(int size) {
+      this.size = size;
+    }
+
+    void throwAt(int index, Exception exception) {
+      exceptions.put(index, exception);
+    }
+
+    synchronized int getCount() {
+      return count;
+    }
+
+    public synchronized Document nextDocument() throws RepositoryException {
+      if (count >= size) {
+        return null;
+      }
+      int index = count++;
+      Exception exception = exceptions.get(index);
+      if (exception instanceof RepositoryException) {
+        throw (RepositoryException) exception;
+      } else if (exception instanceof RuntimeException) {
+        throw (RuntimeException) exception;
+      }
+      return ConnectorTestUtils.createSimpleDocument(Integer.toString(index));
+    }
+
+    public synchronized String checkpoint() {
+      return Integer.toString(count);
+    }
+  }
+
+  private static String getDocid(Document document) throws Exception {
+    return Value.getSingleValueString(document, SpiConstants.PROPNAME_DOCID);
+  }
+
+  /** Waits for the document list to have fetched the expected count. */
+  private static void waitForCount(CountingDocumentList documentList,
+      int expected) throws Exception {
+    for (int i = 0; i < 100 && documentList.getCount() < expected; i++) {
+      Thread.sleep(20);
+    }
+    assertEquals(expected, documentList.getCount());
+  }
+
+  public void testConstructorArgs() {
+    try {
+      new PrefetchingDocumentList(new CountingDocumentList(1), 0, getName());
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testOrder() throws Exception {
+    CountingDocumentList documentList = new CountingDocumentList(50);
+    DocumentList prefetcher =
+        new PrefetchingDocumentList(documentList, 3, getName());
+    for (int i = 0; i < 50; i++) {
+      assertEquals(Integer.toString(i), getDocid(prefetcher.nextDocument()));
+    }
+    assertNull(prefetcher.nextDocument());
+    assertNull(prefetcher.nextDocument());
+    assertEquals("50", prefetcher.checkpoint());
+  }
+
+  public void testPrefetchIsBounded() throws Exception {
+    CountingDocumentList documentList = new CountingDocumentList(50);
+    DocumentList prefetcher =
+        new PrefetchingDocumentList(documentList, 3, getName());
+    assertEquals("0", getDocid(prefetcher.nextDocument()));
+
+    // The consumed document, plus three more.
+    waitForCount(documentList, 4);
+    Thread.sleep(50);
+    assertEquals(4, documentList.getCount());
+  }
+
+  public void testStopFetching() throws Exception {
+    CountingDocumentList documentList = new CountingDocumentList(50);
+    PrefetchingDocumentList prefetcher =
+        new PrefetchingDocumentList(documentList, 3, getName());
+    assertEquals("0", getDocid(prefetcher.nextDocument()));
+    waitForCount(documentList, 4);
+    prefetcher.stopFetching();
+
+    // The fetched documents are still returned.
+    assertEquals("1", getDocid(prefetcher.nextDocument()));
+    assertEquals("2", getDocid(prefetcher.nextDocument()));
+    assertEquals("3", getDocid(prefetcher.nextDocument()));
+    assertNull(prefetcher.nextDocument());
+    assertEquals("4", prefetcher.checkpoint());
+  }
+
+  public void testStopBeforeFetching() throws Exception {
+    CountingDocumentList documentList = new CountingDocumentList(50);
+    PrefetchingDocumentList prefetcher =
+        new PrefetchingDocumentList(documentList, 3, getName());
+    prefetcher.stopFetching();
+    assertNull(prefetcher.nextDocument());
+    assertEquals("0", prefetcher.checkpoint());
+  }
+
+  public void testCheckpointWithUnconsumedDocuments() throws Exception {
+    CountingDocumentList documentList = new CountingDocumentList(50);
+    PrefetchingDocumentList prefetcher =
+        new PrefetchingDocumentList(documentList, 3, getName());
+    assertEquals("0", getDocid(prefetcher.nextDocument()));
+    waitForCount(documentList, 4);
+    try {
+      prefetcher.checkpoint();
+      fail("Expected RepositoryException");
+    } catch (RepositoryException expected) {
+    }
+  }
+
+  public void testExceptions() throws Exception {
+    CountingDocumentList documentList = new CountingDocumentList(50);
+    documentList.throwAt(1, new RepositoryDocumentException("skip"));
+    documentList.throwAt(2, new IllegalStateException("runtime"));
+    documentList.throwAt(4, new RepositoryException("fatal"));
+    DocumentList prefetcher =
+        new PrefetchingDocumentList(documentList, 3, getName());
+
+    assertEquals("0", getDocid(prefetcher.nextDocument()));
+    try {
+      prefetcher.nextDocument();
+      fail("Expected RepositoryDocumentException");
+    } catch (RepositoryDocumentException expected) {
+      assertEquals("skip", expected.getMessage());
+    }
+    try {
+      prefetcher.nextDocument();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+      assertEquals("runtime", expected.getMessage());
+    }
+    assertEquals("3", getDocid(prefetcher.nextDocument()));
+    try {
+      prefetcher.nextDocument();
+      fail("Expected RepositoryException");
+    } catch (RepositoryException expected) {
+      assertEquals("fatal", expected.getMessage());
+    }
+
+    // A RepositoryException ends the fetching.
+    assertNull(prefetcher.nextDocument());
+    assertEquals(5, documentList.getCount());
+  }
+}
@@ -17,6 +17,8 @@ package com.google.enterprise.connector.traversal;
 import com.google.enterprise.connector.instantiator.MockInstantiator;
 import com.google.enterprise.connector.instantiator.ThreadPool;
 import com.google.enterprise.connector.jcr.JcrTraversalManager;
+import com.google.enterprise.connector.metrics.Metric;
+import com.google.enterprise.connector.metrics.MetricsRegistry;
 import com.google.enterprise.connector.mock.MockRepository;
 import com.google.enterprise.connector.mock.MockRepositoryEventList;
 import com.google.enterprise.connector.mock.jcr.MockJcrQueryManager;
@@ -288,6 +290,86 @@ public class QueryTraverserTest extends TestCase {
     checkResult(traversalManager.getDocumentCount(), result);
   }
 
+  /**
+   * Tests that a traverser counts its documents in the connector's current
+   * metrics, even after the connector's metrics have been removed.
+   */
+  public void testMetricsAfterRemoveConnector() {
+    LargeDocumentlistTraversalManager traversalManager =
+        new LargeDocumentlistTraversalManager(10);
+    QueryTraverser queryTraverser = new QueryTraverser(pusher, traversalManager,
+        stateStore, connectorName, traversalContext, clock);
+
+    // The connector is removed, or removed and added again, after the
+    // traverser is constructed.
+    MetricsRegistry metrics = MetricsRegistry.getInstance();
+    metrics.removeConnector(connectorName);
+    BatchResult result = queryTraverser.runBatch(new BatchSize(10));
+    assertTrue(result.getCountProcessed() > 0);
+    assertEquals(result.getCountProcessed(), metrics.getCounter(
+        Metric.DOCUMENTS_TRAVERSED, connectorName).get());
+    metrics.removeConnector(connectorName);
+  }
+
+  /**
+   * Tests that documents prefetched when the batch times out are fed
+   * before the checkpoint is taken.
+   */
+  public void testPrefetchTimeout() {
+    NeverEndingDocumentlistTraversalManager traversalManager =
+        new NeverEndingDocumentlistTraversalManager(100);
+    QueryTraverser queryTraverser = new QueryTraverser(pusher, traversalManager,
+        stateStore, connectorName, traversalContext, clock);
+    queryTraverser.setPrefetchSize(5);
+
+    BatchResult result = queryTraverser.runBatch(new BatchSize(100));
+    assertTrue(result.getCountProcessed() > 0);
+    assertEquals(TraversalDelayPolicy.IMMEDIATE, result.getDelayPolicy());
+    checkResult(traversalManager.getDocumentCount(), result);
+    pusher.throwAssertionError();
+  }
+
+  public void testPrefetchBatchSize() {
+    LargeDocumentlistTraversalManager traversalManager =
+        new LargeDocumentlistTraversalManager(10);
+    QueryTraverser queryTraverser = new QueryTraverser(pusher, traversalManager,
+        stateStore, connectorName, traversalContext, clock);
+    queryTraverser.setPrefetchSize(5);
+
+    BatchResult result = queryTraverser.runBatch(new BatchSize(10));
+    assertEquals(20, result.getCountProcessed());
+    checkResult(traversalManager.getDocumentCount(), result);
+    pusher.throwAssertionError();
+  }
+
+  /**
+   * Tests that documents prefetched when the Pusher ends the batch
+   * are fed before the checkpoint is taken.
+   */
+  public void testPrefetchPusherBacklog() {
+    pusher = new ValidatingPusher() {
+        @Override
+        public synchronized PusherStatus take(Document document)
+            throws RepositoryException, PushException {
+          super.take(document);
+          return (getPushCount() >= 10)
+              ? PusherStatus.LOCAL_FEED_BACKLOG : PusherStatus.OK;
+        }
+      };
+    NeverEndingDocumentlistTraversalManager traversalManager =
+        new NeverEndingDocumentlistTraversalManager(0);
+    QueryTraverser queryTraverser = new QueryTraverser(pusher, traversalManager,
+        stateStore, connectorName, traversalContext, clock);
+    queryTraverser.setPrefetchSize(5);
+
+    BatchResult result = queryTraverser.runBatch(new BatchSize(100));
+    assertTrue(result.getCountProcessed() >= 10);
+    assertTrue(result.getCountProcessed() <= 16);
+    assertEquals(TraversalDelayPolicy.IMMEDIATE, result.getDelayPolicy());
+    checkResult(traversalManager.getDocumentCount(), result);
+    pusher.throwAssertionError();
+  }
+
   private void checkExceptionHandling(Exception exception, Where where,
                                       long documentCount) {
     checkExceptionHandling(exception, where, documentCount, documentCount);